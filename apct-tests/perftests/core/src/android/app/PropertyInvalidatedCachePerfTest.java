@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Performance tests for {@link PropertyInvalidatedCache} queried by concurrent readers.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PropertyInvalidatedCachePerfTest {
+    // Readable by every process and never invalidated after boot, so the caches stay valid.
+    private static final String CACHE_KEY = "cache_key.has_system_feature";
+    private static final int THREAD_COUNT = 4;
+    private static final int QUERY_COUNT = 1000;
+    private static final int DISTINCT_QUERY_COUNT = 64;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ExecutorService mExecutor;
+
+    private static class TestCache extends PropertyInvalidatedCache<Integer, String> {
+        private final String[] mResults = new String[DISTINCT_QUERY_COUNT];
+
+        TestCache(int shardCount) {
+            super(DISTINCT_QUERY_COUNT, CACHE_KEY, shardCount);
+            for (int i = 0; i < DISTINCT_QUERY_COUNT; i++) {
+                mResults[i] = "result" + i;
+            }
+        }
+
+        @Override
+        protected String recompute(Integer query) {
+            return mResults[query];
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void timeQuerySingleThreaded() {
+        final TestCache cache = new TestCache(1);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            runQueries(cache);
+        }
+    }
+
+    @Test
+    public void timeQueryConcurrent_oneShard() throws Exception {
+        runConcurrentScenario(new TestCache(1));
+    }
+
+    @Test
+    public void timeQueryConcurrent_fourShards() throws Exception {
+        runConcurrentScenario(new TestCache(4));
+    }
+
+    @Test
+    public void timeQueryConcurrent_eightShards() throws Exception {
+        runConcurrentScenario(new TestCache(8));
+    }
+
+    private void runConcurrentScenario(TestCache cache) throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final List<Future<?>> futures = new ArrayList<>(THREAD_COUNT);
+        while (state.keepRunning()) {
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                futures.add(mExecutor.submit(() -> runQueries(cache)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            futures.clear();
+        }
+    }
+
+    private static void runQueries(TestCache cache) {
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            cache.query(i % DISTINCT_QUERY_COUNT);
+        }
+    }
+}
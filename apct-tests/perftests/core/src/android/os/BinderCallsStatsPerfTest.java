@@ -32,6 +32,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Performance tests for {@link BinderCallsStats}
  */
@@ -40,6 +46,7 @@ import org.junit.runner.RunWith;
 public class BinderCallsStatsPerfTest {
     private static final int DEFAULT_BUCKET_SIZE = 1000;
     private static final int WORKSOURCE_UID = 1;
+    private static final int THREAD_COUNT = 4;
     static class FakeCpuTimeBinderCallsStats extends BinderCallsStats {
         private int mTimeMs;
 
@@ -112,15 +119,54 @@ public class BinderCallsStatsPerfTest {
         runScenario(/* max bucket size */ 100);
     }
 
+    @Test
+    public void timeCallSessionMultiThreaded() throws Exception {
+        mBinderCallsStats.setDetailedTracking(true);
+        runMultiThreadedScenario(DEFAULT_BUCKET_SIZE);
+    }
+
+    @Test
+    public void timeCallSessionMultiThreaded_singleShard() throws Exception {
+        mBinderCallsStats.setDetailedTracking(true);
+        mBinderCallsStats.setShardCount(1);
+        runMultiThreadedScenario(DEFAULT_BUCKET_SIZE);
+    }
+
     // There will be a warmup time of maxBucketSize to initialize the map of CallStat.
     private void runScenario(int maxBucketSize) {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
         Binder b = new Binder();
         while (state.keepRunning()) {
-            for (int i = 0; i < 10000; i++) {
-                CallSession s = mBinderCallsStats.callStarted(b, i % maxBucketSize, WORKSOURCE_UID);
-                mBinderCallsStats.callEnded(s, 0, 0, WORKSOURCE_UID);
+            runCalls(b, maxBucketSize);
+        }
+    }
+
+    // Every iteration runs the calls of runScenario on THREAD_COUNT threads at the same time,
+    // the way binder threads of a busy process do.
+    private void runMultiThreadedScenario(int maxBucketSize) throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        final List<Future<?>> futures = new ArrayList<>(THREAD_COUNT);
+        final Binder b = new Binder();
+        try {
+            while (state.keepRunning()) {
+                for (int i = 0; i < THREAD_COUNT; i++) {
+                    futures.add(executor.submit(() -> runCalls(b, maxBucketSize)));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                futures.clear();
             }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runCalls(Binder b, int maxBucketSize) {
+        for (int i = 0; i < 10000; i++) {
+            CallSession s = mBinderCallsStats.callStarted(b, i % maxBucketSize, WORKSOURCE_UID);
+            mBinderCallsStats.callEnded(s, 0, 0, WORKSOURCE_UID);
         }
     }
 }
@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.perftests.utils.BenchmarkState;
@@ -45,4 +46,56 @@ public class SharedPreferencesTest {
             prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
         }
     }
+
+    @Test
+    public void timeApply() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getPopulatedSharedPreferences();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).apply();
+        }
+        QueuedWork.waitToFinish();
+    }
+
+    @Test
+    public void timeCommit() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getPopulatedSharedPreferences();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).commit();
+        }
+    }
+
+    /**
+     * Measures how long a lifecycle transition, such as an activity stop, is blocked after a
+     * burst of applies.
+     */
+    @Test
+    public void timeWaitToFinishAfterApplies() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getPopulatedSharedPreferences();
+        int i = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            for (int j = 0; j < 10; j++) {
+                prefs.edit().putInt("counter", i++).apply();
+            }
+            state.resumeTiming();
+            QueuedWork.waitToFinish();
+        }
+    }
+
+    private static SharedPreferences getPopulatedSharedPreferences() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SharedPreferences prefs = context.getSharedPreferences("test_writes",
+                Context.MODE_PRIVATE);
+        final SharedPreferences.Editor editor = prefs.edit().clear();
+        for (int i = 0; i < 100; i++) {
+            editor.putString("key_" + i, "value_" + i);
+        }
+        editor.commit();
+        return prefs;
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the text and binary XML encodings on a document shaped like a
+ * typical packages.xml, to estimate the boot-time cost of reading it.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class XmlPerfTest {
+    private static final int NUM_PACKAGES = 500;
+    private static final int NUM_PERMISSIONS = 12;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void testWrite_Fast() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            os.reset();
+            write(new FastXmlSerializer(), os);
+        }
+    }
+
+    @Test
+    public void testWrite_Binary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            os.reset();
+            write(new BinaryXmlSerializer(), os);
+        }
+    }
+
+    @Test
+    public void testRead_Fast() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(new FastXmlSerializer(), os);
+        read(os.toByteArray());
+    }
+
+    @Test
+    public void testRead_Binary() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(new BinaryXmlSerializer(), os);
+        read(os.toByteArray());
+    }
+
+    private void read(byte[] data) throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final XmlPullParser parser =
+                    BinaryXmlPullParser.newPullParser(new ByteArrayInputStream(data));
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG) {
+                    parser.getAttributeValue(null, "name");
+                }
+            }
+        }
+    }
+
+    private static void write(XmlSerializer out, ByteArrayOutputStream os) throws IOException {
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            out.startTag(null, "package");
+            out.attribute(null, "name", "com.example.package" + i);
+            out.attribute(null, "codePath", "/data/app/com.example.package" + i + "-1");
+            out.attribute(null, "nativeLibraryPath", "/data/app/com.example.package" + i
+                    + "-1/lib");
+            out.attribute(null, "publicFlags", "940064324");
+            out.attribute(null, "privateFlags", "0");
+            out.attribute(null, "ft", "1757a1e3c08");
+            out.attribute(null, "it", "1757a1e3c08");
+            out.attribute(null, "ut", "1757a1e3c08");
+            out.attribute(null, "version", Integer.toString(i));
+            out.attribute(null, "userId", Integer.toString(10000 + i));
+            out.startTag(null, "sigs");
+            out.attribute(null, "count", "1");
+            out.attribute(null, "schemeVersion", "3");
+            out.startTag(null, "cert");
+            out.attribute(null, "index", Integer.toString(i));
+            out.endTag(null, "cert");
+            out.endTag(null, "sigs");
+            out.startTag(null, "perms");
+            for (int j = 0; j < NUM_PERMISSIONS; j++) {
+                out.startTag(null, "item");
+                out.attribute(null, "name", "android.permission.PERMISSION_" + j);
+                out.attribute(null, "granted", "true");
+                out.attribute(null, "flags", "0");
+                out.endTag(null, "item");
+            }
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.endTag(null, "packages");
+        out.endDocument();
+    }
+}
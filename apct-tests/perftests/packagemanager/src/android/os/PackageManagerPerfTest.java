@@ -24,6 +24,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 
@@ -121,6 +122,27 @@ public class PackageManagerPerfTest {
         testQueryIntentActivities();
     }
 
+    @Test
+    @DisableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testQueryIntentActivitiesViewHttps() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm =
+                InstrumentationRegistry.getInstrumentation().getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("https://www.example.com/perftest"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+
+        while (state.keepRunning()) {
+            pm.queryIntentActivities(intent, PackageManager.MATCH_ALL);
+        }
+    }
+
+    @Test
+    @EnableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
+    public void testQueryIntentActivitiesViewHttpsWithFiltering() {
+        testQueryIntentActivitiesViewHttps();
+    }
+
     @Test
     @DisableCompatChanges(PackageManager.FILTER_APPLICATION_QUERY)
     public void testGetPackageInfo() throws Exception {
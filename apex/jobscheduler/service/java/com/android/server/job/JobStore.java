@@ -36,34 +36,40 @@ import android.util.AtomicFile;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.BitUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
-import com.android.server.LocalServices;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.zip.CRC32;
 
 /**
  * Maintains the master list of jobs that the job scheduler is tracking. These jobs are compared by
@@ -76,6 +82,13 @@ import java.util.function.Predicate;
  *      and {@link com.android.server.job.JobStore.ReadJobMapFromDiskRunnable} lock on that
  *      object.
  *
+ * Note on persistence:
+ *      Persisted jobs are stored as one binary record per job. A write only appends the records
+ *      of the jobs added or removed since the previous write to a journal; every so often the
+ *      journal is compacted into a snapshot of all the jobs instead. At boot the snapshot is
+ *      loaded and the journal is replayed on top of it. A jobs.xml file left by an older
+ *      release is imported if there is no snapshot yet, and deleted once a snapshot is written.
+ *
  * Test:
  * atest $ANDROID_BUILD_TOP/frameworks/base/services/tests/servicestests/src/com/android/server/job/JobStoreTest.java
  */
@@ -86,6 +99,10 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final long JOB_PERSIST_DELAY = 2000L;
 
+    /** Number of journal records after which the next write compacts the journal. */
+    @VisibleForTesting
+    static final int MAX_JOURNAL_RECORDS = 512;
+
     final Object mLock;
     final Object mWriteScheduleLock;    // used solely for invariants around write scheduling
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
@@ -101,8 +118,29 @@ public final class JobStore {
     @GuardedBy("mWriteScheduleLock")
     private boolean mWriteInProgress;
 
+    /** Whether the next write has to write a snapshot instead of appending to the journal. */
+    @GuardedBy("mLock")
+    private boolean mFullWriteNeeded;
+
+    /** Number of records in the journal, including those that are about to be appended. */
+    @GuardedBy("mLock")
+    private int mJournalRecordCount;
+
+    /**
+     * Generation of the last write. Journal records carry the generation of the write that
+     * appended them, so that those already in the snapshot can be told apart.
+     */
+    @GuardedBy("mLock")
+    private long mWriteGeneration;
+
+    /** Ids of the persisted jobs that changed since the last write, keyed by uid. */
+    @GuardedBy("mLock")
+    private final SparseArray<SparseBooleanArray> mDirtyJobs = new SparseArray<>();
+
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final File mJournalFile;
+    private final AtomicFile mLegacyJobsFile;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -141,7 +179,9 @@ public final class JobStore {
         File systemDir = new File(dataDir, "system");
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
-        mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJobsFile = new AtomicFile(new File(jobDir, "jobs.bin"), "jobs");
+        mJournalFile = new File(jobDir, "jobs.journal");
+        mLegacyJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
 
         mJobSet = new JobSet();
 
@@ -156,7 +196,9 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = mJobsFile.exists()
+                ? Math.max(mJobsFile.getLastModifiedTime(), mJournalFile.lastModified())
+                : mLegacyJobsFile.getLastModifiedTime();
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -206,6 +248,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            markDirtyLocked(jobStatus);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -244,8 +287,12 @@ public final class JobStore {
             }
             return false;
         }
-        if (removeFromPersisted && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Even if the removal isn't written now, the next write must not keep the job.
+            markDirtyLocked(jobStatus);
+            if (removeFromPersisted) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -256,14 +303,57 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        mFullWriteNeeded = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mFullWriteNeeded = true;
         maybeWriteStatusToDiskAsync();
     }
 
+    @GuardedBy("mLock")
+    private void markDirtyLocked(JobStatus jobStatus) {
+        SparseBooleanArray jobIds = mDirtyJobs.get(jobStatus.getUid());
+        if (jobIds == null) {
+            jobIds = new SparseBooleanArray();
+            mDirtyJobs.put(jobStatus.getUid(), jobIds);
+        }
+        jobIds.put(jobStatus.getJobId(), true);
+    }
+
+    @GuardedBy("mLock")
+    private int countDirtyJobsLocked() {
+        int count = 0;
+        for (int i = mDirtyJobs.size() - 1; i >= 0; i--) {
+            count += mDirtyJobs.valueAt(i).size();
+        }
+        return count;
+    }
+
+    /**
+     * Copies the current state of the jobs that changed since the last write. Jobs that are no
+     * longer in the store, or no longer persisted, map to {@code null}.
+     */
+    @GuardedBy("mLock")
+    private SparseArray<SparseArray<JobStatus>> captureChangedJobsLocked() {
+        final SparseArray<SparseArray<JobStatus>> changedJobs =
+                new SparseArray<>(mDirtyJobs.size());
+        for (int i = 0; i < mDirtyJobs.size(); i++) {
+            final int uid = mDirtyJobs.keyAt(i);
+            final SparseBooleanArray jobIds = mDirtyJobs.valueAt(i);
+            final SparseArray<JobStatus> changedForUid = new SparseArray<>(jobIds.size());
+            for (int j = 0; j < jobIds.size(); j++) {
+                final JobStatus job = mJobSet.get(uid, jobIds.keyAt(j));
+                changedForUid.put(jobIds.keyAt(j),
+                        job != null && job.isPersisted() ? new JobStatus(job) : null);
+            }
+            changedJobs.put(uid, changedForUid);
+        }
+        return changedJobs;
+    }
+
     /**
      * @param userHandle User for whom we are querying the list of jobs.
      * @return A list of all the jobs scheduled for the provided user. Never null.
@@ -312,8 +402,16 @@ public final class JobStore {
         mJobSet.forEachJobForSourceUid(sourceUid, functor);
     }
 
-    /** Version of the db schema. */
+    /** Version of the legacy xml db schema. */
     private static final int JOBS_FILE_VERSION = 0;
+    /** Magic number at the start of the binary snapshot. */
+    private static final int JOBS_BINARY_FILE_MAGIC = 0x4a4f4253; // "JOBS"
+    /** Version of the binary snapshot and journal records. */
+    private static final int JOBS_BINARY_FILE_VERSION = 1;
+    /** Size of the length and checksum preceding each record. */
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int RECORD_OP_PUT = 1;
+    private static final int RECORD_OP_DELETE = 2;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
     /** Tag corresponds to execution parameters. */
@@ -322,8 +420,8 @@ public final class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we schedule a write of the jobs that changed since the
+     * previous one; changes made in the meantime are batched into the same write.
      */
     private void maybeWriteStatusToDiskAsync() {
         synchronized (mWriteScheduleLock) {
@@ -384,7 +482,7 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to {@link #mJobSet} out to disk.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
@@ -392,6 +490,10 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final SparseArray<SparseArray<JobStatus>> changedJobs;
+            final boolean fullWrite;
+            final long generation;
+            final int[] persistedCounts = new int[3];
             // Intentionally allow new scheduling of a write operation *before* we clone
             // the job set.  If we reset it to false after cloning, there's a window in
             // which no new write will be scheduled but mLock is not held, i.e. a new
@@ -403,17 +505,54 @@ public final class JobStore {
                 mWriteScheduled = false;
             }
             synchronized (mLock) {
+                generation = ++mWriteGeneration;
+                final int changedCount = countDirtyJobsLocked();
+                fullWrite = mFullWriteNeeded
+                        || mJournalRecordCount + changedCount > MAX_JOURNAL_RECORDS;
                 // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(null, (job) -> {
-                    if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                if (fullWrite) {
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            storeCopy.add(new JobStatus(job));
+                        }
+                    });
+                    changedJobs = null;
+                    mFullWriteNeeded = false;
+                    mJournalRecordCount = 0;
+                } else {
+                    changedJobs = captureChangedJobsLocked();
+                    mJournalRecordCount += changedCount;
+                }
+                mDirtyJobs.clear();
+                mJobSet.forEachJob(JobStatus::isPersisted, (job) -> {
+                    persistedCounts[0]++;
+                    if (job.getUid() == Process.SYSTEM_UID) {
+                        persistedCounts[1]++;
+                        if (isSyncJob(job)) {
+                            persistedCounts[2]++;
+                        }
                     }
                 });
             }
-            writeJobsMapImpl(storeCopy);
+            final boolean written;
+            if (fullWrite) {
+                written = writeJobsMapImpl(storeCopy, generation);
+            } else {
+                written = changedJobs.size() == 0 || appendToJournal(changedJobs, generation);
+            }
+            if (written) {
+                mPersistInfo.countAllJobsSaved = persistedCounts[0];
+                mPersistInfo.countSystemServerJobsSaved = persistedCounts[1];
+                mPersistInfo.countSystemSyncManagerJobsSaved = persistedCounts[2];
+            } else {
+                synchronized (mLock) {
+                    // The captured changes may be lost, the next write has to have them all.
+                    mFullWriteNeeded = true;
+                }
+            }
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished " + (fullWrite ? "writing" : "journaling") + ", took "
+                        + (sElapsedRealtimeClock.millis() - startElapsed) + "ms");
             }
             synchronized (mWriteScheduleLock) {
                 mWriteInProgress = false;
@@ -421,154 +560,159 @@ public final class JobStore {
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
+        /** Writes a snapshot of all the jobs, which replaces the journal. */
+        private boolean writeJobsMapImpl(List<JobStatus> jobList, long generation) {
+            FileOutputStream fos = null;
             try {
                 final long startTime = SystemClock.uptimeMillis();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(baos);
+                final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+                final CRC32 crc = new CRC32();
+                out.writeInt(JOBS_BINARY_FILE_MAGIC);
+                out.writeInt(JOBS_BINARY_FILE_VERSION);
+                out.writeLong(generation);
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
-
-                    numJobs++;
-                    if (jobStatus.getUid() == Process.SYSTEM_UID) {
-                        numSystemJobs++;
-                        if (isSyncJob(jobStatus)) {
-                            numSyncJobs++;
-                        }
-                    }
+                    writeRecord(out, scratch, crc, generation, jobStatus.getUid(),
+                            jobStatus.getJobId(), jobStatus);
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
+                out.flush();
 
                 // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite(startTime);
-                fos.write(baos.toByteArray());
+                fos = mJobsFile.startWrite(startTime);
+                baos.writeTo(fos);
                 mJobsFile.finishWrite(fos);
+                fos = null;
+
+                // Everything journaled so far is part of the snapshot now, and the snapshot
+                // supersedes any jobs file imported from an older release.
+                mJournalFile.delete();
+                mLegacyJobsFile.delete();
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
                 }
-            } catch (XmlPullParserException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Error persisting bundle.", e);
+                if (fos != null) {
+                    mJobsFile.failWrite(fos);
                 }
-            } finally {
-                mPersistInfo.countAllJobsSaved = numJobs;
-                mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
-                mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+                return false;
             }
         }
 
-        /** Write out a tag with data comprising the required fields and priority of this job and
-         * its client.
-         */
-        private void addAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
-            out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
-            out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
-            if (jobStatus.getSourcePackageName() != null) {
-                out.attribute(null, "sourcePackageName", jobStatus.getSourcePackageName());
-            }
-            if (jobStatus.getSourceTag() != null) {
-                out.attribute(null, "sourceTag", jobStatus.getSourceTag());
-            }
-            out.attribute(null, "sourceUserId", String.valueOf(jobStatus.getSourceUserId()));
-            out.attribute(null, "uid", Integer.toString(jobStatus.getUid()));
-            out.attribute(null, "priority", String.valueOf(jobStatus.getPriority()));
-            out.attribute(null, "flags", String.valueOf(jobStatus.getFlags()));
-            if (jobStatus.getInternalFlags() != 0) {
-                out.attribute(null, "internalFlags", String.valueOf(jobStatus.getInternalFlags()));
-            }
-
-            out.attribute(null, "lastSuccessfulRunTime",
-                    String.valueOf(jobStatus.getLastSuccessfulRunTime()));
-            out.attribute(null, "lastFailedRunTime",
-                    String.valueOf(jobStatus.getLastFailedRunTime()));
-        }
+        /** Appends the records of the jobs that changed to the journal. */
+        private boolean appendToJournal(SparseArray<SparseArray<JobStatus>> changedJobs,
+                long generation) {
+            final long previousLength = mJournalFile.length();
+            FileOutputStream fos = null;
+            try {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(baos);
+                final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+                final CRC32 crc = new CRC32();
+                for (int i = 0; i < changedJobs.size(); i++) {
+                    final int uid = changedJobs.keyAt(i);
+                    final SparseArray<JobStatus> changedForUid = changedJobs.valueAt(i);
+                    for (int j = 0; j < changedForUid.size(); j++) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Journaling job " + changedForUid.keyAt(j));
+                        }
+                        writeRecord(out, scratch, crc, generation, uid, changedForUid.keyAt(j),
+                                changedForUid.valueAt(j));
+                    }
+                }
+                out.flush();
 
-        private void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
-                throws IOException, XmlPullParserException {
-            out.startTag(null, XML_TAG_EXTRAS);
-            PersistableBundle extrasCopy = deepCopyBundle(extras, 10);
-            extrasCopy.saveToXml(out);
-            out.endTag(null, XML_TAG_EXTRAS);
+                fos = new FileOutputStream(mJournalFile, true);
+                baos.writeTo(fos);
+                fos.getFD().sync();
+                return true;
+            } catch (IOException e) {
+                Slog.e(TAG, "Error appending to jobs journal.", e);
+                // Drop whatever part of the records made it, later records must not follow a
+                // damaged one.
+                truncateJournal(previousLength);
+                return false;
+            } finally {
+                IoUtils.closeQuietly(fos);
+            }
         }
 
-        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
-            if (maxDepth <= 0) {
-                return null;
-            }
-            PersistableBundle copy = (PersistableBundle) bundle.clone();
-            Set<String> keySet = bundle.keySet();
-            for (String key: keySet) {
-                Object o = copy.get(key);
-                if (o instanceof PersistableBundle) {
-                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
-                    copy.putPersistableBundle(key, bCopy);
-                }
+        private void truncateJournal(long length) {
+            try (RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw")) {
+                file.setLength(length);
+            } catch (IOException e) {
+                Slog.e(TAG, "Error truncating jobs journal.", e);
             }
-            return copy;
         }
 
         /**
-         * Write out a tag with data identifying this job's constraints. If the constraint isn't here
-         * it doesn't apply.
+         * Writes one record, framed by its length and checksum.
+         * @param jobStatus the job to store, or {@code null} to record its removal.
          */
-        private void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus) throws IOException {
-            out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-            if (jobStatus.hasConnectivityConstraint()) {
-                final NetworkRequest network = jobStatus.getJob().getRequiredNetwork();
-                out.attribute(null, "net-capabilities", Long.toString(
-                        BitUtils.packBits(network.networkCapabilities.getCapabilities())));
-                out.attribute(null, "net-unwanted-capabilities", Long.toString(
-                        BitUtils.packBits(network.networkCapabilities.getUnwantedCapabilities())));
-
-                out.attribute(null, "net-transport-types", Long.toString(
-                        BitUtils.packBits(network.networkCapabilities.getTransportTypes())));
-            }
-            if (jobStatus.hasIdleConstraint()) {
-                out.attribute(null, "idle", Boolean.toString(true));
-            }
-            if (jobStatus.hasChargingConstraint()) {
-                out.attribute(null, "charging", Boolean.toString(true));
-            }
-            if (jobStatus.hasBatteryNotLowConstraint()) {
-                out.attribute(null, "battery-not-low", Boolean.toString(true));
-            }
-            if (jobStatus.hasStorageNotLowConstraint()) {
-                out.attribute(null, "storage-not-low", Boolean.toString(true));
+        private void writeRecord(DataOutputStream out, ByteArrayOutputStream scratch, CRC32 crc,
+                long generation, int uid, int jobId, @Nullable JobStatus jobStatus)
+                throws IOException {
+            scratch.reset();
+            final DataOutputStream record = new DataOutputStream(scratch);
+            record.writeLong(generation);
+            record.writeByte(jobStatus != null ? RECORD_OP_PUT : RECORD_OP_DELETE);
+            record.writeInt(uid);
+            record.writeInt(jobId);
+            if (jobStatus != null) {
+                writeJobToRecord(record, jobStatus);
             }
-            out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
+            record.flush();
+
+            final byte[] payload = scratch.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
         }
 
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
+        /**
+         * Writes out the data comprising the required fields, priority, constraints and
+         * execution criteria of this job and its client.
+         */
+        private void writeJobToRecord(DataOutputStream out, JobStatus jobStatus)
                 throws IOException {
             final JobInfo job = jobStatus.getJob();
-            if (jobStatus.getJob().isPeriodic()) {
-                out.startTag(null, XML_TAG_PERIODIC);
-                out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
-                out.attribute(null, "flex", Long.toString(job.getFlexMillis()));
-            } else {
-                out.startTag(null, XML_TAG_ONEOFF);
+            writeRecordString(out, jobStatus.getServiceComponent().getPackageName());
+            writeRecordString(out, jobStatus.getServiceComponent().getClassName());
+            writeRecordString(out, jobStatus.getSourcePackageName());
+            writeRecordString(out, jobStatus.getSourceTag());
+            out.writeInt(jobStatus.getSourceUserId());
+            out.writeInt(jobStatus.getPriority());
+            out.writeInt(jobStatus.getFlags());
+            out.writeInt(jobStatus.getInternalFlags());
+            out.writeLong(jobStatus.getLastSuccessfulRunTime());
+            out.writeLong(jobStatus.getLastFailedRunTime());
+
+            // Constraints. If the constraint isn't here it doesn't apply.
+            out.writeBoolean(jobStatus.hasConnectivityConstraint());
+            if (jobStatus.hasConnectivityConstraint()) {
+                final NetworkRequest network = job.getRequiredNetwork();
+                out.writeLong(BitUtils.packBits(network.networkCapabilities.getCapabilities()));
+                out.writeLong(BitUtils.packBits(
+                        network.networkCapabilities.getUnwantedCapabilities()));
+                out.writeLong(BitUtils.packBits(network.networkCapabilities.getTransportTypes()));
+            }
+            out.writeBoolean(jobStatus.hasIdleConstraint());
+            out.writeBoolean(jobStatus.hasChargingConstraint());
+            out.writeBoolean(jobStatus.hasBatteryNotLowConstraint());
+            out.writeBoolean(jobStatus.hasStorageNotLowConstraint());
+
+            // Execution criteria.
+            out.writeBoolean(job.isPeriodic());
+            if (job.isPeriodic()) {
+                out.writeLong(job.getIntervalMillis());
+                out.writeLong(job.getFlexMillis());
             }
 
             // If we still have the persisted times, we need to record those directly because
@@ -581,33 +725,72 @@ public final class JobStore {
 
             final long nowRTC = sSystemClock.millis();
             final long nowElapsed = sElapsedRealtimeClock.millis();
+            if (jobStatus.hasTimingDelayConstraint()) {
+                // Wall clock delay.
+                out.writeLong((utcJobTimes == null)
+                        ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
+                        : utcJobTimes.first);
+            } else {
+                out.writeLong(JobStatus.NO_EARLIEST_RUNTIME);
+            }
             if (jobStatus.hasDeadlineConstraint()) {
                 // Wall clock deadline.
-                final long deadlineWallclock = (utcJobTimes == null)
+                out.writeLong((utcJobTimes == null)
                         ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
-                        : utcJobTimes.second;
-                out.attribute(null, "deadline", Long.toString(deadlineWallclock));
-            }
-            if (jobStatus.hasTimingDelayConstraint()) {
-                final long delayWallclock = (utcJobTimes == null)
-                        ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
-                        : utcJobTimes.first;
-                out.attribute(null, "delay", Long.toString(delayWallclock));
+                        : utcJobTimes.second);
+            } else {
+                out.writeLong(JobStatus.NO_LATEST_RUNTIME);
             }
 
             // Only write out back-off policy if it differs from the default.
             // This also helps the case where the job is idle -> these aren't allowed to specify
             // back-off.
-            if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
-                    || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
-                out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
-                out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
+            final boolean hasBackoff =
+                    job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                    || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+            out.writeBoolean(hasBackoff);
+            if (hasBackoff) {
+                out.writeInt(job.getBackoffPolicy());
+                out.writeLong(job.getInitialBackoffMillis());
             }
-            if (job.isPeriodic()) {
-                out.endTag(null, XML_TAG_PERIODIC);
+
+            // Most jobs have no extras, don't bother serializing an empty bundle for them.
+            final PersistableBundle extras = job.getExtras();
+            if (extras == null || extras.isEmpty()) {
+                out.writeInt(0);
             } else {
-                out.endTag(null, XML_TAG_ONEOFF);
+                final ByteArrayOutputStream extrasBytes = new ByteArrayOutputStream();
+                deepCopyBundle(extras, 10).writeToStream(extrasBytes);
+                out.writeInt(extrasBytes.size());
+                extrasBytes.writeTo(out);
+            }
+        }
+
+        private void writeRecordString(DataOutputStream out, @Nullable String s)
+                throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
+            if (maxDepth <= 0) {
+                return null;
+            }
+            PersistableBundle copy = (PersistableBundle) bundle.clone();
+            Set<String> keySet = bundle.keySet();
+            for (String key: keySet) {
+                Object o = copy.get(key);
+                if (o instanceof PersistableBundle) {
+                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
+                    copy.putPersistableBundle(key, bCopy);
+                }
             }
+            return copy;
         }
     };
 
@@ -636,13 +819,18 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
-     * need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
+     * Runnable that reads list of persisted job from disk. This is run once at start up, so
+     * doesn't need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
      */
     private final class ReadJobMapFromDiskRunnable implements Runnable {
         private final JobSet jobSet;
         private final boolean rtcGood;
 
+        /** Number of records replayed from the journal. */
+        private int mJournalRecords;
+        /** Whether the journal ends with a damaged record. */
+        private boolean mJournalDamaged;
+
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
          *               so that after disk read we can populate it directly.
@@ -659,9 +847,15 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                final boolean imported = !mJobsFile.exists();
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    if (imported) {
+                        try (FileInputStream fis = mLegacyJobsFile.openRead()) {
+                            jobs = readJobMapImpl(fis, rtcGood);
+                        }
+                    } else {
+                        jobs = readJobMapFromBinaryImpl(rtcGood);
+                    }
                     if (jobs != null) {
                         long now = sElapsedRealtimeClock.millis();
                         for (int i=0; i<jobs.size(); i++) {
@@ -679,14 +873,19 @@ public final class JobStore {
                             }
                         }
                     }
+                    if (this.jobSet == mJobSet) {
+                        // Jobs imported from xml, and journal records that follow a damaged
+                        // one, would be lost by appending to the journal.
+                        mFullWriteNeeded = imported || mJournalDamaged;
+                        mJournalRecordCount = mJournalRecords;
+                    }
                 }
-                fis.close();
             } catch (FileNotFoundException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
                 }
             } catch (XmlPullParserException | IOException e) {
-                Slog.wtf(TAG, "Error jobstore xml.", e);
+                Slog.wtf(TAG, "Error reading jobstore.", e);
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -697,6 +896,214 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /** Loads the snapshot and replays the journal on top of it. */
+        @GuardedBy("mLock")
+        private List<JobStatus> readJobMapFromBinaryImpl(boolean rtcIsGood) throws IOException {
+            final byte[] snapshot = mJobsFile.readFully();
+            final ByteBuffer header = ByteBuffer.wrap(snapshot);
+            if (snapshot.length < 2 * Integer.BYTES + Long.BYTES
+                    || header.getInt() != JOBS_BINARY_FILE_MAGIC) {
+                throw new IOException("Not a jobs file.");
+            }
+            if (header.getInt() != JOBS_BINARY_FILE_VERSION) {
+                Slog.d(TAG, "Invalid version number, aborting jobs file read.");
+                return null;
+            }
+            final long generation = header.getLong();
+            final SparseArray<SparseArray<JobStatus>> jobs = new SparseArray<>();
+            readRecords(snapshot, header.position(), Long.MIN_VALUE, jobs, rtcIsGood);
+            if (mJournalDamaged) {
+                throw new IOException("Damaged jobs file.");
+            }
+            long lastGeneration = generation;
+
+            byte[] journal = null;
+            try (FileInputStream fis = new FileInputStream(mJournalFile)) {
+                journal = new byte[(int) fis.getChannel().size()];
+                new DataInputStream(fis).readFully(journal);
+            } catch (FileNotFoundException e) {
+                // Nothing changed since the snapshot was written.
+            }
+            if (journal != null) {
+                lastGeneration = Math.max(lastGeneration,
+                        readRecords(journal, 0, generation, jobs, rtcIsGood));
+                if (mJournalDamaged) {
+                    Slog.w(TAG, "Ignoring damaged jobs journal records after "
+                            + mJournalRecords + " records.");
+                }
+            }
+            if (this.jobSet == mJobSet) {
+                mWriteGeneration = Math.max(mWriteGeneration, lastGeneration);
+            }
+
+            final List<JobStatus> result = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                final SparseArray<JobStatus> jobsForUid = jobs.valueAt(i);
+                for (int j = 0; j < jobsForUid.size(); j++) {
+                    final JobStatus persistedJob = jobsForUid.valueAt(j);
+                    if (persistedJob != null) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Read out " + persistedJob);
+                        }
+                        result.add(persistedJob);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Applies the records in {@code data}, starting at {@code offset}, to {@code jobs}.
+         * Records written by a write older than {@code minGeneration} are skipped. Reading
+         * stops at the first damaged record, see {@link #mJournalDamaged}.
+         * @return the generation of the last record applied.
+         */
+        private long readRecords(byte[] data, int offset, long minGeneration,
+                SparseArray<SparseArray<JobStatus>> jobs, boolean rtcIsGood) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+            final CRC32 crc = new CRC32();
+            long lastGeneration = minGeneration;
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data, buffer.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                final DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(data, buffer.position(), length));
+                buffer.position(buffer.position() + length);
+                try {
+                    final long generation = in.readLong();
+                    if (generation <= minGeneration) {
+                        // Already part of the snapshot.
+                        continue;
+                    }
+                    readRecord(in, jobs, rtcIsGood);
+                    lastGeneration = generation;
+                    mJournalRecords++;
+                } catch (IOException e) {
+                    Slog.d(TAG, "Error reading job record.", e);
+                    break;
+                }
+            }
+            mJournalDamaged = buffer.hasRemaining();
+            if (minGeneration == Long.MIN_VALUE) {
+                // Those were the snapshot records.
+                mJournalRecords = 0;
+            }
+            return lastGeneration;
+        }
+
+        private void readRecord(DataInputStream in, SparseArray<SparseArray<JobStatus>> jobs,
+                boolean rtcIsGood) throws IOException {
+            final int op = in.readByte();
+            final int uid = in.readInt();
+            final int jobId = in.readInt();
+            SparseArray<JobStatus> jobsForUid = jobs.get(uid);
+            if (jobsForUid == null) {
+                jobsForUid = new SparseArray<>();
+                jobs.put(uid, jobsForUid);
+            }
+            if (op == RECORD_OP_PUT) {
+                final JobStatus persistedJob = restoreJobFromRecord(rtcIsGood, in, uid, jobId);
+                if (persistedJob == null) {
+                    Slog.d(TAG, "Error reading job from file.");
+                }
+                jobsForUid.put(jobId, persistedJob);
+            } else if (op == RECORD_OP_DELETE) {
+                jobsForUid.remove(jobId);
+            } else {
+                throw new IOException("Unknown job record op " + op);
+            }
+        }
+
+        /**
+         * @param in Stream positioned after the uid and job id of a job record.
+         * @return Newly instantiated job holding all the information we just read out of the
+         *     record.
+         */
+        private JobStatus restoreJobFromRecord(boolean rtcIsGood, DataInputStream in, int uid,
+                int jobId) throws IOException {
+            final String packageName = readRecordString(in);
+            final String className = readRecordString(in);
+            final JobInfo.Builder jobBuilder =
+                    new JobInfo.Builder(jobId, new ComponentName(packageName, className));
+            jobBuilder.setPersisted(true);
+            final String sourcePackageName = readRecordString(in);
+            final String sourceTag = readRecordString(in);
+            final int sourceUserId = in.readInt();
+            jobBuilder.setPriority(in.readInt());
+            jobBuilder.setFlags(in.readInt());
+            final int internalFlags = in.readInt();
+            final long lastSuccessfulRunTime = in.readLong();
+            final long lastFailedRunTime = in.readLong();
+
+            if (in.readBoolean()) {
+                final NetworkRequest request = new NetworkRequest.Builder().build();
+                final long capabilities = in.readLong();
+                final long unwantedCapabilities = in.readLong();
+                request.networkCapabilities.setCapabilities(
+                        BitUtils.unpackBits(capabilities),
+                        BitUtils.unpackBits(unwantedCapabilities));
+                request.networkCapabilities.setTransportTypes(
+                        BitUtils.unpackBits(in.readLong()));
+                jobBuilder.setRequiredNetwork(request);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresDeviceIdle(true);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresCharging(true);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresBatteryNotLow(true);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresStorageNotLow(true);
+            }
+
+            final boolean periodic = in.readBoolean();
+            final long periodMillis = periodic ? in.readLong() : 0;
+            final long flexMillis = periodic ? in.readLong() : 0;
+            // Tuple of (earliest runtime, latest runtime) in UTC.
+            final long earliestRunTimeRtc = in.readLong();
+            final long latestRunTimeRtc = in.readLong();
+            final Pair<Long, Long> rtcRuntimes = Pair.create(earliestRunTimeRtc, latestRunTimeRtc);
+            if (in.readBoolean()) {
+                final int backoffPolicy = in.readInt();
+                jobBuilder.setBackoffCriteria(in.readLong(), backoffPolicy);
+            }
+
+            final int extrasLength = in.readInt();
+            final PersistableBundle extras;
+            if (extrasLength > 0) {
+                final byte[] extrasBytes = new byte[extrasLength];
+                in.readFully(extrasBytes);
+                extras = PersistableBundle.readFromStream(new ByteArrayInputStream(extrasBytes));
+            } else {
+                extras = new PersistableBundle();
+            }
+
+            return buildPersistedJob(rtcIsGood, jobBuilder, uid, sourcePackageName,
+                    sourceUserId, sourceTag, internalFlags, lastSuccessfulRunTime,
+                    lastFailedRunTime, periodic, periodMillis, flexMillis, rtcRuntimes, extras);
+        }
+
+        private String readRecordString(DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
@@ -839,56 +1246,22 @@ public final class JobStore {
                 return null;
             }
 
-            final long elapsedNow = sElapsedRealtimeClock.millis();
-            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
-
+            final boolean periodic;
+            long periodMillis = 0;
+            long flexMillis = 0;
             if (XML_TAG_PERIODIC.equals(parser.getName())) {
                 try {
                     String val = parser.getAttributeValue(null, "period");
-                    final long periodMillis = Long.parseLong(val);
+                    periodMillis = Long.parseLong(val);
                     val = parser.getAttributeValue(null, "flex");
-                    final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
-                    jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
                 }
+                periodic = true;
             } else if (XML_TAG_ONEOFF.equals(parser.getName())) {
-                try {
-                    if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
-                        jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
-                    }
-                    if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
-                        jobBuilder.setOverrideDeadline(
-                                elapsedRuntimes.second - elapsedNow);
-                    }
-                } catch (NumberFormatException e) {
-                    Slog.d(TAG, "Error reading job execution criteria, skipping.");
-                    return null;
-                }
+                periodic = false;
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "Invalid parameter tag, skipping - " + parser.getName());
@@ -913,14 +1286,67 @@ public final class JobStore {
             }
 
             PersistableBundle extras = PersistableBundle.restoreFromXml(parser);
-            jobBuilder.setExtras(extras);
             parser.nextTag(); // Consume </extras>
 
+            return buildPersistedJob(rtcIsGood, jobBuilder, uid, sourcePackageName,
+                    sourceUserId, sourceTag, internalFlags, lastSuccessfulRunTime,
+                    lastFailedRunTime, periodic, periodMillis, flexMillis, rtcRuntimes, extras);
+        }
+
+        /**
+         * Finishes building a job read from disk, translating its persisted wall clock run
+         * times to the elapsed timebase.
+         * @return the job, or {@code null} if it cannot be built.
+         */
+        private JobStatus buildPersistedJob(boolean rtcIsGood, JobInfo.Builder jobBuilder,
+                int uid, String sourcePackageName, int sourceUserId, String sourceTag,
+                int internalFlags, long lastSuccessfulRunTime, long lastFailedRunTime,
+                boolean periodic, long periodMillis, long flexMillis,
+                Pair<Long, Long> rtcRuntimes, PersistableBundle extras) {
+            final long elapsedNow = sElapsedRealtimeClock.millis();
+            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+
+            if (periodic) {
+                jobBuilder.setPeriodic(periodMillis, flexMillis);
+                // As a sanity check, cap the recreated run time to be no later than flex+period
+                // from now. This is the latest the periodic could be pushed out. This could
+                // happen if the periodic ran early (at flex time before period), and then the
+                // device rebooted.
+                if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+                    final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                            + periodMillis;
+                    final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                            - flexMillis;
+                    Slog.w(TAG,
+                            String.format("Periodic job for uid='%d' persisted run-time is" +
+                                            " too big [%s, %s]. Clamping to [%s,%s]",
+                                    uid,
+                                    DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                                    DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                                    DateUtils.formatElapsedTime(
+                                            clampedEarlyRuntimeElapsed / 1000),
+                                    DateUtils.formatElapsedTime(
+                                            clampedLateRuntimeElapsed / 1000))
+                    );
+                    elapsedRuntimes =
+                            Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+                }
+            } else {
+                if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                    jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+                }
+                if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                    jobBuilder.setOverrideDeadline(
+                            elapsedRuntimes.second - elapsedNow);
+                }
+            }
+            jobBuilder.setExtras(extras);
+
             final JobInfo builtJob;
             try {
                 builtJob = jobBuilder.build();
             } catch (Exception e) {
-                Slog.w(TAG, "Unable to build job from XML, ignoring: "
+                Slog.w(TAG, "Unable to build job from disk, ignoring: "
                         + jobBuilder.summarize());
                 return null;
             }
@@ -937,11 +1363,10 @@ public final class JobStore {
             }
 
             // And now we're done
-            JobSchedulerInternal service = LocalServices.getService(JobSchedulerInternal.class);
             final int appBucket = JobSchedulerService.standbyBucketForPackage(sourcePackageName,
                     sourceUserId, elapsedNow);
             JobStatus js = new JobStatus(
-                    jobBuilder.build(), uid, sourcePackageName, sourceUserId,
+                    builtJob, uid, sourcePackageName, sourceUserId,
                     appBucket, sourceTag,
                     elapsedRuntimes.first, elapsedRuntimes.second,
                     lastSuccessfulRunTime, lastFailedRunTime,
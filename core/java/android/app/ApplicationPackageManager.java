@@ -650,11 +650,12 @@ public class ApplicationPackageManager extends PackageManager {
 
     // Make this cache relatively large.  There are many system features and
     // none are ever invalidated.  MPTS tests suggests that the cache should
-    // hold at least 150 entries.
+    // hold at least 150 entries.  It is queried from many threads of busy
+    // apps, so split it into shards.
     private final static PropertyInvalidatedCache<HasSystemFeatureQuery, Boolean>
             mHasSystemFeatureCache =
             new PropertyInvalidatedCache<HasSystemFeatureQuery, Boolean>(
-                256, "cache_key.has_system_feature") {
+                256, "cache_key.has_system_feature", 4) {
                 @Override
                 protected Boolean recompute(HasSystemFeatureQuery query) {
                     try {
@@ -32,13 +32,13 @@ import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
-import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -175,6 +175,10 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * Caching can be disabled completely by initializing {@code sEnabled} to false and rebuilding.
  *
+ * Caches queried concurrently by many threads of a process can be split into shards, see
+ * {@link #PropertyInvalidatedCache(int, String, int)}. Each shard holds its own part of the
+ * entries, with its own lock and its own LRU order.
+ *
  * @param <Query> The class used to index cache entries: must be hashable and comparable
  * @param <Result> The class holding cache entries; use a boxed primitive if possible
  *
@@ -188,13 +192,6 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
     private static final boolean DEBUG = false;
     private static final boolean VERIFY = false;
 
-    // Per-Cache performance counters. As some cache instances are declared static,
-    @GuardedBy("mLock")
-    private long mHits = 0;
-
-    @GuardedBy("mLock")
-    private long mMisses = 0;
-
     // Most invalidation is done in a static context, so the counters need to be accessible.
     @GuardedBy("sCorkLock")
     private static final HashMap<String, Long> sInvalidates = new HashMap<>();
@@ -224,8 +221,6 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
     private static final WeakHashMap<PropertyInvalidatedCache, Void> sCaches =
             new WeakHashMap<>();
 
-    private final Object mLock = new Object();
-
     /**
      * Name of the property that holds the unique value that we use to invalidate the cache.
      */
@@ -237,14 +232,16 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      */
     private volatile SystemProperties.Handle mPropertyHandle;
 
-    @GuardedBy("mLock")
-    private final LinkedHashMap<Query, Result> mCache;
+    /**
+     * The shards of the cache. A query always goes to the same shard, picked by its hash code.
+     * The length is a power of two.
+     */
+    private final Shard<Query, Result>[] mShards;
 
     /**
-     * The last value of the {@code mPropertyHandle} that we observed.
+     * The last value of the {@code mPropertyHandle} that any shard observed.
      */
-    @GuardedBy("mLock")
-    private long mLastSeenNonce = NONCE_UNSET;
+    private volatile long mLastSeenNonce = NONCE_UNSET;
 
     /**
      * Whether we've disabled the cache in this process.
@@ -263,17 +260,29 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      * @param propertyName Name of the system property holding the cache invalidation nonce
      */
     public PropertyInvalidatedCache(int maxEntries, @NonNull String propertyName) {
+        this(maxEntries, propertyName, 1);
+    }
+
+    /**
+     * Make a new property invalidated cache split into shards, so that threads querying
+     * different values rarely wait for each other.
+     *
+     * @param maxEntries Maximum number of entries to cache; the entries are spread over the
+     * shards and each shard discards its least recently used entries on its own
+     * @param propertyName Name of the system property holding the cache invalidation nonce
+     * @param shardCount Number of shards; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public PropertyInvalidatedCache(int maxEntries, @NonNull String propertyName,
+            int shardCount) {
         mPropertyName = propertyName;
         mMaxEntries = maxEntries;
-        mCache = new LinkedHashMap<Query, Result>(
-            2 /* start small */,
-            0.75f /* default load factor */,
-            true /* LRU access order */) {
-                @Override
-                protected boolean removeEldestEntry(Map.Entry eldest) {
-                    return size() > maxEntries;
-                }
-            };
+        final int shards = Integer.highestOneBit(Math.max(shardCount, 1) * 2 - 1);
+        final int maxShardEntries = Math.max((maxEntries + shards - 1) / shards, 1);
+        mShards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            mShards[i] = new Shard<>(maxShardEntries);
+        }
         synchronized (sCorkLock) {
             sCaches.put(this, null);
             sInvalidates.put(propertyName, (long) 0);
@@ -284,14 +293,21 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      * Forget all cached values.
      */
     public final void clear() {
-        synchronized (mLock) {
-            if (DEBUG) {
-                Log.d(TAG, "clearing cache for " + mPropertyName);
+        if (DEBUG) {
+            Log.d(TAG, "clearing cache for " + mPropertyName);
+        }
+        for (Shard<Query, Result> shard : mShards) {
+            synchronized (shard) {
+                shard.cache.clear();
             }
-            mCache.clear();
         }
     }
 
+    private Shard<Query, Result> getShard(Query query) {
+        final int h = Objects.hashCode(query);
+        return mShards[(h ^ (h >>> 16)) & (mShards.length - 1)];
+    }
+
     /**
      * Fetch a result from scratch in case it's not in the cache at all.  Called unlocked: may
      * block. If this function returns null, the result of the cache query is null. There is no
@@ -343,10 +359,8 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      * Disable the use of this cache in this process.
      */
     public final void disableLocal() {
-        synchronized (mLock) {
-            mDisabled = true;
-            mCache.clear();
-        }
+        mDisabled = true;
+        clear();
     }
 
     /**
@@ -373,20 +387,25 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                 }
                 return recompute(query);
             }
+            final Shard<Query, Result> shard = getShard(query);
             final Result cachedResult;
-            synchronized (mLock) {
-                if (currentNonce == mLastSeenNonce) {
-                    cachedResult = mCache.get(query);
+            synchronized (shard) {
+                if (currentNonce == shard.lastSeenNonce) {
+                    cachedResult = shard.cache.get(query);
 
-                    if (cachedResult != null) mHits++;
+                    if (cachedResult != null) shard.hits++;
                 } else {
                     if (DEBUG) {
                         Log.d(TAG,
                                 String.format("clearing cache %s because nonce changed [%s] -> [%s]",
                                         cacheName(),
-                                        mLastSeenNonce, currentNonce));
+                                        shard.lastSeenNonce, currentNonce));
                     }
-                    mCache.clear();
+                    if (!shard.cache.isEmpty()) {
+                        shard.clears++;
+                    }
+                    shard.cache.clear();
+                    shard.lastSeenNonce = currentNonce;
                     mLastSeenNonce = currentNonce;
                     cachedResult = null;
                 }
@@ -413,15 +432,15 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                         }
                         continue;
                     }
-                    synchronized (mLock) {
-                        if (currentNonce != mLastSeenNonce) {
+                    synchronized (shard) {
+                        if (currentNonce != shard.lastSeenNonce) {
                             // Do nothing: cache is already out of date. Just return the value
-                            // we already have: there's no guarantee that the contents of mCache
-                            // won't become invalid as soon as we return.
+                            // we already have: there's no guarantee that the contents of the
+                            // cache won't become invalid as soon as we return.
                         } else if (refreshedResult == null) {
-                            mCache.remove(query);
+                            shard.cache.remove(query);
                         } else {
-                            mCache.put(query, refreshedResult);
+                            shard.cache.put(query, refreshedResult);
                         }
                     }
                     return maybeCheckConsistency(query, refreshedResult);
@@ -436,18 +455,91 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                 Log.d(TAG, "cache miss for " + cacheName() + " " + queryToString(query));
             }
             final Result result = recompute(query);
-            synchronized (mLock) {
+            synchronized (shard) {
                 // If someone else invalidated the cache while we did the recomputation, don't
                 // update the cache with a potentially stale result.
-                if (mLastSeenNonce == currentNonce && result != null) {
-                    mCache.put(query, result);
+                if (shard.lastSeenNonce == currentNonce && result != null) {
+                    shard.cache.put(query, result);
                 }
-                mMisses++;
+                shard.misses++;
             }
             return maybeCheckConsistency(query, result);
         }
     }
 
+    /**
+     * Returns the number of queries answered from the cache.
+     */
+    public final long getHitCount() {
+        long hits = 0;
+        for (Shard<Query, Result> shard : mShards) {
+            synchronized (shard) {
+                hits += shard.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of queries that had to be recomputed while the cache was enabled.
+     */
+    public final long getMissCount() {
+        long misses = 0;
+        for (Shard<Query, Result> shard : mShards) {
+            synchronized (shard) {
+                misses += shard.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the number of times cached entries were dropped because the nonce changed.
+     */
+    public final long getClearCount() {
+        long clears = 0;
+        for (Shard<Query, Result> shard : mShards) {
+            synchronized (shard) {
+                clears += shard.clears;
+            }
+        }
+        return clears;
+    }
+
+    /**
+     * A part of the cache with its own lock and LRU order.
+     */
+    private static final class Shard<K, V> {
+        @GuardedBy("this")
+        final LinkedHashMap<K, V> cache;
+
+        /**
+         * The last value of the {@code mPropertyHandle} that this shard observed.
+         */
+        @GuardedBy("this")
+        long lastSeenNonce = NONCE_UNSET;
+
+        // Performance counters.
+        @GuardedBy("this")
+        long hits;
+        @GuardedBy("this")
+        long misses;
+        @GuardedBy("this")
+        long clears;
+
+        Shard(int maxEntries) {
+            cache = new LinkedHashMap<K, V>(
+                2 /* start small */,
+                0.75f /* default load factor */,
+                true /* LRU access order */) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry eldest) {
+                        return size() > maxEntries;
+                    }
+                };
+        }
+    }
+
     // Inner class avoids initialization in processes that don't do any invalidation
     private static final class NoPreloadHolder {
         private static final AtomicLong sNextNonce = new AtomicLong((new Random()).nextLong());
@@ -781,29 +873,41 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
             invalidateCount = sInvalidates.getOrDefault(mPropertyName, (long) 0);
         }
 
-        synchronized (mLock) {
-            pw.println(String.format("  Cache Property Name: %s", cacheName()));
-            pw.println(String.format("    Hits: %d, Misses: %d, Invalidates: %d",
-                    mHits, mMisses, invalidateCount));
-            pw.println(String.format("    Last Observed Nonce: %d", mLastSeenNonce));
-            pw.println(String.format("    Current Size: %d, Max Size: %d",
-                    mCache.entrySet().size(), mMaxEntries));
-            pw.println(String.format("    Enabled: %s", mDisabled ? "false" : "true"));
-
-            Set<Map.Entry<Query, Result>> cacheEntries = mCache.entrySet();
-            if (cacheEntries.size() == 0) {
-                pw.println("");
-                return;
+        long hits = 0;
+        long misses = 0;
+        long clears = 0;
+        final ArrayList<Map.Entry<Query, Result>> cacheEntries = new ArrayList<>();
+        for (Shard<Query, Result> shard : mShards) {
+            synchronized (shard) {
+                hits += shard.hits;
+                misses += shard.misses;
+                clears += shard.clears;
+                for (Map.Entry<Query, Result> entry : shard.cache.entrySet()) {
+                    cacheEntries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
             }
+        }
 
+        pw.println(String.format("  Cache Property Name: %s", cacheName()));
+        pw.println(String.format("    Hits: %d, Misses: %d, Invalidates: %d, Clears: %d",
+                hits, misses, invalidateCount, clears));
+        pw.println(String.format("    Last Observed Nonce: %d", mLastSeenNonce));
+        pw.println(String.format("    Current Size: %d, Max Size: %d, Shards: %d",
+                cacheEntries.size(), mMaxEntries, mShards.length));
+        pw.println(String.format("    Enabled: %s", mDisabled ? "false" : "true"));
+
+        if (cacheEntries.size() == 0) {
             pw.println("");
-            pw.println("    Contents:");
-            for (Map.Entry<Query, Result> entry : cacheEntries) {
-                String key = Objects.toString(entry.getKey());
-                String value = Objects.toString(entry.getValue());
+            return;
+        }
 
-                pw.println(String.format("      Key: %s\n      Value: %s\n", key, value));
-            }
+        pw.println("");
+        pw.println("    Contents:");
+        for (Map.Entry<Query, Result> entry : cacheEntries) {
+            String key = Objects.toString(entry.getKey());
+            String value = Objects.toString(entry.getValue());
+
+            pw.println(String.format("      Key: %s\n      Value: %s\n", key, value));
         }
     }
 
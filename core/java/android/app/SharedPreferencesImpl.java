@@ -93,6 +93,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private int mDiskWritesInFlight = 0;
 
+    /**
+     * Results of {@link Editor#apply} whose write is queued but has not started yet. They all
+     * share a single write of the latest of them, so a burst of applies only writes and syncs
+     * the file once.
+     */
+    @GuardedBy("mLock")
+    private ArrayList<MemoryCommitResult> mPendingApplies;
+
     @GuardedBy("mLock")
     private boolean mLoaded = false;
 
@@ -384,6 +392,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
         volatile boolean writeToDiskResult = false;
         boolean wasWritten = false;
 
+        /** Run once this result is on disk, only set for {@link Editor#apply}. */
+        @Nullable Runnable postWriteRunnable;
+
         private MemoryCommitResult(long memoryStateGeneration, boolean keysCleared,
                 @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
@@ -650,7 +661,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
      * to disk.
      *
      * They will be written to disk one-at-a-time in the order
-     * that they're enqueued.
+     * that they're enqueued. Results of apply() that are enqueued
+     * while an earlier apply() is still waiting for its write are
+     * folded into that write.
      *
      * @param postWriteRunnable if non-null, we're being called
      *   from apply() and this is the runnable to run after
@@ -665,6 +678,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                   final Runnable postWriteRunnable) {
         final boolean isFromSyncCommit = (postWriteRunnable == null);
 
+        if (!isFromSyncCommit) {
+            mcr.postWriteRunnable = postWriteRunnable;
+            synchronized (mLock) {
+                if (mPendingApplies != null) {
+                    // The queued write has not started yet, it will persist this state too.
+                    mPendingApplies.add(mcr);
+                    return;
+                }
+                mPendingApplies = new ArrayList<>();
+                mPendingApplies.add(mcr);
+            }
+            QueuedWork.queue(this::writePendingAppliesToDisk, true);
+            return;
+        }
+
         final Runnable writeToDiskRunnable = new Runnable() {
                 @Override
                 public void run() {
@@ -674,26 +702,60 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
                     }
-                    if (postWriteRunnable != null) {
-                        postWriteRunnable.run();
-                    }
                 }
             };
 
         // Typical #commit() path with fewer allocations, doing a write on
         // the current thread.
-        if (isFromSyncCommit) {
-            boolean wasEmpty = false;
-            synchronized (mLock) {
-                wasEmpty = mDiskWritesInFlight == 1;
-            }
-            if (wasEmpty) {
-                writeToDiskRunnable.run();
-                return;
+        boolean wasEmpty = false;
+        synchronized (mLock) {
+            wasEmpty = mDiskWritesInFlight == 1;
+        }
+        if (wasEmpty) {
+            writeToDiskRunnable.run();
+            return;
+        }
+
+        QueuedWork.queue(writeToDiskRunnable, false);
+    }
+
+    /**
+     * Writes the state of the latest pending {@link Editor#apply} and completes all pending
+     * applies with its result. Runs on the {@link QueuedWork} thread, or on the thread calling
+     * {@link QueuedWork#waitToFinish}.
+     */
+    private void writePendingAppliesToDisk() {
+        final ArrayList<MemoryCommitResult> applies;
+        synchronized (mLock) {
+            applies = mPendingApplies;
+            mPendingApplies = null;
+        }
+
+        // Applies from different threads may have been enqueued out of order.
+        MemoryCommitResult latest = applies.get(0);
+        final int applyCount = applies.size();
+        for (int i = 1; i < applyCount; i++) {
+            final MemoryCommitResult mcr = applies.get(i);
+            if (mcr.memoryStateGeneration > latest.memoryStateGeneration) {
+                latest = mcr;
             }
         }
 
-        QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
+        synchronized (mWritingToDiskLock) {
+            writeToFile(latest, false);
+        }
+        for (int i = 0; i < applyCount; i++) {
+            final MemoryCommitResult mcr = applies.get(i);
+            if (mcr != latest) {
+                mcr.setDiskWriteResult(false, latest.writeToDiskResult);
+            }
+        }
+        synchronized (mLock) {
+            mDiskWritesInFlight -= applyCount;
+        }
+        for (int i = 0; i < applyCount; i++) {
+            applies.get(i).postWriteRunnable.run();
+        }
     }
 
     private static FileOutputStream createFileOutputStream(File file) {
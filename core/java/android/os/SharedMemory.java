@@ -273,6 +273,21 @@ public final class SharedMemory implements Parcelable, Closeable {
         dest.writeFileDescriptor(mFileDescriptor);
     }
 
+    /**
+     * Creates an instance from the given ParcelFileDescriptor, taking ownership of its
+     * file descriptor.
+     *
+     * @param fd A ParcelFileDescriptor of an ashmem region, which is detached by this call.
+     * @return A SharedMemory instance that closes the file descriptor when closed.
+     *
+     * @hide
+     */
+    public static @NonNull SharedMemory fromFileDescriptor(@NonNull ParcelFileDescriptor fd) {
+        final FileDescriptor descriptor = new FileDescriptor();
+        descriptor.setInt$(fd.detachFd());
+        return new SharedMemory(descriptor);
+    }
+
     /**
      * Returns a dup'd ParcelFileDescriptor from the SharedMemory FileDescriptor.
      * This obeys standard POSIX semantics, where the
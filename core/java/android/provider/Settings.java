@@ -70,6 +70,7 @@ import android.os.RemoteCallback;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.speech.tts.TextToSpeech;
 import android.text.TextUtils;
@@ -2216,6 +2217,19 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow would like a
+     * snapshot of the whole table to resolve further reads locally. If this key is mapped
+     * to a <code>null</code> string extra in the request bundle and the provider publishes
+     * snapshots for the table, the response bundle will contain the same key mapped to a
+     * parcelable extra which would be a {@link android.os.SharedMemory} holding a
+     * {@link SettingsTableSnapshot}. The snapshot is only valid while the generation
+     * tracked through {@link #CALL_METHOD_TRACK_GENERATION_KEY} matches its own.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -2632,6 +2646,9 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        @GuardedBy("this")
+        private SettingsTableSnapshot mSnapshot;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
             this(uri, getCommand, setCommand, null, null, providerHolder);
@@ -2713,6 +2730,12 @@ public final class Settings {
                         }
                         if (mGenerationTracker != null) {
                             currentGeneration = mGenerationTracker.getCurrentGeneration();
+                            if (mSnapshot != null
+                                    && mSnapshot.getGeneration() == currentGeneration) {
+                                final String value = mSnapshot.getString(name);
+                                mValues.put(name, value);
+                                return value;
+                            }
                         }
                     }
                 }
@@ -2748,6 +2771,15 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && CALL_METHOD_GET_GLOBAL.equals(mCallGetCommand)) {
+                            // Getting here means there is no snapshot for the current
+                            // generation, ask for a fresh one along with the value. Only the
+                            // global table is published as a snapshot.
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -2802,12 +2834,26 @@ public final class Settings {
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
                                                     mValues.clear();
+                                                    destroySnapshot();
                                                 }
                                             }
                                         });
                                         currentGeneration = generation;
                                     }
                                 }
+                                final SharedMemory snapshotMemory = b.getParcelable(
+                                        CALL_METHOD_TRACK_SNAPSHOT_KEY);
+                                if (snapshotMemory != null) {
+                                    destroySnapshot();
+                                    mSnapshot = SettingsTableSnapshot.open(snapshotMemory);
+                                    if (DEBUG) {
+                                        Log.i(TAG, "Received snapshot for type:"
+                                                + mUri.getPath() + " in package:"
+                                                + cr.getPackageName() + " with generation:"
+                                                + (mSnapshot != null
+                                                        ? mSnapshot.getGeneration() : -1));
+                                    }
+                                }
                                 if (mGenerationTracker != null && currentGeneration ==
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
@@ -3005,6 +3051,14 @@ public final class Settings {
             }
         }
 
+        @GuardedBy("this")
+        private void destroySnapshot() {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
@@ -3012,6 +3066,7 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                destroySnapshot();
             }
         }
     }
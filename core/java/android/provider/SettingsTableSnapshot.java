@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A read-only copy of a whole settings table in shared memory, published by the settings
+ * provider so that processes can resolve reads locally instead of making a call into the
+ * provider for every setting they have not read yet.
+ *
+ * <p>The snapshot carries the generation of the table it was taken at; it may only be used
+ * while the generation tracked by the reading process is the same.
+ *
+ * <p>The memory is laid out as a header, followed by an open hash table of buckets and
+ * entries, followed by a pool of the distinct names and values. Names and values are stored
+ * as a length followed by UTF-8 bytes, and each entry refers to them by offset.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @hide
+ */
+public final class SettingsTableSnapshot implements Closeable {
+    private static final String TAG = "SettingsTableSnapshot";
+
+    private static final int MAGIC = 0x53545331; // "STS1"
+
+    // magic, generation, entry count, bucket count
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    // name hash, name offset, value offset, next entry
+    private static final int ENTRY_SIZE = 4 * Integer.BYTES;
+
+    private static final int NONE = -1;
+
+    /** Tables that do not fit are not published. */
+    public static final int MAX_SIZE_BYTES = 1024 * 1024;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final int mEntryCount;
+    private final int mBucketCount;
+    private final int mEntriesOffset;
+
+    private SettingsTableSnapshot(SharedMemory memory, ByteBuffer buffer) {
+        mMemory = memory;
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a settings table snapshot");
+        }
+        mGeneration = buffer.getInt(Integer.BYTES);
+        mEntryCount = buffer.getInt(2 * Integer.BYTES);
+        mBucketCount = buffer.getInt(3 * Integer.BYTES);
+        mEntriesOffset = HEADER_SIZE + mBucketCount * Integer.BYTES;
+        if (mEntryCount < 0 || mBucketCount <= 0
+                || mEntriesOffset + (long) mEntryCount * ENTRY_SIZE > buffer.capacity()) {
+            throw new IllegalArgumentException("Corrupted settings table snapshot");
+        }
+    }
+
+    /**
+     * Maps a snapshot received from the settings provider.
+     *
+     * @return the snapshot, or {@code null} if it cannot be mapped.
+     */
+    public static @Nullable SettingsTableSnapshot open(@NonNull SharedMemory memory) {
+        try {
+            return new SettingsTableSnapshot(memory, memory.mapReadOnly());
+        } catch (ErrnoException | IllegalArgumentException e) {
+            Log.e(TAG, "Cannot map settings table snapshot", e);
+            memory.close();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given table into a new read-only shared memory region.
+     *
+     * @return the memory holding the snapshot, or {@code null} if the table is larger than
+     * {@link #MAX_SIZE_BYTES}.
+     */
+    public static @Nullable SharedMemory write(@NonNull Map<String, String> values,
+            int generation) throws ErrnoException {
+        final int entryCount = values.size();
+        final int bucketCount = Math.max(entryCount * 2, 1);
+        final int poolOffset = HEADER_SIZE + bucketCount * Integer.BYTES
+                + entryCount * ENTRY_SIZE;
+
+        // Lay out the pool first so the entries can refer to it; repeated strings, such as
+        // common values, are stored once.
+        final ArrayMap<String, Integer> pooled = new ArrayMap<>();
+        final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        final int[] hashes = new int[entryCount];
+        final int[] nameOffsets = new int[entryCount];
+        final int[] valueOffsets = new int[entryCount];
+        int i = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            hashes[i] = entry.getKey().hashCode();
+            nameOffsets[i] = poolString(pooled, pool, poolOffset, entry.getKey());
+            valueOffsets[i] = entry.getValue() != null
+                    ? poolString(pooled, pool, poolOffset, entry.getValue()) : NONE;
+            i++;
+        }
+
+        final int size = poolOffset + pool.size();
+        if (size > MAX_SIZE_BYTES) {
+            return null;
+        }
+
+        final int[] buckets = new int[bucketCount];
+        final int[] next = new int[entryCount];
+        Arrays.fill(buckets, NONE);
+        for (i = 0; i < entryCount; i++) {
+            final int bucket = bucketOf(hashes[i], bucketCount);
+            next[i] = buckets[bucket];
+            buckets[bucket] = i;
+        }
+
+        final SharedMemory memory = SharedMemory.create("settings-snapshot", size);
+        final ByteBuffer buffer = memory.mapReadWrite();
+        try {
+            buffer.putInt(MAGIC);
+            buffer.putInt(generation);
+            buffer.putInt(entryCount);
+            buffer.putInt(bucketCount);
+            for (i = 0; i < bucketCount; i++) {
+                buffer.putInt(buckets[i]);
+            }
+            for (i = 0; i < entryCount; i++) {
+                buffer.putInt(hashes[i]);
+                buffer.putInt(nameOffsets[i]);
+                buffer.putInt(valueOffsets[i]);
+                buffer.putInt(next[i]);
+            }
+            buffer.put(pool.toByteArray());
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        // Readers must not be able to change what other processes see.
+        memory.setProtect(OsConstants.PROT_READ);
+        return memory;
+    }
+
+    private static int poolString(ArrayMap<String, Integer> pooled, ByteArrayOutputStream pool,
+            int poolOffset, String s) {
+        final Integer offset = pooled.get(s);
+        if (offset != null) {
+            return offset;
+        }
+        final int newOffset = poolOffset + pool.size();
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        final int length = bytes.length;
+        pool.write(length >>> 24);
+        pool.write(length >>> 16);
+        pool.write(length >>> 8);
+        pool.write(length);
+        pool.write(bytes, 0, length);
+        pooled.put(s, newOffset);
+        return newOffset;
+    }
+
+    private static int bucketOf(int hash, int bucketCount) {
+        return (hash & Integer.MAX_VALUE) % bucketCount;
+    }
+
+    /** Returns the generation of the table this snapshot was taken at. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns the number of settings in the snapshot. */
+    public int size() {
+        return mEntryCount;
+    }
+
+    /**
+     * Returns the value of the given setting, or {@code null} if it has a null value or is not
+     * in the table.
+     */
+    public @Nullable String getString(@NonNull String name) {
+        final int hash = name.hashCode();
+        byte[] nameBytes = null;
+        int entry = mBuffer.getInt(HEADER_SIZE + bucketOf(hash, mBucketCount) * Integer.BYTES);
+        // Bound the walk so that a damaged chain cannot loop forever.
+        for (int steps = 0; entry != NONE && steps < mEntryCount; steps++) {
+            final int entryOffset = mEntriesOffset + entry * ENTRY_SIZE;
+            if (mBuffer.getInt(entryOffset) == hash) {
+                if (nameBytes == null) {
+                    nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                }
+                if (stringEquals(mBuffer.getInt(entryOffset + Integer.BYTES), nameBytes)) {
+                    return readString(mBuffer.getInt(entryOffset + 2 * Integer.BYTES));
+                }
+            }
+            entry = mBuffer.getInt(entryOffset + 3 * Integer.BYTES);
+        }
+        return null;
+    }
+
+    private boolean stringEquals(int offset, byte[] bytes) {
+        if (mBuffer.getInt(offset) != bytes.length) {
+            return false;
+        }
+        final int start = offset + Integer.BYTES;
+        for (int i = 0; i < bytes.length; i++) {
+            if (mBuffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(int offset) {
+        if (offset == NONE) {
+            return null;
+        }
+        final byte[] bytes = new byte[mBuffer.getInt(offset)];
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset + Integer.BYTES);
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Unmaps the snapshot and releases the memory. */
+    @Override
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mMemory.close();
+    }
+}
@@ -317,6 +317,9 @@ public abstract class NotificationListenerService extends Service {
 
     @GuardedBy("mLock")
     private RankingMap mRankingMap;
+    /** Version of the last ranking update applied, see {@link NotificationRankingUpdate}. */
+    @GuardedBy("mLock")
+    private int mRankingVersion;
 
     /**
      * @hide
@@ -1298,10 +1301,14 @@ public abstract class NotificationListenerService extends Service {
                 sbn = sbnHolder.get();
             } catch (RemoteException e) {
                 Log.w(TAG, "onNotificationPosted: Error receiving StatusBarNotification", e);
-                return;
+                sbn = null;
             }
             if (sbn == null) {
                 Log.w(TAG, "onNotificationPosted: Error receiving StatusBarNotification");
+                // later updates may only carry what changed since this one
+                synchronized (mLock) {
+                    applyUpdateLocked(update);
+                }
                 return;
             }
 
@@ -1343,10 +1350,14 @@ public abstract class NotificationListenerService extends Service {
                 sbn = sbnHolder.get();
             } catch (RemoteException e) {
                 Log.w(TAG, "onNotificationRemoved: Error receiving StatusBarNotification", e);
-                return;
+                sbn = null;
             }
             if (sbn == null) {
                 Log.w(TAG, "onNotificationRemoved: Error receiving StatusBarNotification");
+                // later updates may only carry what changed since this one
+                synchronized (mLock) {
+                    applyUpdateLocked(update);
+                }
                 return;
             }
             // protect subclass from concurrent modifications of (@link mNotificationKeys}.
@@ -1497,7 +1508,42 @@ public abstract class NotificationListenerService extends Service {
      */
     @GuardedBy("mLock")
     public final void applyUpdateLocked(NotificationRankingUpdate update) {
-        mRankingMap = update.getRankingMap();
+        final int version = update.getVersion();
+        if (version != 0) {
+            if (version <= mRankingVersion) {
+                // An update that was overtaken by later ones, such as the one given when
+                // connecting.
+                return;
+            }
+            if (update.isDelta() && update.getBaseVersion() != mRankingVersion) {
+                // An update was lost; the delta cannot be applied to the rankings we have.
+                final NotificationRankingUpdate fullUpdate = getFullRankingUpdate();
+                if (fullUpdate != null && !fullUpdate.isDelta()) {
+                    mRankingVersion = fullUpdate.getVersion();
+                    mRankingMap = fullUpdate.getRankingMap();
+                    return;
+                }
+                Log.w(TAG, "Ranking update " + version + " is based on "
+                        + update.getBaseVersion() + " but " + mRankingVersion
+                        + " was the last one received");
+            }
+            mRankingVersion = version;
+        }
+        mRankingMap = update.applyTo(mRankingMap);
+    }
+
+    /**
+     * Requests the complete current ranking from the notification manager, whose next update
+     * to this listener will also be complete.
+     */
+    private NotificationRankingUpdate getFullRankingUpdate() {
+        if (!isBound()) return null;
+        try {
+            return getNotificationInterface().getRankingUpdateFromListener(mWrapper);
+        } catch (RemoteException ex) {
+            Log.v(TAG, "Unable to contact notification manager", ex);
+            return null;
+        }
     }
 
     /** @hide */
@@ -1940,6 +1986,38 @@ public abstract class NotificationListenerService extends Service {
                     other.mIsBubble);
         }
 
+        /**
+         * Returns whether this ranking carries the same information as {@code previous}, its rank
+         * aside. Unlike {@link #equals}, smart actions and shortcut info are compared by
+         * reference, so that any change to them is seen.
+         *
+         * @hide
+         */
+        public boolean isUnchangedFrom(@NonNull Ranking previous) {
+            return Objects.equals(mKey, previous.mKey)
+                    && mMatchesInterruptionFilter == previous.mMatchesInterruptionFilter
+                    && mVisibilityOverride == previous.mVisibilityOverride
+                    && mSuppressedVisualEffects == previous.mSuppressedVisualEffects
+                    && mImportance == previous.mImportance
+                    && Objects.equals(mImportanceExplanation, previous.mImportanceExplanation)
+                    && Objects.equals(mOverrideGroupKey, previous.mOverrideGroupKey)
+                    && Objects.equals(mChannel, previous.mChannel)
+                    && Objects.equals(mOverridePeople, previous.mOverridePeople)
+                    && Objects.equals(mSnoozeCriteria, previous.mSnoozeCriteria)
+                    && mShowBadge == previous.mShowBadge
+                    && mUserSentiment == previous.mUserSentiment
+                    && mHidden == previous.mHidden
+                    && mLastAudiblyAlertedMs == previous.mLastAudiblyAlertedMs
+                    && mNoisy == previous.mNoisy
+                    && mSmartActions == previous.mSmartActions
+                    && Objects.equals(mSmartReplies, previous.mSmartReplies)
+                    && mCanBubble == previous.mCanBubble
+                    && mVisuallyInterruptive == previous.mVisuallyInterruptive
+                    && mIsConversation == previous.mIsConversation
+                    && mShortcutInfo == previous.mShortcutInfo
+                    && mIsBubble == previous.mIsBubble;
+        }
+
         /**
          * {@hide}
          */
@@ -2008,6 +2086,8 @@ public abstract class NotificationListenerService extends Service {
      * notifications active at the time of retrieval.
      */
     public static class RankingMap implements Parcelable {
+        private static final String TAG = "RankingMap";
+
         private ArrayList<String> mOrderedKeys = new ArrayList<>();
         // Note: all String keys should be intern'd as pointers into mOrderedKeys
         private ArrayMap<String, Ranking> mRankings = new ArrayMap<>();
@@ -2023,6 +2103,44 @@ public abstract class NotificationListenerService extends Service {
             }
         }
 
+        /**
+         * Builds the ranking map that follows {@code previous} after a delta update: the keys are
+         * given in their new order, along with the rankings that changed.
+         *
+         * @hide
+         */
+        public RankingMap(@Nullable RankingMap previous, String[] orderedKeys,
+                Ranking[] changedRankings) {
+            final ArrayMap<String, Ranking> changed = new ArrayMap<>(changedRankings.length);
+            for (Ranking ranking : changedRankings) {
+                changed.put(ranking.getKey(), ranking);
+            }
+            mOrderedKeys.ensureCapacity(orderedKeys.length);
+            mRankings.ensureCapacity(orderedKeys.length);
+            for (int i = 0; i < orderedKeys.length; i++) {
+                final String key = orderedKeys[i];
+                Ranking ranking = changed.get(key);
+                if (ranking == null) {
+                    final Ranking unchanged = previous != null ? previous.mRankings.get(key)
+                            : null;
+                    if (unchanged == null) {
+                        Log.w(TAG, "Missing ranking for " + key);
+                        continue;
+                    }
+                    if (unchanged.mRank == mOrderedKeys.size()) {
+                        ranking = unchanged;
+                    } else {
+                        // rankings are shared between maps, never modify them
+                        ranking = new Ranking();
+                        ranking.populate(unchanged);
+                        ranking.mRank = mOrderedKeys.size();
+                    }
+                }
+                mOrderedKeys.add(key);
+                mRankings.put(key, ranking);
+            }
+        }
+
         // -- parcelable interface --
 
         private RankingMap(Parcel in) {
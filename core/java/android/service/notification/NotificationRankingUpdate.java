@@ -18,24 +18,103 @@ package android.service.notification;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.Arrays;
+import java.util.Objects;
+
 /**
+ * A ranking update sent to a {@link NotificationListenerService}. It either carries the full
+ * ranking map, or only the rankings that changed since the update with version
+ * {@link #getBaseVersion()}, along with the new order of all keys.
+ *
  * @hide
  */
 public class NotificationRankingUpdate implements Parcelable {
     private final NotificationListenerService.RankingMap mRankingMap;
+    private final String[] mOrderedKeys;
+    private final NotificationListenerService.Ranking[] mChangedRankings;
+    private final int mVersion;
+    private final int mBaseVersion;
 
     public NotificationRankingUpdate(NotificationListenerService.Ranking[] rankings) {
+        this(rankings, 0);
+    }
+
+    /**
+     * Creates a full update. A version of 0 means the update is not part of a sequence, and is
+     * always applied.
+     */
+    public NotificationRankingUpdate(NotificationListenerService.Ranking[] rankings,
+            int version) {
         mRankingMap = new NotificationListenerService.RankingMap(rankings);
+        mOrderedKeys = null;
+        mChangedRankings = null;
+        mVersion = version;
+        mBaseVersion = 0;
+    }
+
+    /**
+     * Creates a delta update on top of the update with version {@code baseVersion}.
+     */
+    public NotificationRankingUpdate(String[] orderedKeys,
+            NotificationListenerService.Ranking[] changedRankings, int version,
+            int baseVersion) {
+        mRankingMap = null;
+        mOrderedKeys = orderedKeys;
+        mChangedRankings = changedRankings;
+        mVersion = version;
+        mBaseVersion = baseVersion;
     }
 
     public NotificationRankingUpdate(Parcel in) {
-        mRankingMap = in.readParcelable(getClass().getClassLoader());
+        mVersion = in.readInt();
+        mBaseVersion = in.readInt();
+        if (in.readBoolean()) {
+            mRankingMap = null;
+            mOrderedKeys = in.createStringArray();
+            final int count = in.readInt();
+            mChangedRankings = new NotificationListenerService.Ranking[count];
+            for (int i = 0; i < count; i++) {
+                mChangedRankings[i] = new NotificationListenerService.Ranking(in);
+            }
+        } else {
+            mRankingMap = in.readParcelable(getClass().getClassLoader());
+            mOrderedKeys = null;
+            mChangedRankings = null;
+        }
     }
 
+    /**
+     * Returns the full ranking map, or null if this is a delta update.
+     */
     public NotificationListenerService.RankingMap getRankingMap() {
         return mRankingMap;
     }
 
+    public boolean isDelta() {
+        return mRankingMap == null;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    /**
+     * Returns the ranking map that results from applying this update on top of
+     * {@code previous}.
+     */
+    public NotificationListenerService.RankingMap applyTo(
+            NotificationListenerService.RankingMap previous) {
+        if (mRankingMap != null) {
+            return mRankingMap;
+        }
+        return new NotificationListenerService.RankingMap(previous, mOrderedKeys,
+                mChangedRankings);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -47,12 +126,27 @@ public class NotificationRankingUpdate implements Parcelable {
         if (o == null || getClass() != o.getClass()) return false;
 
         NotificationRankingUpdate other = (NotificationRankingUpdate) o;
-        return mRankingMap.equals(other.mRankingMap);
+        return Objects.equals(mRankingMap, other.mRankingMap)
+                && Arrays.equals(mOrderedKeys, other.mOrderedKeys)
+                && Arrays.equals(mChangedRankings, other.mChangedRankings)
+                && mVersion == other.mVersion
+                && mBaseVersion == other.mBaseVersion;
     }
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
-        out.writeParcelable(mRankingMap, flags);
+        out.writeInt(mVersion);
+        out.writeInt(mBaseVersion);
+        out.writeBoolean(isDelta());
+        if (isDelta()) {
+            out.writeStringArray(mOrderedKeys);
+            out.writeInt(mChangedRankings.length);
+            for (NotificationListenerService.Ranking ranking : mChangedRankings) {
+                ranking.writeToParcel(out, flags);
+            }
+        } else {
+            out.writeParcelable(mRankingMap, flags);
+        }
     }
 
     public static final @android.annotation.NonNull Parcelable.Creator<NotificationRankingUpdate> CREATOR
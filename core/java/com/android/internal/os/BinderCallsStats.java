@@ -23,6 +23,7 @@ import android.os.Process;
 import android.os.SystemClock;
 import android.text.format.DateFormat;
 import android.util.ArrayMap;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -38,7 +39,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -47,6 +47,10 @@ import java.util.function.ToDoubleFunction;
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ *
+ * <p>Binder threads record their calls into one of several shards, picked by thread, so that
+ * concurrent calls rarely contend on the same lock. The shards are merged when the statistics
+ * are read.
  */
 public class BinderCallsStats implements BinderInternal.Observer {
     public static final boolean ENABLED_DEFAULT = true;
@@ -55,6 +59,8 @@ public class BinderCallsStats implements BinderInternal.Observer {
     public static final boolean DEFAULT_TRACK_SCREEN_INTERACTIVE = false;
     public static final boolean DEFAULT_TRACK_DIRECT_CALLING_UID = true;
     public static final int MAX_BINDER_CALL_STATS_COUNT_DEFAULT = 1500;
+    public static final int SHARD_COUNT_DEFAULT = getDefaultShardCount();
+    private static final int MAX_SHARD_COUNT = 16;
     private static final String DEBUG_ENTRY_PREFIX = "__DEBUG_";
 
     private static class OverflowBinder extends Binder {}
@@ -76,8 +82,8 @@ public class BinderCallsStats implements BinderInternal.Observer {
     // of 100 requests.
     private int mPeriodicSamplingInterval = PERIODIC_SAMPLING_INTERVAL_DEFAULT;
     private int mMaxBinderCallStatsCount = MAX_BINDER_CALL_STATS_COUNT_DEFAULT;
-    @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+    // Always a power of two. Replaced as a whole when the shard count changes.
+    private volatile Shard[] mShards = createShards(SHARD_COUNT_DEFAULT);
     @GuardedBy("mLock")
     private final ArrayMap<String, Integer> mExceptionCounts = new ArrayMap<>();
     private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
@@ -85,7 +91,6 @@ public class BinderCallsStats implements BinderInternal.Observer {
     private final Random mRandom;
     private long mStartCurrentTime = System.currentTimeMillis();
     private long mStartElapsedTime = SystemClock.elapsedRealtime();
-    private long mCallStatsCount = 0;
     private boolean mAddDebugEntries = false;
     private boolean mTrackDirectCallingUid = DEFAULT_TRACK_DIRECT_CALLING_UID;
     private boolean mTrackScreenInteractive = DEFAULT_TRACK_SCREEN_INTERACTIVE;
@@ -171,13 +176,15 @@ public class BinderCallsStats implements BinderInternal.Observer {
                 ? getCallingUid()
                 : OVERFLOW_DIRECT_CALLING_UID;
 
-        synchronized (mLock) {
+        final Shard[] shards = mShards;
+        final Shard shard = shards[(int) Thread.currentThread().getId() & (shards.length - 1)];
+        synchronized (shard) {
             // This was already checked in #callStart but check again while synchronized.
             if (mDeviceState == null || mDeviceState.isCharging()) {
                 return;
             }
 
-            final UidEntry uidEntry = getUidEntry(workSourceUid);
+            final UidEntry uidEntry = shard.getUidEntry(workSourceUid);
             uidEntry.callCount++;
 
             if (recordCall) {
@@ -187,10 +194,10 @@ public class BinderCallsStats implements BinderInternal.Observer {
                 final CallStat callStat = uidEntry.getOrCreate(
                         callingUid, s.binderClass, s.transactionCode,
                         screenInteractive,
-                        mCallStatsCount >= mMaxBinderCallStatsCount);
+                        shard.callStatsCount >= mMaxBinderCallStatsCount);
                 final boolean isNewCallStat = callStat.callCount == 0;
                 if (isNewCallStat) {
-                    mCallStatsCount++;
+                    shard.callStatsCount++;
                 }
 
                 callStat.callCount++;
@@ -220,13 +227,41 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
-    private UidEntry getUidEntry(int uid) {
-        UidEntry uidEntry = mUidEntries.get(uid);
-        if (uidEntry == null) {
-            uidEntry = new UidEntry(uid);
-            mUidEntries.put(uid, uidEntry);
+    /**
+     * Returns the statistics of all the shards merged together.
+     */
+    @GuardedBy("mLock")
+    private SparseArray<UidEntry> getMergedUidEntriesLocked() {
+        final SparseArray<UidEntry> result = new SparseArray<>();
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                final int uidEntriesSize = shard.uidEntries.size();
+                for (int i = 0; i < uidEntriesSize; i++) {
+                    final UidEntry entry = shard.uidEntries.valueAt(i);
+                    UidEntry merged = result.get(entry.workSourceUid);
+                    if (merged == null) {
+                        merged = new UidEntry(entry.workSourceUid);
+                        result.put(entry.workSourceUid, merged);
+                    }
+                    merged.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int getDefaultShardCount() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), MAX_SHARD_COUNT);
+    }
+
+    private static Shard[] createShards(int count) {
+        // Round up to a power of two so a shard can be picked with a mask.
+        final int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1);
+        final Shard[] shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard();
         }
-        return uidEntry;
+        return shards;
     }
 
     @Override
@@ -284,9 +319,10 @@ public class BinderCallsStats implements BinderInternal.Observer {
 
         ArrayList<ExportedCallStat> resultCallStats = new ArrayList<>();
         synchronized (mLock) {
-            final int uidEntriesSize = mUidEntries.size();
+            final SparseArray<UidEntry> uidEntries = getMergedUidEntriesLocked();
+            final int uidEntriesSize = uidEntries.size();
             for (int entryIdx = 0; entryIdx < uidEntriesSize; entryIdx++) {
-                final UidEntry entry = mUidEntries.valueAt(entryIdx);
+                final UidEntry entry = uidEntries.valueAt(entryIdx);
                 for (CallStat stat : entry.getCallStatsList()) {
                     ExportedCallStat exported = new ExportedCallStat();
                     exported.workSourceUid = entry.workSourceUid;
@@ -386,11 +422,13 @@ public class BinderCallsStats implements BinderInternal.Observer {
         pw.print("On battery time (ms): ");
         pw.println(mBatteryStopwatch != null ? mBatteryStopwatch.getMillis() : 0);
         pw.println("Sampling interval period: " + mPeriodicSamplingInterval);
+        pw.println("Shards: " + mShards.length);
         final List<UidEntry> entries = new ArrayList<>();
 
-        final int uidEntriesSize = mUidEntries.size();
+        final SparseArray<UidEntry> uidEntries = getMergedUidEntriesLocked();
+        final int uidEntriesSize = uidEntries.size();
         for (int i = 0; i < uidEntriesSize; i++) {
-            UidEntry e = mUidEntries.valueAt(i);
+            UidEntry e = uidEntries.valueAt(i);
             entries.add(e);
             totalCpuTime += e.cpuTimeMicros;
             totalRecordedCallsCount += e.recordedCallCount;
@@ -555,10 +593,35 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * Sets the number of shards the statistics are collected in, rounded up to a power of two.
+     * More shards reduce contention between binder threads at the cost of memory, as every
+     * shard tracks up to the maximum number of items on its own.
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount <= 0 || shardCount > MAX_SHARD_COUNT) {
+            Slog.w(TAG, "Ignored invalid shard count (value must be in [1, "
+                    + MAX_SHARD_COUNT + "]): " + shardCount);
+            return;
+        }
+
+        synchronized (mLock) {
+            final Shard[] shards = createShards(shardCount);
+            if (shards.length != mShards.length) {
+                mShards = shards;
+                reset();
+            }
+        }
+    }
+
     public void reset() {
         synchronized (mLock) {
-            mCallStatsCount = 0;
-            mUidEntries.clear();
+            for (Shard shard : mShards) {
+                synchronized (shard) {
+                    shard.callStatsCount = 0;
+                    shard.uidEntries.clear();
+                }
+            }
             mExceptionCounts.clear();
             mStartCurrentTime = System.currentTimeMillis();
             mStartElapsedTime = SystemClock.elapsedRealtime();
@@ -628,35 +691,36 @@ public class BinderCallsStats implements BinderInternal.Observer {
             this.transactionCode = transactionCode;
             this.screenInteractive = screenInteractive;
         }
-    }
 
-    /** Key used to store CallStat object in a Map. */
-    public static class CallStatKey {
-        public int callingUid;
-        public Class<? extends Binder> binderClass;
-        public int transactionCode;
-        private boolean screenInteractive;
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+        void add(CallStat other) {
+            recordedCallCount += other.recordedCallCount;
+            callCount += other.callCount;
+            cpuTimeMicros += other.cpuTimeMicros;
+            maxCpuTimeMicros = Math.max(maxCpuTimeMicros, other.maxCpuTimeMicros);
+            latencyMicros += other.latencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, other.maxLatencyMicros);
+            maxRequestSizeBytes = Math.max(maxRequestSizeBytes, other.maxRequestSizeBytes);
+            maxReplySizeBytes = Math.max(maxReplySizeBytes, other.maxReplySizeBytes);
+            exceptionCount += other.exceptionCount;
+        }
+    }
+
+    /** The statistics recorded by a subset of the binder threads. */
+    private static class Shard {
+        @GuardedBy("this")
+        final SparseArray<UidEntry> uidEntries = new SparseArray<>();
+        // Number of CallStat objects in this shard.
+        @GuardedBy("this")
+        long callStatsCount;
+
+        @GuardedBy("this")
+        UidEntry getUidEntry(int uid) {
+            UidEntry uidEntry = uidEntries.get(uid);
+            if (uidEntry == null) {
+                uidEntry = new UidEntry(uid);
+                uidEntries.put(uid, uidEntry);
             }
-
-            final CallStatKey key = (CallStatKey) o;
-            return callingUid == key.callingUid
-                    && transactionCode == key.transactionCode
-                    && screenInteractive == key.screenInteractive
-                    && (binderClass.equals(key.binderClass));
-        }
-
-        @Override
-        public int hashCode() {
-            int result = binderClass.hashCode();
-            result = 31 * result + transactionCode;
-            result = 31 * result + callingUid;
-            result = 31 * result + (screenInteractive ? 1231 : 1237);
-            return result;
+            return uidEntry;
         }
     }
 
@@ -680,19 +744,39 @@ public class BinderCallsStats implements BinderInternal.Observer {
             this.workSourceUid = uid;
         }
 
-        // Aggregate time spent per each call name: call_desc -> cpu_time_micros
-        private Map<CallStatKey, CallStat> mCallStats = new ArrayMap<>();
-        private CallStatKey mTempKey = new CallStatKey();
+        // Aggregate time spent per each call name: binder class -> call key -> CallStat.
+        // The remaining dimensions are packed into a long, see #getCallStatKey, so that
+        // lookups do not need to allocate or box a key.
+        private final ArrayMap<Class<? extends Binder>, LongSparseArray<CallStat>> mCallStats =
+                new ArrayMap<>();
+
+        private static long getCallStatKey(int callingUid, int transactionCode,
+                boolean screenInteractive) {
+            // Uids fit in 31 bits; OVERFLOW_DIRECT_CALLING_UID maps to an unused uid.
+            return ((long) transactionCode << 32)
+                    | ((callingUid & 0x7FFFFFFFL) << 1)
+                    | (screenInteractive ? 1 : 0);
+        }
 
         @Nullable
         CallStat get(int callingUid, Class<? extends Binder> binderClass, int transactionCode,
                 boolean screenInteractive) {
-            // Use a global temporary key to avoid creating new objects for every lookup.
-            mTempKey.callingUid = callingUid;
-            mTempKey.binderClass = binderClass;
-            mTempKey.transactionCode = transactionCode;
-            mTempKey.screenInteractive = screenInteractive;
-            return mCallStats.get(mTempKey);
+            final LongSparseArray<CallStat> classCallStats = mCallStats.get(binderClass);
+            if (classCallStats == null) {
+                return null;
+            }
+            return classCallStats.get(
+                    getCallStatKey(callingUid, transactionCode, screenInteractive));
+        }
+
+        private void put(CallStat callStat) {
+            LongSparseArray<CallStat> classCallStats = mCallStats.get(callStat.binderClass);
+            if (classCallStats == null) {
+                classCallStats = new LongSparseArray<>();
+                mCallStats.put(callStat.binderClass, classCallStats);
+            }
+            classCallStats.put(getCallStatKey(callStat.callingUid, callStat.transactionCode,
+                    callStat.screenInteractive), callStat);
         }
 
         CallStat getOrCreate(int callingUid, Class<? extends Binder> binderClass,
@@ -715,21 +799,48 @@ public class BinderCallsStats implements BinderInternal.Observer {
 
                 mapCallStat = new CallStat(callingUid, binderClass, transactionCode,
                         screenInteractive);
-                CallStatKey key = new CallStatKey();
-                key.callingUid = callingUid;
-                key.binderClass = binderClass;
-                key.transactionCode = transactionCode;
-                key.screenInteractive = screenInteractive;
-                mCallStats.put(key, mapCallStat);
+                put(mapCallStat);
             }
             return mapCallStat;
         }
 
+        /** Adds the statistics of the given entry, for the same uid, to this one. */
+        void add(UidEntry other) {
+            recordedCallCount += other.recordedCallCount;
+            callCount += other.callCount;
+            cpuTimeMicros += other.cpuTimeMicros;
+            final int classCount = other.mCallStats.size();
+            for (int i = 0; i < classCount; i++) {
+                final LongSparseArray<CallStat> classCallStats = other.mCallStats.valueAt(i);
+                final int callStatCount = classCallStats.size();
+                for (int j = 0; j < callStatCount; j++) {
+                    final CallStat callStat = classCallStats.valueAt(j);
+                    CallStat merged = get(callStat.callingUid, callStat.binderClass,
+                            callStat.transactionCode, callStat.screenInteractive);
+                    if (merged == null) {
+                        merged = new CallStat(callStat.callingUid, callStat.binderClass,
+                                callStat.transactionCode, callStat.screenInteractive);
+                        put(merged);
+                    }
+                    merged.add(callStat);
+                }
+            }
+        }
+
         /**
          * Returns list of calls sorted by CPU time
          */
         public Collection<CallStat> getCallStatsList() {
-            return mCallStats.values();
+            final ArrayList<CallStat> result = new ArrayList<>();
+            final int classCount = mCallStats.size();
+            for (int i = 0; i < classCount; i++) {
+                final LongSparseArray<CallStat> classCallStats = mCallStats.valueAt(i);
+                final int callStatCount = classCallStats.size();
+                for (int j = 0; j < callStatCount; j++) {
+                    result.add(classCallStats.valueAt(j));
+                }
+            }
+            return result;
         }
 
         @Override
@@ -759,7 +870,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
 
     @VisibleForTesting
     public SparseArray<UidEntry> getUidEntries() {
-        return mUidEntries;
+        synchronized (mLock) {
+            return getMergedUidEntriesLocked();
+        }
     }
 
     @VisibleForTesting
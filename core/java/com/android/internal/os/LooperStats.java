@@ -25,29 +25,43 @@ import android.os.SystemClock;
 import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Collects aggregated telemetry data about Looper message dispatching.
  *
+ * <p>Entries are spread over a fixed number of stripes, each with its own lock, so that loopers
+ * do not contend on a single lock when looking up their entries. Recording a dispatched message
+ * does not allocate once its entry exists.
+ *
  * @hide Only for use within the system server.
  */
 public class LooperStats implements Looper.Observer {
     public static final String DEBUG_ENTRY_PREFIX = "__DEBUG_";
-    private static final int SESSION_POOL_SIZE = 50;
+    /**
+     * Number of buckets of the latency histograms. Bucket 0 counts latencies of 0, bucket
+     * {@code i} counts latencies in {@code [2^(i-1), 2^i)} microseconds and the last bucket
+     * counts everything above, i.e. 8.4 seconds and more.
+     */
+    public static final int LATENCY_HISTOGRAM_BUCKET_COUNT = 25;
     private static final boolean DISABLED_SCREEN_STATE_TRACKING_VALUE = false;
+    // Must be a power of two.
+    private static final int STRIPE_COUNT = 8;
 
-    @GuardedBy("mLock")
-    private final SparseArray<Entry> mEntries = new SparseArray<>(512);
-    private final Object mLock = new Object();
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+    // Number of entries in all the stripes, bounded by mEntriesSizeCap.
+    private final AtomicInteger mEntriesCount = new AtomicInteger();
     private final Entry mOverflowEntry = new Entry("OVERFLOW");
     private final Entry mHashCollisionEntry = new Entry("HASH_COLLISION");
-    private final ConcurrentLinkedQueue<DispatchSession> mSessionPool =
-            new ConcurrentLinkedQueue<>();
+    // Sessions are only handed back on the thread that started them, so keeping one spare
+    // session per thread avoids both allocations and a shared pool.
+    private final ThreadLocal<DispatchSession> mSpareSession = new ThreadLocal<>();
     private final int mEntriesSizeCap;
     private int mSamplingInterval;
     private CachedDeviceState.Readonly mDeviceState;
@@ -60,6 +74,9 @@ public class LooperStats implements Looper.Observer {
     public LooperStats(int samplingInterval, int entriesSizeCap) {
         this.mSamplingInterval = samplingInterval;
         this.mEntriesSizeCap = entriesSizeCap;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
     }
 
     public void setDeviceState(@NonNull CachedDeviceState.Readonly deviceState) {
@@ -78,8 +95,12 @@ public class LooperStats implements Looper.Observer {
     @Override
     public Object messageDispatchStarting() {
         if (deviceStateAllowsCollection() && shouldCollectDetailedData()) {
-            DispatchSession session = mSessionPool.poll();
-            session = session == null ? new DispatchSession() : session;
+            DispatchSession session = mSpareSession.get();
+            if (session != null) {
+                mSpareSession.set(null);
+            } else {
+                session = new DispatchSession();
+            }
             session.startTimeMicro = getElapsedRealtimeMicro();
             session.cpuStartMicro = getThreadTimeMicro();
             session.systemUptimeMillis = getSystemUptimeMillis();
@@ -106,6 +127,7 @@ public class LooperStats implements Looper.Observer {
                     final long cpuUsage = getThreadTimeMicro() - session.cpuStartMicro;
                     entry.totalLatencyMicro += latency;
                     entry.maxLatencyMicro = Math.max(entry.maxLatencyMicro, latency);
+                    entry.latencyHistogram[getLatencyBucket(latency)]++;
                     entry.cpuUsageMicro += cpuUsage;
                     entry.maxCpuUsageMicro = Math.max(entry.maxCpuUsageMicro, cpuUsage);
                     if (msg.getWhen() > 0) {
@@ -145,14 +167,15 @@ public class LooperStats implements Looper.Observer {
 
     /** Returns an array of {@link ExportedEntry entries} with the aggregated statistics. */
     public List<ExportedEntry> getEntries() {
-        final ArrayList<ExportedEntry> exportedEntries;
-        synchronized (mLock) {
-            final int size = mEntries.size();
-            exportedEntries = new ArrayList<>(size);
-            for (int i = 0; i < size; i++) {
-                Entry entry = mEntries.valueAt(i);
-                synchronized (entry) {
-                    exportedEntries.add(new ExportedEntry(entry));
+        final ArrayList<ExportedEntry> exportedEntries = new ArrayList<>(mEntriesCount.get());
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                final int size = stripe.entries.size();
+                for (int i = 0; i < size; i++) {
+                    Entry entry = stripe.entries.valueAt(i);
+                    synchronized (entry) {
+                        exportedEntries.add(new ExportedEntry(entry));
+                    }
                 }
             }
         }
@@ -201,8 +224,11 @@ public class LooperStats implements Looper.Observer {
 
     /** Removes all collected data. */
     public void reset() {
-        synchronized (mLock) {
-            mEntries.clear();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                mEntriesCount.addAndGet(-stripe.entries.size());
+                stripe.entries.clear();
+            }
         }
         synchronized (mHashCollisionEntry) {
             mHashCollisionEntry.reset();
@@ -231,18 +257,19 @@ public class LooperStats implements Looper.Observer {
                 ? mDeviceState.isScreenInteractive()
                 : DISABLED_SCREEN_STATE_TRACKING_VALUE;
         final int id = Entry.idFor(msg, isInteractive);
+        final Stripe stripe = mStripes[(id ^ (id >>> 16)) & (STRIPE_COUNT - 1)];
         Entry entry;
-        synchronized (mLock) {
-            entry = mEntries.get(id);
+        synchronized (stripe) {
+            entry = stripe.entries.get(id);
             if (entry == null) {
                 if (!allowCreateNew) {
                     return null;
-                } else if (mEntries.size() >= mEntriesSizeCap) {
+                } else if (!tryReserveEntry()) {
                     // If over the size cap track totals under OVERFLOW entry.
                     return mOverflowEntry;
                 } else {
                     entry = new Entry(msg, isInteractive);
-                    mEntries.put(id, entry);
+                    stripe.entries.put(id, entry);
                 }
             }
         }
@@ -257,12 +284,54 @@ public class LooperStats implements Looper.Observer {
         return entry;
     }
 
+    private boolean tryReserveEntry() {
+        int count;
+        do {
+            count = mEntriesCount.get();
+            if (count >= mEntriesSizeCap) {
+                return false;
+            }
+        } while (!mEntriesCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
     private void recycleSession(DispatchSession session) {
-        if (session != DispatchSession.NOT_SAMPLED && mSessionPool.size() < SESSION_POOL_SIZE) {
-            mSessionPool.add(session);
+        if (session != DispatchSession.NOT_SAMPLED && mSpareSession.get() == null) {
+            mSpareSession.set(session);
         }
     }
 
+    private static int getLatencyBucket(long latencyMicro) {
+        final int bucket = Long.SIZE - Long.numberOfLeadingZeros(Math.max(latencyMicro, 0L));
+        return Math.min(bucket, LATENCY_HISTOGRAM_BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns an estimate of the given percentile of a latency histogram: the upper bound of the
+     * bucket the percentile falls in, but no more than the maximum recorded latency.
+     */
+    @VisibleForTesting
+    public static long getLatencyPercentile(long[] histogram, long maxLatencyMicro,
+            int percentile) {
+        long count = 0;
+        for (long bucketCount : histogram) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        // The rank of the sample at the percentile, starting at 1.
+        final long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < histogram.length - 1; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, maxLatencyMicro);
+            }
+        }
+        return maxLatencyMicro;
+    }
+
     protected long getThreadTimeMicro() {
         return SystemClock.currentThreadTimeMicro();
     }
@@ -286,6 +355,11 @@ public class LooperStats implements Looper.Observer {
         public long systemUptimeMillis;
     }
 
+    private static class Stripe {
+        @GuardedBy("this")
+        final SparseArray<Entry> entries = new SparseArray<>(64);
+    }
+
     private static class Entry {
         public final int workSourceUid;
         public final Handler handler;
@@ -301,6 +375,7 @@ public class LooperStats implements Looper.Observer {
         public long recordedDelayMessageCount;
         public long delayMillis;
         public long maxDelayMillis;
+        public final long[] latencyHistogram = new long[LATENCY_HISTOGRAM_BUCKET_COUNT];
 
         Entry(Message msg, boolean isInteractive) {
             this.workSourceUid = msg.workSourceUid;
@@ -327,6 +402,7 @@ public class LooperStats implements Looper.Observer {
             delayMillis = 0;
             maxDelayMillis = 0;
             recordedDelayMessageCount = 0;
+            Arrays.fill(latencyHistogram, 0);
         }
 
         static int idFor(Message msg, boolean isInteractive) {
@@ -360,6 +436,11 @@ public class LooperStats implements Looper.Observer {
         public final long maxDelayMillis;
         public final long delayMillis;
         public final long recordedDelayMessageCount;
+        /** Recorded messages per latency bucket, see {@link #LATENCY_HISTOGRAM_BUCKET_COUNT}. */
+        public final long[] latencyHistogram;
+        public final long p50LatencyMicros;
+        public final long p95LatencyMicros;
+        public final long p99LatencyMicros;
 
         ExportedEntry(Entry entry) {
             this.workSourceUid = entry.workSourceUid;
@@ -383,6 +464,13 @@ public class LooperStats implements Looper.Observer {
             this.delayMillis = entry.delayMillis;
             this.maxDelayMillis = entry.maxDelayMillis;
             this.recordedDelayMessageCount = entry.recordedDelayMessageCount;
+            this.latencyHistogram = entry.latencyHistogram.clone();
+            this.p50LatencyMicros =
+                    getLatencyPercentile(latencyHistogram, maxLatencyMicros, 50);
+            this.p95LatencyMicros =
+                    getLatencyPercentile(latencyHistogram, maxLatencyMicros, 95);
+            this.p99LatencyMicros =
+                    getLatencyPercentile(latencyHistogram, maxLatencyMicros, 99);
         }
     }
 }
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.MAX_POOL_SIZE;
+import static com.android.internal.util.BinaryXmlSerializer.POOL_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_VERSION;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_END_DOCUMENT;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_END_TAG;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_START_DOCUMENT;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_START_TAG;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_TEXT;
+
+import android.util.Xml;
+
+import libcore.io.Streams;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An {@link XmlPullParser} that reads documents written by
+ * {@link BinaryXmlSerializer}.  When given a {@link FileInputStream} the file
+ * is memory-mapped and decoded in place; otherwise the stream is read fully
+ * into memory first.
+ *
+ * <p>Use {@link #newPullParser(InputStream)} to transparently read a stream
+ * that may contain either a binary or a text document.
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private ByteBuffer mIn;
+
+    private final ArrayList<String> mPool = new ArrayList<>();
+    private byte[] mScratch = new byte[256];
+
+    private int mEventType = START_DOCUMENT;
+    private int mDepth = 0;
+    private String mName;
+    private String mText;
+
+    private int mAttributeCount = 0;
+    private String[] mAttributeNames = new String[8];
+    private String[] mAttributeValues = new String[8];
+
+    /**
+     * Returns whether the given stream starts with the header written by
+     * {@link BinaryXmlSerializer}.  The stream must support
+     * {@link InputStream#mark(int)}, and is left positioned at its start.
+     */
+    public static boolean isBinaryXml(InputStream in) throws IOException {
+        final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+        in.mark(magic.length);
+        try {
+            return in.read(magic) == magic.length && Arrays.equals(magic, PROTOCOL_MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Returns a parser positioned at the start of the given stream, which may
+     * hold either a binary or a text document.  This lets callers migrate a
+     * file between the two formats simply by switching the serializer used to
+     * write it.
+     */
+    public static XmlPullParser newPullParser(InputStream in)
+            throws IOException, XmlPullParserException {
+        if (in instanceof FileInputStream) {
+            final FileChannel channel = ((FileInputStream) in).getChannel();
+            final long pos = channel.position();
+            final ByteBuffer magic = ByteBuffer.allocate(PROTOCOL_MAGIC.length);
+            channel.read(magic, pos);
+            if (Arrays.equals(magic.array(), PROTOCOL_MAGIC)) {
+                final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+                parser.setInput(channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                        channel.size() - pos));
+                return parser;
+            }
+        }
+        final InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+        final XmlPullParser parser;
+        if (isBinaryXml(buffered)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(buffered, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    @Override
+    public void setInput(InputStream is, String encoding) throws XmlPullParserException {
+        try {
+            setInput(ByteBuffer.wrap(Streams.readFullyNoClose(is)));
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read input", this, e);
+        }
+    }
+
+    /**
+     * Sets the input to the given buffer, which must hold a complete document.
+     */
+    public void setInput(ByteBuffer in) throws XmlPullParserException {
+        mIn = in;
+        mPool.clear();
+        mEventType = START_DOCUMENT;
+        mDepth = 0;
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+
+        final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+        try {
+            mIn.get(magic);
+            if (!Arrays.equals(magic, PROTOCOL_MAGIC)) {
+                throw new XmlPullParserException("Missing binary XML header", this, null);
+            }
+            final int version = mIn.get() & 0xff;
+            if (version != PROTOCOL_VERSION) {
+                throw new XmlPullParserException("Unsupported binary XML version " + version,
+                        this, null);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new XmlPullParserException("Truncated binary XML header", this, e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mEventType == END_TAG) {
+            mDepth--;
+        } else if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+
+        try {
+            while (true) {
+                final int token = mIn.get();
+                switch (token) {
+                    case TOKEN_START_DOCUMENT:
+                        continue;
+                    case TOKEN_END_DOCUMENT:
+                        return mEventType = END_DOCUMENT;
+                    case TOKEN_START_TAG:
+                        mDepth++;
+                        mName = readPooledString();
+                        readAttributes();
+                        return mEventType = START_TAG;
+                    case TOKEN_END_TAG:
+                        mName = readPooledString();
+                        return mEventType = END_TAG;
+                    case TOKEN_TEXT:
+                        mText = readString();
+                        return mEventType = TEXT;
+                    default:
+                        throw new XmlPullParserException("Unexpected token " + token, this, null);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new XmlPullParserException("Truncated binary XML", this, e);
+        }
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("Expected start or end tag", this, null);
+        }
+        return eventType;
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (getEventType() != START_TAG) {
+            throw new XmlPullParserException("Precondition: START_TAG", this, null);
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = getText();
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("END_TAG expected", this, null);
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("START_TAG or TEXT expected", this, null);
+        }
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException {
+        if (type != mEventType
+                || (namespace != null && !namespace.equals(getNamespace()))
+                || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("expected " + TYPES[type] + getPositionDescription(),
+                    this, null);
+        }
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            return null;
+        }
+        final char[] chars = mText.toCharArray();
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = chars.length;
+        return chars;
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT) {
+            throw new XmlPullParserException("Not at text", this, null);
+        }
+        for (int i = 0; i < mText.length(); i++) {
+            if (!Character.isWhitespace(mText.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() {
+        return false;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributeValues[index];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (name.equals(mAttributeNames[i])) {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return "";
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getNamespace() {
+        return (mEventType == START_TAG || mEventType == END_TAG) ? "" : null;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return "Binary XML at offset " + (mIn != null ? mIn.position() : -1);
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // No features are supported, ignore the request.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    private void readAttributes() throws XmlPullParserException {
+        while (mIn.hasRemaining() && mIn.get(mIn.position()) == TOKEN_ATTRIBUTE) {
+            mIn.get();
+            if (mAttributeCount == mAttributeNames.length) {
+                final int size = mAttributeCount * 2;
+                mAttributeNames = Arrays.copyOf(mAttributeNames, size);
+                mAttributeValues = Arrays.copyOf(mAttributeValues, size);
+            }
+            mAttributeNames[mAttributeCount] = readPooledString();
+            mAttributeValues[mAttributeCount] = readString();
+            mAttributeCount++;
+        }
+    }
+
+    private String readPooledString() throws XmlPullParserException {
+        final int index = mIn.getShort() & 0xffff;
+        if (index != POOL_NEW) {
+            if (index >= mPool.size()) {
+                throw new XmlPullParserException("Invalid string pool index " + index, this,
+                        null);
+            }
+            return mPool.get(index);
+        }
+        final String s = readString();
+        if (mPool.size() < MAX_POOL_SIZE) {
+            mPool.add(s);
+        }
+        return s;
+    }
+
+    private String readString() throws XmlPullParserException {
+        final int length = mIn.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > mIn.remaining()) {
+            throw new XmlPullParserException("Invalid string length " + length, this, null);
+        }
+        if (mIn.hasArray()) {
+            final int offset = mIn.arrayOffset() + mIn.position();
+            mIn.position(mIn.position() + length);
+            return new String(mIn.array(), offset, length, StandardCharsets.UTF_8);
+        }
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        mIn.get(mScratch, 0, length);
+        return new String(mScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mEventType != START_TAG || index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+}
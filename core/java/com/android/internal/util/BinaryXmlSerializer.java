@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.util.ArrayMap;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An {@link XmlSerializer} that writes a compact binary encoding of the
+ * document instead of text.  Tag and attribute names are written once into a
+ * string pool and referenced by index afterwards, and all other strings are
+ * length-prefixed, so the result can be read back by
+ * {@link BinaryXmlPullParser} without any tokenizing or entity decoding.
+ *
+ * <p>Like {@link FastXmlSerializer}, this only does what is needed for the
+ * files written with it: namespaces, comments, processing instructions and
+ * other exotic constructs are not supported.
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /**
+     * Header written at the start of every binary document, used to tell it
+     * apart from a text document.
+     */
+    static final byte[] PROTOCOL_MAGIC = new byte[] { 'A', 'B', 'X', 0 };
+    static final int PROTOCOL_VERSION = 1;
+
+    static final int TOKEN_START_DOCUMENT = 0;
+    static final int TOKEN_END_DOCUMENT = 1;
+    static final int TOKEN_START_TAG = 2;
+    static final int TOKEN_END_TAG = 3;
+    static final int TOKEN_TEXT = 4;
+    static final int TOKEN_ATTRIBUTE = 5;
+
+    /** Pool index marking that a new pooled string follows inline. */
+    static final int POOL_NEW = 0xFFFF;
+    static final int MAX_POOL_SIZE = POOL_NEW;
+
+    private DataOutputStream mOut;
+
+    private final ArrayMap<String, Integer> mPool = new ArrayMap<>();
+
+    private int mTagCount = 0;
+    private String[] mTagNames = new String[8];
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, 32 * 1024));
+        mOut.write(PROTOCOL_MAGIC);
+        mOut.writeByte(PROTOCOL_VERSION);
+        mPool.clear();
+        mTagCount = 0;
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.writeByte(TOKEN_START_DOCUMENT);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        mOut.writeByte(TOKEN_END_DOCUMENT);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+        if (mTagCount == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, mTagCount * 2);
+        }
+        mTagNames[mTagCount++] = name;
+        mOut.writeByte(TOKEN_START_TAG);
+        writePooledString(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+        mOut.writeByte(TOKEN_ATTRIBUTE);
+        writePooledString(name);
+        writeString(value);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        if (mTagCount == 0 || !mTagNames[mTagCount - 1].equals(name)) {
+            throw new IllegalArgumentException("Mismatched end tag " + name);
+        }
+        mTagNames[--mTagCount] = null;
+        mOut.writeByte(TOKEN_END_TAG);
+        writePooledString(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(TOKEN_TEXT);
+        writeString(text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) {
+        // Whitespace carries no information in this format.
+    }
+
+    @Override
+    public void entityRef(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void processingInstruction(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void comment(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void docdecl(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mOut != null) {
+            mOut.flush();
+        }
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagCount;
+    }
+
+    @Override
+    public String getName() {
+        return mTagCount > 0 ? mTagNames[mTagCount - 1] : null;
+    }
+
+    @Override
+    public String getNamespace() {
+        return mTagCount > 0 ? "" : null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Features such as indentation have no meaning for a binary document.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    private void writePooledString(String s) throws IOException {
+        final Integer index = mPool.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        // Once the pool is full new strings are simply written inline.
+        mOut.writeShort(POOL_NEW);
+        writeString(s);
+        if (mPool.size() < MAX_POOL_SIZE) {
+            mPool.put(s, mPool.size());
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            mOut.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+}
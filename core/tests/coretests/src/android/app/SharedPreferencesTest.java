@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.XmlUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for the disk writes of {@link SharedPreferencesImpl}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksCoreTests:android.app.SharedPreferencesTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPreferencesTest {
+    private static final String PREFS_NAME = "SharedPreferencesTest";
+    private static final String SENTINEL_NAME = "SharedPreferencesTest.sentinel";
+    private static final long TIMEOUT_MS = 5000;
+
+    private Context mContext;
+    private File mPrefsFile;
+    private SharedPreferences mPrefs;
+    private CountDownLatch mReleaseQueuedWork;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+        mContext.deleteSharedPreferences(PREFS_NAME);
+        mPrefsFile = mContext.getSharedPreferencesPath(PREFS_NAME);
+        // The directory has to exist before it can be watched.
+        mPrefsFile.getParentFile().mkdirs();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @After
+    public void tearDown() {
+        if (mReleaseQueuedWork != null) {
+            mReleaseQueuedWork.countDown();
+        }
+        QueuedWork.waitToFinish();
+        mContext.deleteSharedPreferences(PREFS_NAME);
+        new File(mPrefsFile.getParentFile(), SENTINEL_NAME).delete();
+    }
+
+    @Test
+    public void testApply_queuedAppliesShareOneWrite() throws Exception {
+        final WriteCounter counter = new WriteCounter();
+        counter.startWatching();
+        try {
+            blockQueuedWork();
+            for (int i = 0; i < 10; i++) {
+                mPrefs.edit().putInt("key", i).apply();
+            }
+            mReleaseQueuedWork.countDown();
+            QueuedWork.waitToFinish();
+
+            assertEquals(1, counter.awaitWriteCount());
+        } finally {
+            counter.stopWatching();
+        }
+        assertEquals(9, readPrefsFile().get("key"));
+    }
+
+    @Test
+    public void testCommit_betweenApplies_landsInOrder() throws Exception {
+        // The commit waits for the apply queued before it.
+        mPrefs.edit().putInt("a", 1).putInt("b", 1).apply();
+        assertTrue(mPrefs.edit().putInt("a", 2).commit());
+        assertEquals(map("a", 2, "b", 1), readPrefsFile());
+
+        mPrefs.edit().putInt("a", 3).apply();
+        QueuedWork.waitToFinish();
+        assertEquals(map("a", 3, "b", 1), readPrefsFile());
+
+        // An apply that joins a write queued before the commit must not be overwritten by the
+        // older state of the commit.
+        blockQueuedWork();
+        mPrefs.edit().putInt("a", 4).apply();
+        final AtomicBoolean committed = new AtomicBoolean();
+        final Thread commitThread = new Thread(
+                () -> committed.set(mPrefs.edit().putInt("a", 5).putInt("c", 1).commit()));
+        commitThread.start();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mPrefs.getInt("a", 0) != 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, mPrefs.getInt("a", 0));
+        mPrefs.edit().putInt("a", 6).apply();
+        mReleaseQueuedWork.countDown();
+
+        commitThread.join(TIMEOUT_MS);
+        assertTrue(committed.get());
+        QueuedWork.waitToFinish();
+        assertEquals(map("a", 6, "b", 1, "c", 1), readPrefsFile());
+    }
+
+    /**
+     * Holds up the {@link QueuedWork} thread so that writes queued from now on wait until
+     * {@link #mReleaseQueuedWork} is counted down.
+     */
+    private void blockQueuedWork() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mReleaseQueuedWork = release;
+        QueuedWork.queue(() -> {
+            started.countDown();
+            try {
+                release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }, false);
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private Map<String, ?> readPrefsFile() throws Exception {
+        try (FileInputStream in = new FileInputStream(mPrefsFile)) {
+            return XmlUtils.readMapXml(in);
+        }
+    }
+
+    private static Map<String, Object> map(Object... keysAndValues) {
+        final Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    /** Counts the times the preferences file is written and closed. */
+    private class WriteCounter extends FileObserver {
+        private final CountDownLatch mSentinelWritten = new CountDownLatch(1);
+        private int mWriteCount;
+
+        WriteCounter() {
+            super(mPrefsFile.getParentFile(), FileObserver.CLOSE_WRITE);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (mPrefsFile.getName().equals(path)) {
+                synchronized (this) {
+                    mWriteCount++;
+                }
+            } else if (SENTINEL_NAME.equals(path)) {
+                mSentinelWritten.countDown();
+            }
+        }
+
+        /**
+         * Returns the number of writes so far. Events are delivered in order, so all earlier
+         * writes have been counted once the event of a sentinel file written now arrives.
+         */
+        int awaitWriteCount() throws Exception {
+            new FileOutputStream(new File(mPrefsFile.getParentFile(), SENTINEL_NAME)).close();
+            assertTrue(mSentinelWritten.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            synchronized (this) {
+                return mWriteCount;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SharedMemory;
+import android.platform.test.annotations.Presubmit;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link SettingsTableSnapshot}.
+ */
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsTableSnapshotTest {
+
+    @Test
+    public void testReadWrite() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("a", "1");
+        values.put("b", "1");
+        values.put("null_value", null);
+        values.put("empty_value", "");
+        values.put("unicode", "日本語 𐀀");
+        // Different names with the same hash code.
+        values.put("Aa", "first");
+        values.put("BB", "second");
+
+        final SettingsTableSnapshot snapshot = writeAndOpen(values, 42);
+        try {
+            assertThat(snapshot.getGeneration()).isEqualTo(42);
+            assertThat(snapshot.size()).isEqualTo(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                assertThat(snapshot.getString(values.keyAt(i))).isEqualTo(values.valueAt(i));
+            }
+            assertThat(snapshot.getString("missing")).isNull();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        final SettingsTableSnapshot snapshot = writeAndOpen(new ArrayMap<>(), 1);
+        try {
+            assertThat(snapshot.size()).isEqualTo(0);
+            assertThat(snapshot.getString("a")).isNull();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testLargeTable() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        for (int i = 0; i < 2000; i++) {
+            values.put("setting_" + i, Integer.toString(i % 7));
+        }
+
+        final SettingsTableSnapshot snapshot = writeAndOpen(values, 7);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                assertThat(snapshot.getString("setting_" + i)).isEqualTo(
+                        Integer.toString(i % 7));
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("a", new String(new char[SettingsTableSnapshot.MAX_SIZE_BYTES]));
+        assertThat(SettingsTableSnapshot.write(values, 1)).isNull();
+    }
+
+    private static SettingsTableSnapshot writeAndOpen(ArrayMap<String, String> values,
+            int generation) throws ErrnoException {
+        final SharedMemory memory = SettingsTableSnapshot.write(values, generation);
+        assertThat(memory).isNotNull();
+        final SettingsTableSnapshot snapshot = SettingsTableSnapshot.open(memory);
+        assertThat(snapshot).isNotNull();
+        return snapshot;
+    }
+}
@@ -78,9 +78,11 @@ public class BinderCallsStatsTest {
         callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
         bcs.time += 20;
         bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        uidEntry = bcs.getUidEntries().get(WORKSOURCE_UID);
         assertEquals(2, uidEntry.callCount);
         assertEquals(1, uidEntry.recordedCallCount);
         assertEquals(10, uidEntry.cpuTimeMicros);
+        callStatsList = new ArrayList(uidEntry.getCallStatsList());
         assertEquals(1, callStatsList.size());
 
         callSession = bcs.callStarted(binder, 2, WORKSOURCE_UID);
@@ -753,6 +755,46 @@ public class BinderCallsStatsTest {
         assertEquals(1, callStats.recordedCallCount);
     }
 
+    @Test
+    public void testShardsMerged() throws Exception {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setShardCount(4);
+        Binder binder = new Binder();
+
+        final int threadCount = 8;
+        final int callCount = 100;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < callCount; j++) {
+                    CallSession callSession = bcs.callStarted(binder, j % 2, WORKSOURCE_UID);
+                    bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        SparseArray<BinderCallsStats.UidEntry> uidEntries = bcs.getUidEntries();
+        assertEquals(1, uidEntries.size());
+        BinderCallsStats.UidEntry uidEntry = uidEntries.get(WORKSOURCE_UID);
+        assertEquals(threadCount * callCount, uidEntry.callCount);
+        assertEquals(threadCount * callCount, uidEntry.recordedCallCount);
+
+        List<BinderCallsStats.CallStat> callStatsList = new ArrayList(uidEntry.getCallStatsList());
+        assertEquals(2, callStatsList.size());
+        for (BinderCallsStats.CallStat callStat : callStatsList) {
+            assertEquals(threadCount * callCount / 2, callStat.callCount);
+            assertEquals(REQUEST_SIZE, callStat.maxRequestSizeBytes);
+        }
+
+        bcs.reset();
+        assertEquals(0, bcs.getUidEntries().size());
+    }
+
     class TestBinderCallsStats extends BinderCallsStats {
         public int callingUid = CALLING_UID;
         public long time = 1234;
@@ -507,6 +507,49 @@ public final class LooperStatsTest {
         assertThat(entry.recordedMessageCount).isEqualTo(2);
     }
 
+    @Test
+    public void testLatencyHistogram() {
+        TestableLooperStats looperStats = new TestableLooperStats(1, 100);
+
+        Message message = mHandlerFirst.obtainMessage(1000);
+        message.workSourceUid = 1000;
+        // 90 fast messages and 10 slow ones.
+        for (int i = 0; i < 100; i++) {
+            Object token = looperStats.messageDispatchStarting();
+            looperStats.tickRealtime(i < 90 ? 100 : 5000);
+            looperStats.messageDispatched(token, message);
+        }
+
+        List<LooperStats.ExportedEntry> entries = looperStats.getEntries();
+        assertThat(entries).hasSize(1);
+        LooperStats.ExportedEntry entry = entries.get(0);
+        assertThat(entry.latencyHistogram).hasLength(LooperStats.LATENCY_HISTOGRAM_BUCKET_COUNT);
+        // 100us falls in [64, 128), 5000us in [4096, 8192).
+        assertThat(entry.latencyHistogram[7]).isEqualTo(90);
+        assertThat(entry.latencyHistogram[13]).isEqualTo(10);
+        assertThat(entry.p50LatencyMicros).isEqualTo(127);
+        assertThat(entry.p95LatencyMicros).isEqualTo(5000);
+        assertThat(entry.p99LatencyMicros).isEqualTo(5000);
+
+        looperStats.reset();
+        assertThat(looperStats.getEntries()).isEmpty();
+    }
+
+    @Test
+    public void testGetLatencyPercentile() {
+        long[] histogram = new long[LooperStats.LATENCY_HISTOGRAM_BUCKET_COUNT];
+        assertThat(LooperStats.getLatencyPercentile(histogram, 0, 50)).isEqualTo(0);
+
+        histogram[0] = 1;
+        histogram[3] = 98;
+        histogram[LooperStats.LATENCY_HISTOGRAM_BUCKET_COUNT - 1] = 1;
+        assertThat(LooperStats.getLatencyPercentile(histogram, 20_000_000, 1)).isEqualTo(0);
+        assertThat(LooperStats.getLatencyPercentile(histogram, 20_000_000, 50)).isEqualTo(7);
+        assertThat(LooperStats.getLatencyPercentile(histogram, 20_000_000, 99)).isEqualTo(7);
+        assertThat(LooperStats.getLatencyPercentile(histogram, 20_000_000, 100))
+                .isEqualTo(20_000_000);
+    }
+
     private static void assertThrows(Class<? extends Exception> exceptionClass, Runnable r) {
         try {
             r.run();
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Run with:
+ atest FrameworksCoreTests:com.android.internal.util.BinaryXmlTest
+ */
+public class BinaryXmlTest extends TestCase {
+    private static void writeDocument(XmlSerializer out) throws Exception {
+        out.startDocument(null, true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            out.startTag(null, "package");
+            out.attribute(null, "name", "com.example.app" + i);
+            out.attribute(null, "userId", Integer.toString(10000 + i));
+            out.startTag(null, "perms");
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.startTag(null, "note");
+        out.text("café & <friends>");
+        out.endTag(null, "note");
+        out.endTag(null, "packages");
+        out.endDocument();
+    }
+
+    private static void verifyDocument(XmlPullParser in) throws Exception {
+        assertEquals(START_TAG, in.nextTag());
+        assertEquals("packages", in.getName());
+        assertEquals(1, in.getDepth());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(START_TAG, in.nextTag());
+            assertEquals("package", in.getName());
+            assertEquals(2, in.getDepth());
+            assertEquals(2, in.getAttributeCount());
+            assertEquals("com.example.app" + i, in.getAttributeValue(null, "name"));
+            assertEquals(10000 + i, XmlUtils.readIntAttribute(in, "userId"));
+            assertNull(in.getAttributeValue(null, "missing"));
+            assertEquals(START_TAG, in.nextTag());
+            assertEquals("perms", in.getName());
+            assertEquals(3, in.getDepth());
+            assertEquals(END_TAG, in.nextTag());
+            assertEquals(3, in.getDepth());
+            assertEquals(END_TAG, in.nextTag());
+            assertEquals("package", in.getName());
+            assertEquals(2, in.getDepth());
+        }
+        assertEquals(START_TAG, in.nextTag());
+        assertEquals("café & <friends>", in.nextText());
+        assertEquals(END_TAG, in.nextTag());
+        assertEquals("packages", in.getName());
+        assertEquals(END_DOCUMENT, in.next());
+    }
+
+    public void testRoundTrip() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeDocument(out);
+
+        final XmlPullParser in = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertTrue(in instanceof BinaryXmlPullParser);
+        verifyDocument(in);
+    }
+
+    public void testTextFallback() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeDocument(out);
+
+        final XmlPullParser in = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertFalse(in instanceof BinaryXmlPullParser);
+        verifyDocument(in);
+    }
+
+    public void testStringPool() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "root");
+        out.endTag(null, "root");
+        out.endDocument();
+        final int small = os.size();
+
+        os.reset();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "root");
+        out.startTag(null, "root");
+        out.endTag(null, "root");
+        out.endTag(null, "root");
+        out.endDocument();
+
+        // Repeated tag names cost only a token and a pool index.
+        assertEquals(small + 2 * (1 + 2), os.size());
+    }
+
+    public void testTruncated() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeDocument(out);
+        final byte[] bytes = os.toByteArray();
+
+        final XmlPullParser in = new BinaryXmlPullParser();
+        in.setInput(new ByteArrayInputStream(bytes, 0, bytes.length / 2), null);
+        try {
+            int type;
+            while ((type = in.next()) != END_DOCUMENT) {
+                assertTrue(type == START_TAG || type == END_TAG || type == TEXT);
+            }
+            fail("Expected truncated document to fail");
+        } catch (XmlPullParserException expected) {
+        }
+    }
+}
@@ -34,6 +34,10 @@ public class PropertyInvalidatedCacheTest extends TestCase {
             super(4, key);
         }
 
+        TestCache(String key, int maxEntries, int shardCount) {
+            super(maxEntries, key, shardCount);
+        }
+
         @Override
         protected String recompute(Integer qv) {
             mRecomputeCount += 1;
@@ -165,4 +169,43 @@ public class PropertyInvalidatedCacheTest extends TestCase {
         assertEquals(3, cache.getRecomputeCount());
     }
 
+    @SmallTest
+    public void testShardedCache() throws Exception {
+        TestCache cache = new TestCache(KEY, 64, 4);
+        cache.invalidateCache();
+        for (int i = 0; i < 64; i++) {
+            assertEquals("foo" + i, cache.query(i));
+        }
+        assertEquals(64, cache.getRecomputeCount());
+        for (int i = 0; i < 64; i++) {
+            assertEquals("foo" + i, cache.query(i));
+        }
+        assertEquals(64, cache.getRecomputeCount());
+        assertEquals(64, cache.getHitCount());
+        assertEquals(64, cache.getMissCount());
+
+        cache.invalidateCache();
+        assertEquals("foo5", cache.query(5));
+        assertEquals(65, cache.getRecomputeCount());
+        assertEquals(1, cache.getClearCount());
+    }
+
+    @SmallTest
+    public void testShardedCacheConcurrentQueries() throws Exception {
+        TestCache cache = new TestCache(KEY, 64, 4);
+        cache.invalidateCache();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    cache.query(i % 32);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, cache.getHitCount() + cache.getMissCount());
+    }
 }
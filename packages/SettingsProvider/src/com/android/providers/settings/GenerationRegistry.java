@@ -17,21 +17,29 @@
 package com.android.providers.settings;
 
 import android.os.Bundle;
+import android.os.SharedMemory;
 import android.os.UserManager;
 import android.provider.Settings;
+import android.provider.SettingsTableSnapshot;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
 import android.util.MemoryIntArray;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * This class tracks changes for config/global/secure/system tables
  * on a per user basis and updates a shared memory region which
  * client processes can read to determine if their local caches are
- * stale.
+ * stale. It also publishes read-only snapshots of whole tables, which
+ * client processes can read settings from for as long as the generation
+ * they were taken at is current.
  */
 final class GenerationRegistry {
     private static final String LOG_TAG = "GenerationRegistry";
@@ -46,6 +54,11 @@ final class GenerationRegistry {
     @GuardedBy("mLock")
     private MemoryIntArray mBackingStore;
 
+    // Snapshots handed out to clients, by settings key. They are built lazily on request and
+    // dropped as soon as the generation of their table changes.
+    @GuardedBy("mLock")
+    private final SparseArray<Snapshot> mSnapshots = new SparseArray<>();
+
     public GenerationRegistry(Object lock) {
         mLock = lock;
     }
@@ -60,6 +73,7 @@ final class GenerationRegistry {
                         final int generation = backingStore.get(index) + 1;
                         backingStore.set(index, generation);
                     }
+                    destroySnapshotLocked(key);
                 } catch (IOException e) {
                     Slog.e(LOG_TAG, "Error updating generation id", e);
                     destroyBackingStore();
@@ -93,6 +107,36 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Adds a snapshot of the given table, taken at its current generation, to the bundle.
+     * The snapshot is built at most once per generation and shared by all callers, but each
+     * bundle gets its own descriptor of it: a write may destroy the shared snapshot before
+     * Binder parcels the reply. The bundle's descriptor is closed once it is collected.
+     */
+    public void addSnapshotData(Bundle bundle, int key, SettingsState settingsState) {
+        synchronized (mLock) {
+            MemoryIntArray backingStore = getBackingStoreLocked();
+            try {
+                if (backingStore != null) {
+                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                    if (index >= 0) {
+                        final SharedMemory memory = getSnapshotLocked(key,
+                                backingStore.get(index), settingsState);
+                        final SharedMemory replyMemory = memory != null
+                                ? dupSnapshot(memory) : null;
+                        if (replyMemory != null) {
+                            bundle.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY,
+                                    replyMemory);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Slog.e(LOG_TAG, "Error adding snapshot data", e);
+                destroyBackingStore();
+            }
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
@@ -101,10 +145,12 @@ final class GenerationRegistry {
                     final int secureKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SECURE, userId);
                     resetSlotForKeyLocked(secureKey, mKeyToIndexMap, backingStore);
+                    destroySnapshotLocked(secureKey);
 
                     final int systemKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SYSTEM, userId);
                     resetSlotForKeyLocked(systemKey, mKeyToIndexMap, backingStore);
+                    destroySnapshotLocked(systemKey);
                 } catch (IOException e) {
                     Slog.e(LOG_TAG, "Error cleaning up for user", e);
                     destroyBackingStore();
@@ -134,7 +180,63 @@ final class GenerationRegistry {
         return mBackingStore;
     }
 
+    @GuardedBy("mLock")
+    private SharedMemory getSnapshotLocked(int key, int generation,
+            SettingsState settingsState) {
+        Snapshot snapshot = mSnapshots.get(key);
+        if (snapshot != null && snapshot.generation == generation) {
+            return snapshot.memory;
+        }
+        destroySnapshotLocked(key);
+
+        final List<String> names = settingsState.getSettingNamesLocked();
+        final int nameCount = names.size();
+        final ArrayMap<String, String> values = new ArrayMap<>(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            final String name = names.get(i);
+            values.put(name, settingsState.getSettingLocked(name).getValue());
+        }
+        SharedMemory memory = null;
+        try {
+            memory = SettingsTableSnapshot.write(values, generation);
+        } catch (ErrnoException e) {
+            Slog.e(LOG_TAG, "Error creating snapshot", e);
+        }
+        // Remember tables that cannot be published too, so they are not retried on every call.
+        mSnapshots.put(key, new Snapshot(generation, memory));
+        if (DEBUG) {
+            Slog.i(LOG_TAG, "Created snapshot of " + nameCount + " settings for key:"
+                    + SettingsProvider.keyToString(key) + " at generation:" + generation);
+        }
+        return memory;
+    }
+
+    private static SharedMemory dupSnapshot(SharedMemory memory) {
+        try {
+            return SharedMemory.fromFileDescriptor(memory.getFdDup());
+        } catch (IOException e) {
+            Slog.e(LOG_TAG, "Error duplicating snapshot", e);
+            return null;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void destroySnapshotLocked(int key) {
+        final Snapshot snapshot = mSnapshots.get(key);
+        if (snapshot != null) {
+            mSnapshots.remove(key);
+            if (snapshot.memory != null) {
+                // Replies and clients hold their own descriptors, so this only releases ours.
+                snapshot.memory.close();
+            }
+        }
+    }
+
     private void destroyBackingStore() {
+        // Generations start over with a new backing store, so the snapshots would be ambiguous.
+        for (int i = mSnapshots.size() - 1; i >= 0; i--) {
+            destroySnapshotLocked(mSnapshots.keyAt(i));
+        }
         if (mBackingStore != null) {
             try {
                 mBackingStore.close();
@@ -189,4 +291,14 @@ final class GenerationRegistry {
         }
         return -1;
     }
-}
\ No newline at end of file
+
+    private static final class Snapshot {
+        final int generation;
+        final SharedMemory memory;
+
+        Snapshot(int generation, SharedMemory memory) {
+            this.generation = generation;
+            this.memory = memory;
+        }
+    }
+}
@@ -365,8 +365,14 @@ public class SettingsProvider extends ContentProvider {
             }
 
             case Settings.CALL_METHOD_GET_GLOBAL: {
-                Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                // Only the global table is the same for every caller, the others resolve
+                // names per caller (e.g. SSAID, cloned profile settings) and cannot be shared.
+                // Instant apps are meant to only read the settings exposed to them.
+                final boolean isInstantApp = enforceSettingReadable(name, SETTINGS_TYPE_GLOBAL,
+                        UserHandle.getCallingUserId());
+                Setting setting = getGlobalSettingUnchecked(name);
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isTrackingSnapshot(args) && !isInstantApp);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
@@ -1211,6 +1217,10 @@ public class SettingsProvider extends ContentProvider {
         // Ensure the caller can access the setting.
         enforceSettingReadable(name, SETTINGS_TYPE_GLOBAL, UserHandle.getCallingUserId());
 
+        return getGlobalSettingUnchecked(name);
+    }
+
+    private Setting getGlobalSettingUnchecked(String name) {
         // Get the value.
         synchronized (mLock) {
             return mSettingsRegistry.getSettingLocked(SETTINGS_TYPE_GLOBAL,
@@ -1998,13 +2008,18 @@ public class SettingsProvider extends ContentProvider {
         return mSettingsRegistry.getSettingsNamesLocked(settingsType, userId);
     }
 
-    private void enforceSettingReadable(String settingName, int settingsType, int userId) {
+    /**
+     * Checks that the caller can read the setting.
+     *
+     * @return whether the caller is an instant app.
+     */
+    private boolean enforceSettingReadable(String settingName, int settingsType, int userId) {
         if (UserHandle.getAppId(Binder.getCallingUid()) < Process.FIRST_APPLICATION_UID) {
-            return;
+            return false;
         }
         ApplicationInfo ai = getCallingApplicationInfoOrThrow();
         if (!ai.isInstantApp()) {
-            return;
+            return false;
         }
         if (!getInstantAppAccessibleSettings(settingsType).contains(settingName)
                 && !getOverlayInstantAppAccessibleSettings(settingsType).contains(settingName)) {
@@ -2013,6 +2028,7 @@ public class SettingsProvider extends ContentProvider {
             Slog.w(LOG_TAG, "Instant App " + ai.packageName
                     + " trying to access unexposed setting, this will be an error in the future.");
         }
+        return true;
     }
 
     private ApplicationInfo getCallingApplicationInfoOrThrow() {
@@ -2170,7 +2186,12 @@ public class SettingsProvider extends ContentProvider {
     }
 
     private Bundle packageValueForCallResult(Setting setting, boolean trackingGeneration) {
-        if (!trackingGeneration) {
+        return packageValueForCallResult(setting, trackingGeneration, false);
+    }
+
+    private Bundle packageValueForCallResult(Setting setting, boolean trackingGeneration,
+            boolean trackingSnapshot) {
+        if (!trackingGeneration && !trackingSnapshot) {
             if (setting == null || setting.isNull()) {
                 return NULL_SETTING_BUNDLE;
             }
@@ -2180,7 +2201,19 @@ public class SettingsProvider extends ContentProvider {
         result.putString(Settings.NameValueTable.VALUE,
                 !setting.isNull() ? setting.getValue() : null);
 
-        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        if (trackingGeneration) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        }
+        if (trackingSnapshot) {
+            synchronized (mLock) {
+                final SettingsState settingsState = mSettingsRegistry.getSettingsLocked(
+                        getTypeFromKey(setting.getKey()), getUserIdFromKey(setting.getKey()));
+                if (settingsState != null) {
+                    mSettingsRegistry.mGenerationRegistry.addSnapshotData(result,
+                            setting.getKey(), settingsState);
+                }
+            }
+        }
         return result;
     }
 
@@ -2262,6 +2295,10 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isTrackingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -38,6 +38,7 @@ import android.provider.Settings.Global;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -47,6 +48,7 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FrameworkStatsLog;
 
@@ -56,12 +58,18 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -72,12 +80,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * This class contains the state for one type of settings. It is responsible
  * for saving the state asynchronously to an XML file after a mutation and
  * loading the from an XML file on construction.
  * <p>
+ * To avoid rewriting the whole XML file for every burst of mutations, the
+ * settings changed since the last write are appended to a binary journal next
+ * to the XML file instead. The journal is replayed on top of the XML file when
+ * loading, and is compacted into a fresh XML file once it grows large or when
+ * state that is not journaled, such as the version, changes.
+ * </p>
+ * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
  * etc, are atomically persisted since the asynchronous persistence is using
@@ -104,6 +120,20 @@ final class SettingsState {
 
     public static final String FALLBACK_FILE_SUFFIX = ".fallback";
 
+    public static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    // Number of journal records after which the next write compacts the journal.
+    private static final int MAX_JOURNAL_RECORDS = 256;
+
+    // Records larger than this can only come from a corrupted length prefix.
+    private static final int MAX_JOURNAL_RECORD_BYTES = 1024 * 1024;
+
+    // Size of the length and checksum header preceding each journal record.
+    private static final int JOURNAL_RECORD_HEADER_BYTES = 8;
+
+    private static final int JOURNAL_OP_PUT = 1;
+    private static final int JOURNAL_OP_DELETE = 2;
+
     private static final String TAG_SETTINGS = "settings";
     private static final String TAG_SETTING = "setting";
     private static final String ATTR_PACKAGE = "package";
@@ -112,6 +142,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_JOURNAL_SEQUENCE = "journalSequence";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -217,6 +248,28 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    // Names of the settings changed since the last write was captured.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDirtyNames = new ArraySet<>();
+
+    // Whether the next write has to rewrite the XML file instead of appending to the journal.
+    @GuardedBy("mLock")
+    private boolean mFullWriteNeeded = true;
+
+    // Sequence number of the last captured write; journal records carry the sequence number of
+    // the write that produced them, and the XML file the one of the write it was produced by.
+    @GuardedBy("mLock")
+    private long mJournalSequence;
+
+    @GuardedBy("mLock")
+    private int mJournalRecordCount;
+
+    @GuardedBy("mWriteLock")
+    private long mLastJournaledSequence;
+
+    @GuardedBy("mWriteLock")
+    private long mBytesWritten;
+
     public static final int SETTINGS_TYPE_GLOBAL = 0;
     public static final int SETTINGS_TYPE_SYSTEM = 1;
     public static final int SETTINGS_TYPE_SECURE = 2;
@@ -311,6 +364,7 @@ final class SettingsState {
         }
         mVersion = version;
 
+        mFullWriteNeeded = true;
         scheduleWriteIfNeededLocked();
     }
 
@@ -330,6 +384,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mDirtyNames.add(name);
                 removedSomething = true;
             }
         }
@@ -387,7 +442,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
-            scheduleWriteIfNeededLocked();
+            scheduleWriteIfNeededLocked(name);
         }
     }
 
@@ -442,7 +497,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -467,6 +522,7 @@ final class SettingsState {
         // to unban all unbanned namespaces.
         if (mNamespaceBannedHashes.get(prefix) != null) {
             mNamespaceBannedHashes.clear();
+            mFullWriteNeeded = true;
             scheduleWriteIfNeededLocked();
         }
     }
@@ -479,6 +535,7 @@ final class SettingsState {
         // The write is intentionally not scheduled here, banned hashes should and will be written
         // when the related setting changes are written
         mNamespaceBannedHashes.put(prefix, hashCode(keyValues));
+        mFullWriteNeeded = true;
     }
 
     @GuardedBy("mLock")
@@ -538,6 +595,7 @@ final class SettingsState {
         }
 
         if (!changedKeys.isEmpty()) {
+            mDirtyNames.addAll(changedKeys);
             scheduleWriteIfNeededLocked();
         }
 
@@ -568,7 +626,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -598,7 +656,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -742,6 +800,12 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    @GuardedBy("mLock")
+    private void scheduleWriteIfNeededLocked(String name) {
+        mDirtyNames.add(name);
+        scheduleWriteIfNeededLocked();
+    }
+
     @GuardedBy("mLock")
     private void scheduleWriteIfNeededLocked() {
         // If dirty then we have a write already scheduled.
@@ -786,104 +850,273 @@ final class SettingsState {
         final int version;
         final ArrayMap<String, Setting> settings;
         final ArrayMap<String, String> namespaceBannedHashes;
+        final ArrayMap<String, Setting> changedSettings;
+        final long sequence;
 
         synchronized (mLock) {
             version = mVersion;
-            settings = new ArrayMap<>(mSettings);
-            namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
+            sequence = ++mJournalSequence;
+            if (mFullWriteNeeded
+                    || mJournalRecordCount + mDirtyNames.size() > MAX_JOURNAL_RECORDS) {
+                settings = new ArrayMap<>(mSettings);
+                namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
+                changedSettings = null;
+                mFullWriteNeeded = false;
+                mJournalRecordCount = 0;
+            } else {
+                settings = null;
+                namespaceBannedHashes = null;
+                changedSettings = captureChangedSettingsLocked();
+                mJournalRecordCount += changedSettings.size();
+            }
+            mDirtyNames.clear();
             mDirty = false;
             mWriteScheduled = false;
         }
 
+        if (changedSettings != null && changedSettings.isEmpty()) {
+            // Nothing changed since the last write.
+            return;
+        }
+
         synchronized (mWriteLock) {
-            if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST START]");
+            if (changedSettings != null) {
+                wroteState = appendToJournal(changedSettings, sequence);
+            } else {
+                wroteState = writeStateFile(version, settings, namespaceBannedHashes, sequence);
             }
+        }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    if (setting.isTransient()) {
-                        if (DEBUG_PERSISTENCE) {
-                            Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
-                        }
-                        continue;
-                    }
+        synchronized (mLock) {
+            if (wroteState) {
+                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            } else {
+                // The captured changes may be lost, make sure the next write has all of them.
+                mFullWriteNeeded = true;
+            }
+        }
+    }
 
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem(),
-                            setting.isValuePreservedInRestore());
+    @GuardedBy("mLock")
+    private ArrayMap<String, Setting> captureChangedSettingsLocked() {
+        final int changedCount = mDirtyNames.size();
+        final ArrayMap<String, Setting> changedSettings = new ArrayMap<>(changedCount);
+        for (int i = 0; i < changedCount; i++) {
+            final String name = mDirtyNames.valueAt(i);
+            final Setting setting = mSettings.get(name);
+            // Settings left out of the XML file are journaled as deleted, so that the state
+            // read back is the same whether or not the journal was compacted.
+            changedSettings.put(name, setting != null && isPersisted(setting)
+                    ? new Setting(setting) : null);
+        }
+        return changedSettings;
+    }
 
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
-                    }
-                }
-                serializer.endTag(null, TAG_SETTINGS);
+    private static boolean isPersisted(Setting setting) {
+        final String id = setting.getId();
+        final String name = setting.getName();
+        final String packageName = setting.getPackageName();
+        return !setting.isTransient() && id != null && !isBinary(id) && name != null
+                && !isBinary(name) && packageName != null && !isBinary(packageName);
+    }
 
-                serializer.startTag(null, TAG_NAMESPACE_HASHES);
-                for (int i = 0; i < namespaceBannedHashes.size(); i++) {
-                    String namespace = namespaceBannedHashes.keyAt(i);
-                    String bannedHash = namespaceBannedHashes.get(namespace);
-                    writeSingleNamespaceHash(serializer, namespace, bannedHash);
+    @GuardedBy("mWriteLock")
+    private boolean writeStateFile(int version, ArrayMap<String, Setting> settings,
+            ArrayMap<String, String> namespaceBannedHashes, long sequence) {
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[PERSIST START]");
+        }
+
+        AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+
+            XmlSerializer serializer = Xml.newSerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                    true);
+            serializer.startDocument(null, true);
+            serializer.startTag(null, TAG_SETTINGS);
+            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+            serializer.attribute(null, ATTR_JOURNAL_SEQUENCE, String.valueOf(sequence));
+
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                Setting setting = settings.valueAt(i);
+
+                if (setting.isTransient()) {
                     if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED] namespace=" + namespace
-                                + ", bannedHash=" + bannedHash);
+                        Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
                     }
+                    continue;
                 }
-                serializer.endTag(null, TAG_NAMESPACE_HASHES);
-                serializer.endDocument();
-                destination.finishWrite(out);
 
-                wroteState = true;
+                writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
+                        setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                        setting.getTag(), setting.isDefaultFromSystem(),
+                        setting.isValuePreservedInRestore());
+
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                            + setting.getValue());
+                }
+            }
+            serializer.endTag(null, TAG_SETTINGS);
 
+            serializer.startTag(null, TAG_NAMESPACE_HASHES);
+            for (int i = 0; i < namespaceBannedHashes.size(); i++) {
+                String namespace = namespaceBannedHashes.keyAt(i);
+                String bannedHash = namespaceBannedHashes.get(namespace);
+                writeSingleNamespaceHash(serializer, namespace, bannedHash);
                 if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
+                    Slog.i(LOG_TAG, "[PERSISTED] namespace=" + namespace
+                            + ", bannedHash=" + bannedHash);
                 }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                if (t instanceof IOException) {
-                    // we failed to create a directory, so log the permissions and existence
-                    // state for the settings file and directory
-                    logSettingsDirectoryInformation(destination.getBaseFile());
-                    if (t.getMessage().contains("Couldn't create directory")) {
-                        // attempt to create the directory with Files.createDirectories, which
-                        // throws more informative errors than File.mkdirs.
-                        Path parentPath = destination.getBaseFile().getParentFile().toPath();
-                        try {
-                            Files.createDirectories(parentPath);
-                            Slog.i(LOG_TAG, "Successfully created " + parentPath);
-                        } catch (Throwable t2) {
-                            Slog.e(LOG_TAG, "Failed to write " + parentPath
-                                    + " with Files.writeDirectories", t2);
-                        }
+            }
+            serializer.endTag(null, TAG_NAMESPACE_HASHES);
+            serializer.endDocument();
+            destination.finishWrite(out);
+            mBytesWritten += destination.getBaseFile().length();
+
+            // Everything journaled up to now is part of the new file, unless a more recent
+            // write already got appended to the journal.
+            if (mLastJournaledSequence <= sequence) {
+                getJournalFile().delete();
+            }
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST END]");
+            }
+            return true;
+        } catch (Throwable t) {
+            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+            if (t instanceof IOException) {
+                // we failed to create a directory, so log the permissions and existence
+                // state for the settings file and directory
+                logSettingsDirectoryInformation(destination.getBaseFile());
+                if (t.getMessage().contains("Couldn't create directory")) {
+                    // attempt to create the directory with Files.createDirectories, which
+                    // throws more informative errors than File.mkdirs.
+                    Path parentPath = destination.getBaseFile().getParentFile().toPath();
+                    try {
+                        Files.createDirectories(parentPath);
+                        Slog.i(LOG_TAG, "Successfully created " + parentPath);
+                    } catch (Throwable t2) {
+                        Slog.e(LOG_TAG, "Failed to write " + parentPath
+                                + " with Files.writeDirectories", t2);
                     }
                 }
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
             }
+            destination.failWrite(out);
+        } finally {
+            IoUtils.closeQuietly(out);
         }
+        return false;
+    }
 
-        if (wroteState) {
-            synchronized (mLock) {
-                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+    @GuardedBy("mWriteLock")
+    private boolean appendToJournal(ArrayMap<String, Setting> changedSettings, long sequence) {
+        final File journalFile = getJournalFile();
+        final long previousLength = journalFile.length();
+        FileOutputStream out = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream records = new DataOutputStream(bytes);
+            final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            final DataOutputStream record = new DataOutputStream(recordBytes);
+            final CRC32 crc = new CRC32();
+            final int changedCount = changedSettings.size();
+            for (int i = 0; i < changedCount; i++) {
+                recordBytes.reset();
+                writeJournalRecord(record, sequence, changedSettings.keyAt(i),
+                        changedSettings.valueAt(i));
+                record.flush();
+                final byte[] payload = recordBytes.toByteArray();
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                records.writeInt(payload.length);
+                records.writeInt((int) crc.getValue());
+                records.write(payload);
+
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[JOURNALED]" + changedSettings.keyAt(i));
+                }
             }
+            records.flush();
+
+            out = new FileOutputStream(journalFile, true);
+            bytes.writeTo(out);
+            FileUtils.sync(out);
+            mBytesWritten += bytes.size();
+            mLastJournaledSequence = Math.max(mLastJournaledSequence, sequence);
+            return true;
+        } catch (IOException e) {
+            Slog.e(LOG_TAG, "Failed to append to settings journal " + journalFile, e);
+            // Drop whatever part of the records made it, later records must not follow a
+            // damaged one.
+            truncateJournal(journalFile, previousLength);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private static void writeJournalRecord(DataOutputStream out, long sequence, String name,
+            Setting setting) throws IOException {
+        out.writeLong(sequence);
+        out.writeByte(setting != null ? JOURNAL_OP_PUT : JOURNAL_OP_DELETE);
+        writeJournalString(out, name);
+        if (setting != null) {
+            writeJournalString(out, setting.getId());
+            writeJournalString(out, setting.getValue());
+            writeJournalString(out, setting.getDefaultValue());
+            writeJournalString(out, setting.getPackageName());
+            writeJournalString(out, setting.getTag());
+            out.writeBoolean(setting.isDefaultFromSystem());
+            out.writeBoolean(setting.isValuePreservedInRestore());
+        }
+    }
+
+    private static void writeJournalString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void truncateJournal(File journalFile, long length) {
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            Slog.e(LOG_TAG, "Failed to truncate settings journal " + journalFile, e);
+        }
+    }
+
+    private File getJournalFile() {
+        return new File(mStatePersistFile.getAbsolutePath() + JOURNAL_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the number of bytes written to the XML file and the journal by this instance.
+     */
+    @VisibleForTesting
+    long getBytesWritten() {
+        synchronized (mWriteLock) {
+            return mBytesWritten;
         }
     }
 
@@ -1010,9 +1243,13 @@ final class SettingsState {
             Slog.w(LOG_TAG, "No settings state " + mStatePersistFile);
             logSettingsDirectoryInformation(mStatePersistFile);
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
+            // A journal without the file it applies to is stale.
+            getJournalFile().delete();
             return;
         }
         if (parseStateFromXmlStreamLocked(in)) {
+            replayJournalLocked();
+            mFullWriteNeeded = false;
             return;
         }
 
@@ -1035,6 +1272,9 @@ final class SettingsState {
             } catch (IOException ignored) {
                 // Failed to copy, but it's okay because we already parsed states from fallback file
             }
+            // Apply whatever the journal has on top of the fallback file, the next write
+            // compacts the result into a new file.
+            replayJournalLocked();
         } else {
             final String message = "Failed parsing settings file: " + mStatePersistFile;
             Slog.wtf(LOG_TAG, message);
@@ -1090,6 +1330,8 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
+        final String journalSequence = parser.getAttributeValue(null, ATTR_JOURNAL_SEQUENCE);
+        mJournalSequence = journalSequence != null ? Long.parseLong(journalSequence) : 0;
 
         final int outerDepth = parser.getDepth();
         int type;
@@ -1128,6 +1370,104 @@ final class SettingsState {
         }
     }
 
+    /**
+     * Applies the journal records written after the state file that was just parsed, and cuts
+     * off a damaged tail left behind by an interrupted append.
+     */
+    @GuardedBy("mLock")
+    private void replayJournalLocked() {
+        final File journalFile = getJournalFile();
+        final long journalLength = journalFile.length();
+        if (journalLength == 0) {
+            return;
+        }
+
+        final long stateSequence = mJournalSequence;
+        // The sequence number of the last record applied for each setting, appends made by
+        // concurrent writes may end up in the journal out of order.
+        final ArrayMap<String, Long> appliedSequences = new ArrayMap<>();
+        final CRC32 crc = new CRC32();
+        long validLength = 0;
+        int recordCount = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (journalLength - validLength >= JOURNAL_RECORD_HEADER_BYTES) {
+                final int length = in.readInt();
+                final int checksum = in.readInt();
+                if (length <= 0 || length > MAX_JOURNAL_RECORD_BYTES || length
+                        > journalLength - validLength - JOURNAL_RECORD_HEADER_BYTES) {
+                    break;
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                applyJournalRecordLocked(payload, stateSequence, appliedSequences);
+                validLength += JOURNAL_RECORD_HEADER_BYTES + length;
+                recordCount++;
+            }
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed reading settings journal " + journalFile, e);
+        }
+
+        if (validLength < journalLength) {
+            Slog.w(LOG_TAG, "Dropping " + (journalLength - validLength)
+                    + " damaged bytes from settings journal " + journalFile);
+            truncateJournal(journalFile, validLength);
+        }
+        mJournalRecordCount = recordCount;
+        synchronized (mWriteLock) {
+            mLastJournaledSequence = mJournalSequence;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void applyJournalRecordLocked(byte[] payload, long stateSequence,
+            ArrayMap<String, Long> appliedSequences) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final long sequence = in.readLong();
+        final int op = in.readByte();
+        final String name = readJournalString(in);
+        mJournalSequence = Math.max(mJournalSequence, sequence);
+        if (sequence <= stateSequence) {
+            // Already part of the state file.
+            return;
+        }
+        final Long appliedSequence = appliedSequences.get(name);
+        if (appliedSequence != null && appliedSequence > sequence) {
+            return;
+        }
+        appliedSequences.put(name, sequence);
+
+        if (op == JOURNAL_OP_DELETE) {
+            mSettings.remove(name);
+        } else if (op == JOURNAL_OP_PUT) {
+            final String id = readJournalString(in);
+            final String value = readJournalString(in);
+            final String defaultValue = readJournalString(in);
+            final String packageName = readJournalString(in);
+            String tag = readJournalString(in);
+            boolean fromSystem = in.readBoolean();
+            final boolean isPreservedInRestore = in.readBoolean();
+            // Like the XML file, only keep the tag and origin of a default value.
+            if (defaultValue == null) {
+                tag = null;
+                fromSystem = false;
+            }
+            mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                    fromSystem, id, isPreservedInRestore));
+        } else {
+            throw new IOException("Unknown journal operation " + op);
+        }
+
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[REPLAYED] " + name);
+        }
+    }
+
     @GuardedBy("mLock")
     private void parseNamespaceHash(XmlPullParser parser)
             throws IOException, XmlPullParserException {
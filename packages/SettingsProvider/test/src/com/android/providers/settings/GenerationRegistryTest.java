@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.provider.SettingsTableSnapshot;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+public class GenerationRegistryTest extends AndroidTestCase {
+    private static final int KEY = SettingsProvider.makeKey(
+            SettingsProvider.SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
+
+    private final Object mLock = new Object();
+    private File mSettingsFile;
+    private SettingsState mSettingsState;
+    private GenerationRegistry mRegistry;
+
+    @Override
+    protected void setUp() {
+        mSettingsFile = new File(getContext().getCacheDir(), "generation_registry.xml");
+        mSettingsFile.delete();
+        mSettingsState = new SettingsState(getContext(), mLock, mSettingsFile, KEY,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        mSettingsState.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        mSettingsState.insertSettingLocked("k1", "v1", null, false, "package");
+        mRegistry = new GenerationRegistry(mLock);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSettingsFile.delete();
+    }
+
+    public void testAddSnapshotData_replyOutlivesDestroyedSnapshot() {
+        final Bundle reply = new Bundle();
+        mRegistry.addSnapshotData(reply, KEY, mSettingsState);
+
+        // A write destroys the shared snapshot before the reply has been parceled.
+        mSettingsState.insertSettingLocked("k1", "v2", null, false, "package");
+        mRegistry.incrementGeneration(KEY);
+
+        final Bundle received = parcelAndUnparcel(reply);
+        final SharedMemory memory = received.getParcelable(
+                Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+        assertNotNull(memory);
+        final SettingsTableSnapshot snapshot = SettingsTableSnapshot.open(memory);
+        assertNotNull(snapshot);
+        final int generation = snapshot.getGeneration();
+        try {
+            assertEquals("v1", snapshot.getString("k1"));
+        } finally {
+            snapshot.close();
+        }
+
+        // The next reply gets a snapshot of the new generation.
+        final Bundle next = new Bundle();
+        mRegistry.addSnapshotData(next, KEY, mSettingsState);
+        final SettingsTableSnapshot nextSnapshot = SettingsTableSnapshot.open(
+                parcelAndUnparcel(next).getParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY));
+        assertNotNull(nextSnapshot);
+        try {
+            assertEquals(generation + 1, nextSnapshot.getGeneration());
+            assertEquals("v2", nextSnapshot.getString("k1"));
+        } finally {
+            nextSnapshot.close();
+        }
+    }
+
+    public void testAddSnapshotData_repliesHaveTheirOwnDescriptors() {
+        final Bundle first = new Bundle();
+        final Bundle second = new Bundle();
+        mRegistry.addSnapshotData(first, KEY, mSettingsState);
+        mRegistry.addSnapshotData(second, KEY, mSettingsState);
+        final SharedMemory firstMemory = first.getParcelable(
+                Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+        final SharedMemory secondMemory = second.getParcelable(
+                Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+        assertNotSame(firstMemory, secondMemory);
+
+        // Closing one reply's descriptor leaves the other one usable.
+        firstMemory.close();
+        final SettingsTableSnapshot snapshot = SettingsTableSnapshot.open(
+                parcelAndUnparcel(second).getParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY));
+        assertNotNull(snapshot);
+        try {
+            assertEquals("v1", snapshot.getString("k1"));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static Bundle parcelAndUnparcel(Bundle bundle) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            bundle.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            final Bundle result = parcel.readBundle(SharedMemory.class.getClassLoader());
+            // Unparcel while the parcel still owns the descriptors.
+            result.getParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+            return result;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
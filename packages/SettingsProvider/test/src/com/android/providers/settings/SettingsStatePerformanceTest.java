@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Performance tests for the persistence of {@link SettingsState}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SettingsStatePerformanceTest {
+    private static final String LOG_TAG = "SettingsStatePerformanceTest";
+
+    private static final String TEST_PACKAGE = "package";
+
+    private static final int SETTING_COUNT = 1000;
+
+    private static final int ITERATION_COUNT = 100;
+
+    private static final int MICRO_SECONDS_IN_MILLISECOND = 1000;
+
+    private static final long MAX_AVERAGE_LOAD_DURATION_MILLIS = 100;
+
+    private final Object mLock = new Object();
+
+    private Context mContext;
+    private File mSettingsFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+        mSettingsFile = new File(mContext.getCacheDir(), "setting_perf.xml");
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    @Test
+    public void testWriteAmplification() {
+        final SettingsState settingsState = createPopulatedSettingsState();
+        final long stateFileLength = mSettingsFile.length();
+
+        final long startBytesWritten = settingsState.getBytesWritten();
+        synchronized (mLock) {
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                settingsState.insertSettingLocked("setting_" + (i % SETTING_COUNT),
+                        "changed_value_" + i, null, false, TEST_PACKAGE);
+                settingsState.persistSyncLocked();
+            }
+        }
+        final long averageBytesPerMutation = (settingsState.getBytesWritten()
+                - startBytesWritten) / ITERATION_COUNT;
+
+        Log.i(LOG_TAG, "Average bytes written per persisted mutation: "
+                + averageBytesPerMutation + " bytes, state file: " + stateFileLength + " bytes");
+
+        // Compaction rewrites the whole file now and then, but most writes must be appends.
+        assertTrue("Persisting a single mutation writes too much.",
+                averageBytesPerMutation < stateFileLength / 4);
+    }
+
+    @Test
+    public void testLoadPerformance() {
+        final SettingsState settingsState = createPopulatedSettingsState();
+        synchronized (mLock) {
+            // Leave a journal behind to be replayed.
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                settingsState.insertSettingLocked("setting_" + i, "changed_value_" + i, null,
+                        false, TEST_PACKAGE);
+                if (i % 10 == 0) {
+                    settingsState.persistSyncLocked();
+                }
+            }
+            settingsState.persistSyncLocked();
+        }
+
+        final long startTimeMicro = SystemClock.currentTimeMicro();
+        SettingsState loadedState = null;
+        for (int i = 0; i < ITERATION_COUNT; i++) {
+            loadedState = new SettingsState(mContext, mLock, mSettingsFile, 1,
+                    SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        }
+        final long elapsedTimeMicro = SystemClock.currentTimeMicro() - startTimeMicro;
+
+        final long averageTimePerIterationMillis = (long) ((((float) elapsedTimeMicro)
+                / ITERATION_COUNT) / MICRO_SECONDS_IN_MILLISECOND);
+
+        Log.i(LOG_TAG, "Average time to load " + SETTING_COUNT + " settings: "
+                + averageTimePerIterationMillis + " ms");
+
+        synchronized (mLock) {
+            assertEquals(SETTING_COUNT, loadedState.getSettingNamesLocked().size());
+            assertEquals("changed_value_" + (ITERATION_COUNT - 1),
+                    loadedState.getSettingLocked("setting_" + (ITERATION_COUNT - 1)).getValue());
+        }
+        assertTrue("Loading settings takes too long.", averageTimePerIterationMillis
+                < MAX_AVERAGE_LOAD_DURATION_MILLIS);
+    }
+
+    private SettingsState createPopulatedSettingsState() {
+        final SettingsState settingsState = new SettingsState(mContext, mLock, mSettingsFile, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (mLock) {
+            settingsState.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            for (int i = 0; i < SETTING_COUNT; i++) {
+                settingsState.insertSettingLocked("setting_" + i, "value_" + i, null, false,
+                        TEST_PACKAGE);
+            }
+            settingsState.persistSyncLocked();
+        }
+        return settingsState;
+    }
+
+    private void deleteFiles() {
+        mSettingsFile.delete();
+        new File(mSettingsFile.getPath() + SettingsState.JOURNAL_FILE_SUFFIX).delete();
+    }
+}
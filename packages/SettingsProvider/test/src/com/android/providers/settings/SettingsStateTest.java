@@ -58,6 +58,7 @@ public class SettingsStateTest extends AndroidTestCase {
     protected void setUp() {
         mSettingsFile = new File(getContext().getCacheDir(), "setting.xml");
         mSettingsFile.delete();
+        getJournalFile().delete();
     }
 
     public void testIsBinary() {
@@ -161,6 +162,89 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure changes written after the state file are read back from the journal.
+     */
+    public void testReadWriteJournal() {
+        final SettingsState ssWriter = getSettingStateObject();
+        synchronized (mLock) {
+            ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+            ssWriter.insertSettingLocked("k2", "v2", null, false, TEST_PACKAGE);
+            ssWriter.insertSettingLocked("k3", "v3", null, false, TEST_PACKAGE);
+            ssWriter.persistSyncLocked();
+            final long stateFileLength = mSettingsFile.length();
+
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, TEST_PACKAGE);
+            ssWriter.insertSettingLocked("k4", null, null, false, TEST_PACKAGE);
+            ssWriter.persistSyncLocked();
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", "d3", null, true, SYSTEM_PACKAGE);
+            ssWriter.persistSyncLocked();
+
+            assertEquals(stateFileLength, mSettingsFile.length());
+            assertTrue(getJournalFile().length() > 0);
+        }
+
+        final SettingsState ssReader = getSettingStateObject();
+        synchronized (mLock) {
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals("d3", ssReader.getSettingLocked("k3").getValue());
+            assertEquals("d3", ssReader.getSettingLocked("k3").getDefaultValue());
+            assertFalse(ssReader.getSettingLocked("k4").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k4").getValue());
+        }
+    }
+
+    /**
+     * Make sure a partially written journal record is dropped without losing earlier ones.
+     */
+    public void testJournalDamagedTail() throws Exception {
+        final SettingsState ssWriter = getSettingStateObject();
+        synchronized (mLock) {
+            ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+            ssWriter.persistSyncLocked();
+            ssWriter.insertSettingLocked("k1", "v2", null, false, TEST_PACKAGE);
+            ssWriter.persistSyncLocked();
+        }
+        final long journalLength = getJournalFile().length();
+        try (FileOutputStream out = new FileOutputStream(getJournalFile(), true)) {
+            out.write(new byte[] { 0, 0, 0, 42, 1, 2, 3, 4, 5, 6 });
+        }
+
+        final SettingsState ssReader = getSettingStateObject();
+        synchronized (mLock) {
+            assertEquals("v2", ssReader.getSettingLocked("k1").getValue());
+        }
+        assertEquals(journalLength, getJournalFile().length());
+    }
+
+    /**
+     * Make sure changes that are not journaled rewrite the state file and drop the journal.
+     */
+    public void testJournalCompaction() {
+        final SettingsState ssWriter = getSettingStateObject();
+        synchronized (mLock) {
+            ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+            ssWriter.persistSyncLocked();
+            ssWriter.insertSettingLocked("k1", "v2", null, false, TEST_PACKAGE);
+            ssWriter.persistSyncLocked();
+            assertTrue(getJournalFile().exists());
+
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1);
+            ssWriter.persistSyncLocked();
+            assertFalse(getJournalFile().exists());
+        }
+
+        final SettingsState ssReader = new SettingsState(getContext(), mLock, mSettingsFile, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (mLock) {
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1,
+                    ssReader.getVersionLocked());
+            assertEquals("v2", ssReader.getSettingLocked("k1").getValue());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
@@ -274,6 +358,10 @@ public class SettingsStateTest extends AndroidTestCase {
         assertTrue(settingsState.getSettingLocked(SETTING_NAME).isValuePreservedInRestore());
     }
 
+    private File getJournalFile() {
+        return new File(mSettingsFile.getPath() + SettingsState.JOURNAL_FILE_SUFFIX);
+    }
+
     private SettingsState getSettingStateObject() {
         SettingsState settingsState = new SettingsState(getContext(), mLock, mSettingsFile, 1,
                 SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
@@ -259,11 +259,13 @@ class AlarmManagerService extends SystemService {
     interface Stats {
         int REBATCH_ALL_ALARMS = 0;
         int REORDER_ALARMS_FOR_STANDBY = 1;
+        int REBATCH_FOR_REMOVAL = 2;
     }
 
     private final StatLogger mStatLogger = new StatLogger(new String[] {
             "REBATCH_ALL_ALARMS",
             "REORDER_ALARMS_FOR_STANDBY",
+            "REBATCH_FOR_REMOVAL",
     });
 
     /**
@@ -980,12 +982,30 @@ class AlarmManagerService extends SystemService {
         final int N = mAlarmBatches.size();
         for (int i = 0; i < N; i++) {
             Batch b = mAlarmBatches.get(i);
+            if (b.start > maxWhen) {
+                // Batches are sorted by start, so none of the remaining ones can hold it.
+                break;
+            }
             if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
                 return i;
             }
         }
         return -1;
     }
+
+    /**
+     * Re-batches the alarms of batches that were taken out of {@link #mAlarmBatches} because
+     * their alarms changed. Only these alarms can end up in a different batch, so this is
+     * much cheaper than {@link #rebatchAllAlarmsLocked} when a few alarms change.
+     */
+    private void rebatchAlarmsLocked(ArrayList<Batch> changedBatches) {
+        for (int i = 0; i < changedBatches.size(); i++) {
+            final Batch batch = changedBatches.get(i);
+            for (int j = 0; j < batch.size(); j++) {
+                insertAndBatchAlarmLocked(batch.get(j));
+            }
+        }
+    }
     /** @return total count of the alarms in a set of alarm batches. */
     static int getAlarmCount(ArrayList<Batch> batches) {
         int ret = 0;
@@ -1080,33 +1100,42 @@ class AlarmManagerService extends SystemService {
      */
     boolean reorderAlarmsBasedOnStandbyBuckets(ArraySet<Pair<String, Integer>> targetPackages) {
         final long start = mStatLogger.getTime();
-        final ArrayList<Alarm> rescheduledAlarms = new ArrayList<>();
+        final ArrayList<Batch> changedBatches = new ArrayList<>();
 
         for (int batchIndex = mAlarmBatches.size() - 1; batchIndex >= 0; batchIndex--) {
             final Batch batch = mAlarmBatches.get(batchIndex);
+            boolean changed = false;
             for (int alarmIndex = batch.size() - 1; alarmIndex >= 0; alarmIndex--) {
                 final Alarm alarm = batch.get(alarmIndex);
-                final Pair<String, Integer> packageUser =
-                        Pair.create(alarm.sourcePackage, UserHandle.getUserId(alarm.creatorUid));
-                if (targetPackages != null && !targetPackages.contains(packageUser)) {
+                if (targetPackages != null && !containsPackageUser(targetPackages,
+                        alarm.sourcePackage, UserHandle.getUserId(alarm.creatorUid))) {
                     continue;
                 }
-                if (adjustDeliveryTimeBasedOnBucketLocked(alarm)) {
-                    batch.remove(alarm);
-                    rescheduledAlarms.add(alarm);
-                }
+                changed |= adjustDeliveryTimeBasedOnBucketLocked(alarm);
             }
-            if (batch.size() == 0) {
+            if (changed) {
+                // The bounds of the batch no longer match its alarms; re-batch all of them so
+                // that the batches stay sorted.
                 mAlarmBatches.remove(batchIndex);
+                changedBatches.add(batch);
             }
         }
-        for (int i = 0; i < rescheduledAlarms.size(); i++) {
-            final Alarm a = rescheduledAlarms.get(i);
-            insertAndBatchAlarmLocked(a);
-        }
+        rebatchAlarmsLocked(changedBatches);
 
         mStatLogger.logDurationStat(Stats.REORDER_ALARMS_FOR_STANDBY, start);
-        return rescheduledAlarms.size() > 0;
+        return changedBatches.size() > 0;
+    }
+
+    private static boolean containsPackageUser(ArraySet<Pair<String, Integer>> packageUsers,
+            String packageName, int userId) {
+        // Avoids creating a pair for every alarm, there are usually far fewer targets.
+        for (int i = packageUsers.size() - 1; i >= 0; i--) {
+            final Pair<String, Integer> packageUser = packageUsers.valueAt(i);
+            if (packageUser.second == userId && packageUser.first.equals(packageName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void reAddAlarmLocked(Alarm a, long nowElapsed, boolean doValidate) {
@@ -3078,13 +3107,16 @@ class AlarmManagerService extends SystemService {
             return;
         }
 
+        final long start = mStatLogger.getTime();
         boolean didRemove = false;
+        final ArrayList<Batch> changedBatches = new ArrayList<>();
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(operation, directReceiver);
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms, false);
-            if (b.size() == 0) {
+            if (b.remove(whichAlarms, false)) {
+                didRemove = true;
                 mAlarmBatches.remove(i);
+                changedBatches.add(b);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -3121,19 +3153,31 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(operation) changed bounds; rebatching");
             }
+            // Removing alarms only widens the bounds of their batches, so only the alarms that
+            // shared a batch with them may now be batched differently.
+            rebatchAlarmsLocked(changedBatches);
             boolean restorePending = false;
+            boolean idleStateChanged = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
                 mPendingIdleUntil = null;
                 restorePending = true;
+                idleStateChanged = true;
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                idleStateChanged = true;
+            }
+            if (idleStateChanged) {
+                // The idle until time depends on the alarms that wake from idle.
+                rebatchAllAlarmsLocked(true);
+            } else {
+                rescheduleKernelAlarmsLocked();
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
             updateNextAlarmClockLocked();
+            mStatLogger.logDurationStat(Stats.REBATCH_FOR_REMOVAL, start);
         }
     }
 
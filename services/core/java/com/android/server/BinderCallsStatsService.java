@@ -127,6 +127,7 @@ public class BinderCallsStatsService extends Binder {
         private static final String SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY = "track_screen_state";
         private static final String SETTINGS_TRACK_DIRECT_CALLING_UID_KEY = "track_calling_uid";
         private static final String SETTINGS_MAX_CALL_STATS_KEY = "max_call_stats_count";
+        private static final String SETTINGS_SHARD_COUNT_KEY = "shard_count";
 
         private boolean mEnabled;
         private final Uri mUri = Settings.Global.getUriFor(Settings.Global.BINDER_CALLS_STATS);
@@ -174,6 +175,9 @@ public class BinderCallsStatsService extends Binder {
             mBinderCallsStats.setMaxBinderCallStats(mParser.getInt(
                     SETTINGS_MAX_CALL_STATS_KEY,
                     BinderCallsStats.MAX_BINDER_CALL_STATS_COUNT_DEFAULT));
+            mBinderCallsStats.setShardCount(mParser.getInt(
+                    SETTINGS_SHARD_COUNT_KEY,
+                    BinderCallsStats.SHARD_COUNT_DEFAULT));
             mBinderCallsStats.setTrackScreenInteractive(
                     mParser.getBoolean(SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY,
                     BinderCallsStats.DEFAULT_TRACK_SCREEN_INTERACTIVE));
@@ -123,6 +123,10 @@ public final class DropBoxManagerService extends SystemService {
 
     private int mMaxFiles = -1; // -1 means uninitialized.
 
+    // Runs in getNextEntry() between the lookup of an entry and opening its file.
+    @VisibleForTesting
+    Runnable mEntryLookupTestHook = null;
+
     /** Receives events that might indicate a need to clean up files. */
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -131,7 +135,7 @@ public final class DropBoxManagerService extends SystemService {
             mCachedQuotaUptimeMillis = 0;  // Force a re-check of quota size
 
             // Run the initialization in the background (not this main thread).
-            // The init() and trimToFit() methods are synchronized, so they still
+            // The init() and trimToFit() methods take the service lock, so they still
             // block other users -- but at least the onReceive() call can finish.
             new Thread() {
                 public void run() {
@@ -497,8 +501,8 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    public synchronized DropBoxManager.Entry getNextEntry(String tag, long millis,
-            String callingPackage) {
+    public DropBoxManager.Entry getNextEntry(String tag, long millis, String callingPackage) {
+        // The permission check calls into other services, don't hold the lock for it.
         if (!checkPermission(Binder.getCallingUid(), callingPackage)) {
             return null;
         }
@@ -510,11 +514,19 @@ public final class DropBoxManagerService extends SystemService {
             return null;
         }
 
-        FileList list = tag == null ? mAllFiles : mFilesByTag.get(tag);
-        if (list == null) return null;
-
-        for (EntryFile entry : list.contents.tailSet(new EntryFile(millis + 1))) {
-            if (entry.tag == null) continue;
+        // Only the lookup happens under the lock. The file is opened afterwards, so that a
+        // reader never holds up add() and trimToFit() while it waits for the disk.
+        EntryFile entry = null;
+        while (true) {
+            synchronized (this) {
+                entry = findNextEntryLocked(tag, millis, entry);
+            }
+            if (entry == null) {
+                return null;
+            }
+            if (mEntryLookupTestHook != null) {
+                mEntryLookupTestHook.run();
+            }
             if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
             }
@@ -523,12 +535,36 @@ public final class DropBoxManagerService extends SystemService {
                 return new DropBoxManager.Entry(
                         entry.tag, entry.timestampMillis, file, entry.flags);
             } catch (IOException e) {
+                synchronized (this) {
+                    if (!mAllFiles.contents.contains(entry)) {
+                        // Trimmed since the lookup, look for the tombstone that replaced it.
+                        millis = entry.timestampMillis - 1;
+                        entry = null;
+                        continue;
+                    }
+                }
                 Slog.wtf(TAG, "Can't read: " + file, e);
                 // Continue to next file
             }
         }
+    }
+
+    /**
+     * Returns the first entry with the given tag, or any tag if {@code tag} is null, that is
+     * after {@code previous}, or after {@code millis} if {@code previous} is null.
+     */
+    @GuardedBy("this")
+    private EntryFile findNextEntryLocked(String tag, long millis, EntryFile previous) {
+        final FileList list = tag == null ? mAllFiles : mFilesByTag.get(tag);
+        if (list == null) return null;
 
-        return null;
+        EntryFile entry = previous != null ? list.contents.higher(previous)
+                : list.contents.ceiling(new EntryFile(millis + 1));
+        // Entries without a tag are never enrolled, but skip them to be safe.
+        while (entry != null && entry.tag == null) {
+            entry = list.contents.higher(entry);
+        }
+        return entry;
     }
 
     private synchronized void setLowPriorityRateLimit(long period) {
@@ -547,7 +583,7 @@ public final class DropBoxManagerService extends SystemService {
         getLowPriorityResourceConfigs();
     }
 
-    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (!DumpUtils.checkDumpAndUsageStatsPermission(getContext(), TAG, pw)) return;
 
         try {
@@ -587,18 +623,27 @@ public final class DropBoxManagerService extends SystemService {
             }
         }
 
+        // Entries are read without holding the lock, which could otherwise stall add() for
+        // as long as it takes to print every entry. An entry trimmed in the meantime is
+        // reported as unreadable.
+        final ArrayList<EntryFile> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mAllFiles.contents);
+            if (!dumpProto) {
+                out.append("Drop box contents: ").append(entries.size()).append(" entries\n");
+                out.append("Max entries: ").append(mMaxFiles).append("\n");
+
+                out.append("Low priority rate limit period: ");
+                out.append(mLowPriorityRateLimitPeriod).append(" ms\n");
+                out.append("Low priority tags: ").append(mLowPriorityTags).append("\n");
+            }
+        }
+
         if (dumpProto) {
-            dumpProtoLocked(fd, searchArgs);
+            dumpProto(fd, entries, searchArgs);
             return;
         }
 
-        out.append("Drop box contents: ").append(mAllFiles.contents.size()).append(" entries\n");
-        out.append("Max entries: ").append(mMaxFiles).append("\n");
-
-        out.append("Low priority rate limit period: ");
-        out.append(mLowPriorityRateLimitPeriod).append(" ms\n");
-        out.append("Low priority tags: ").append(mLowPriorityTags).append("\n");
-
         if (!searchArgs.isEmpty()) {
             out.append("Searching for:");
             for (String a : searchArgs) out.append(" ").append(a);
@@ -607,7 +652,7 @@ public final class DropBoxManagerService extends SystemService {
 
         int numFound = 0;
         out.append("\n");
-        for (EntryFile entry : mAllFiles.contents) {
+        for (EntryFile entry : entries) {
             if (!matchEntry(entry, searchArgs)) continue;
 
             numFound++;
@@ -710,10 +755,11 @@ public final class DropBoxManagerService extends SystemService {
         return match;
     }
 
-    private void dumpProtoLocked(FileDescriptor fd, ArrayList<String> searchArgs) {
+    private void dumpProto(FileDescriptor fd, ArrayList<EntryFile> entries,
+            ArrayList<String> searchArgs) {
         final ProtoOutputStream proto = new ProtoOutputStream(fd);
 
-        for (EntryFile entry : mAllFiles.contents) {
+        for (EntryFile entry : entries) {
             if (!matchEntry(entry, searchArgs)) continue;
 
             final File file = entry.getFile(mDropBoxDir);
@@ -1059,17 +1105,49 @@ public final class DropBoxManagerService extends SystemService {
 
     /**
      * Trims the files on disk to make sure they aren't using too much space.
+     *
+     * Only the accounting is updated under the lock. The settings are read before taking it,
+     * and the files of trimmed entries are deleted after releasing it; they are no longer
+     * enrolled, so no reader can find them.
+     *
      * @return the overall quota for storage (in bytes)
      */
-    private synchronized long trimToFit() throws IOException {
-        // Expunge aged items (including tombstones marking deleted data).
-
-        int ageSeconds = Settings.Global.getInt(mContentResolver,
+    private long trimToFit() throws IOException {
+        final int ageSeconds = Settings.Global.getInt(mContentResolver,
                 Settings.Global.DROPBOX_AGE_SECONDS, DEFAULT_AGE_SECONDS);
-        mMaxFiles = Settings.Global.getInt(mContentResolver,
+        final int maxFiles = Settings.Global.getInt(mContentResolver,
                 Settings.Global.DROPBOX_MAX_FILES,
                 (ActivityManager.isLowRamDeviceStatic()
                         ?  DEFAULT_MAX_FILES_LOWRAM : DEFAULT_MAX_FILES));
+        final int quotaPercent = Settings.Global.getInt(mContentResolver,
+                Settings.Global.DROPBOX_QUOTA_PERCENT, DEFAULT_QUOTA_PERCENT);
+        final int reservePercent = Settings.Global.getInt(mContentResolver,
+                Settings.Global.DROPBOX_RESERVE_PERCENT, DEFAULT_RESERVE_PERCENT);
+        final int quotaKb = Settings.Global.getInt(mContentResolver,
+                Settings.Global.DROPBOX_QUOTA_KB, DEFAULT_QUOTA_KB);
+
+        final ArrayList<EntryFile> trimmed = new ArrayList<>();
+        final long quota;
+        synchronized (this) {
+            quota = trimToFitLocked(ageSeconds, maxFiles, quotaPercent, reservePercent, quotaKb,
+                    trimmed);
+        }
+        for (int i = 0; i < trimmed.size(); i++) {
+            trimmed.get(i).deleteFile(mDropBoxDir);
+        }
+        return quota;
+    }
+
+    /**
+     * Removes the entries that exceed the limits from the accounting and adds them to
+     * {@code trimmed}, whose files the caller must delete.
+     */
+    @GuardedBy("this")
+    private long trimToFitLocked(int ageSeconds, int maxFiles, int quotaPercent,
+            int reservePercent, int quotaKb, ArrayList<EntryFile> trimmed) throws IOException {
+        // Expunge aged items (including tombstones marking deleted data).
+
+        mMaxFiles = maxFiles;
         long cutoffMillis = System.currentTimeMillis() - ageSeconds * 1000;
         while (!mAllFiles.contents.isEmpty()) {
             EntryFile entry = mAllFiles.contents.first();
@@ -1080,7 +1158,7 @@ public final class DropBoxManagerService extends SystemService {
             FileList tag = mFilesByTag.get(entry.tag);
             if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
             if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-            entry.deleteFile(mDropBoxDir);
+            trimmed.add(entry);
         }
 
         // Compute overall quota (a fraction of available free space) in blocks.
@@ -1090,13 +1168,6 @@ public final class DropBoxManagerService extends SystemService {
 
         long uptimeMillis = SystemClock.uptimeMillis();
         if (uptimeMillis > mCachedQuotaUptimeMillis + QUOTA_RESCAN_MILLIS) {
-            int quotaPercent = Settings.Global.getInt(mContentResolver,
-                    Settings.Global.DROPBOX_QUOTA_PERCENT, DEFAULT_QUOTA_PERCENT);
-            int reservePercent = Settings.Global.getInt(mContentResolver,
-                    Settings.Global.DROPBOX_RESERVE_PERCENT, DEFAULT_RESERVE_PERCENT);
-            int quotaKb = Settings.Global.getInt(mContentResolver,
-                    Settings.Global.DROPBOX_QUOTA_KB, DEFAULT_QUOTA_KB);
-
             String dirPath = mDropBoxDir.getPath();
             try {
                 mStatFs.restat(dirPath);
@@ -1148,8 +1219,8 @@ public final class DropBoxManagerService extends SystemService {
                     if (tag.contents.remove(entry)) tag.blocks -= entry.blocks;
                     if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
 
+                    trimmed.add(entry);
                     try {
-                        entry.deleteFile(mDropBoxDir);
                         enrollEntry(new EntryFile(mDropBoxDir, entry.tag, entry.timestampMillis));
                     } catch (IOException e) {
                         Slog.e(TAG, "Can't write tombstone file", e);
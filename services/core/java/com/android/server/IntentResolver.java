@@ -71,6 +71,7 @@ public abstract class IntentResolver<F, R extends Object> {
             register_intent_filter(f, intentFilter.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        register_scheme_hosts(f, intentFilter, "      SchemeHost: ");
     }
 
     public static boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -215,6 +216,7 @@ public abstract class IntentResolver<F, R extends Object> {
             unregister_intent_filter(f, intentFilter.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        unregister_scheme_hosts(f, intentFilter, "      SchemeHost: ");
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -415,6 +417,7 @@ public abstract class IntentResolver<F, R extends Object> {
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
         F[] schemeCut = null;
+        F[] schemeHostCut = null;
 
         // If the intent includes a MIME type, then we want to collect all of
         // the filters that match that MIME type.
@@ -457,9 +460,28 @@ public abstract class IntentResolver<F, R extends Object> {
         // If the intent includes a data URI, then we want to collect all of
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
+        // When the URI has a host we can narrow this down to the filters that
+        // list that exact host, plus those that aren't scoped to a host at all.
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
-            if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
+            final Uri data = intent.getData();
+            final String host = data != null ? data.getHost() : null;
+            if (host == null) {
+                // Filters with authorities can never match a URI without a host.
+                schemeCut = mSchemeToUnscopedFilter.get(scheme);
+                if (debug) Slog.v(TAG, "Unscoped scheme list: " + Arrays.toString(schemeCut));
+            } else {
+                final String indexHost = toIndexableHost(host);
+                if (indexHost != null) {
+                    schemeCut = mSchemeToUnscopedFilter.get(scheme);
+                    if (debug) Slog.v(TAG, "Unscoped scheme list: "
+                            + Arrays.toString(schemeCut));
+                    schemeHostCut = mSchemeHostToFilter.get(schemeHostKey(scheme, indexHost));
+                    if (debug) Slog.v(TAG, "Scheme host list: " + Arrays.toString(schemeHostCut));
+                } else {
+                    schemeCut = mSchemeToFilter.get(scheme);
+                    if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
+                }
+            }
         }
 
         // If the intent does not specify any data -- either a MIME type or
@@ -487,6 +509,10 @@ public abstract class IntentResolver<F, R extends Object> {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
                     scheme, schemeCut, finalList, userId);
         }
+        if (schemeHostCut != null) {
+            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                    scheme, schemeHostCut, finalList, userId);
+        }
         filterResults(finalList);
         sortResults(finalList);
 
@@ -715,6 +741,113 @@ public abstract class IntentResolver<F, R extends Object> {
         }
     }
 
+    private final void register_scheme_hosts(F filter, IntentFilter intentFilter,
+            String prefix) {
+        final Iterator<String> i = intentFilter.schemesIterator();
+        if (i == null) {
+            return;
+        }
+
+        final ArraySet<String> hosts = getIndexableHosts(intentFilter);
+        while (i.hasNext()) {
+            String scheme = i.next();
+            if (hosts == null) {
+                if (localLOGV) Slog.v(TAG, prefix + scheme + " (unscoped)");
+                addFilter(mSchemeToUnscopedFilter, scheme, filter);
+                continue;
+            }
+            for (int j = hosts.size() - 1; j >= 0; j--) {
+                final String key = schemeHostKey(scheme, hosts.valueAt(j));
+                if (localLOGV) Slog.v(TAG, prefix + key);
+                addFilter(mSchemeHostToFilter, key, filter);
+            }
+        }
+    }
+
+    private final void unregister_scheme_hosts(F filter, IntentFilter intentFilter,
+            String prefix) {
+        final Iterator<String> i = intentFilter.schemesIterator();
+        if (i == null) {
+            return;
+        }
+
+        final ArraySet<String> hosts = getIndexableHosts(intentFilter);
+        while (i.hasNext()) {
+            String scheme = i.next();
+            if (hosts == null) {
+                if (localLOGV) Slog.v(TAG, prefix + scheme + " (unscoped)");
+                remove_all_objects(mSchemeToUnscopedFilter, scheme, filter);
+                continue;
+            }
+            for (int j = hosts.size() - 1; j >= 0; j--) {
+                final String key = schemeHostKey(scheme, hosts.valueAt(j));
+                if (localLOGV) Slog.v(TAG, prefix + key);
+                remove_all_objects(mSchemeHostToFilter, key, filter);
+            }
+        }
+    }
+
+    /**
+     * Returns the set of normalized hosts the given filter can be indexed under, or null
+     * if the filter may match a URI regardless of its host: it declares no authorities,
+     * uses scheme specific parts, or has a wildcard or non-ASCII host.
+     */
+    private static ArraySet<String> getIndexableHosts(IntentFilter intentFilter) {
+        final int numAuthorities = intentFilter.countDataAuthorities();
+        if (numAuthorities == 0 || intentFilter.countDataSchemeSpecificParts() != 0) {
+            return null;
+        }
+        final ArraySet<String> hosts = new ArraySet<>(numAuthorities);
+        for (int i = 0; i < numAuthorities; i++) {
+            final IntentFilter.AuthorityEntry authority = intentFilter.getDataAuthority(i);
+            final String host = authority.getHost();
+            if (host.length() == 0 || host.charAt(0) == '*') {
+                return null;
+            }
+            final String indexHost = toIndexableHost(host);
+            if (indexHost == null) {
+                return null;
+            }
+            hosts.add(indexHost);
+        }
+        return hosts;
+    }
+
+    /**
+     * Lower-cases an ASCII host so that it can be used as an index key, mirroring the
+     * case-insensitive comparison done by {@link IntentFilter.AuthorityEntry#match(Uri)}.
+     * Returns null for hosts containing non-ASCII characters, whose case folding is not
+     * a simple per-character mapping; those are always matched the slow way.
+     */
+    private static String toIndexableHost(String host) {
+        final int N = host.length();
+        boolean hasUpper = false;
+        for (int i = 0; i < N; i++) {
+            final char c = host.charAt(i);
+            if (c >= 0x80) {
+                return null;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                hasUpper = true;
+            }
+        }
+        if (!hasUpper) {
+            return host;
+        }
+        final char[] chars = host.toCharArray();
+        for (int i = 0; i < N; i++) {
+            final char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    private static String schemeHostKey(String scheme, String host) {
+        return scheme + "://" + host;
+    }
+
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
         final Set<String> categories = intent.getCategories();
         if (categories == null) {
@@ -871,6 +1004,20 @@ public abstract class IntentResolver<F, R extends Object> {
      */
     private final ArrayMap<String, F[]> mSchemeToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * The subset of {@link #mSchemeToFilter} whose filters are not restricted
+     * to a set of exact hosts, and so must be considered for any URI with that
+     * scheme.
+     */
+    private final ArrayMap<String, F[]> mSchemeToUnscopedFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * The remaining filters of {@link #mSchemeToFilter}, keyed by
+     * "scheme://host" for each exact host they declare (such as
+     * "https://www.example.com").
+     */
+    private final ArrayMap<String, F[]> mSchemeHostToFilter = new ArrayMap<String, F[]>();
+
     /**
      * All of the actions that have been registered, but only those that did
      * not specify data.
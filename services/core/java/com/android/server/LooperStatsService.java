@@ -126,14 +126,17 @@ public class LooperStatsService extends Binder {
                 "recorded_delay_message_count",
                 "total_delay_millis",
                 "max_delay_millis",
-                "exception_count"));
+                "exception_count",
+                "p50_latency_micros",
+                "p95_latency_micros",
+                "p99_latency_micros"));
         pw.println(header);
         for (LooperStats.ExportedEntry entry : entries) {
             if (entry.messageName.startsWith(LooperStats.DEBUG_ENTRY_PREFIX)) {
                 // Do not dump debug entries.
                 continue;
             }
-            pw.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
+            pw.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n",
                     packageMap.mapUid(entry.workSourceUid),
                     entry.threadName,
                     entry.handlerClassName,
@@ -148,7 +151,10 @@ public class LooperStatsService extends Binder {
                     entry.recordedDelayMessageCount,
                     entry.delayMillis,
                     entry.maxDelayMillis,
-                    entry.exceptionCount);
+                    entry.exceptionCount,
+                    entry.p50LatencyMicros,
+                    entry.p95LatencyMicros,
+                    entry.p99LatencyMicros);
         }
     }
 
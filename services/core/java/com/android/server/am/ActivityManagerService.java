@@ -18181,6 +18181,33 @@ public class ActivityManagerService extends IActivityManager.Stub
         mOomAdjuster.updateOomAdjLocked(app, oomAdjReason);
     }
 
+    /**
+     * Enqueue the given process for a later oom adj update by
+     * {@link #updateOomAdjPendingTargetsLocked}.
+     */
+    @GuardedBy("this")
+    final void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        mOomAdjuster.enqueueOomAdjTargetLocked(app);
+    }
+
+    /**
+     * Drop the given process from the processes waiting for
+     * {@link #updateOomAdjPendingTargetsLocked}, e.g. because it has died.
+     */
+    @GuardedBy("this")
+    final void removeOomAdjTargetLocked(ProcessRecord app) {
+        mOomAdjuster.removeOomAdjTargetLocked(app);
+    }
+
+    /**
+     * Update OomAdj for the processes enqueued by {@link #enqueueOomAdjTargetLocked} and their
+     * reachable processes.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjPendingTargetsLocked(String oomAdjReason) {
+        mOomAdjuster.updateOomAdjPendingTargetsLocked(oomAdjReason);
+    }
+
     @Override
     public void makePackageIdle(String packageName, int userId) {
         if (checkCallingPermission(android.Manifest.permission.FORCE_STOP_PACKAGES)
@@ -53,13 +53,16 @@ import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FrameworkStatsLog;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Set;
 
 /**
@@ -102,9 +105,10 @@ public final class BroadcastQueue {
      * (without waiting for another broadcast to finish).  Currently this only
      * contains broadcasts to registered receivers, to avoid spinning up
      * a bunch of processes to execute IntentReceiver components.  Background-
-     * and foreground-priority broadcasts are queued separately.
+     * and foreground-priority broadcasts are queued separately.  Broadcasts are
+     * taken off the queue before they are delivered.
      */
-    final ArrayList<BroadcastRecord> mParallelBroadcasts = new ArrayList<>();
+    final ArrayDeque<BroadcastRecord> mParallelBroadcasts = new ArrayDeque<>();
 
     /**
      * Tracking of the ordered broadcast queue, including deferral policy and alarm
@@ -134,6 +138,23 @@ public final class BroadcastQueue {
     final Intent[] mBroadcastSummaryHistory = new Intent[MAX_BROADCAST_SUMMARY_HISTORY];
     int mSummaryHistoryNext = 0;
 
+    /**
+     * Upper bounds, in milliseconds, of the buckets of the latency histograms below.  The
+     * last bucket of each histogram counts everything above the last bound.
+     */
+    static final long[] LATENCY_HISTOGRAM_BOUNDS_MS = { 1, 10, 100, 1000, 10000 };
+
+    /**
+     * Histogram of the time broadcasts spent waiting in this queue, from enqueue to dispatch.
+     */
+    final int[] mDispatchLatencyHistogram = new int[LATENCY_HISTOGRAM_BOUNDS_MS.length + 1];
+
+    /**
+     * Histogram of the time taken to deliver broadcasts to all receivers, from dispatch to
+     * finish.
+     */
+    final int[] mFinishLatencyHistogram = new int[LATENCY_HISTOGRAM_BOUNDS_MS.length + 1];
+
     /**
      * Various milestone timestamps of entries in the mBroadcastSummaryHistory ring
      * buffer, also tracked via the mSummaryHistoryNext index.  These are all in wall
@@ -238,6 +259,7 @@ public final class BroadcastQueue {
      * enqueueOrderedBroadcastLocked.
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
+        r.enqueueTime = SystemClock.uptimeMillis();
         r.enqueueClockTime = System.currentTimeMillis();
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -252,7 +274,29 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceParallelBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL");
+        final Intent intent = r.intent;
+        final int N = mParallelBroadcasts.size();
+        BroadcastRecord old = null;
+        final Iterator<BroadcastRecord> it = mParallelBroadcasts.descendingIterator();
+        for (int i = N - 1; i > 0; i--) {
+            final BroadcastRecord candidate = it.next();
+            if (candidate.userId == r.userId && intent.filterEquals(candidate.intent)) {
+                old = candidate;
+                break;
+            }
+        }
+        if (old == null) {
+            return null;
+        }
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG_BROADCAST, "***** DROPPING PARALLEL [" + mQueueName + "]: " + intent);
+        }
+        // Rotate the whole queue once, swapping in the new record where the old one was.
+        for (int i = 0; i < N; i++) {
+            final BroadcastRecord next = mParallelBroadcasts.pollFirst();
+            mParallelBroadcasts.addLast(next == old ? r : next);
+        }
+        return old;
     }
 
     /**
@@ -263,23 +307,6 @@ public final class BroadcastQueue {
         return mDispatcher.replaceBroadcastLocked(r, "ORDERED");
     }
 
-    private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
-            BroadcastRecord r, String typeForLogging) {
-        final Intent intent = r.intent;
-        for (int i = queue.size() - 1; i > 0; i--) {
-            final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
-                if (DEBUG_BROADCAST) {
-                    Slog.v(TAG_BROADCAST, "***** DROPPING "
-                            + typeForLogging + " [" + mQueueName + "]: " + intent);
-                }
-                queue.set(i, r);
-                return old;
-            }
-        }
-        return null;
-    }
-
     private final void processCurBroadcastLocked(BroadcastRecord r,
             ProcessRecord app, boolean skipOomAdj) throws RemoteException {
         if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
@@ -951,6 +978,55 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Delivers all queued parallel broadcasts.  The pending ones are taken off the queue as a
+     * batch before any of them is delivered, so that a broadcast being delivered can no longer
+     * be replaced or cleaned up, and anything enqueued during delivery is left for the next
+     * pass of the loop.
+     */
+    @VisibleForTesting
+    void processParallelBroadcastsLocked() {
+        while (!mParallelBroadcasts.isEmpty()) {
+            final int batchSize = mParallelBroadcasts.size();
+            final ArrayList<BroadcastRecord> batch = new ArrayList<>(batchSize);
+            for (int b = 0; b < batchSize; b++) {
+                batch.add(mParallelBroadcasts.pollFirst());
+            }
+            for (int b = 0; b < batchSize; b++) {
+                deliverParallelBroadcastLocked(batch.get(b));
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void deliverParallelBroadcastLocked(BroadcastRecord r) {
+        r.dispatchTime = SystemClock.uptimeMillis();
+        r.dispatchClockTime = System.currentTimeMillis();
+
+        if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
+            Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
+                System.identityHashCode(r));
+            Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_DELIVERED),
+                System.identityHashCode(r));
+        }
+
+        final int N = r.receivers.size();
+        if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Processing parallel broadcast ["
+                + mQueueName + "] " + r);
+        for (int i=0; i<N; i++) {
+            Object target = r.receivers.get(i);
+            if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
+                    "Delivering non-ordered on [" + mQueueName + "] to registered "
+                    + target + ": " + r);
+            deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false, i);
+        }
+        addBroadcastToHistoryLocked(r);
+        if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
+                + mQueueName + "] " + r);
+    }
+
     final void processNextBroadcastLocked(boolean fromMsg, boolean skipOomAdj) {
         BroadcastRecord r;
 
@@ -966,34 +1042,7 @@ public final class BroadcastQueue {
         }
 
         // First, deliver any non-serialized broadcasts right away.
-        while (mParallelBroadcasts.size() > 0) {
-            r = mParallelBroadcasts.remove(0);
-            r.dispatchTime = SystemClock.uptimeMillis();
-            r.dispatchClockTime = System.currentTimeMillis();
-
-            if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
-                Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
-                    createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
-                    System.identityHashCode(r));
-                Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
-                    createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_DELIVERED),
-                    System.identityHashCode(r));
-            }
-
-            final int N = r.receivers.size();
-            if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Processing parallel broadcast ["
-                    + mQueueName + "] " + r);
-            for (int i=0; i<N; i++) {
-                Object target = r.receivers.get(i);
-                if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
-                        "Delivering non-ordered on [" + mQueueName + "] to registered "
-                        + target + ": " + r);
-                deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false, i);
-            }
-            addBroadcastToHistoryLocked(r);
-            if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
-                    + mQueueName + "] " + r);
-        }
+        processParallelBroadcastsLocked();
 
         // Now take care of the next serialized one...
 
@@ -1822,6 +1871,10 @@ public final class BroadcastQueue {
             return;
         }
         original.finishTime = SystemClock.uptimeMillis();
+        addToLatencyHistogram(mDispatchLatencyHistogram,
+                original.dispatchTime - original.enqueueTime);
+        addToLatencyHistogram(mFinishLatencyHistogram,
+                original.finishTime - original.dispatchTime);
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1843,11 +1896,32 @@ public final class BroadcastQueue {
         mSummaryHistoryNext = ringAdvance(mSummaryHistoryNext, 1, MAX_BROADCAST_SUMMARY_HISTORY);
     }
 
+    private static void addToLatencyHistogram(int[] histogram, long latencyMs) {
+        int bucket = 0;
+        while (bucket < LATENCY_HISTOGRAM_BOUNDS_MS.length
+                && latencyMs >= LATENCY_HISTOGRAM_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+    }
+
+    private static void dumpLatencyHistogram(PrintWriter pw, String label, int[] histogram) {
+        pw.print("    "); pw.print(label); pw.print(":");
+        for (int i = 0; i < LATENCY_HISTOGRAM_BOUNDS_MS.length; i++) {
+            pw.print(" <"); pw.print(LATENCY_HISTOGRAM_BOUNDS_MS[i]); pw.print("ms=");
+            pw.print(histogram[i]);
+        }
+        final int last = LATENCY_HISTOGRAM_BOUNDS_MS.length;
+        pw.print(" >="); pw.print(LATENCY_HISTOGRAM_BOUNDS_MS[last - 1]); pw.print("ms=");
+        pw.println(histogram[last]);
+    }
+
     boolean cleanupDisabledPackageReceiversLocked(
             String packageName, Set<String> filterByClasses, int userId, boolean doit) {
         boolean didSomething = false;
-        for (int i = mParallelBroadcasts.size() - 1; i >= 0; i--) {
-            didSomething |= mParallelBroadcasts.get(i).cleanupDisabledPackageReceiversLocked(
+        for (Iterator<BroadcastRecord> it = mParallelBroadcasts.descendingIterator();
+                it.hasNext(); ) {
+            didSomething |= it.next().cleanupDisabledPackageReceiversLocked(
                     packageName, filterByClasses, userId, doit);
             if (!doit && didSomething) {
                 return true;
@@ -1918,10 +1992,9 @@ public final class BroadcastQueue {
     void dumpDebug(ProtoOutputStream proto, long fieldId) {
         long token = proto.start(fieldId);
         proto.write(BroadcastQueueProto.QUEUE_NAME, mQueueName);
-        int N;
-        N = mParallelBroadcasts.size();
-        for (int i = N - 1; i >= 0; i--) {
-            mParallelBroadcasts.get(i).dumpDebug(proto, BroadcastQueueProto.PARALLEL_BROADCASTS);
+        for (Iterator<BroadcastRecord> it = mParallelBroadcasts.descendingIterator();
+                it.hasNext(); ) {
+            it.next().dumpDebug(proto, BroadcastQueueProto.PARALLEL_BROADCASTS);
         }
         mDispatcher.dumpDebug(proto, BroadcastQueueProto.ORDERED_BROADCASTS);
         if (mPendingBroadcast != null) {
@@ -1967,8 +2040,9 @@ public final class BroadcastQueue {
         if (!mParallelBroadcasts.isEmpty() || !mDispatcher.isEmpty()
                 || mPendingBroadcast != null) {
             boolean printed = false;
+            final Iterator<BroadcastRecord> it = mParallelBroadcasts.descendingIterator();
             for (int i = mParallelBroadcasts.size() - 1; i >= 0; i--) {
-                BroadcastRecord br = mParallelBroadcasts.get(i);
+                BroadcastRecord br = it.next();
                 if (dumpPackage != null && !dumpPackage.equals(br.callerPackage)) {
                     continue;
                 }
@@ -2001,6 +2075,14 @@ public final class BroadcastQueue {
 
         mConstants.dump(pw);
 
+        if (dumpPackage == null) {
+            pw.println();
+            pw.println("  Broadcast latency [" + mQueueName + "]:");
+            dumpLatencyHistogram(pw, "dispatch", mDispatchLatencyHistogram);
+            dumpLatencyHistogram(pw, "finish", mFinishLatencyHistogram);
+            needSep = true;
+        }
+
         int i;
         boolean printed = false;
 
@@ -47,6 +47,8 @@ public class OomAdjProfiler {
     @GuardedBy("this")
     private long mOomAdjStartTimeUs;
     @GuardedBy("this")
+    private long mOomAdjStartRealtimeNs;
+    @GuardedBy("this")
     private boolean mOomAdjStarted;
 
     @GuardedBy("this")
@@ -70,6 +72,15 @@ public class OomAdjProfiler {
     @GuardedBy("this")
     private int mTotalOomAdjCalls;
 
+    /** Totals since boot for full updates, covering every process in the LRU list. */
+    @GuardedBy("this")
+    private final PassTotals mFullPassTotals = new PassTotals();
+    /** Totals since boot for partial updates, covering a process and what it can reach. */
+    @GuardedBy("this")
+    private final PassTotals mPartialPassTotals = new PassTotals();
+    @GuardedBy("this")
+    final RingBuffer<Pass> mRecentPasses = new RingBuffer<>(Pass.class, 20);
+
     void batteryPowerChanged(boolean onBattery) {
         synchronized (this) {
             scheduleSystemServerCpuTimeUpdate();
@@ -87,19 +98,33 @@ public class OomAdjProfiler {
     void oomAdjStarted() {
         synchronized (this) {
             mOomAdjStartTimeUs = SystemClock.currentThreadTimeMicro();
+            mOomAdjStartRealtimeNs = SystemClock.elapsedRealtimeNanos();
             mOomAdjStarted = true;
         }
     }
 
-    void oomAdjEnded() {
+    /**
+     * @param processCount the number of processes whose oom adj was computed in this pass
+     * @param fullUpdate whether this pass covered the whole LRU list
+     */
+    void oomAdjEnded(int processCount, boolean fullUpdate) {
         synchronized (this) {
             if (!mOomAdjStarted) {
                 return;
             }
             long elapsedUs = SystemClock.currentThreadTimeMicro() - mOomAdjStartTimeUs;
+            long realtimeUs = (SystemClock.elapsedRealtimeNanos() - mOomAdjStartRealtimeNs) / 1000;
             mOomAdjRunTime.addCpuTimeUs(elapsedUs);
             mTotalOomAdjRunTimeUs += elapsedUs;
             mTotalOomAdjCalls++;
+
+            (fullUpdate ? mFullPassTotals : mPartialPassTotals).add(processCount, elapsedUs);
+            final Pass pass = new Pass();
+            pass.mFullUpdate = fullUpdate;
+            pass.mProcessCount = processCount;
+            pass.mCpuTimeUs = elapsedUs;
+            pass.mRealtimeUs = realtimeUs;
+            mRecentPasses.append(pass);
         }
     }
 
@@ -185,7 +210,51 @@ public class OomAdjProfiler {
                 pw.print(mTotalOomAdjCalls);
                 pw.print("  average=");
                 pw.println(mTotalOomAdjRunTimeUs / mTotalOomAdjCalls);
+                pw.print("  full: ");
+                pw.println(mFullPassTotals);
+                pw.print("  partial: ");
+                pw.println(mPartialPassTotals);
             }
+            final Pass[] recentPasses = mRecentPasses.toArray();
+            if (recentPasses.length != 0) {
+                pw.println("Recent oomAdj passes (most recent first):");
+                for (int i = recentPasses.length - 1; i >= 0; --i) {
+                    pw.print("  ");
+                    pw.println(recentPasses[i]);
+                }
+            }
+        }
+    }
+
+    private static class PassTotals {
+        private int mCount;
+        private long mProcessCount;
+        private long mCpuTimeUs;
+
+        void add(int processCount, long cpuTimeUs) {
+            mCount++;
+            mProcessCount += processCount;
+            mCpuTimeUs += cpuTimeUs;
+        }
+
+        public String toString() {
+            if (mCount == 0) {
+                return "none";
+            }
+            return "passes=" + mCount + "  processes/pass=" + (mProcessCount / mCount)
+                    + "  cpu time/pass (us)=" + (mCpuTimeUs / mCount);
+        }
+    }
+
+    private static class Pass {
+        boolean mFullUpdate;
+        int mProcessCount;
+        long mCpuTimeUs;
+        long mRealtimeUs;
+
+        public String toString() {
+            return (mFullUpdate ? "full" : "partial") + " processes=" + mProcessCount
+                    + " cpu=" + mCpuTimeUs + "us real=" + mRealtimeUs + "us";
         }
     }
 
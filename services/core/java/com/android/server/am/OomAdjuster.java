@@ -213,6 +213,15 @@ public final class OomAdjuster {
     private ArrayList<UidRecord> mTmpBecameIdle = new ArrayList<UidRecord>();
     private ActiveUids mTmpUidRecords;
     private ArrayDeque<ProcessRecord> mTmpQueue;
+    private final ArraySet<ProcessRecord> mTmpProcessSet = new ArraySet<>();
+
+    /**
+     * Processes whose oom adj inputs have changed since the last update, to be recomputed along
+     * with everything reachable from them by {@link #updateOomAdjPendingTargetsLocked}.
+     */
+    @VisibleForTesting
+    @GuardedBy("mService")
+    final ArraySet<ProcessRecord> mPendingProcessSet = new ArraySet<>();
 
     private final IPlatformCompat mPlatformCompat;
 
@@ -442,7 +451,7 @@ public final class OomAdjuster {
             if (DEBUG_OOM_ADJ) {
                 Slog.i(TAG_OOM_ADJ, "No oomadj changes for " + app);
             }
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(1, false /* fullUpdate */);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
             return success;
         }
@@ -450,20 +459,57 @@ public final class OomAdjuster {
         // Next to find out all its reachable processes
         ArrayList<ProcessRecord> processes = mTmpProcessList;
         ActiveUids uids = mTmpUidRecords;
-        ArrayDeque<ProcessRecord> queue = mTmpQueue;
+        final ArraySet<ProcessRecord> targets = mTmpProcessSet;
+        targets.add(app);
+        final boolean containsCycle = collectReachableProcessesLocked(targets, processes, uids);
+        targets.clear();
+        // Remove this app from the list, we've already done the computation on it.
+        processes.remove(app);
 
+        // Reset the flag
+        app.mReachable = false;
+        int size = processes.size();
+        if (size > 0) {
+            mAdjSeq--;
+            // Update these reachable processes
+            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
+            // In case the app goes from non-cached to cached but it doesn't have other reachable
+            // processes, its adj could be still unknown as of now, assign one.
+            processes.add(app);
+            assignCachedAdjIfNecessary(processes);
+            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
+                    SystemClock.elapsedRealtime());
+        }
+        mService.mOomAdjProfiler.oomAdjEnded(size + 1, false /* fullUpdate */);
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        return true;
+    }
+
+    /**
+     * Collects the given processes and every process reachable from them through service
+     * bindings and provider connections, ordered for {@link #updateOomAdjLockedInner}.
+     *
+     * @return whether the reachable processes could contain a cycle.
+     */
+    @GuardedBy("mService")
+    private boolean collectReachableProcessesLocked(ArraySet<ProcessRecord> apps,
+            ArrayList<ProcessRecord> processes, ActiveUids uids) {
+        final ArrayDeque<ProcessRecord> queue = mTmpQueue;
+        queue.clear();
         processes.clear();
         uids.clear();
-        queue.clear();
+        for (int i = apps.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = apps.valueAt(i);
+            app.mReachable = true;
+            queue.offer(app);
+        }
 
         // Track if any of them reachables could include a cycle
         boolean containsCycle = false;
-        // Scan downstreams of the process record
-        app.mReachable = true;
-        for (ProcessRecord pr = app; pr != null; pr = queue.poll()) {
-            if (pr != app) {
-                processes.add(pr);
-            }
+        // Scan downstreams of the process records
+        for (ProcessRecord pr = queue.poll(); pr != null; pr = queue.poll()) {
+            processes.add(pr);
             if (pr.uidRecord != null) {
                 uids.put(pr.uidRecord.uid, pr.uidRecord);
             }
@@ -502,30 +548,67 @@ public final class OomAdjuster {
             }
         }
 
-        // Reset the flag
-        app.mReachable = false;
         int size = processes.size();
-        if (size > 0) {
-            // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
-            for (int l = 0, r = size - 1; l < r; l++, r--) {
-                ProcessRecord t = processes.get(l);
-                processes.set(l, processes.get(r));
-                processes.set(r, t);
-            }
-            mAdjSeq--;
-            // Update these reachable processes
-            updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
-        } else if (app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ) {
-            // In case the app goes from non-cached to cached but it doesn't have other reachable
-            // processes, its adj could be still unknown as of now, assign one.
-            processes.add(app);
-            assignCachedAdjIfNecessary(processes);
-            applyOomAdjLocked(app, false, SystemClock.uptimeMillis(),
-                    SystemClock.elapsedRealtime());
+        // Reverse the process list, since the updateOomAdjLockedInner scans from the end of it.
+        for (int l = 0, r = size - 1; l < r; l++, r--) {
+            ProcessRecord t = processes.get(l);
+            processes.set(l, processes.get(r));
+            processes.set(r, t);
         }
-        mService.mOomAdjProfiler.oomAdjEnded();
+        return containsCycle;
+    }
+
+    /**
+     * Marks a process whose oom adj inputs, such as its bindings or provider connections, have
+     * changed. It is recomputed along with everything reachable from it by the next call to
+     * {@link #updateOomAdjPendingTargetsLocked}, which lets callers touching several processes
+     * pay for a single partial update instead of a full one.
+     */
+    @GuardedBy("mService")
+    void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        if (app != null) {
+            mPendingProcessSet.add(app);
+        }
+    }
+
+    /**
+     * Drops a process queued by {@link #enqueueOomAdjTargetLocked}, so that a process removed
+     * from the LRU list is not recomputed, or kept alive in the pending set, by the next update.
+     */
+    @GuardedBy("mService")
+    void removeOomAdjTargetLocked(ProcessRecord app) {
+        mPendingProcessSet.remove(app);
+    }
+
+    /**
+     * Updates the oom adj of the processes passed to {@link #enqueueOomAdjTargetLocked} and of
+     * all processes reachable from them, rather than of every process in the LRU list.
+     */
+    @GuardedBy("mService")
+    void updateOomAdjPendingTargetsLocked(String oomAdjReason) {
+        if (mPendingProcessSet.isEmpty()) {
+            return;
+        }
+        if (!mConstants.OOMADJ_UPDATE_QUICK) {
+            mPendingProcessSet.clear();
+            updateOomAdjLocked(oomAdjReason);
+            return;
+        }
+        final ProcessRecord topApp = mService.getTopAppLocked();
+
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
+        mService.mOomAdjProfiler.oomAdjStarted();
+
+        final ArrayList<ProcessRecord> processes = mTmpProcessList;
+        final ActiveUids uids = mTmpUidRecords;
+        final boolean containsCycle = collectReachableProcessesLocked(mPendingProcessSet,
+                processes, uids);
+        mPendingProcessSet.clear();
+        final int size = processes.size();
+        updateOomAdjLockedInner(oomAdjReason, topApp, processes, uids, containsCycle, false);
+
+        mService.mOomAdjProfiler.oomAdjEnded(size, false /* fullUpdate */);
         Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
-        return true;
     }
 
     /**
@@ -677,7 +760,7 @@ public final class OomAdjuster {
             }
         }
         if (startProfiling) {
-            mService.mOomAdjProfiler.oomAdjEnded();
+            mService.mOomAdjProfiler.oomAdjEnded(numProc, fullUpdate);
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
         }
     }
@@ -2605,6 +2605,7 @@ public final class ProcessList {
             }
             mLruProcesses.remove(lrui);
         }
+        mService.removeOomAdjTargetLocked(app);
     }
 
     @GuardedBy("mService")
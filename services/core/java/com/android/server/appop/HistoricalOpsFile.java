@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import static android.app.AppOpsManager.FILTER_BY_ATTRIBUTION_TAG;
+import static android.app.AppOpsManager.FILTER_BY_OP_NAMES;
+import static android.app.AppOpsManager.FILTER_BY_PACKAGE_NAME;
+import static android.app.AppOpsManager.FILTER_BY_UID;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.AttributedHistoricalOps;
+import android.app.AppOpsManager.HistoricalOp;
+import android.app.AppOpsManager.HistoricalOps;
+import android.app.AppOpsManager.HistoricalOpsRequestFilter;
+import android.app.AppOpsManager.HistoricalPackageOps;
+import android.app.AppOpsManager.HistoricalUidOps;
+import android.app.AppOpsManager.OpFlags;
+import android.util.ArrayMap;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import com.android.internal.util.ArrayUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Reads and writes the historical app ops of one history interval in a compact binary form.
+ *
+ * <p>A file holds a header, a table of the distinct strings (package names and attribution
+ * tags), the time range of every snapshot, an index and the records. Every record holds the
+ * counts of one op state of one snapshot. Records are grouped by uid and package, and the index
+ * holds one entry per group, sorted by uid. A query for a uid or a package only looks at the
+ * index and the records of the matching groups.
+ *
+ * <p>The file is mapped rather than read, so the records of other groups are never paged in.
+ */
+final class HistoricalOpsFile {
+    private static final int MAGIC = 0x41504831; // "APH1"
+
+    static final int VERSION = 3;
+
+    // uid, package index, records offset, record count
+    private static final int INDEX_ENTRY_SIZE = 4 * Integer.BYTES;
+    // snapshot index, attribution index, op, key, access count, reject count, access duration
+    private static final int RECORD_SIZE = 3 * Integer.BYTES + 4 * Long.BYTES;
+
+    private static final int NO_STRING = -1;
+
+    private HistoricalOpsFile() {
+    }
+
+    /**
+     * Writes the given snapshots of an interval.
+     */
+    static void write(@Nullable List<HistoricalOps> allOps, long intervalOverflowMillis,
+            @NonNull OutputStream output) throws IOException {
+        final ArrayMap<String, Integer> stringIndices = new ArrayMap<>();
+        final ArrayList<String> strings = new ArrayList<>();
+        final SparseArray<ArrayMap<String, RecordGroup>> groups = new SparseArray<>();
+
+        final int snapshotCount = allOps != null ? allOps.size() : 0;
+        for (int snapshot = 0; snapshot < snapshotCount; snapshot++) {
+            final HistoricalOps ops = allOps.get(snapshot);
+            final int uidCount = ops.getUidCount();
+            for (int i = 0; i < uidCount; i++) {
+                final HistoricalUidOps uidOps = ops.getUidOpsAt(i);
+                final int packageCount = uidOps.getPackageCount();
+                for (int j = 0; j < packageCount; j++) {
+                    final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(j);
+                    final RecordGroup group = getOrCreateGroup(groups, uidOps.getUid(),
+                            packageOps.getPackageName(), stringIndices, strings);
+                    final int attributionCount = packageOps.getAttributedOpsCount();
+                    for (int k = 0; k < attributionCount; k++) {
+                        final AttributedHistoricalOps attributionOps =
+                                packageOps.getAttributedOpsAt(k);
+                        final int attributionIndex = indexOfString(attributionOps.getTag(),
+                                stringIndices, strings);
+                        final int opCount = attributionOps.getOpCount();
+                        for (int l = 0; l < opCount; l++) {
+                            writeOpRecords(group, snapshot, attributionIndex,
+                                    attributionOps.getOpAt(l));
+                        }
+                    }
+                }
+            }
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(intervalOverflowMillis);
+
+        out.writeInt(strings.size());
+        for (int i = 0; i < strings.size(); i++) {
+            final byte[] bytes = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        out.writeInt(snapshotCount);
+        for (int i = 0; i < snapshotCount; i++) {
+            out.writeLong(allOps.get(i).getBeginTimeMillis());
+            out.writeLong(allOps.get(i).getEndTimeMillis());
+        }
+
+        int groupCount = 0;
+        for (int i = 0; i < groups.size(); i++) {
+            groupCount += groups.valueAt(i).size();
+        }
+        out.writeInt(groupCount);
+        int recordsOffset = 0;
+        for (int i = 0; i < groups.size(); i++) {
+            final ArrayMap<String, RecordGroup> uidGroups = groups.valueAt(i);
+            for (int j = 0; j < uidGroups.size(); j++) {
+                final RecordGroup group = uidGroups.valueAt(j);
+                out.writeInt(groups.keyAt(i));
+                out.writeInt(group.packageIndex);
+                out.writeInt(recordsOffset);
+                out.writeInt(group.recordCount);
+                recordsOffset += group.recordCount * RECORD_SIZE;
+            }
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            final ArrayMap<String, RecordGroup> uidGroups = groups.valueAt(i);
+            for (int j = 0; j < uidGroups.size(); j++) {
+                uidGroups.valueAt(j).bytes.writeTo(out);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeOpRecords(@NonNull RecordGroup group, int snapshot,
+            int attributionIndex, @NonNull HistoricalOp op) throws IOException {
+        final LongSparseArray keys = op.collectKeys();
+        if (keys == null) {
+            return;
+        }
+        final int keyCount = keys.size();
+        for (int i = 0; i < keyCount; i++) {
+            final long key = keys.keyAt(i);
+            final int uidState = AppOpsManager.extractUidStateFromKey(key);
+            final int flags = AppOpsManager.extractFlagsFromKey(key);
+            final long accessCount = op.getAccessCount(uidState, uidState, flags);
+            final long rejectCount = op.getRejectCount(uidState, uidState, flags);
+            final long accessDuration = op.getAccessDuration(uidState, uidState, flags);
+            if (accessCount <= 0 && rejectCount <= 0 && accessDuration <= 0) {
+                continue;
+            }
+            group.out.writeInt(snapshot);
+            group.out.writeInt(attributionIndex);
+            group.out.writeInt(op.getOpCode());
+            group.out.writeLong(key);
+            group.out.writeLong(accessCount);
+            group.out.writeLong(rejectCount);
+            group.out.writeLong(accessDuration);
+            group.recordCount++;
+        }
+    }
+
+    private static @NonNull RecordGroup getOrCreateGroup(
+            @NonNull SparseArray<ArrayMap<String, RecordGroup>> groups, int uid,
+            @NonNull String packageName, @NonNull ArrayMap<String, Integer> stringIndices,
+            @NonNull ArrayList<String> strings) {
+        ArrayMap<String, RecordGroup> uidGroups = groups.get(uid);
+        if (uidGroups == null) {
+            uidGroups = new ArrayMap<>();
+            groups.put(uid, uidGroups);
+        }
+        RecordGroup group = uidGroups.get(packageName);
+        if (group == null) {
+            group = new RecordGroup(indexOfString(packageName, stringIndices, strings));
+            uidGroups.put(packageName, group);
+        }
+        return group;
+    }
+
+    private static int indexOfString(@Nullable String string,
+            @NonNull ArrayMap<String, Integer> stringIndices, @NonNull ArrayList<String> strings) {
+        if (string == null) {
+            return NO_STRING;
+        }
+        Integer index = stringIndices.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndices.put(string, index);
+        }
+        return index;
+    }
+
+    /**
+     * Reads the snapshots of an interval matching the given filter, with the same semantics as
+     * reading the legacy XML history files.
+     *
+     * @return the matching snapshots, or {@code null} if no snapshot matched.
+     */
+    static @Nullable List<HistoricalOps> read(@NonNull File file, int filterUid,
+            @Nullable String filterPackageName, @Nullable String filterAttributionTag,
+            @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
+            long filterBeginTimeMillis, long filterEndTimeMillis, @OpFlags int filterFlags,
+            @Nullable long[] cumulativeOverflowMillis) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            try {
+                return read(buffer, filterUid, filterPackageName, filterAttributionTag,
+                        filterOpNames, filter, filterBeginTimeMillis, filterEndTimeMillis,
+                        filterFlags, cumulativeOverflowMillis);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Truncated history file: " + file, e);
+            }
+        }
+    }
+
+    private static @Nullable List<HistoricalOps> read(@NonNull ByteBuffer buffer, int filterUid,
+            @Nullable String filterPackageName, @Nullable String filterAttributionTag,
+            @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
+            long filterBeginTimeMillis, long filterEndTimeMillis, @OpFlags int filterFlags,
+            @Nullable long[] cumulativeOverflowMillis) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a history file");
+        }
+        final int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalStateException("Dropping unsupported history version " + version);
+        }
+        final long overflowMillis = buffer.getLong();
+
+        final String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Resolve the time filter per snapshot before looking at any record.
+        final long offsetMillis = cumulativeOverflowMillis != null
+                ? cumulativeOverflowMillis[0] : 0;
+        final int snapshotCount = buffer.getInt();
+        final long[] filteredBeginTimesMillis = new long[snapshotCount];
+        final long[] filteredEndTimesMillis = new long[snapshotCount];
+        final double[] filterScales = new double[snapshotCount];
+        final boolean[] matchingSnapshots = new boolean[snapshotCount];
+        boolean anySnapshotMatches = false;
+        for (int i = 0; i < snapshotCount; i++) {
+            final long beginTimeMillis = buffer.getLong() + offsetMillis;
+            final long endTimeMillis = buffer.getLong() + offsetMillis;
+            if (filterEndTimeMillis < beginTimeMillis || filterBeginTimeMillis > endTimeMillis) {
+                continue;
+            }
+            filteredBeginTimesMillis[i] = Math.max(beginTimeMillis, filterBeginTimeMillis);
+            filteredEndTimesMillis[i] = Math.min(endTimeMillis, filterEndTimeMillis);
+            filterScales[i] = (double) (filteredEndTimesMillis[i] - filteredBeginTimesMillis[i])
+                    / (double) (endTimeMillis - beginTimeMillis);
+            matchingSnapshots[i] = true;
+            anySnapshotMatches = true;
+        }
+
+        final int indexCount = buffer.getInt();
+        final int indexStart = buffer.position();
+        final int recordsStart = indexStart + indexCount * INDEX_ENTRY_SIZE;
+        final HistoricalOps[] snapshotOps = new HistoricalOps[snapshotCount];
+        for (int i = 0; anySnapshotMatches && i < indexCount; i++) {
+            final int entryStart = indexStart + i * INDEX_ENTRY_SIZE;
+            final int uid = buffer.getInt(entryStart);
+            if ((filter & FILTER_BY_UID) != 0 && filterUid != uid) {
+                if (uid > filterUid) {
+                    // The index is sorted by uid.
+                    break;
+                }
+                continue;
+            }
+            final String packageName = strings[buffer.getInt(entryStart + Integer.BYTES)];
+            if ((filter & FILTER_BY_PACKAGE_NAME) != 0
+                    && !filterPackageName.equals(packageName)) {
+                continue;
+            }
+            final int groupStart = recordsStart + buffer.getInt(entryStart + 2 * Integer.BYTES);
+            final int recordCount = buffer.getInt(entryStart + 3 * Integer.BYTES);
+            for (int j = 0; j < recordCount; j++) {
+                final int recordStart = groupStart + j * RECORD_SIZE;
+                final int snapshot = buffer.getInt(recordStart);
+                if (!matchingSnapshots[snapshot]) {
+                    continue;
+                }
+                final int attributionIndex = buffer.getInt(recordStart + Integer.BYTES);
+                final String attributionTag = attributionIndex != NO_STRING
+                        ? strings[attributionIndex] : null;
+                if ((filter & FILTER_BY_ATTRIBUTION_TAG) != 0
+                        && !Objects.equals(filterAttributionTag, attributionTag)) {
+                    continue;
+                }
+                final int op = buffer.getInt(recordStart + 2 * Integer.BYTES);
+                if ((filter & FILTER_BY_OP_NAMES) != 0 && !ArrayUtils.contains(filterOpNames,
+                        AppOpsManager.opToPublicName(op))) {
+                    continue;
+                }
+                final int valuesStart = recordStart + 3 * Integer.BYTES;
+                snapshotOps[snapshot] = addState(snapshotOps[snapshot], uid, packageName,
+                        attributionTag, op, buffer.getLong(valuesStart),
+                        buffer.getLong(valuesStart + Long.BYTES),
+                        buffer.getLong(valuesStart + 2 * Long.BYTES),
+                        buffer.getLong(valuesStart + 3 * Long.BYTES),
+                        filterFlags, filterScales[snapshot]);
+            }
+        }
+
+        List<HistoricalOps> allOps = null;
+        for (int i = 0; i < snapshotCount; i++) {
+            final HistoricalOps ops = snapshotOps[i];
+            if (ops == null) {
+                continue;
+            }
+            ops.setBeginAndEndTime(filteredBeginTimesMillis[i], filteredEndTimesMillis[i]);
+            if (allOps == null) {
+                allOps = new ArrayList<>();
+            }
+            allOps.add(ops);
+        }
+        if (cumulativeOverflowMillis != null) {
+            cumulativeOverflowMillis[0] += overflowMillis;
+        }
+        return allOps;
+    }
+
+    /**
+     * Adds the persisted counts of one op state to a snapshot, scaled by the part of the
+     * snapshot that matches the time filter.
+     *
+     * @return the snapshot, created if {@code ops} is {@code null} and anything was added.
+     */
+    static @Nullable HistoricalOps addState(@Nullable HistoricalOps ops, int uid,
+            @NonNull String packageName, @Nullable String attributionTag, int op, long key,
+            long accessCount, long rejectCount, long accessDuration, @OpFlags int filterFlags,
+            double filterScale) {
+        final int flags = AppOpsManager.extractFlagsFromKey(key) & filterFlags;
+        if (flags == 0) {
+            return ops;
+        }
+        final int uidState = AppOpsManager.extractUidStateFromKey(key);
+        if (accessCount > 0) {
+            if (!Double.isNaN(filterScale)) {
+                accessCount = (long) HistoricalOps.round((double) accessCount * filterScale);
+            }
+            if (ops == null) {
+                ops = new HistoricalOps(0, 0);
+            }
+            ops.increaseAccessCount(op, uid, packageName, attributionTag, uidState, flags,
+                    accessCount);
+        }
+        if (rejectCount > 0) {
+            if (!Double.isNaN(filterScale)) {
+                rejectCount = (long) HistoricalOps.round((double) rejectCount * filterScale);
+            }
+            if (ops == null) {
+                ops = new HistoricalOps(0, 0);
+            }
+            ops.increaseRejectCount(op, uid, packageName, attributionTag, uidState, flags,
+                    rejectCount);
+        }
+        if (accessDuration > 0) {
+            if (!Double.isNaN(filterScale)) {
+                accessDuration = (long) HistoricalOps.round(
+                        (double) accessDuration * filterScale);
+            }
+            if (ops == null) {
+                ops = new HistoricalOps(0, 0);
+            }
+            ops.increaseAccessDuration(op, uid, packageName, attributionTag, uidState, flags,
+                    accessDuration);
+        }
+        return ops;
+    }
+
+    /** The records of one uid and package while a file is being written. */
+    private static final class RecordGroup {
+        final int packageIndex;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        int recordCount;
+
+        RecordGroup(int packageIndex) {
+            this.packageIndex = packageIndex;
+        }
+    }
+}
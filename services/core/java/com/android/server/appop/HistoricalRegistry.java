@@ -52,6 +52,7 @@ import android.util.TimeUtils;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.AtomicDirectory;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
@@ -61,16 +62,17 @@ import com.android.server.FgThread;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -156,7 +158,11 @@ final class HistoricalRegistry {
     // See mIntervalCompressionMultiplier
     private static final long DEFAULT_COMPRESSION_STEP = 10;
 
-    private static final String HISTORY_FILE_SUFFIX = ".xml";
+    private static final String HISTORY_FILE_SUFFIX = ".bin";
+
+    // History files written before the binary format, see HistoricalOpsFile. They are still
+    // read, and migrated the next time the history is persisted.
+    private static final String LEGACY_HISTORY_FILE_SUFFIX = ".xml";
 
     /**
      * Whether history is enabled.
@@ -745,7 +751,8 @@ final class HistoricalRegistry {
                 PROPERTY_PERMISSIONS_HUB_ENABLED, false);
     }
 
-    private static final class Persistence {
+    @VisibleForTesting
+    static final class Persistence {
         private static final boolean DEBUG = false;
 
         private static final String LOG_TAG = Persistence.class.getSimpleName();
@@ -767,7 +774,7 @@ final class HistoricalRegistry {
         private static final String ATTR_END_TIME = "end";
         private static final String ATTR_OVERFLOW = "ov";
 
-        private static final int CURRENT_VERSION = 2;
+        private static final int LEGACY_VERSION = 2;
 
         private final long mBaseSnapshotInterval;
         private final long mIntervalCompressionMultiplier;
@@ -785,6 +792,12 @@ final class HistoricalRegistry {
             return new File(baseDir, Long.toString(globalBeginMillis) + HISTORY_FILE_SUFFIX);
         }
 
+        private File generateLegacyFile(@NonNull File baseDir, int depth) {
+            final long globalBeginMillis = computeGlobalIntervalBeginMillis(depth);
+            return new File(baseDir, Long.toString(globalBeginMillis)
+                    + LEGACY_HISTORY_FILE_SUFFIX);
+        }
+
         void clearHistoryDLocked(int uid, String packageName) {
             List<HistoricalOps> historicalOps = readHistoryDLocked();
 
@@ -859,7 +872,8 @@ final class HistoricalRegistry {
                     File shortestFile = null;
                     for (File candidate : files) {
                         final String candidateName = candidate.getName();
-                        if (!candidateName.endsWith(HISTORY_FILE_SUFFIX)) {
+                        if (!candidateName.endsWith(HISTORY_FILE_SUFFIX)
+                                && !candidateName.endsWith(LEGACY_HISTORY_FILE_SUFFIX)) {
                             continue;
                         }
                         if (shortestFile == null) {
@@ -997,9 +1011,12 @@ final class HistoricalRegistry {
                 if (!oldFileNames.isEmpty()) {
                     // If there is an old file we need to copy it over to the new state.
                     final File oldFile = generateFile(oldBaseDir, depth);
+                    final File oldLegacyFile = generateLegacyFile(oldBaseDir, depth);
                     if (oldFileNames.remove(oldFile.getName())) {
                         final File newFile = generateFile(newBaseDir, depth);
                         Files.createLink(newFile.toPath(), oldFile.toPath());
+                    } else if (oldFileNames.remove(oldLegacyFile.getName())) {
+                        migrateLegacyFileDLocked(oldLegacyFile, generateFile(newBaseDir, depth));
                     }
                     handlePersistHistoricalOpsRecursiveDLocked(newBaseDir, oldBaseDir,
                             passedOps, oldFileNames, depth + 1);
@@ -1123,6 +1140,7 @@ final class HistoricalRegistry {
 
             final File newFile = generateFile(newBaseDir, depth);
             oldFileNames.remove(newFile.getName());
+            oldFileNames.remove(generateLegacyFile(newBaseDir, depth).getName());
 
             if (persistedOps != null) {
                 normalizeSnapshotForSlotDuration(persistedOps, slotDurationMillis);
@@ -1146,9 +1164,14 @@ final class HistoricalRegistry {
                 @Nullable long[] cumulativeOverflowMillis, int depth,
                 @NonNull Set<String> historyFiles)
                 throws IOException, XmlPullParserException {
-            final File file = generateFile(baseDir, depth);
+            File file = generateFile(baseDir, depth);
+            final File legacyFile = generateLegacyFile(baseDir, depth);
             if (historyFiles != null) {
                 historyFiles.remove(file.getName());
+                historyFiles.remove(legacyFile.getName());
+            }
+            if (!file.exists() && legacyFile.exists()) {
+                file = legacyFile;
             }
             if (filterBeginTimeMillis >= filterEndTimeMillis
                     || filterEndTimeMillis < intervalBeginMillis) {
@@ -1183,6 +1206,22 @@ final class HistoricalRegistry {
                 Slog.i(LOG_TAG, "Reading ops from:" + file);
             }
             List<HistoricalOps> allOps = null;
+            if (file.getName().endsWith(HISTORY_FILE_SUFFIX)) {
+                try {
+                    allOps = HistoricalOpsFile.read(file, filterUid, filterPackageName,
+                            filterAttributionTag, filterOpNames, filter, filterBeginTimeMillis,
+                            filterEndTimeMillis, filterFlags, cumulativeOverflowMillis);
+                } catch (NoSuchFileException e) {
+                    Slog.i(LOG_TAG, "No history file: " + file.getName());
+                    return Collections.emptyList();
+                }
+                if (DEBUG && allOps != null) {
+                    Slog.i(LOG_TAG, "Read from file: " + file + " ops:\n"
+                            + opsToDebugString(allOps));
+                    enforceOpsWellFormed(allOps);
+                }
+                return allOps;
+            }
             try (FileInputStream stream = new FileInputStream(file)) {
                 final XmlPullParser parser = Xml.newPullParser();
                 parser.setInput(stream, StandardCharsets.UTF_8.name());
@@ -1191,7 +1230,7 @@ final class HistoricalRegistry {
                 // We haven't released version 1 and have more detailed
                 // accounting - just nuke the current state
                 final int version = XmlUtils.readIntAttribute(parser, ATTR_VERSION);
-                if (CURRENT_VERSION == 2 && version < CURRENT_VERSION) {
+                if (LEGACY_VERSION == 2 && version < LEGACY_VERSION) {
                     throw new IllegalStateException("Dropping unsupported history "
                             + "version 1 for file:" + file);
                 }
@@ -1385,74 +1424,18 @@ final class HistoricalRegistry {
                 @NonNull XmlPullParser parser, @OpFlags int filterFlags, double filterScale)
                 throws IOException {
             final long key = XmlUtils.readLongAttribute(parser, ATTR_NAME);
-            final int flags = AppOpsManager.extractFlagsFromKey(key) & filterFlags;
-            if (flags == 0) {
-                return null;
-            }
-            final int uidState = AppOpsManager.extractUidStateFromKey(key);
-            long accessCount = XmlUtils.readLongAttribute(parser, ATTR_ACCESS_COUNT, 0);
-            if (accessCount > 0) {
-                if (!Double.isNaN(filterScale)) {
-                    accessCount = (long) HistoricalOps.round(
-                            (double) accessCount * filterScale);
-                }
-                if (ops == null) {
-                    ops = new HistoricalOps(0, 0);
-                }
-                ops.increaseAccessCount(op, uid, packageName, attributionTag, uidState, flags,
-                        accessCount);
-            }
-            long rejectCount = XmlUtils.readLongAttribute(parser, ATTR_REJECT_COUNT, 0);
-            if (rejectCount > 0) {
-                if (!Double.isNaN(filterScale)) {
-                    rejectCount = (long) HistoricalOps.round(
-                            (double) rejectCount * filterScale);
-                }
-                if (ops == null) {
-                    ops = new HistoricalOps(0, 0);
-                }
-                ops.increaseRejectCount(op, uid, packageName, attributionTag, uidState, flags,
-                        rejectCount);
-            }
-            long accessDuration =  XmlUtils.readLongAttribute(parser, ATTR_ACCESS_DURATION, 0);
-            if (accessDuration > 0) {
-                if (!Double.isNaN(filterScale)) {
-                    accessDuration = (long) HistoricalOps.round(
-                            (double) accessDuration * filterScale);
-                }
-                if (ops == null) {
-                    ops = new HistoricalOps(0, 0);
-                }
-                ops.increaseAccessDuration(op, uid, packageName, attributionTag, uidState, flags,
-                        accessDuration);
-            }
-            return ops;
+            return HistoricalOpsFile.addState(ops, uid, packageName, attributionTag, op, key,
+                    XmlUtils.readLongAttribute(parser, ATTR_ACCESS_COUNT, 0),
+                    XmlUtils.readLongAttribute(parser, ATTR_REJECT_COUNT, 0),
+                    XmlUtils.readLongAttribute(parser, ATTR_ACCESS_DURATION, 0),
+                    filterFlags, filterScale);
         }
 
         private void writeHistoricalOpsDLocked(@Nullable List<HistoricalOps> allOps,
                 long intervalOverflowMillis, @NonNull File file) throws IOException {
             final FileOutputStream output = sHistoricalAppOpsDir.openWrite(file);
             try {
-                final XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(output, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_HISTORY);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(CURRENT_VERSION));
-                if (intervalOverflowMillis != 0) {
-                    serializer.attribute(null, ATTR_OVERFLOW,
-                            Long.toString(intervalOverflowMillis));
-                }
-                if (allOps != null) {
-                    final int opsCount = allOps.size();
-                    for (int i = 0; i < opsCount; i++) {
-                        final HistoricalOps ops = allOps.get(i);
-                        writeHistoricalOpDLocked(ops, serializer);
-                    }
-                }
-                serializer.endTag(null, TAG_HISTORY);
-                serializer.endDocument();
+                HistoricalOpsFile.write(allOps, intervalOverflowMillis, output);
                 sHistoricalAppOpsDir.closeWrite(output);
             } catch (IOException e) {
                 sHistoricalAppOpsDir.failWrite(output);
@@ -1460,96 +1443,36 @@ final class HistoricalRegistry {
             }
         }
 
-        private void writeHistoricalOpDLocked(@NonNull HistoricalOps ops,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_OPS);
-            serializer.attribute(null, ATTR_BEGIN_TIME, Long.toString(ops.getBeginTimeMillis()));
-            serializer.attribute(null, ATTR_END_TIME, Long.toString(ops.getEndTimeMillis()));
-            final int uidCount = ops.getUidCount();
-            for (int i = 0; i < uidCount; i++) {
-                final HistoricalUidOps uidOp = ops.getUidOpsAt(i);
-                writeHistoricalUidOpsDLocked(uidOp, serializer);
-            }
-            serializer.endTag(null, TAG_OPS);
-        }
-
-        private void writeHistoricalUidOpsDLocked(@NonNull HistoricalUidOps uidOps,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_UID);
-            serializer.attribute(null, ATTR_NAME, Integer.toString(uidOps.getUid()));
-            final int packageCount = uidOps.getPackageCount();
-            for (int i = 0; i < packageCount; i++) {
-                final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(i);
-                writeHistoricalPackageOpsDLocked(packageOps, serializer);
-            }
-            serializer.endTag(null, TAG_UID);
-        }
-
-        private void writeHistoricalPackageOpsDLocked(@NonNull HistoricalPackageOps packageOps,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_PACKAGE);
-            serializer.attribute(null, ATTR_NAME, packageOps.getPackageName());
-            final int numAttributions = packageOps.getAttributedOpsCount();
-            for (int i = 0; i < numAttributions; i++) {
-                final AppOpsManager.AttributedHistoricalOps op = packageOps.getAttributedOpsAt(i);
-                writeHistoricalAttributionOpsDLocked(op, serializer);
-            }
-            serializer.endTag(null, TAG_PACKAGE);
-        }
-
-        private void writeHistoricalAttributionOpsDLocked(
-                @NonNull AppOpsManager.AttributedHistoricalOps attributionOps,
-                @NonNull XmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_ATTRIBUTION);
-            XmlUtils.writeStringAttribute(serializer, ATTR_NAME, attributionOps.getTag());
-            final int opCount = attributionOps.getOpCount();
-            for (int i = 0; i < opCount; i++) {
-                final HistoricalOp op = attributionOps.getOpAt(i);
-                writeHistoricalOpDLocked(op, serializer);
-            }
-            serializer.endTag(null, TAG_ATTRIBUTION);
-        }
-
-        private void writeHistoricalOpDLocked(@NonNull HistoricalOp op,
-                @NonNull XmlSerializer serializer) throws IOException {
-            final LongSparseArray keys = op.collectKeys();
-            if (keys == null || keys.size() <= 0) {
-                return;
+        /**
+         * Rewrites a history file in the legacy XML format as a binary file with the same
+         * contents.
+         */
+        private void migrateLegacyFileDLocked(@NonNull File legacyFile, @NonNull File newFile)
+                throws IOException, XmlPullParserException {
+            final FileOutputStream output = sHistoricalAppOpsDir.openWrite(newFile);
+            try {
+                migrateLegacyFileDLocked(legacyFile, output);
+                sHistoricalAppOpsDir.closeWrite(output);
+            } catch (IOException | XmlPullParserException e) {
+                sHistoricalAppOpsDir.failWrite(output);
+                throw e;
             }
-            serializer.startTag(null, TAG_OP);
-            serializer.attribute(null, ATTR_NAME, Integer.toString(op.getOpCode()));
-            final int keyCount = keys.size();
-            for (int i = 0; i < keyCount; i++) {
-                writeStateOnLocked(op, keys.keyAt(i), serializer);
+            if (DEBUG) {
+                Slog.i(LOG_TAG, "Migrated " + legacyFile + " to " + newFile);
             }
-            serializer.endTag(null, TAG_OP);
         }
 
-        private void writeStateOnLocked(@NonNull HistoricalOp op, long key,
-                @NonNull XmlSerializer serializer) throws IOException {
-            final int uidState = AppOpsManager.extractUidStateFromKey(key);
-            final int flags = AppOpsManager.extractFlagsFromKey(key);
-
-            final long accessCount = op.getAccessCount(uidState, uidState, flags);
-            final long rejectCount = op.getRejectCount(uidState, uidState, flags);
-            final long accessDuration = op.getAccessDuration(uidState, uidState, flags);
-
-            if (accessCount <= 0 && rejectCount <= 0 && accessDuration <= 0) {
-                return;
-            }
-
-            serializer.startTag(null, TAG_STATE);
-            serializer.attribute(null, ATTR_NAME, Long.toString(key));
-            if (accessCount > 0) {
-                serializer.attribute(null, ATTR_ACCESS_COUNT, Long.toString(accessCount));
-            }
-            if (rejectCount > 0) {
-                serializer.attribute(null, ATTR_REJECT_COUNT, Long.toString(rejectCount));
-            }
-            if (accessDuration > 0) {
-                serializer.attribute(null, ATTR_ACCESS_DURATION, Long.toString(accessDuration));
-            }
-            serializer.endTag(null, TAG_STATE);
+        @VisibleForTesting
+        void migrateLegacyFileDLocked(@NonNull File legacyFile, @NonNull OutputStream output)
+                throws IOException, XmlPullParserException {
+            final long[] overflowMillis = {0};
+            final List<HistoricalOps> ops = readHistoricalOpsLocked(legacyFile,
+                    Process.INVALID_UID /*filterUid*/, null /*filterPackageName*/,
+                    null /*filterAttributionTag*/, null /*filterOpNames*/, 0 /*filter*/,
+                    Long.MIN_VALUE /*filterBeginTimeMillis*/,
+                    Long.MAX_VALUE /*filterEndTimeMillis*/, AppOpsManager.OP_FLAGS_ALL,
+                    overflowMillis);
+            HistoricalOpsFile.write(ops, overflowMillis[0], output);
         }
 
         private static void enforceOpsWellFormed(@NonNull List<HistoricalOps> ops) {
@@ -1727,7 +1650,8 @@ final class HistoricalRegistry {
                     longestName = file.getName();
                 }
             }
-            return Long.parseLong(longestName.replace(HISTORY_FILE_SUFFIX, ""));
+            return Long.parseLong(longestName.replace(HISTORY_FILE_SUFFIX, "")
+                    .replace(LEGACY_HISTORY_FILE_SUFFIX, ""));
         }
     }
 
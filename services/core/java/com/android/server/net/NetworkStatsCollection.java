@@ -49,17 +49,16 @@ import android.util.IntArray;
 import android.util.MathUtils;
 import android.util.Range;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FileRotator;
 import com.android.internal.util.IndentingPrintWriter;
 
 import libcore.io.IoUtils;
 
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
@@ -73,13 +72,15 @@ import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Objects;
 
 /**
  * Collection of {@link NetworkStatsHistory}, stored based on combined key of
  * {@link NetworkIdentitySet}, UID, set, and tag. Knows how to persist itself.
+ * <p>
+ * Keys are also indexed by UID and by {@link NetworkIdentitySet}, so that queries
+ * only visit the histories they could possibly match.
  */
 public class NetworkStatsCollection implements FileRotator.Reader {
     /** File header magic number: "ANET" */
@@ -96,6 +97,11 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    /** Keys of {@link #mStats} grouped by UID. */
+    private final SparseArray<ArrayList<Key>> mKeysByUid = new SparseArray<>();
+    /** Keys of {@link #mStats} grouped by {@link NetworkIdentitySet}. */
+    private final ArrayMap<NetworkIdentitySet, ArrayList<Key>> mKeysByIdent = new ArrayMap<>();
+
     private final long mBucketDuration;
 
     private long mStartMillis;
@@ -114,6 +120,8 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public void reset() {
         mStats.clear();
+        mKeysByUid.clear();
+        mKeysByIdent.clear();
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -220,16 +228,12 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
+        // UIDs come out of the index already sorted.
         IntArray uids = new IntArray();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = uids.binarySearch(key.uid);
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        for (int i = 0; i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return uids.toArray();
@@ -289,11 +293,13 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+        final ArrayList<Key> keys = mKeysByUid.get(uid);
+        final int keyCount = keys != null ? keys.size() : 0;
+        for (int i = 0; i < keyCount; i++) {
+            final Key key = keys.get(i);
+            if (NetworkStats.setMatches(set, key.set) && key.tag == tag
                     && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+                final NetworkStatsHistory value = mStats.get(key);
                 combined.recordHistory(value, collectStart, collectEnd);
             }
         }
@@ -364,30 +370,38 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
-                    && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                historyEntry = value.getValues(start, end, now, historyEntry);
-
-                entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork() ?
-                        DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
-                entry.rxBytes = historyEntry.rxBytes;
-                entry.rxPackets = historyEntry.rxPackets;
-                entry.txBytes = historyEntry.txBytes;
-                entry.txPackets = historyEntry.txPackets;
-                entry.operations = historyEntry.operations;
-
-                if (!entry.isEmpty()) {
-                    stats.combineValues(entry);
+        for (int i = 0; i < mKeysByIdent.size(); i++) {
+            final NetworkIdentitySet ident = mKeysByIdent.keyAt(i);
+            if (!templateMatches(template, ident)) continue;
+
+            final int defaultNetwork = ident.areAllMembersOnDefaultNetwork() ?
+                    DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+            final int metered = ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+            final int roaming = ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+            final ArrayList<Key> keys = mKeysByIdent.valueAt(i);
+            for (int j = 0; j < keys.size(); j++) {
+                final Key key = keys.get(j);
+                if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
+                        && key.set < NetworkStats.SET_DEBUG_START) {
+                    final NetworkStatsHistory value = mStats.get(key);
+                    historyEntry = value.getValues(start, end, now, historyEntry);
+
+                    entry.iface = IFACE_ALL;
+                    entry.uid = key.uid;
+                    entry.set = key.set;
+                    entry.tag = key.tag;
+                    entry.defaultNetwork = defaultNetwork;
+                    entry.metered = metered;
+                    entry.roaming = roaming;
+                    entry.rxBytes = historyEntry.rxBytes;
+                    entry.rxPackets = historyEntry.rxPackets;
+                    entry.txBytes = historyEntry.txBytes;
+                    entry.txPackets = historyEntry.txPackets;
+                    entry.operations = historyEntry.operations;
+
+                    if (!entry.isEmpty()) {
+                        stats.combineValues(entry);
+                    }
                 }
             }
         }
@@ -415,7 +429,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         NetworkStatsHistory target = mStats.get(key);
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+            putHistory(key, target);
         }
         target.recordEntireHistory(history);
     }
@@ -434,8 +448,10 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
-        final Key key = new Key(ident, uid, set, tag);
-        final NetworkStatsHistory existing = mStats.get(key);
+        // look the key up through the uid index, so that recording into an existing
+        // history, by far the common case when polling, doesn't allocate
+        Key key = findKey(ident, uid, set, tag);
+        final NetworkStatsHistory existing = key != null ? mStats.get(key) : null;
 
         // update when no existing, or when bucket duration changed
         NetworkStatsHistory updated = null;
@@ -446,13 +462,63 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
 
         if (updated != null) {
-            mStats.put(key, updated);
+            if (key == null) {
+                key = new Key(ident, uid, set, tag);
+            }
+            putHistory(key, updated);
             return updated;
         } else {
             return existing;
         }
     }
 
+    private Key findKey(NetworkIdentitySet ident, int uid, int set, int tag) {
+        final ArrayList<Key> keysForUid = mKeysByUid.get(uid);
+        if (keysForUid == null) return null;
+        for (int i = 0; i < keysForUid.size(); i++) {
+            final Key key = keysForUid.get(i);
+            if (key.set == set && key.tag == tag && Objects.equals(key.ident, ident)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private void putHistory(Key key, NetworkStatsHistory history) {
+        if (mStats.put(key, history) != null) {
+            // Already indexed.
+            return;
+        }
+        ArrayList<Key> keysForUid = mKeysByUid.get(key.uid);
+        if (keysForUid == null) {
+            keysForUid = new ArrayList<>();
+            mKeysByUid.put(key.uid, keysForUid);
+        }
+        keysForUid.add(key);
+        ArrayList<Key> keysForIdent = mKeysByIdent.get(key.ident);
+        if (keysForIdent == null) {
+            keysForIdent = new ArrayList<>();
+            mKeysByIdent.put(key.ident, keysForIdent);
+        }
+        keysForIdent.add(key);
+    }
+
+    private void removeHistory(Key key) {
+        if (mStats.remove(key) == null) {
+            return;
+        }
+        final ArrayList<Key> keysForUid = mKeysByUid.get(key.uid);
+        keysForUid.remove(key);
+        if (keysForUid.isEmpty()) {
+            mKeysByUid.remove(key.uid);
+        }
+        final ArrayList<Key> keysForIdent = mKeysByIdent.get(key.ident);
+        keysForIdent.remove(key);
+        if (keysForIdent.isEmpty()) {
+            mKeysByIdent.remove(key.ident);
+        }
+    }
+
     @Override
     public void read(InputStream in) throws IOException {
         read(new DataInputStream(in));
@@ -493,23 +559,14 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     public void write(DataOutputStream out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
-            }
-            keys.add(key);
-        }
-
+        // key lists are already clustered by ident
         out.writeInt(FILE_MAGIC);
         out.writeInt(VERSION_UNIFIED_INIT);
 
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
+        out.writeInt(mKeysByIdent.size());
+        for (int i = 0; i < mKeysByIdent.size(); i++) {
+            final NetworkIdentitySet ident = mKeysByIdent.keyAt(i);
+            final ArrayList<Key> keys = mKeysByIdent.valueAt(i);
             ident.writeToStream(out);
 
             out.writeInt(keys.size());
@@ -635,12 +692,12 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * {@link TrafficStats#UID_REMOVED}.
      */
     public void removeUids(int[] uids) {
-        final ArrayList<Key> knownKeys = Lists.newArrayList();
-        knownKeys.addAll(mStats.keySet());
-
         // migrate all UID stats into special "removed" bucket
-        for (Key key : knownKeys) {
-            if (ArrayUtils.contains(uids, key.uid)) {
+        for (int uid : uids) {
+            final ArrayList<Key> keysForUid = mKeysByUid.get(uid);
+            if (keysForUid == null) continue;
+
+            for (Key key : new ArrayList<>(keysForUid)) {
                 // only migrate combined TAG_NONE history
                 if (key.tag == TAG_NONE) {
                     final NetworkStatsHistory uidHistory = mStats.get(key);
@@ -648,7 +705,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                             key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
                     removedHistory.recordEntireHistory(uidHistory);
                 }
-                mStats.remove(key);
+                removeHistory(key);
                 mDirty = true;
             }
         }
@@ -726,20 +783,24 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         final ArrayMap<Key, NetworkStatsHistory> grouped = new ArrayMap<>();
 
         // Walk through all history, grouping by matching network templates
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            final NetworkStatsHistory value = mStats.valueAt(i);
-
-            if (!templateMatches(groupTemplate, key.ident)) continue;
-            if (key.set >= NetworkStats.SET_DEBUG_START) continue;
-
-            final Key groupKey = new Key(null, key.uid, key.set, key.tag);
-            NetworkStatsHistory groupHistory = grouped.get(groupKey);
-            if (groupHistory == null) {
-                groupHistory = new NetworkStatsHistory(value.getBucketDuration());
-                grouped.put(groupKey, groupHistory);
+        for (int i = 0; i < mKeysByIdent.size(); i++) {
+            if (!templateMatches(groupTemplate, mKeysByIdent.keyAt(i))) continue;
+
+            final ArrayList<Key> keys = mKeysByIdent.valueAt(i);
+            for (int j = 0; j < keys.size(); j++) {
+                final Key key = keys.get(j);
+                final NetworkStatsHistory value = mStats.get(key);
+
+                if (key.set >= NetworkStats.SET_DEBUG_START) continue;
+
+                final Key groupKey = new Key(null, key.uid, key.set, key.tag);
+                NetworkStatsHistory groupHistory = grouped.get(groupKey);
+                if (groupHistory == null) {
+                    groupHistory = new NetworkStatsHistory(value.getBucketDuration());
+                    grouped.put(groupKey, groupHistory);
+                }
+                groupHistory.recordHistory(value, start, end);
             }
-            groupHistory.recordHistory(value, start, end);
         }
 
         for (int i = 0; i < grouped.size(); i++) {
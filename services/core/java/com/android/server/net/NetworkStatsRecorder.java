@@ -21,6 +21,7 @@ import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
 
+import android.annotation.Nullable;
 import android.net.NetworkStats;
 import android.net.NetworkStats.NonMonotonicObserver;
 import android.net.NetworkStatsHistory;
@@ -83,6 +84,10 @@ public class NetworkStatsRecorder {
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
 
+    /** Delta between the last two snapshots, its buffers are reused by the next poll. */
+    private NetworkStats mDelta;
+    private final NetworkStats.Entry mDeltaEntry = new NetworkStats.Entry();
+
     private final NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
 
@@ -205,27 +210,47 @@ public class NetworkStatsRecorder {
      */
     public void recordSnapshotLocked(NetworkStats snapshot,
             Map<String, NetworkIdentitySet> ifaceIdent, long currentTimeMillis) {
-        final HashSet<String> unknownIfaces = Sets.newHashSet();
+        recordSnapshotLocked(snapshot, ifaceIdent, currentTimeMillis, null);
+    }
 
+    /**
+     * Same as {@link #recordSnapshotLocked(NetworkStats, Map, long)}, also recording the delta
+     * into {@code sibling}. Recorders fed the same snapshots, such as the UID and UID tag
+     * recorders, share one delta computation and one pass over it this way. Non-monotonic
+     * counters are only reported to the observer of this recorder.
+     */
+    public void recordSnapshotLocked(NetworkStats snapshot,
+            Map<String, NetworkIdentitySet> ifaceIdent, long currentTimeMillis,
+            @Nullable NetworkStatsRecorder sibling) {
         // skip recording when snapshot missing
         if (snapshot == null) return;
 
+        if (sibling != null && sibling.mLastSnapshot != mLastSnapshot) {
+            // not fed the same snapshots until now, so the deltas differ
+            sibling.recordSnapshotLocked(snapshot, ifaceIdent, currentTimeMillis, null);
+            sibling = null;
+        }
+
         // assume first snapshot is bootstrap and don't record
         if (mLastSnapshot == null) {
             mLastSnapshot = snapshot;
+            if (sibling != null) sibling.mLastSnapshot = snapshot;
             return;
         }
 
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        final NetworkStatsCollection siblingComplete = (sibling != null
+                && sibling.mComplete != null) ? sibling.mComplete.get() : null;
 
-        final NetworkStats delta = NetworkStats.subtract(
-                snapshot, mLastSnapshot, mObserver, mCookie);
+        mDelta = NetworkStats.subtract(snapshot, mLastSnapshot, mObserver, mCookie, mDelta);
+        final NetworkStats delta = mDelta;
         final long end = currentTimeMillis;
         final long start = end - delta.getElapsedRealtime();
 
-        NetworkStats.Entry entry = null;
+        final NetworkStats.Entry entry = mDeltaEntry;
+        HashSet<String> unknownIfaces = null;
         for (int i = 0; i < delta.size(); i++) {
-            entry = delta.getValues(i, entry);
+            delta.getValues(i, entry);
 
             // As a last-ditch sanity check, report any negative values and
             // clamp them so recording below doesn't croak.
@@ -242,38 +267,50 @@ public class NetworkStatsRecorder {
 
             final NetworkIdentitySet ident = ifaceIdent.get(entry.iface);
             if (ident == null) {
-                unknownIfaces.add(entry.iface);
+                if (LOGV) {
+                    if (unknownIfaces == null) unknownIfaces = Sets.newHashSet();
+                    unknownIfaces.add(entry.iface);
+                }
                 continue;
             }
 
             // skip when no delta occurred
             if (entry.isEmpty()) continue;
 
-            // only record tag data when requested
-            if ((entry.tag == TAG_NONE) != mOnlyTags) {
-                if (mPending != null) {
-                    mPending.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
-                }
-
-                // also record against boot stats when present
-                if (mSinceBoot != null) {
-                    mSinceBoot.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
-                }
-
-                // also record against complete dataset when present
-                if (complete != null) {
-                    complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
-                }
+            recordEntryLocked(ident, start, end, entry, complete);
+            if (sibling != null) {
+                sibling.recordEntryLocked(ident, start, end, entry, siblingComplete);
             }
         }
 
         mLastSnapshot = snapshot;
+        if (sibling != null) sibling.mLastSnapshot = snapshot;
 
-        if (LOGV && unknownIfaces.size() > 0) {
+        if (LOGV && unknownIfaces != null) {
             Slog.w(TAG, "unknown interfaces " + unknownIfaces + ", ignoring those stats");
         }
     }
 
+    private void recordEntryLocked(NetworkIdentitySet ident, long start, long end,
+            NetworkStats.Entry entry, @Nullable NetworkStatsCollection complete) {
+        // only record tag data when requested
+        if ((entry.tag == TAG_NONE) != mOnlyTags) {
+            if (mPending != null) {
+                mPending.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+            }
+
+            // also record against boot stats when present
+            if (mSinceBoot != null) {
+                mSinceBoot.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+            }
+
+            // also record against complete dataset when present
+            if (complete != null) {
+                complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+            }
+        }
+    }
+
     /**
      * Consider persisting any pending deltas, if they are beyond
      * {@link #mPersistThresholdBytes}.
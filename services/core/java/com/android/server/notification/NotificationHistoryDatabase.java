@@ -26,13 +26,21 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Handler;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.Pair;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -43,11 +51,12 @@ import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -56,6 +65,11 @@ import java.util.concurrent.TimeUnit;
  *
  * Periodically writes the buffered history to disk but can also accept force writes based on
  * outside changes (like a pending shutdown).
+ *
+ * Each write adds a new file, or segment, that is never appended to. Removing notifications only
+ * records a tombstone against the segments that may hold them, found through per package and per
+ * conversation indexes; tombstones are applied when reading, and written back to the segments by
+ * a background compaction.
  */
 public class NotificationHistoryDatabase {
     private static final int DEFAULT_CURRENT_VERSION = 1;
@@ -65,6 +79,8 @@ public class NotificationHistoryDatabase {
     private static final int HISTORY_RETENTION_DAYS = 1;
     private static final int HISTORY_RETENTION_MS = 24 * 60 * 60 * 1000;
     private static final long WRITE_BUFFER_INTERVAL_MS = 1000 * 60 * 20;
+    // Removals that follow each other, like several uninstalls, are compacted together
+    private static final long COMPACTION_DELAY_MS = 1000 * 60 * 5;
     private static final long INVALID_FILE_TIME_MS = -1;
 
     private static final String ACTION_HISTORY_DELETION =
@@ -85,6 +101,18 @@ public class NotificationHistoryDatabase {
     // Current version of the database files schema
     private int mCurrentVersion;
     private final WriteBufferRunnable mWriteBufferRunnable;
+    private final CompactRunnable mCompactRunnable;
+
+    // Segments holding notifications of each package, and of each (package, conversation id)
+    private final ArrayMap<String, ArraySet<AtomicFile>> mSegmentsByPackage = new ArrayMap<>();
+    private final ArrayMap<Pair<String, String>, ArraySet<AtomicFile>> mSegmentsByConversation =
+            new ArrayMap<>();
+    // Segments written before boot; they are indexed once compacted
+    private final ArraySet<AtomicFile> mUnindexedSegments = new ArraySet<>();
+    // Removals that have yet to be compacted into each segment
+    @VisibleForTesting
+    final ArrayMap<AtomicFile, ArrayList<Tombstone>> mTombstones = new ArrayMap<>();
+    private final AtomicFile mTombstoneFile;
 
     // Object containing posted notifications that have not yet been written to disk
     @VisibleForTesting
@@ -98,8 +126,10 @@ public class NotificationHistoryDatabase {
         mVersionFile = new File(dir, "version");
         mHistoryDir = new File(dir, "history");
         mHistoryFiles = new LinkedList<>();
+        mTombstoneFile = new AtomicFile(new File(dir, "tombstones"));
         mBuffer = new NotificationHistory();
         mWriteBufferRunnable = new WriteBufferRunnable();
+        mCompactRunnable = new CompactRunnable();
 
         IntentFilter deletionFilter = new IntentFilter(ACTION_HISTORY_DELETION);
         deletionFilter.addDataScheme(SCHEME_DELETION);
@@ -119,12 +149,17 @@ public class NotificationHistoryDatabase {
 
             checkVersionAndBuildLocked();
             indexFilesLocked();
+            readTombstonesLocked();
             prune(HISTORY_RETENTION_DAYS, System.currentTimeMillis());
         }
     }
 
     private void indexFilesLocked() {
         mHistoryFiles.clear();
+        mSegmentsByPackage.clear();
+        mSegmentsByConversation.clear();
+        mUnindexedSegments.clear();
+        mTombstones.clear();
         final File[] files = mHistoryDir.listFiles();
         if (files == null) {
             return;
@@ -135,7 +170,138 @@ public class NotificationHistoryDatabase {
                 safeParseLong(lhs.getName())));
 
         for (File file : files) {
-            mHistoryFiles.addLast(new AtomicFile(file));
+            final AtomicFile segment = new AtomicFile(file);
+            mHistoryFiles.addLast(segment);
+            mUnindexedSegments.add(segment);
+        }
+    }
+
+    private void indexSegmentLocked(AtomicFile segment, NotificationHistory notifications) {
+        mUnindexedSegments.remove(segment);
+        final List<HistoricalNotification> list = notifications.getNotificationsToWrite();
+        for (int i = 0; i < list.size(); i++) {
+            final HistoricalNotification notification = list.get(i);
+            addToIndex(mSegmentsByPackage, notification.getPackage(), segment);
+            if (!TextUtils.isEmpty(notification.getConversationId())) {
+                addToIndex(mSegmentsByConversation, new Pair<>(notification.getPackage(),
+                        notification.getConversationId()), segment);
+            }
+        }
+    }
+
+    private void unindexSegmentLocked(AtomicFile segment) {
+        mUnindexedSegments.remove(segment);
+        removeFromIndex(mSegmentsByPackage, segment);
+        removeFromIndex(mSegmentsByConversation, segment);
+    }
+
+    private static <K> void addToIndex(ArrayMap<K, ArraySet<AtomicFile>> index, K key,
+            AtomicFile segment) {
+        ArraySet<AtomicFile> segments = index.get(key);
+        if (segments == null) {
+            segments = new ArraySet<>();
+            index.put(key, segments);
+        }
+        segments.add(segment);
+    }
+
+    private static <K> void removeFromIndex(ArrayMap<K, ArraySet<AtomicFile>> index,
+            AtomicFile segment) {
+        for (int i = index.size() - 1; i >= 0; i--) {
+            final ArraySet<AtomicFile> segments = index.valueAt(i);
+            if (segments.remove(segment) && segments.isEmpty()) {
+                index.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the segments that may hold notifications matching an index entry.
+     */
+    private ArraySet<AtomicFile> getSegmentsLocked(ArraySet<AtomicFile> indexed) {
+        final ArraySet<AtomicFile> segments = new ArraySet<>(mUnindexedSegments);
+        if (indexed != null) {
+            segments.addAll(indexed);
+        }
+        return segments;
+    }
+
+    private void addTombstoneLocked(ArraySet<AtomicFile> segments, Tombstone tombstone) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            final AtomicFile segment = segments.valueAt(i);
+            ArrayList<Tombstone> tombstones = mTombstones.get(segment);
+            if (tombstones == null) {
+                tombstones = new ArrayList<>();
+                mTombstones.put(segment, tombstones);
+            }
+            tombstones.add(tombstone);
+        }
+        writeTombstonesLocked();
+        if (!mFileWriteHandler.hasCallbacks(mCompactRunnable)) {
+            mFileWriteHandler.postDelayed(mCompactRunnable, COMPACTION_DELAY_MS);
+        }
+    }
+
+    private void readTombstonesLocked() {
+        if (!mTombstoneFile.exists()) {
+            return;
+        }
+        final ArrayMap<String, AtomicFile> segmentsByName = new ArrayMap<>(mHistoryFiles.size());
+        for (AtomicFile segment : mHistoryFiles) {
+            segmentsByName.put(segment.getBaseFile().getName(), segment);
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mTombstoneFile.openRead()))) {
+            final int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                final AtomicFile segment = segmentsByName.get(in.readUTF());
+                final int count = in.readInt();
+                final ArrayList<Tombstone> tombstones = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    tombstones.add(Tombstone.readFrom(in));
+                }
+                // Segments that are gone were pruned along with their tombstones
+                if (segment != null) {
+                    mTombstones.put(segment, tombstones);
+                }
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read tombstones", e);
+        }
+        if (!mTombstones.isEmpty()) {
+            mFileWriteHandler.postDelayed(mCompactRunnable, COMPACTION_DELAY_MS);
+        }
+    }
+
+    private void writeTombstonesLocked() {
+        if (mTombstones.isEmpty()) {
+            mTombstoneFile.delete();
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mTombstoneFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(mTombstones.size());
+            for (int i = 0; i < mTombstones.size(); i++) {
+                out.writeUTF(mTombstones.keyAt(i).getBaseFile().getName());
+                final ArrayList<Tombstone> tombstones = mTombstones.valueAt(i);
+                out.writeInt(tombstones.size());
+                for (int j = 0; j < tombstones.size(); j++) {
+                    tombstones.get(j).writeTo(out);
+                }
+            }
+            out.flush();
+            mTombstoneFile.finishWrite(fos);
+            fos = null;
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to write tombstones", e);
+        } finally {
+            // When fos is null (successful write), this will no-op
+            mTombstoneFile.failWrite(fos);
         }
     }
 
@@ -195,7 +361,7 @@ public class NotificationHistoryDatabase {
 
             for (AtomicFile file : mHistoryFiles) {
                 try {
-                    readLocked(
+                    readSegmentLocked(
                             file, notifications, new NotificationHistoryFilter.Builder().build());
                 } catch (Exception e) {
                     Slog.e(TAG, "error reading " + file.getBaseFile().getAbsolutePath(), e);
@@ -213,7 +379,7 @@ public class NotificationHistoryDatabase {
 
             for (AtomicFile file : mHistoryFiles) {
                 try {
-                    readLocked(file, notifications,
+                    readSegmentLocked(file, notifications,
                             new NotificationHistoryFilter.Builder()
                                     .setPackage(packageName)
                                     .setChannel(packageName, channelId)
@@ -239,6 +405,11 @@ public class NotificationHistoryDatabase {
             }
             mHistoryDir.delete();
             mHistoryFiles.clear();
+            mSegmentsByPackage.clear();
+            mSegmentsByConversation.clear();
+            mUnindexedSegments.clear();
+            mTombstones.clear();
+            mTombstoneFile.delete();
         }
     }
 
@@ -278,6 +449,8 @@ public class NotificationHistoryDatabase {
         file.delete();
         // TODO: delete all relevant bitmaps, once they exist
         mHistoryFiles.remove(file);
+        mTombstones.remove(file);
+        unindexSegmentLocked(file);
     }
 
     private void scheduleDeletion(File file, long creationTime, int retentionDays) {
@@ -313,6 +486,36 @@ public class NotificationHistoryDatabase {
         }
     }
 
+    /**
+     * Reads a segment, leaving out the notifications removed since it was last compacted.
+     */
+    private void readSegmentLocked(AtomicFile segment, NotificationHistory notificationsOut,
+            NotificationHistoryFilter filter) throws IOException {
+        final ArrayList<Tombstone> tombstones = mTombstones.get(segment);
+        if (tombstones == null) {
+            readLocked(segment, notificationsOut, filter);
+            return;
+        }
+        final NotificationHistory notifications = new NotificationHistory();
+        readLocked(segment, notifications, new NotificationHistoryFilter.Builder().build());
+        for (int i = 0; i < tombstones.size(); i++) {
+            tombstones.get(i).applyTo(notifications);
+        }
+        final List<HistoricalNotification> list = notifications.getNotificationsToWrite();
+        for (int i = 0; i < list.size(); i++) {
+            if (filter.matchesPackageAndChannelFilter(list.get(i))
+                    && filter.matchesCountFilter(notificationsOut)) {
+                notificationsOut.addNotificationToWrite(list.get(i));
+            }
+        }
+        if (filter.isFiltering()) {
+            notificationsOut.poolStringsFromNotifications();
+        } else {
+            notificationsOut.addPooledStrings(
+                    Arrays.asList(notifications.getPooledStringsToWrite()));
+        }
+    }
+
     private static void readLocked(AtomicFile file, NotificationHistory notificationsOut,
             NotificationHistoryFilter filter) throws IOException {
         FileInputStream in = null;
@@ -352,11 +555,13 @@ public class NotificationHistoryDatabase {
                     synchronized (mLock) {
                         final String filePath = intent.getStringExtra(EXTRA_KEY);
                         AtomicFile fileToDelete = new AtomicFile(new File(filePath));
-                        if (DEBUG) {
-                            Slog.d(TAG, "Removed " + fileToDelete.getBaseFile().getName());
+                        for (AtomicFile segment : mHistoryFiles) {
+                            if (segment.getBaseFile().equals(fileToDelete.getBaseFile())) {
+                                fileToDelete = segment;
+                                break;
+                            }
                         }
-                        fileToDelete.delete();
-                        mHistoryFiles.remove(fileToDelete);
+                        deleteFile(fileToDelete);
                     }
                 } catch (Exception e) {
                     Slog.e(TAG, "Failed to delete notification history file", e);
@@ -380,6 +585,7 @@ public class NotificationHistoryDatabase {
                 try {
                     writeLocked(file, mBuffer);
                     mHistoryFiles.addFirst(file);
+                    indexSegmentLocked(file, mBuffer);
                     mBuffer = new NotificationHistory();
 
                     scheduleDeletion(file.getBaseFile(), time, HISTORY_RETENTION_DAYS);
@@ -390,7 +596,7 @@ public class NotificationHistoryDatabase {
         }
     }
 
-    private final class RemovePackageRunnable implements Runnable {
+    final class RemovePackageRunnable implements Runnable {
         private String mPkg;
 
         public RemovePackageRunnable(String pkg) {
@@ -404,20 +610,8 @@ public class NotificationHistoryDatabase {
                 // Remove packageName entries from pending history
                 mBuffer.removeNotificationsFromWrite(mPkg);
 
-                Iterator<AtomicFile> historyFileItr = mHistoryFiles.iterator();
-                while (historyFileItr.hasNext()) {
-                    final AtomicFile af = historyFileItr.next();
-                    try {
-                        final NotificationHistory notifications = new NotificationHistory();
-                        readLocked(af, notifications,
-                                new NotificationHistoryFilter.Builder().build());
-                        notifications.removeNotificationsFromWrite(mPkg);
-                        writeLocked(af, notifications);
-                    } catch (Exception e) {
-                        Slog.e(TAG, "Cannot clean up file on pkg removal "
-                                + af.getBaseFile().getAbsolutePath(), e);
-                    }
-                }
+                addTombstoneLocked(getSegmentsLocked(mSegmentsByPackage.get(mPkg)),
+                        Tombstone.forPackage(mPkg));
             }
         }
     }
@@ -425,18 +619,12 @@ public class NotificationHistoryDatabase {
     final class RemoveNotificationRunnable implements Runnable {
         private String mPkg;
         private long mPostedTime;
-        private NotificationHistory mNotificationHistory;
 
         public RemoveNotificationRunnable(String pkg, long postedTime) {
             mPkg = pkg;
             mPostedTime = postedTime;
         }
 
-        @VisibleForTesting
-        void setNotificationHistory(NotificationHistory nh) {
-            mNotificationHistory = nh;
-        }
-
         @Override
         public void run() {
             if (DEBUG) Slog.d(TAG, "RemoveNotificationRunnable");
@@ -444,23 +632,8 @@ public class NotificationHistoryDatabase {
                 // Remove from pending history
                 mBuffer.removeNotificationFromWrite(mPkg, mPostedTime);
 
-                Iterator<AtomicFile> historyFileItr = mHistoryFiles.iterator();
-                while (historyFileItr.hasNext()) {
-                    final AtomicFile af = historyFileItr.next();
-                    try {
-                        NotificationHistory notificationHistory = mNotificationHistory != null
-                                ? mNotificationHistory
-                                : new NotificationHistory();
-                        readLocked(af, notificationHistory,
-                                new NotificationHistoryFilter.Builder().build());
-                        if(notificationHistory.removeNotificationFromWrite(mPkg, mPostedTime)) {
-                            writeLocked(af, notificationHistory);
-                        }
-                    } catch (Exception e) {
-                        Slog.e(TAG, "Cannot clean up file on notification removal "
-                                + af.getBaseFile().getName(), e);
-                    }
-                }
+                addTombstoneLocked(getSegmentsLocked(mSegmentsByPackage.get(mPkg)),
+                        Tombstone.forNotification(mPkg, mPostedTime));
             }
         }
     }
@@ -468,18 +641,12 @@ public class NotificationHistoryDatabase {
     final class RemoveConversationRunnable implements Runnable {
         private String mPkg;
         private String mConversationId;
-        private NotificationHistory mNotificationHistory;
 
         public RemoveConversationRunnable(String pkg, String conversationId) {
             mPkg = pkg;
             mConversationId = conversationId;
         }
 
-        @VisibleForTesting
-        void setNotificationHistory(NotificationHistory nh) {
-            mNotificationHistory = nh;
-        }
-
         @Override
         public void run() {
             if (DEBUG) Slog.d(TAG, "RemoveConversationRunnable " + mPkg + " "  + mConversationId);
@@ -487,23 +654,139 @@ public class NotificationHistoryDatabase {
                 // Remove from pending history
                 mBuffer.removeConversationFromWrite(mPkg, mConversationId);
 
-                Iterator<AtomicFile> historyFileItr = mHistoryFiles.iterator();
-                while (historyFileItr.hasNext()) {
-                    final AtomicFile af = historyFileItr.next();
-                    try {
-                        NotificationHistory notificationHistory = mNotificationHistory != null
-                                ? mNotificationHistory
-                                : new NotificationHistory();
-                        readLocked(af, notificationHistory,
-                                new NotificationHistoryFilter.Builder().build());
-                        if(notificationHistory.removeConversationFromWrite(mPkg, mConversationId)) {
-                            writeLocked(af, notificationHistory);
-                        }
-                    } catch (Exception e) {
-                        Slog.e(TAG, "Cannot clean up file on conversation removal "
-                                + af.getBaseFile().getName(), e);
-                    }
+                addTombstoneLocked(getSegmentsLocked(
+                        mSegmentsByConversation.get(new Pair<>(mPkg, mConversationId))),
+                        Tombstone.forConversation(mPkg, mConversationId));
+            }
+        }
+    }
+
+    /**
+     * Rewrites the segments that have tombstones, one at a time so that new notifications are not
+     * held up for long.
+     */
+    final class CompactRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            if (DEBUG) Slog.d(TAG, "CompactRunnable");
+            final ArrayList<AtomicFile> segments;
+            synchronized (mLock) {
+                segments = new ArrayList<>(mTombstones.keySet());
+            }
+            for (int i = 0; i < segments.size(); i++) {
+                synchronized (mLock) {
+                    compactLocked(segments.get(i));
+                }
+            }
+            synchronized (mLock) {
+                writeTombstonesLocked();
+            }
+        }
+
+        private void compactLocked(AtomicFile segment) {
+            final ArrayList<Tombstone> tombstones = mTombstones.remove(segment);
+            if (tombstones == null || !mHistoryFiles.contains(segment)) {
+                return;
+            }
+            try {
+                final NotificationHistory notifications = new NotificationHistory();
+                readLocked(segment, notifications,
+                        new NotificationHistoryFilter.Builder().build());
+                boolean removed = false;
+                for (int i = 0; i < tombstones.size(); i++) {
+                    removed |= tombstones.get(i).applyTo(notifications);
+                }
+                if (removed && notifications.getNotificationsToWrite().isEmpty()) {
+                    deleteFile(segment);
+                    return;
                 }
+                if (removed) {
+                    writeLocked(segment, notifications);
+                }
+                // only once the segment holds what's left, a failed write keeps the old index
+                unindexSegmentLocked(segment);
+                indexSegmentLocked(segment, notifications);
+            } catch (Exception e) {
+                Slog.e(TAG, "Cannot compact " + segment.getBaseFile().getName(), e);
+                // keep hiding the removed notifications until the segment is pruned
+                mTombstones.put(segment, tombstones);
+            }
+        }
+    }
+
+    /**
+     * A removal of history that has yet to be written to a segment.
+     */
+    static final class Tombstone {
+        private static final int TYPE_PACKAGE = 0;
+        private static final int TYPE_CONVERSATION = 1;
+        private static final int TYPE_NOTIFICATION = 2;
+
+        private final int mType;
+        private final String mPkg;
+        private final String mConversationId;
+        private final long mPostedTime;
+
+        private Tombstone(int type, String pkg, String conversationId, long postedTime) {
+            mType = type;
+            mPkg = pkg;
+            mConversationId = conversationId;
+            mPostedTime = postedTime;
+        }
+
+        static Tombstone forPackage(String pkg) {
+            return new Tombstone(TYPE_PACKAGE, pkg, null, 0);
+        }
+
+        static Tombstone forConversation(String pkg, String conversationId) {
+            return new Tombstone(TYPE_CONVERSATION, pkg, conversationId, 0);
+        }
+
+        static Tombstone forNotification(String pkg, long postedTime) {
+            return new Tombstone(TYPE_NOTIFICATION, pkg, null, postedTime);
+        }
+
+        /**
+         * Removes the notifications this tombstone covers, returning whether there were any.
+         */
+        boolean applyTo(NotificationHistory notifications) {
+            switch (mType) {
+                case TYPE_PACKAGE:
+                    final int count = notifications.getNotificationsToWrite().size();
+                    notifications.removeNotificationsFromWrite(mPkg);
+                    return notifications.getNotificationsToWrite().size() != count;
+                case TYPE_CONVERSATION:
+                    return notifications.removeConversationFromWrite(mPkg, mConversationId);
+                case TYPE_NOTIFICATION:
+                    return notifications.removeNotificationFromWrite(mPkg, mPostedTime);
+                default:
+                    return false;
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(mType);
+            out.writeUTF(mPkg);
+            if (mType == TYPE_CONVERSATION) {
+                out.writeUTF(mConversationId);
+            } else if (mType == TYPE_NOTIFICATION) {
+                out.writeLong(mPostedTime);
+            }
+        }
+
+        static Tombstone readFrom(DataInputStream in) throws IOException {
+            final int type = in.readInt();
+            final String pkg = in.readUTF();
+            switch (type) {
+                case TYPE_PACKAGE:
+                    return forPackage(pkg);
+                case TYPE_CONVERSATION:
+                    return forConversation(pkg, in.readUTF());
+                case TYPE_NOTIFICATION:
+                    return forNotification(pkg, in.readLong());
+                default:
+                    throw new IOException("Unknown tombstone type " + type);
             }
         }
     }
@@ -468,6 +468,11 @@ public class NotificationManagerService extends SystemService {
     final ArrayList<NotificationRecord> mNotificationList = new ArrayList<>();
     @GuardedBy("mNotificationLock")
     final ArrayMap<String, NotificationRecord> mNotificationsByKey = new ArrayMap<>();
+    // rankings last sent to each listener, so that updates only need to carry what changed
+    @GuardedBy("mNotificationLock")
+    final ArrayMap<IBinder, SentRankings> mSentRankings = new ArrayMap<>();
+    @GuardedBy("mNotificationLock")
+    private int mRankingUpdateVersion;
     @GuardedBy("mNotificationLock")
     final ArrayMap<String, InlineReplyUriRecord> mInlineReplyRecordsByKey = new ArrayMap<>();
     @GuardedBy("mNotificationLock")
@@ -4260,6 +4265,21 @@ public class NotificationManagerService extends SystemService {
             }
         }
 
+        /**
+         * Allow an INotificationListener to request the complete current ranking, when it missed
+         * an update that later ones were based on.
+         */
+        @Override
+        public NotificationRankingUpdate getRankingUpdateFromListener(
+                INotificationListener token) {
+            synchronized (mNotificationLock) {
+                final ManagedServiceInfo info = mListeners.checkServiceTokenLocked(token);
+                // Updates already posted may reach the listener after this one, so the next
+                // update has to be complete too.
+                return makeRankingUpdateLocked(info, false);
+            }
+        }
+
         /**
          * Allow an INotificationListener to request the list of outstanding snoozed notifications
          * seen by the current user. Useful when starting up, after which point the listener
@@ -5563,6 +5583,8 @@ public class NotificationManagerService extends SystemService {
 
                 pw.println("\n  Notification listeners:");
                 mListeners.dump(pw, filter);
+                pw.println("    Ranking updates sent:");
+                dumpSentRankingsLocked(pw, filter);
                 pw.print("    mListenerHints: "); pw.println(mListenerHints);
                 pw.print("    mListenersDisablingEffects: (");
                 N = mListenersDisablingEffects.size();
@@ -8755,9 +8777,14 @@ public class NotificationManagerService extends SystemService {
     /**
      * Generates a NotificationRankingUpdate from 'sbns', considering only
      * notifications visible to the given listener.
+     *
+     * @param canSendDelta whether the update is delivered in order with the previous ones, so
+     *        that it may only carry the rankings that changed since the last update sent
      */
+    @VisibleForTesting
     @GuardedBy("mNotificationLock")
-    private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info) {
+    NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info,
+            boolean canSendDelta) {
         final int N = mNotificationList.size();
         final ArrayList<NotificationListenerService.Ranking> rankings = new ArrayList<>();
 
@@ -8797,8 +8824,110 @@ public class NotificationManagerService extends SystemService {
             rankings.add(ranking);
         }
 
-        return new NotificationRankingUpdate(
-                rankings.toArray(new NotificationListenerService.Ranking[0]));
+        final int version = ++mRankingUpdateVersion;
+        final IBinder token = info.service.asBinder();
+        SentRankings sent = mSentRankings.get(token);
+        if (sent == null) {
+            sent = new SentRankings(info.component);
+            mSentRankings.put(token, sent);
+        }
+        final int baseVersion = sent.version;
+        sent.version = version;
+
+        NotificationRankingUpdate update = null;
+        if (canSendDelta && sent.rankings != null) {
+            final ArrayList<NotificationListenerService.Ranking> changed = new ArrayList<>();
+            final String[] orderedKeys = new String[rankings.size()];
+            for (int i = 0; i < rankings.size(); i++) {
+                final NotificationListenerService.Ranking ranking = rankings.get(i);
+                orderedKeys[i] = ranking.getKey();
+                final NotificationListenerService.Ranking previous =
+                        sent.rankings.get(ranking.getKey());
+                if (previous == null || !ranking.isUnchangedFrom(previous)) {
+                    changed.add(ranking);
+                }
+            }
+            // past half of the rankings, the keys only add to the cost of a full update
+            if (changed.size() <= rankings.size() / 2) {
+                update = new NotificationRankingUpdate(orderedKeys,
+                        changed.toArray(new NotificationListenerService.Ranking[0]), version,
+                        baseVersion);
+                sent.deltaCount++;
+                sent.rankingsSent += changed.size();
+            }
+        }
+        if (update == null) {
+            update = new NotificationRankingUpdate(
+                    rankings.toArray(new NotificationListenerService.Ranking[0]), version);
+            sent.fullCount++;
+            sent.rankingsSent += rankings.size();
+        }
+
+        if (canSendDelta) {
+            if (sent.rankings == null) {
+                sent.rankings = new ArrayMap<>(rankings.size());
+            } else {
+                sent.rankings.clear();
+            }
+            for (int i = 0; i < rankings.size(); i++) {
+                sent.rankings.put(rankings.get(i).getKey(), rankings.get(i));
+            }
+        } else {
+            // this update may reach the listener out of order, the next one must be complete
+            sent.rankings = null;
+        }
+        return update;
+    }
+
+    /**
+     * Forgets the rankings sent to a listener after an update could not be delivered, so that the
+     * next update is complete.
+     */
+    @VisibleForTesting
+    void forgetSentRankings(ManagedServiceInfo info) {
+        synchronized (mNotificationLock) {
+            final SentRankings sent = mSentRankings.get(info.service.asBinder());
+            if (sent != null) {
+                sent.rankings = null;
+            }
+        }
+    }
+
+    @GuardedBy("mNotificationLock")
+    private void dumpSentRankingsLocked(PrintWriter pw, DumpFilter filter) {
+        final int N = mSentRankings.size();
+        for (int i = 0; i < N; i++) {
+            final SentRankings sent = mSentRankings.valueAt(i);
+            if (filter.filtered && !filter.matches(sent.component)) {
+                continue;
+            }
+            pw.print("      ");
+            pw.print(sent.component.flattenToShortString());
+            pw.print(" full=");
+            pw.print(sent.fullCount);
+            pw.print(" delta=");
+            pw.print(sent.deltaCount);
+            pw.print(" rankings=");
+            pw.println(sent.rankingsSent);
+        }
+    }
+
+    /**
+     * The ranking updates sent to one listener.
+     */
+    static final class SentRankings {
+        final ComponentName component;
+        // version of the last update sent
+        int version;
+        // by key, the rankings in the last update, or null if the next update must be complete
+        ArrayMap<String, NotificationListenerService.Ranking> rankings;
+        int fullCount;
+        int deltaCount;
+        long rankingsSent;
+
+        SentRankings(ComponentName component) {
+            this.component = component;
+        }
     }
 
     boolean hasCompanionDevice(ManagedServiceInfo info) {
@@ -9446,7 +9575,7 @@ public class NotificationManagerService extends SystemService {
             final INotificationListener listener = (INotificationListener) info.service;
             final NotificationRankingUpdate update;
             synchronized (mNotificationLock) {
-                update = makeRankingUpdateLocked(info);
+                update = makeRankingUpdateLocked(info, false);
                 updateUriPermissionsForActiveNotificationsLocked(info, true);
             }
             try {
@@ -9465,6 +9594,7 @@ public class NotificationManagerService extends SystemService {
                 updateEffectsSuppressorLocked();
             }
             mLightTrimListeners.remove(removed);
+            mSentRankings.remove(removed.service.asBinder());
         }
 
         @Override
@@ -9545,11 +9675,11 @@ public class NotificationManagerService extends SystemService {
                         continue;
                     }
 
-                    final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
-
                     // This notification became invisible -> remove the old one.
                     if (oldSbnVisible && !sbnVisible) {
                         final StatusBarNotification oldSbnLightClone = oldSbn.cloneLight();
+                        final NotificationRankingUpdate update =
+                                makeRankingUpdateLocked(info, true);
                         mHandler.post(() -> notifyRemoved(
                                 info, oldSbnLightClone, update, null, REASON_USER_STOPPED));
                         continue;
@@ -9561,6 +9691,7 @@ public class NotificationManagerService extends SystemService {
                     updateUriPermissions(r, old, info.component.getPackageName(), targetUserId);
 
                     final StatusBarNotification sbnToPost = trimCache.ForListener(info);
+                    final NotificationRankingUpdate update = makeRankingUpdateLocked(info, true);
                     mHandler.post(() -> notifyPosted(info, sbnToPost, update));
                 }
             } catch (Exception e) {
@@ -9642,7 +9773,7 @@ public class NotificationManagerService extends SystemService {
                 // Only assistants can get stats
                 final NotificationStats stats = mAssistants.isServiceTokenValidLocked(info.service)
                         ? notificationStats : null;
-                final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
+                final NotificationRankingUpdate update = makeRankingUpdateLocked(info, true);
                 mHandler.post(() -> notifyRemoved(info, sbnLight, update, stats, reason));
             }
 
@@ -9680,7 +9811,7 @@ public class NotificationManagerService extends SystemService {
 
                 if (notifyThisListener || !isHiddenRankingUpdate) {
                     final NotificationRankingUpdate update = makeRankingUpdateLocked(
-                            serviceInfo);
+                            serviceInfo, true);
 
                     mHandler.post(new Runnable() {
                         @Override
@@ -9814,12 +9945,14 @@ public class NotificationManagerService extends SystemService {
                 listener.onNotificationPosted(sbnHolder, rankingUpdate);
             } catch (RemoteException ex) {
                 Slog.e(TAG, "unable to notify listener (posted): " + info, ex);
+                forgetSentRankings(info);
             }
         }
 
         private void notifyRemoved(ManagedServiceInfo info, StatusBarNotification sbn,
                 NotificationRankingUpdate rankingUpdate, NotificationStats stats, int reason) {
             if (!info.enabledAndUserMatches(sbn.getUserId())) {
+                forgetSentRankings(info);
                 return;
             }
             final INotificationListener listener = (INotificationListener) info.service;
@@ -9828,6 +9961,7 @@ public class NotificationManagerService extends SystemService {
                 listener.onNotificationRemoved(sbnHolder, rankingUpdate, stats, reason);
             } catch (RemoteException ex) {
                 Slog.e(TAG, "unable to notify listener (removed): " + info, ex);
+                forgetSentRankings(info);
             }
         }
 
@@ -9838,6 +9972,7 @@ public class NotificationManagerService extends SystemService {
                 listener.onNotificationRankingUpdate(rankingUpdate);
             } catch (RemoteException ex) {
                 Slog.e(TAG, "unable to notify listener (ranking update): " + info, ex);
+                forgetSentRankings(info);
             }
         }
 
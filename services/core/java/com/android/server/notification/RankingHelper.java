@@ -18,8 +18,10 @@ package com.android.server.notification;
 import android.annotation.NonNull;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.os.SystemClock;
 import android.service.notification.RankingHelperProto;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
@@ -36,6 +38,21 @@ public class RankingHelper {
 
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
 
+    /**
+     * The records in the order of the last preliminary ranking. Sorting starts from it, so that
+     * only the records whose signals changed since have to be moved.
+     */
+    private final ArrayList<NotificationRecord> mPreliminaryOrder = new ArrayList<>();
+    private final ArraySet<NotificationRecord> mNewRecordsTmp = new ArraySet<>();
+    private final StringBuilder mSortKeyBuilder = new StringBuilder();
+
+    // ranking latency, guarded by mProxyByGroupTmp
+    private int mSortCount;
+    private long mSortTimeNs;
+    private long mMaxSortTimeNs;
+    private final long[] mExtractorTimeNs;
+    private int mExtractCount;
+
     private final Context mContext;
     private final RankingHandler mRankingHandler;
 
@@ -48,6 +65,7 @@ public class RankingHelper {
 
         final int N = extractorNames.length;
         mSignalExtractors = new NotificationSignalExtractor[N];
+        mExtractorTimeNs = new long[N];
         for (int i = 0; i < N; i++) {
             try {
                 Class<?> extractorClass = mContext.getClassLoader().loadClass(extractorNames[i]);
@@ -83,6 +101,7 @@ public class RankingHelper {
         final int N = mSignalExtractors.length;
         for (int i = 0; i < N; i++) {
             NotificationSignalExtractor extractor = mSignalExtractors[i];
+            final long startTime = SystemClock.elapsedRealtimeNanos();
             try {
                 RankingReconsideration recon = extractor.process(r);
                 if (recon != null) {
@@ -91,23 +110,34 @@ public class RankingHelper {
             } catch (Throwable t) {
                 Slog.w(TAG, "NotificationSignalExtractor failed.", t);
             }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+            synchronized (mProxyByGroupTmp) {
+                mExtractorTimeNs[i] += elapsed;
+            }
+        }
+        synchronized (mProxyByGroupTmp) {
+            mExtractCount++;
         }
     }
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
+        final long startTime = SystemClock.elapsedRealtimeNanos();
         final int N = notificationList.size();
         // clear global sort keys
         for (int i = N - 1; i >= 0; i--) {
             notificationList.get(i).setGlobalSortKey(null);
         }
 
-        // rank each record individually
-        Collections.sort(notificationList, mPreliminaryComparator);
-
         synchronized (mProxyByGroupTmp) {
+            // rank each record individually, starting from the last ranking: the sort is
+            // adaptive, so only the records that were added or changed since cost more than a
+            // comparison or two
+            updatePreliminaryOrderLocked(notificationList);
+            Collections.sort(mPreliminaryOrder, mPreliminaryComparator);
+
             // record individual ranking result and nominate proxies for each group
             for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = mPreliminaryOrder.get(i);
                 record.setAuthoritativeRank(i);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
@@ -137,22 +167,73 @@ public class RankingHelper {
                 }
 
                 boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("crtcl=0x%04x:intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.getCriticality(),
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                // same as "crtcl=0x%04x:intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x", without
+                // the cost of String.format() for every record
+                final StringBuilder sb = mSortKeyBuilder;
+                sb.setLength(0);
+                sb.append("crtcl=0x");
+                appendHex(sb, record.getCriticality());
+                sb.append(":intrsv=").append(record.isRecentlyIntrusive()
+                        && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                        ? '0' : '1');
+                sb.append(":grnk=0x");
+                appendHex(sb, groupProxy.getAuthoritativeRank());
+                sb.append(":gsmry=").append(isGroupSummary ? '0' : '1');
+                sb.append(':').append(groupSortKeyPortion);
+                sb.append(":rnk=0x");
+                appendHex(sb, record.getAuthoritativeRank());
+                record.setGlobalSortKey(sb.toString());
             }
             mProxyByGroupTmp.clear();
         }
 
         // Do a second ranking pass, using group proxies
         Collections.sort(notificationList, mFinalComparator);
+
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+        synchronized (mProxyByGroupTmp) {
+            mSortCount++;
+            mSortTimeNs += elapsed;
+            mMaxSortTimeNs = Math.max(mMaxSortTimeNs, elapsed);
+        }
+    }
+
+    /**
+     * Makes {@link #mPreliminaryOrder} hold the records of {@param notificationList}, keeping
+     * the ones that were already ranked in their last order and adding the others at the end.
+     */
+    private void updatePreliminaryOrderLocked(ArrayList<NotificationRecord> notificationList) {
+        final int N = notificationList.size();
+        mNewRecordsTmp.ensureCapacity(N);
+        for (int i = 0; i < N; i++) {
+            mNewRecordsTmp.add(notificationList.get(i));
+        }
+        int kept = 0;
+        for (int i = 0; i < mPreliminaryOrder.size(); i++) {
+            final NotificationRecord record = mPreliminaryOrder.get(i);
+            if (mNewRecordsTmp.remove(record)) {
+                mPreliminaryOrder.set(kept++, record);
+            }
+        }
+        mPreliminaryOrder.subList(kept, mPreliminaryOrder.size()).clear();
+        if (!mNewRecordsTmp.isEmpty()) {
+            for (int i = 0; i < N; i++) {
+                final NotificationRecord record = notificationList.get(i);
+                if (mNewRecordsTmp.contains(record)) {
+                    mPreliminaryOrder.add(record);
+                }
+            }
+            mNewRecordsTmp.clear();
+        }
+    }
+
+    /** Appends {@param value} in lower case hex, zero padded to four digits. */
+    private static void appendHex(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
@@ -170,6 +251,25 @@ public class RankingHelper {
             pw.print("  ");
             pw.println(mSignalExtractors[i].getClass().getSimpleName());
         }
+        synchronized (mProxyByGroupTmp) {
+            pw.print(prefix);
+            pw.print("sorts = ");
+            pw.print(mSortCount);
+            pw.print(", avg sort time us = ");
+            pw.print(mSortCount > 0 ? mSortTimeNs / mSortCount / 1000 : 0);
+            pw.print(", max sort time us = ");
+            pw.println(mMaxSortTimeNs / 1000);
+            pw.print(prefix);
+            pw.print("signal extractions = ");
+            pw.println(mExtractCount);
+            for (int i = 0; i < N; i++) {
+                pw.print(prefix);
+                pw.print("  ");
+                pw.print(mSignalExtractors[i].getClass().getSimpleName());
+                pw.print(" avg time us = ");
+                pw.println(mExtractCount > 0 ? mExtractorTimeNs[i] / mExtractCount / 1000 : 0);
+            }
+        }
     }
 
     public void dump(ProtoOutputStream proto,
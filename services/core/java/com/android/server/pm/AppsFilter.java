@@ -39,6 +39,7 @@ import android.os.Handler;
 import android.os.HandlerExecutor;
 import android.os.HandlerThread;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.provider.DeviceConfig;
@@ -58,6 +59,7 @@ import com.android.server.FgThread;
 import com.android.server.compat.CompatChange;
 import com.android.server.om.OverlayReferenceMapper;
 import com.android.server.pm.parsing.pkg.AndroidPackage;
+import com.android.server.utils.SparseBooleanMatrix;
 
 import java.io.PrintWriter;
 import java.util.Arrays;
@@ -146,7 +148,23 @@ public class AppsFilter {
      * initial scam and is null until {@link #onSystemReady()} is called.
      */
     @GuardedBy("mCacheLock")
-    private volatile SparseArray<SparseBooleanArray> mShouldFilterCache;
+    private volatile SparseBooleanMatrix mShouldFilterCache;
+
+    /** Lookups answered from {@link #mShouldFilterCache}. */
+    @GuardedBy("mCacheLock")
+    private long mCacheHits;
+    /** Lookups for which {@link #mShouldFilterCache} had no rule for the caller or target. */
+    @GuardedBy("mCacheLock")
+    private long mCacheMisses;
+    /** Lookups computed directly because {@link #mShouldFilterCache} was not yet built. */
+    @GuardedBy("mCacheLock")
+    private long mUncachedLookups;
+    @GuardedBy("mCacheLock")
+    private int mCacheRebuildCount;
+    @GuardedBy("mCacheLock")
+    private long mLastCacheRebuildMs;
+    @GuardedBy("mCacheLock")
+    private long mTotalCacheRebuildMs;
 
     @VisibleForTesting(visibility = PRIVATE)
     AppsFilter(StateProvider stateProvider,
@@ -495,12 +513,7 @@ public class AppsFilter {
                 if (mShouldFilterCache != null) {
                     // update the cache in a one-off manner since we've got all the information we
                     // need.
-                    SparseBooleanArray visibleUids = mShouldFilterCache.get(recipientUid);
-                    if (visibleUids == null) {
-                        visibleUids = new SparseBooleanArray();
-                        mShouldFilterCache.put(recipientUid, visibleUids);
-                    }
-                    visibleUids.put(visibleUid, false);
+                    mShouldFilterCache.put(recipientUid, visibleUid, false);
                 }
             }
         }
@@ -634,32 +647,25 @@ public class AppsFilter {
         }
         for (int i = mShouldFilterCache.size() - 1; i >= 0; i--) {
             if (UserHandle.getAppId(mShouldFilterCache.keyAt(i)) == appId) {
-                mShouldFilterCache.removeAt(i);
-                continue;
-            }
-            SparseBooleanArray targetSparseArray = mShouldFilterCache.valueAt(i);
-            for (int j = targetSparseArray.size() - 1; j >= 0; j--) {
-                if (UserHandle.getAppId(targetSparseArray.keyAt(j)) == appId) {
-                    targetSparseArray.removeAt(j);
-                }
+                mShouldFilterCache.removeKeyAt(i);
             }
         }
     }
 
     private void updateEntireShouldFilterCache() {
         mStateProvider.runWithState((settings, users) -> {
-            SparseArray<SparseBooleanArray> cache =
-                    updateEntireShouldFilterCacheInner(settings, users);
+            final long startTime = SystemClock.uptimeMillis();
+            SparseBooleanMatrix cache = updateEntireShouldFilterCacheInner(settings, users);
             synchronized (mCacheLock) {
                 mShouldFilterCache = cache;
+                onCacheRebuiltLocked(startTime);
             }
         });
     }
 
-    private SparseArray<SparseBooleanArray> updateEntireShouldFilterCacheInner(
+    private SparseBooleanMatrix updateEntireShouldFilterCacheInner(
             ArrayMap<String, PackageSetting> settings, UserInfo[] users) {
-        SparseArray<SparseBooleanArray> cache =
-                new SparseArray<>(users.length * settings.size());
+        SparseBooleanMatrix cache = new SparseBooleanMatrix(users.length * settings.size());
         for (int i = settings.size() - 1; i >= 0; i--) {
             updateShouldFilterCacheForPackage(cache,
                     null /*skipPackage*/, settings.valueAt(i), settings, users, i);
@@ -667,8 +673,16 @@ public class AppsFilter {
         return cache;
     }
 
+    @GuardedBy("mCacheLock")
+    private void onCacheRebuiltLocked(long startTime) {
+        mLastCacheRebuildMs = SystemClock.uptimeMillis() - startTime;
+        mTotalCacheRebuildMs += mLastCacheRebuildMs;
+        mCacheRebuildCount++;
+    }
+
     private void updateEntireShouldFilterCacheAsync() {
         mBackgroundExecutor.execute(() -> {
+            final long startTime = SystemClock.uptimeMillis();
             final ArrayMap<String, PackageSetting> settingsCopy = new ArrayMap<>();
             final ArrayMap<String, AndroidPackage> packagesCache = new ArrayMap<>();
             final UserInfo[][] usersRef = new UserInfo[1][];
@@ -683,7 +697,7 @@ public class AppsFilter {
                     packagesCache.put(settings.keyAt(i), pkg);
                 }
             });
-            SparseArray<SparseBooleanArray> cache =
+            SparseBooleanMatrix cache =
                     updateEntireShouldFilterCacheInner(settingsCopy, usersRef[0]);
             boolean[] changed = new boolean[1];
             // We have a cache, let's make sure the world hasn't changed out from under us.
@@ -709,6 +723,7 @@ public class AppsFilter {
             } else {
                 synchronized (mCacheLock) {
                     mShouldFilterCache = cache;
+                    onCacheRebuiltLocked(startTime);
                 }
             }
         });
@@ -734,7 +749,7 @@ public class AppsFilter {
         }
     }
 
-    private void updateShouldFilterCacheForPackage(SparseArray<SparseBooleanArray> cache,
+    private void updateShouldFilterCacheForPackage(SparseBooleanMatrix cache,
             @Nullable String skipPackageName, PackageSetting subjectSetting, ArrayMap<String,
             PackageSetting> allSettings, UserInfo[] allUsers, int maxIndex) {
         for (int i = Math.min(maxIndex, allSettings.size() - 1); i >= 0; i--) {
@@ -747,23 +762,16 @@ public class AppsFilter {
                 continue;
             }
             final int userCount = allUsers.length;
-            final int appxUidCount = userCount * allSettings.size();
             for (int su = 0; su < userCount; su++) {
                 int subjectUser = allUsers[su].id;
                 for (int ou = 0; ou < userCount; ou++) {
                     int otherUser = allUsers[ou].id;
                     int subjectUid = UserHandle.getUid(subjectUser, subjectSetting.appId);
-                    if (!cache.contains(subjectUid)) {
-                        cache.put(subjectUid, new SparseBooleanArray(appxUidCount));
-                    }
                     int otherUid = UserHandle.getUid(otherUser, otherSetting.appId);
-                    if (!cache.contains(otherUid)) {
-                        cache.put(otherUid, new SparseBooleanArray(appxUidCount));
-                    }
-                    cache.get(subjectUid).put(otherUid,
+                    cache.put(subjectUid, otherUid,
                             shouldFilterApplicationInternal(
                                     subjectUid, subjectSetting, otherSetting, otherUser));
-                    cache.get(otherUid).put(subjectUid,
+                    cache.put(otherUid, subjectUid,
                             shouldFilterApplicationInternal(
                                     otherUid, otherSetting, subjectSetting, subjectUser));
                 }
@@ -978,23 +986,29 @@ public class AppsFilter {
             }
             synchronized (mCacheLock) {
                 if (mShouldFilterCache != null) { // use cache
-                    SparseBooleanArray shouldFilterTargets = mShouldFilterCache.get(callingUid);
+                    final int indexOfCallingUid = mShouldFilterCache.indexOfKey(callingUid);
                     final int targetUid = UserHandle.getUid(userId, targetPkgSetting.appId);
-                    if (shouldFilterTargets == null) {
+                    if (indexOfCallingUid < 0) {
+                        mCacheMisses++;
                         Slog.wtf(TAG, "Encountered calling uid with no cached rules: "
                                 + callingUid);
                         return true;
                     }
-                    int indexOfTargetUid = shouldFilterTargets.indexOfKey(targetUid);
-                    if (indexOfTargetUid < 0) {
+                    final int indexOfTargetUid = mShouldFilterCache.indexOfKey(targetUid);
+                    if (indexOfTargetUid < 0
+                            || !mShouldFilterCache.hasValueAt(indexOfCallingUid,
+                                    indexOfTargetUid)) {
+                        mCacheMisses++;
                         Slog.w(TAG, "Encountered calling -> target with no cached rules: "
                                 + callingUid + " -> " + targetUid);
                         return true;
                     }
-                    if (!shouldFilterTargets.valueAt(indexOfTargetUid)) {
+                    mCacheHits++;
+                    if (!mShouldFilterCache.valueAt(indexOfCallingUid, indexOfTargetUid)) {
                         return false;
                     }
                 } else {
+                    mUncachedLookups++;
                     if (!shouldFilterApplicationInternal(
                             callingUid, callingSetting, targetPkgSetting, userId)) {
                         return false;
@@ -1270,6 +1284,18 @@ public class AppsFilter {
                     filteringAppId == null ? null : UserHandle.getUid(user, filteringAppId),
                     mImplicitlyQueryable, "      ", expandPackages);
         }
+        synchronized (mCacheLock) {
+            pw.println("  visibility cache:");
+            pw.print("    uids: ");
+            pw.print(mShouldFilterCache == null ? "(not built)"
+                    : Integer.toString(mShouldFilterCache.size()));
+            pw.print(" hits: "); pw.print(mCacheHits);
+            pw.print(" misses: "); pw.print(mCacheMisses);
+            pw.print(" uncached: "); pw.println(mUncachedLookups);
+            pw.print("    rebuilds: "); pw.print(mCacheRebuildCount);
+            pw.print(" last: "); pw.print(mLastCacheRebuildMs);
+            pw.print("ms total: "); pw.print(mTotalCacheRebuildMs); pw.println("ms");
+        }
     }
 
     private static void dumpQueriesMap(PrintWriter pw, @Nullable Integer filteringId,
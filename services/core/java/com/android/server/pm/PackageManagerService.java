@@ -1588,6 +1588,10 @@ public class PackageManagerService extends IPackageManager.Stub
     // Stores a list of users whose package restrictions file needs to be updated
     private ArraySet<Integer> mDirtyUsers = new ArraySet<>();
 
+    // Stores, for users not in mDirtyUsers, the packages whose restrictions changed and can be
+    // appended to the user's restrictions journal instead of rewriting the whole file
+    private final SparseArray<ArraySet<String>> mDirtyPackageRestrictions = new SparseArray<>();
+
     // Recordkeeping of restore-after-install operations that are currently in flight
     // between the Package Manager and the Backup Manager
     static class PostInstallData {
@@ -1802,6 +1806,7 @@ public class PackageManagerService extends IPackageManager.Stub
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         mSettings.writeLPr();
                         mDirtyUsers.clear();
+                        mDirtyPackageRestrictions.clear();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
@@ -1809,10 +1814,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
                     synchronized (mLock) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                        for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
-                        }
-                        mDirtyUsers.clear();
+                        writePendingPackageRestrictionsLocked();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
@@ -2566,12 +2568,48 @@ public class PackageManagerService extends IPackageManager.Stub
             if (!mUserManager.exists(nextUserId)) return;
 
             mDirtyUsers.add(nextUserId);
+            mDirtyPackageRestrictions.remove(nextUserId);
             if (!mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
                 mHandler.sendEmptyMessageDelayed(WRITE_PACKAGE_RESTRICTIONS, WRITE_SETTINGS_DELAY);
             }
         }
     }
 
+    /**
+     * Variant of {@link #scheduleWritePackageRestrictionsLocked(int)} for when only the
+     * restrictions of a single package changed, which lets the write be journaled instead of
+     * rewriting the user's whole package-restrictions.xml.
+     */
+    void scheduleWritePackageRestrictionsLocked(int userId, String packageName) {
+        PackageManager.invalidatePackageInfoCache();
+        if (!mUserManager.exists(userId)) return;
+
+        if (!mDirtyUsers.contains(userId)) {
+            ArraySet<String> packageNames = mDirtyPackageRestrictions.get(userId);
+            if (packageNames == null) {
+                packageNames = new ArraySet<>();
+                mDirtyPackageRestrictions.put(userId, packageNames);
+            }
+            packageNames.add(packageName);
+        }
+        if (!mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
+            mHandler.sendEmptyMessageDelayed(WRITE_PACKAGE_RESTRICTIONS, WRITE_SETTINGS_DELAY);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void writePendingPackageRestrictionsLocked() {
+        for (int userId : mDirtyUsers) {
+            mSettings.writePackageRestrictionsLPr(userId);
+        }
+        mDirtyUsers.clear();
+        for (int i = 0; i < mDirtyPackageRestrictions.size(); i++) {
+            mSettings.writePackageRestrictionsDeltaLPr(mDirtyPackageRestrictions.keyAt(i),
+                    mDirtyPackageRestrictions.valueAt(i));
+        }
+        mDirtyPackageRestrictions.clear();
+    }
+
     public static PackageManagerService main(Context context, Installer installer,
             boolean factoryTest, boolean onlyCore) {
         // Self-check for initial settings.
@@ -3384,6 +3422,16 @@ public class PackageManagerService extends IPackageManager.Stub
             }
             mExpectingBetter.clear();
 
+            if (mCacheDir != null && PackageCacher.CONTENT_ADDRESSED_CACHE_ENABLED) {
+                // Entries for package versions that are gone are never overwritten, so
+                // keep the cache bounded.
+                final int pruned = new PackageCacher(mCacheDir).pruneCache(
+                        PackageCacher.MAX_CACHE_SIZE_BYTES);
+                if (pruned > 0) {
+                    Slog.i(TAG, "Pruned " + pruned + " package cache entries");
+                }
+            }
+
             // Resolve the storage manager.
             mStorageManagerPackage = getStorageManagerPackageName();
 
@@ -3972,13 +4020,28 @@ public class PackageManagerService extends IPackageManager.Stub
 
         // There are several items that need to be combined together to safely
         // identify cached items. In particular, changing the value of certain
-        // feature flags should cause us to invalidate any caches.
-        final String cacheName = FORCE_PACKAGE_PARSED_CACHE_ENABLED ? "debug"
-                : SystemProperties.digestOf(
-                        "ro.build.date",
-                        StorageManager.PROP_ISOLATED_STORAGE,
-                        StorageManager.PROP_ISOLATED_STORAGE_SNAPSHOT
-                );
+        // feature flags should cause us to invalidate any caches. Content addressed
+        // caches key entries by package contents, path and parser version instead of
+        // the build date, so that they survive OTAs, but parsing still depends on the
+        // platform SDK and codenames.
+        final String cacheName;
+        if (FORCE_PACKAGE_PARSED_CACHE_ENABLED) {
+            cacheName = "debug";
+        } else if (PackageCacher.CONTENT_ADDRESSED_CACHE_ENABLED) {
+            cacheName = "content-" + SystemProperties.digestOf(
+                    "ro.build.version.sdk",
+                    "ro.build.version.codename",
+                    "ro.build.version.all_codenames",
+                    StorageManager.PROP_ISOLATED_STORAGE,
+                    StorageManager.PROP_ISOLATED_STORAGE_SNAPSHOT
+            );
+        } else {
+            cacheName = SystemProperties.digestOf(
+                    "ro.build.date",
+                    StorageManager.PROP_ISOLATED_STORAGE,
+                    StorageManager.PROP_ISOLATED_STORAGE_SNAPSHOT
+            );
+        }
 
         // Reconcile cache directories, keeping only what we'd actually use.
         for (File cacheDir : FileUtils.listFilesOrEmpty(cacheBaseDir)) {
@@ -9147,11 +9210,14 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private void scanDirTracedLI(File scanDir, final int parseFlags, int scanFlags,
             long currentTime, PackageParser2 packageParser, ExecutorService executorService) {
-        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "scanDir [" + scanDir.getAbsolutePath() + "]");
+        // Logs the duration of each partition scan along with the rest of the boot timings.
+        final TimingsTraceAndSlog t = new TimingsTraceAndSlog(TAG + "Timing",
+                TRACE_TAG_PACKAGE_MANAGER);
+        t.traceBegin("scanDir [" + scanDir.getAbsolutePath() + "]");
         try {
             scanDirLI(scanDir, parseFlags, scanFlags, currentTime, packageParser, executorService);
         } finally {
-            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+            t.traceEnd();
         }
     }
 
@@ -9171,8 +9237,7 @@ public class PackageManagerService extends IPackageManager.Stub
         ParallelPackageParser parallelPackageParser =
                 new ParallelPackageParser(packageParser, executorService);
 
-        // Submit files for parsing in parallel
-        int fileCount = 0;
+        final ArrayList<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -9180,7 +9245,15 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Ignore entries which are not packages
                 continue;
             }
-            parallelPackageParser.submit(file, parseFlags);
+            packageFiles.add(file);
+        }
+        // Start on the largest packages first so they don't hold up the end of the scan
+        ParallelPackageParser.sortLargestFirst(packageFiles);
+
+        // Submit files for parsing in parallel
+        int fileCount = 0;
+        for (int i = 0, size = packageFiles.size(); i < size; i++) {
+            parallelPackageParser.submit(packageFiles.get(i), parseFlags);
             fileCount++;
         }
 
@@ -10353,10 +10426,7 @@ public class PackageManagerService extends IPackageManager.Stub
         synchronized (mLock) {
             if (mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                for (int userId : mDirtyUsers) {
-                    mSettings.writePackageRestrictionsLPr(userId);
-                }
-                mDirtyUsers.clear();
+                writePendingPackageRestrictionsLocked();
             }
         }
     }
@@ -13140,7 +13210,8 @@ public class PackageManagerService extends IPackageManager.Stub
 
                 if (pkgSetting.getHidden(userId) != hidden) {
                     pkgSetting.setHidden(hidden, userId);
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    mSettings.writePackageRestrictionsDeltaLPr(userId,
+                            Collections.singletonList(packageName));
                     if (hidden) {
                         sendRemoved = true;
                     } else {
@@ -14280,9 +14351,9 @@ public class PackageManagerService extends IPackageManager.Stub
                 return false;
             }
             result = mSettings.updateIntentFilterVerificationStatusLPw(packageName, status, userId);
-        }
-        if (result) {
-            scheduleWritePackageRestrictionsLocked(userId);
+            if (result) {
+                scheduleWritePackageRestrictionsLocked(userId, packageName);
+            }
         }
         return result;
     }
@@ -21256,9 +21327,10 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         synchronized (mLock) {
             if ((flags & PackageManager.SYNCHRONOUS) != 0) {
+                scheduleWritePackageRestrictionsLocked(userId, packageName);
                 flushPackageRestrictionsAsUserInternalLocked(userId);
             } else {
-                scheduleWritePackageRestrictionsLocked(userId);
+                scheduleWritePackageRestrictionsLocked(userId, packageName);
             }
             updateSequenceNumberLP(pkgSetting, new int[] { userId });
             final long callingId = Binder.clearCallingIdentity();
@@ -21329,9 +21401,15 @@ public class PackageManagerService extends IPackageManager.Stub
     private void flushPackageRestrictionsAsUserInternalLocked(int userId) {
         // NOTE: this invokes synchronous disk access, so callers using this
         // method should consider running on a background thread
-        mSettings.writePackageRestrictionsLPr(userId);
+        final ArraySet<String> dirtyPackages = mDirtyPackageRestrictions.get(userId);
+        if (dirtyPackages != null && !mDirtyUsers.contains(userId)) {
+            mSettings.writePackageRestrictionsDeltaLPr(userId, dirtyPackages);
+        } else {
+            mSettings.writePackageRestrictionsLPr(userId);
+        }
         mDirtyUsers.remove(userId);
-        if (mDirtyUsers.isEmpty()) {
+        mDirtyPackageRestrictions.remove(userId);
+        if (mDirtyUsers.isEmpty() && mDirtyPackageRestrictions.size() == 0) {
             mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
         }
     }
@@ -21391,7 +21469,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (!shouldFilterApplicationLocked(ps, callingUid, userId)
                     && mSettings.setPackageStoppedStateLPw(this, packageName, stopped,
                             allowedByPermission, callingUid, userId)) {
-                scheduleWritePackageRestrictionsLocked(userId);
+                scheduleWritePackageRestrictionsLocked(userId, packageName);
             }
         }
     }
@@ -23643,6 +23721,7 @@ public class PackageManagerService extends IPackageManager.Stub
     void cleanUpUser(UserManagerService userManager, @UserIdInt int userId) {
         synchronized (mLock) {
             mDirtyUsers.remove(userId);
+            mDirtyPackageRestrictions.remove(userId);
             mUserNeedsBadging.delete(userId);
             mSettings.removeUserLPw(userId);
             mPendingBroadcasts.remove(userId);
@@ -25696,7 +25775,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
         synchronized (mLock) {
             mSettings.setHarmfulAppWarningLPw(packageName, warning, userId);
-            scheduleWritePackageRestrictionsLocked(userId);
+            scheduleWritePackageRestrictionsLocked(userId, packageName);
         }
     }
 
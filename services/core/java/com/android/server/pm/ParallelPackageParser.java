@@ -18,6 +18,7 @@ package com.android.server.pm;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
+import android.app.ActivityManager;
 import android.content.pm.PackageParser;
 import android.os.Process;
 import android.os.Trace;
@@ -28,29 +29,90 @@ import com.android.server.pm.parsing.PackageParser2;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized by {@link #getThreadCount()}.
+ * At any time, at most {@link #QUEUE_CAPACITY_PER_THREAD} results per thread are kept in
+ * RAM</p>
  */
 class ParallelPackageParser {
 
-    private static final int QUEUE_CAPACITY = 30;
-    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 8;
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 8;
+    /** Parsing holds onto large buffers, so keep fewer of them alive on low-RAM devices. */
+    private static final int MAX_THREADS_LOW_RAM = 2;
+
+    private static final int THREAD_COUNT = getThreadCount();
 
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue =
+            new ArrayBlockingQueue<>(THREAD_COUNT * QUEUE_CAPACITY_PER_THREAD);
 
     static ExecutorService makeExecutorService() {
-        return ConcurrentUtils.newFixedThreadPool(MAX_THREADS, "package-parsing-thread",
+        return ConcurrentUtils.newFixedThreadPool(THREAD_COUNT, "package-parsing-thread",
                 Process.THREAD_PRIORITY_FOREGROUND);
     }
 
+    /**
+     * Returns the number of parsing threads to use: one per available core, bounded by
+     * {@link #MIN_THREADS} and {@link #MAX_THREADS}, or {@link #MAX_THREADS_LOW_RAM} on low-RAM
+     * devices.
+     */
+    @VisibleForTesting
+    static int getThreadCount() {
+        final int maxThreads = ActivityManager.isLowRamDeviceStatic()
+                ? MAX_THREADS_LOW_RAM : MAX_THREADS;
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_THREADS, Math.min(cores, maxThreads));
+    }
+
+    /**
+     * Sorts the given package files so that the largest are first. Submitting them in this
+     * order keeps a few big packages from being left to parse alone at the end of a scan,
+     * while all other threads sit idle.
+     */
+    static void sortLargestFirst(List<File> files) {
+        final int size = files.size();
+        final File[] sorted = files.toArray(new File[size]);
+        final long[] lengths = new long[size];
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            lengths[i] = getPackageLength(sorted[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> lengths[i]).reversed());
+        for (int i = 0; i < size; i++) {
+            files.set(i, sorted[order[i]]);
+        }
+    }
+
+    /**
+     * Returns the size in bytes of a package file, or of the files directly within a
+     * cluster package directory.
+     */
+    private static long getPackageLength(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        final File[] children = file.listFiles();
+        long length = 0;
+        if (children != null) {
+            for (File child : children) {
+                length += child.length();
+            }
+        }
+        return length;
+    }
+
     private final PackageParser2 mPackageParser;
 
     private final ExecutorService mExecutorService;
@@ -70,6 +70,7 @@ import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SELinux;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -94,6 +95,8 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.CollectionUtils;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
@@ -121,6 +124,10 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -129,6 +136,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
@@ -143,6 +152,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * Holds information about dynamic settings.
@@ -191,6 +201,14 @@ public final class Settings {
     private static final boolean DEBUG_KERNEL = false;
     private static final boolean DEBUG_PARSER = false;
 
+    /**
+     * Whether packages.xml is written using {@link BinaryXmlSerializer} rather than as text.
+     * Both formats are always accepted when reading, so changing this migrates the file the
+     * next time settings are written.
+     */
+    private static final boolean WRITE_BINARY_SETTINGS =
+            SystemProperties.getBoolean("persist.pm.binary_settings", false);
+
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
@@ -200,6 +218,15 @@ public final class Settings {
     private static final String TAG_DISABLED_COMPONENTS = "disabled-components";
     private static final String TAG_ENABLED_COMPONENTS = "enabled-components";
     private static final String TAG_PACKAGE_RESTRICTIONS = "package-restrictions";
+
+    /**
+     * Number of per-package records the package restrictions journal may hold before it is
+     * compacted into a new package-restrictions.xml snapshot.
+     */
+    private static final int MAX_JOURNAL_RECORDS = 128;
+    private static final int MAX_JOURNAL_RECORD_SIZE = 1024 * 1024;
+    /** Sequence number, payload length and CRC32 of the payload. */
+    private static final int JOURNAL_RECORD_HEADER_SIZE = 12;
     private static final String TAG_PACKAGE = "pkg";
     private static final String TAG_SHARED_USER = "shared-user";
     private static final String TAG_RUNTIME_PERMISSIONS = "runtime-permissions";
@@ -280,6 +307,7 @@ public final class Settings {
     private static final String ATTR_SDK_VERSION = "sdkVersion";
     private static final String ATTR_DATABASE_VERSION = "databaseVersion";
     private static final String ATTR_VALUE = "value";
+    private static final String ATTR_JOURNAL_SEQ = "journal-seq";
 
     private final Object mLock;
 
@@ -402,6 +430,11 @@ public final class Settings {
     // App-link priority tracking, per-user
     final SparseIntArray mNextAppLinkGeneration = new SparseIntArray();
 
+    /** Sequence number of the last record appended to each user's restrictions journal. */
+    private final SparseIntArray mPackageRestrictionsJournalSeq = new SparseIntArray();
+    /** Number of records in each user's restrictions journal since the last snapshot. */
+    private final SparseIntArray mPackageRestrictionsJournalRecords = new SparseIntArray();
+
     final StringBuilder mReadMessages = new StringBuilder();
 
     /**
@@ -1321,6 +1354,11 @@ public final class Settings {
         return new File(userDir, "package-restrictions.xml");
     }
 
+    private File getUserPackagesStateJournalFile(int userId) {
+        File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+        return new File(userDir, "package-restrictions-journal");
+    }
+
     private File getUserRuntimePermissionsFile(int userId) {
         // TODO: Implement a cleaner solution when adding tests.
         // This instead of Environment.getUserSystemDirectory(userId) to support testing.
@@ -1589,6 +1627,8 @@ public final class Settings {
                     PackageManagerService.reportSettingsProblem(Log.INFO,
                             "No stopped packages file; "
                             + "assuming all started");
+                    // A journal is only meaningful on top of a snapshot.
+                    getUserPackagesStateJournalFile(userId).delete();
                     // At first boot, make sure no packages are stopped.
                     // We usually want to have third party apps initialize
                     // in the stopped state, but not at first boot.  Also
@@ -1631,13 +1671,15 @@ public final class Settings {
                 mReadMessages.append("No start tag found in package restrictions file\n");
                 PackageManagerService.reportSettingsProblem(Log.WARN,
                         "No start tag found in package manager stopped packages");
+                // Keep numbering new journal records after the existing ones.
+                replayPackageRestrictionsJournalLPw(userId, 0, false);
                 return;
             }
 
+            final int journalSeq = XmlUtils.readIntAttribute(parser, ATTR_JOURNAL_SEQ, 0);
             int maxAppLinkGeneration = 0;
 
             int outerDepth = parser.getDepth();
-            PackageSetting ps = null;
             while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
                    && (type != XmlPullParser.END_TAG
                            || parser.getDepth() > outerDepth)) {
@@ -1648,143 +1690,10 @@ public final class Settings {
 
                 String tagName = parser.getName();
                 if (tagName.equals(TAG_PACKAGE)) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    ps = mPackages.get(name);
-                    if (ps == null) {
-                        Slog.w(PackageManagerService.TAG, "No package known for stopped package "
-                                + name);
-                        XmlUtils.skipCurrentTag(parser);
-                        continue;
-                    }
-
-                    final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
-                            0);
-                    final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
-                            true);
-                    final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
-                            false);
-                    final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_NOT_LAUNCHED, false);
-
-                    // For backwards compatibility with the previous name of "blocked", which
-                    // now means hidden, read the old attribute as well.
-                    final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
-                    boolean hidden = blockedStr == null
-                            ? false : Boolean.parseBoolean(blockedStr);
-                    final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
-                    hidden = hiddenStr == null
-                            ? hidden : Boolean.parseBoolean(hiddenStr);
-
-                    final int distractionFlags = XmlUtils.readIntAttribute(parser,
-                            ATTR_DISTRACTION_FLAGS, 0);
-                    final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
-                            false);
-                    String oldSuspendingPackage = parser.getAttributeValue(null,
-                            ATTR_SUSPENDING_PACKAGE);
-                    final String dialogMessage = parser.getAttributeValue(null,
-                            ATTR_SUSPEND_DIALOG_MESSAGE);
-                    if (suspended && oldSuspendingPackage == null) {
-                        oldSuspendingPackage = PLATFORM_PACKAGE_NAME;
-                    }
-
-                    final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_BLOCK_UNINSTALL, false);
-                    final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_INSTANT_APP, false);
-                    final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_VIRTUAL_PRELOAD, false);
-                    final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
-                            COMPONENT_ENABLED_STATE_DEFAULT);
-                    final String enabledCaller = parser.getAttributeValue(null,
-                            ATTR_ENABLED_CALLER);
-                    final String harmfulAppWarning =
-                            parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
-                    final int verifState = XmlUtils.readIntAttribute(parser,
-                            ATTR_DOMAIN_VERIFICATON_STATE,
-                            PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
-                    final int linkGeneration = XmlUtils.readIntAttribute(parser,
-                            ATTR_APP_LINK_GENERATION, 0);
+                    final int linkGeneration = readPackageUserStateLPw(parser, userId);
                     if (linkGeneration > maxAppLinkGeneration) {
                         maxAppLinkGeneration = linkGeneration;
                     }
-                    final int installReason = XmlUtils.readIntAttribute(parser,
-                            ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
-                    final int uninstallReason = XmlUtils.readIntAttribute(parser,
-                            ATTR_UNINSTALL_REASON, PackageManager.UNINSTALL_REASON_UNKNOWN);
-
-                    ArraySet<String> enabledComponents = null;
-                    ArraySet<String> disabledComponents = null;
-                    PersistableBundle suspendedAppExtras = null;
-                    PersistableBundle suspendedLauncherExtras = null;
-                    SuspendDialogInfo oldSuspendDialogInfo = null;
-
-                    int packageDepth = parser.getDepth();
-                    ArrayMap<String, PackageUserState.SuspendParams> suspendParamsMap = null;
-                    while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG
-                            || parser.getDepth() > packageDepth)) {
-                        if (type == XmlPullParser.END_TAG
-                                || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-                        switch (parser.getName()) {
-                            case TAG_ENABLED_COMPONENTS:
-                                enabledComponents = readComponentsLPr(parser);
-                                break;
-                            case TAG_DISABLED_COMPONENTS:
-                                disabledComponents = readComponentsLPr(parser);
-                                break;
-                            case TAG_SUSPENDED_APP_EXTRAS:
-                                suspendedAppExtras = PersistableBundle.restoreFromXml(parser);
-                                break;
-                            case TAG_SUSPENDED_LAUNCHER_EXTRAS:
-                                suspendedLauncherExtras = PersistableBundle.restoreFromXml(parser);
-                                break;
-                            case TAG_SUSPENDED_DIALOG_INFO:
-                                oldSuspendDialogInfo = SuspendDialogInfo.restoreFromXml(parser);
-                                break;
-                            case TAG_SUSPEND_PARAMS:
-                                final String suspendingPackage = parser.getAttributeValue(null,
-                                        ATTR_SUSPENDING_PACKAGE);
-                                if (suspendingPackage == null) {
-                                    Slog.wtf(TAG, "No suspendingPackage found inside tag "
-                                            + TAG_SUSPEND_PARAMS);
-                                    continue;
-                                }
-                                if (suspendParamsMap == null) {
-                                    suspendParamsMap = new ArrayMap<>();
-                                }
-                                suspendParamsMap.put(suspendingPackage,
-                                        PackageUserState.SuspendParams.restoreFromXml(parser));
-                                break;
-                            default:
-                                Slog.wtf(TAG, "Unknown tag " + parser.getName() + " under tag "
-                                        + TAG_PACKAGE);
-                        }
-                    }
-                    if (oldSuspendDialogInfo == null && !TextUtils.isEmpty(dialogMessage)) {
-                        oldSuspendDialogInfo = new SuspendDialogInfo.Builder()
-                                .setMessage(dialogMessage)
-                                .build();
-                    }
-                    if (suspended && suspendParamsMap == null) {
-                        final PackageUserState.SuspendParams suspendParams =
-                                PackageUserState.SuspendParams.getInstanceOrNull(
-                                        oldSuspendDialogInfo,
-                                        suspendedAppExtras,
-                                        suspendedLauncherExtras);
-                        suspendParamsMap = new ArrayMap<>();
-                        suspendParamsMap.put(oldSuspendingPackage, suspendParams);
-                    }
-
-                    if (blockUninstall) {
-                        setBlockUninstallLPw(userId, name, true);
-                    }
-                    ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
-                            hidden, distractionFlags, suspended, suspendParamsMap,
-                            instantApp, virtualPreload,
-                            enabledCaller, enabledComponents, disabledComponents, verifState,
-                            linkGeneration, installReason, uninstallReason, harmfulAppWarning);
                 } else if (tagName.equals("preferred-activities")) {
                     readPreferredActivitiesLPw(parser, userId);
                 } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
@@ -1804,6 +1713,12 @@ public final class Settings {
 
             str.close();
 
+            final int linkGeneration =
+                    replayPackageRestrictionsJournalLPw(userId, journalSeq, true);
+            if (linkGeneration > maxAppLinkGeneration) {
+                maxAppLinkGeneration = linkGeneration;
+            }
+
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
 
         } catch (XmlPullParserException e) {
@@ -1812,13 +1727,255 @@ public final class Settings {
                     "Error reading stopped packages: " + e);
             Slog.wtf(PackageManagerService.TAG, "Error reading package manager stopped packages",
                     e);
+            replayPackageRestrictionsJournalLPw(userId, 0, false);
 
         } catch (java.io.IOException e) {
             mReadMessages.append("Error reading: " + e.toString());
             PackageManagerService.reportSettingsProblem(Log.ERROR, "Error reading settings: " + e);
             Slog.wtf(PackageManagerService.TAG, "Error reading package manager stopped packages",
                     e);
+            replayPackageRestrictionsJournalLPw(userId, 0, false);
+        }
+    }
+
+    /**
+     * Reads the state of a single package for the given user from a {@code <package>} tag of
+     * package-restrictions.xml or its journal, and applies it to the package setting.
+     *
+     * @return the app link generation of the package, or 0 if the package is unknown.
+     */
+    private int readPackageUserStateLPw(XmlPullParser parser, int userId)
+            throws IOException, XmlPullParserException {
+        final String name = parser.getAttributeValue(null, ATTR_NAME);
+        final PackageSetting ps = mPackages.get(name);
+        if (ps == null) {
+            Slog.w(PackageManagerService.TAG, "No package known for stopped package " + name);
+            XmlUtils.skipCurrentTag(parser);
+            return 0;
+        }
+
+        final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE, 0);
+        final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED, true);
+        final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED, false);
+        final boolean notLaunched = XmlUtils.readBooleanAttribute(parser, ATTR_NOT_LAUNCHED,
+                false);
+
+        // For backwards compatibility with the previous name of "blocked", which
+        // now means hidden, read the old attribute as well.
+        final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
+        boolean hidden = blockedStr == null
+                ? false : Boolean.parseBoolean(blockedStr);
+        final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
+        hidden = hiddenStr == null
+                ? hidden : Boolean.parseBoolean(hiddenStr);
+
+        final int distractionFlags = XmlUtils.readIntAttribute(parser,
+                ATTR_DISTRACTION_FLAGS, 0);
+        final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
+                false);
+        String oldSuspendingPackage = parser.getAttributeValue(null,
+                ATTR_SUSPENDING_PACKAGE);
+        final String dialogMessage = parser.getAttributeValue(null,
+                ATTR_SUSPEND_DIALOG_MESSAGE);
+        if (suspended && oldSuspendingPackage == null) {
+            oldSuspendingPackage = PLATFORM_PACKAGE_NAME;
+        }
+
+        final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
+                ATTR_BLOCK_UNINSTALL, false);
+        final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
+                ATTR_INSTANT_APP, false);
+        final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
+                ATTR_VIRTUAL_PRELOAD, false);
+        final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
+                COMPONENT_ENABLED_STATE_DEFAULT);
+        final String enabledCaller = parser.getAttributeValue(null,
+                ATTR_ENABLED_CALLER);
+        final String harmfulAppWarning =
+                parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
+        final int verifState = XmlUtils.readIntAttribute(parser,
+                ATTR_DOMAIN_VERIFICATON_STATE,
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
+        final int linkGeneration = XmlUtils.readIntAttribute(parser,
+                ATTR_APP_LINK_GENERATION, 0);
+        final int installReason = XmlUtils.readIntAttribute(parser,
+                ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
+        final int uninstallReason = XmlUtils.readIntAttribute(parser,
+                ATTR_UNINSTALL_REASON, PackageManager.UNINSTALL_REASON_UNKNOWN);
+
+        ArraySet<String> enabledComponents = null;
+        ArraySet<String> disabledComponents = null;
+        PersistableBundle suspendedAppExtras = null;
+        PersistableBundle suspendedLauncherExtras = null;
+        SuspendDialogInfo oldSuspendDialogInfo = null;
+
+        int type;
+        int packageDepth = parser.getDepth();
+        ArrayMap<String, PackageUserState.SuspendParams> suspendParamsMap = null;
+        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG
+                || parser.getDepth() > packageDepth)) {
+            if (type == XmlPullParser.END_TAG
+                    || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            switch (parser.getName()) {
+                case TAG_ENABLED_COMPONENTS:
+                    enabledComponents = readComponentsLPr(parser);
+                    break;
+                case TAG_DISABLED_COMPONENTS:
+                    disabledComponents = readComponentsLPr(parser);
+                    break;
+                case TAG_SUSPENDED_APP_EXTRAS:
+                    suspendedAppExtras = PersistableBundle.restoreFromXml(parser);
+                    break;
+                case TAG_SUSPENDED_LAUNCHER_EXTRAS:
+                    suspendedLauncherExtras = PersistableBundle.restoreFromXml(parser);
+                    break;
+                case TAG_SUSPENDED_DIALOG_INFO:
+                    oldSuspendDialogInfo = SuspendDialogInfo.restoreFromXml(parser);
+                    break;
+                case TAG_SUSPEND_PARAMS:
+                    final String suspendingPackage = parser.getAttributeValue(null,
+                            ATTR_SUSPENDING_PACKAGE);
+                    if (suspendingPackage == null) {
+                        Slog.wtf(TAG, "No suspendingPackage found inside tag "
+                                + TAG_SUSPEND_PARAMS);
+                        continue;
+                    }
+                    if (suspendParamsMap == null) {
+                        suspendParamsMap = new ArrayMap<>();
+                    }
+                    suspendParamsMap.put(suspendingPackage,
+                            PackageUserState.SuspendParams.restoreFromXml(parser));
+                    break;
+                default:
+                    Slog.wtf(TAG, "Unknown tag " + parser.getName() + " under tag "
+                            + TAG_PACKAGE);
+            }
+        }
+        if (oldSuspendDialogInfo == null && !TextUtils.isEmpty(dialogMessage)) {
+            oldSuspendDialogInfo = new SuspendDialogInfo.Builder()
+                    .setMessage(dialogMessage)
+                    .build();
+        }
+        if (suspended && suspendParamsMap == null) {
+            final PackageUserState.SuspendParams suspendParams =
+                    PackageUserState.SuspendParams.getInstanceOrNull(
+                            oldSuspendDialogInfo,
+                            suspendedAppExtras,
+                            suspendedLauncherExtras);
+            suspendParamsMap = new ArrayMap<>();
+            suspendParamsMap.put(oldSuspendingPackage, suspendParams);
+        }
+
+        if (blockUninstall) {
+            setBlockUninstallLPw(userId, name, true);
+        }
+        ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
+                hidden, distractionFlags, suspended, suspendParamsMap,
+                instantApp, virtualPreload,
+                enabledCaller, enabledComponents, disabledComponents, verifState,
+                linkGeneration, installReason, uninstallReason, harmfulAppWarning);
+        return linkGeneration;
+    }
+
+    /**
+     * Applies the records of the package restrictions journal of the given user that are newer
+     * than the last snapshot.  Records that fail their checksum or cannot be parsed are skipped,
+     * and a truncated record at the end of the journal, e.g. from a crash during an append, is
+     * removed.  A journal with damaged records is compacted on the next write.
+     *
+     * @param apply whether to apply the records, or only recover the sequence number to append
+     *        new records with, e.g. when the snapshot could not be read.
+     * @return the highest app link generation found in the applied records.
+     */
+    private int replayPackageRestrictionsJournalLPw(int userId, int snapshotSeq, boolean apply) {
+        int maxAppLinkGeneration = 0;
+        int seq = snapshotSeq;
+        int records = 0;
+        boolean damaged = false;
+        long position = 0;
+        long validLength = 0;
+        final File journalFile = getUserPackagesStateJournalFile(userId);
+        if (journalFile.exists()) {
+            final CRC32 crc = new CRC32();
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(journalFile)))) {
+                while (true) {
+                    final int recordSeq;
+                    final int checksum;
+                    final byte[] record;
+                    try {
+                        recordSeq = in.readInt();
+                        final int length = in.readInt();
+                        checksum = in.readInt();
+                        if (length < 0 || length > MAX_JOURNAL_RECORD_SIZE) {
+                            Slog.w(TAG, "Invalid package restrictions journal record for user "
+                                    + userId + "; ignoring remainder");
+                            break;
+                        }
+                        record = new byte[length];
+                        in.readFully(record);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    position += JOURNAL_RECORD_HEADER_SIZE + record.length;
+                    crc.reset();
+                    crc.update(record, 0, record.length);
+                    if ((int) crc.getValue() != checksum) {
+                        Slog.w(TAG, "Package restrictions journal record " + recordSeq
+                                + " for user " + userId + " is damaged; skipping");
+                        damaged = true;
+                        continue;
+                    }
+                    if (recordSeq > seq) {
+                        seq = recordSeq;
+                        if (apply) {
+                            try {
+                                final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+                                parser.setInput(ByteBuffer.wrap(record));
+                                if (parser.nextTag() == XmlPullParser.START_TAG
+                                        && TAG_PACKAGE.equals(parser.getName())) {
+                                    final int linkGeneration =
+                                            readPackageUserStateLPw(parser, userId);
+                                    if (linkGeneration > maxAppLinkGeneration) {
+                                        maxAppLinkGeneration = linkGeneration;
+                                    }
+                                }
+                            } catch (IOException | XmlPullParserException e) {
+                                Slog.w(TAG, "Unable to parse package restrictions journal record "
+                                        + recordSeq + " for user " + userId + "; skipping", e);
+                                damaged = true;
+                                continue;
+                            }
+                        }
+                    }
+                    // Records already part of the snapshot still count towards compaction.
+                    validLength = position;
+                    records++;
+                }
+            } catch (IOException e) {
+                mReadMessages.append("Error reading: " + e.toString());
+                PackageManagerService.reportSettingsProblem(Log.ERROR,
+                        "Error reading package restrictions journal: " + e);
+                Slog.wtf(PackageManagerService.TAG,
+                        "Error reading package restrictions journal", e);
+            }
+            if (journalFile.length() != validLength) {
+                // Drop the damaged tail so that new records can be appended after it.
+                try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                    raf.setLength(validLength);
+                } catch (IOException e) {
+                    journalFile.delete();
+                }
+            }
         }
+        mPackageRestrictionsJournalSeq.put(userId, seq);
+        // Damaged records in the middle of the journal would be read again on every boot, so
+        // have the next write replace the journal with a snapshot.
+        mPackageRestrictionsJournalRecords.put(userId, damaged ? MAX_JOURNAL_RECORDS : records);
+        return maxAppLinkGeneration;
     }
 
     void setBlockUninstallLPw(int userId, String packageName, boolean blockUninstall) {
@@ -2060,107 +2217,12 @@ public final class Settings {
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            XmlUtils.writeIntAttribute(serializer, ATTR_JOURNAL_SEQ,
+                    mPackageRestrictionsJournalSeq.get(userId));
 
             if (DEBUG_MU) Log.i(TAG, "Writing " + userPackagesStateFile);
             for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) {
-                    Log.i(TAG, "  pkg=" + pkg.name + ", installed=" + ustate.installed
-                            + ", state=" + ustate.enabled);
-                }
-
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.distractionFlags != 0) {
-                    serializer.attribute(null, ATTR_DISTRACTION_FLAGS,
-                            Integer.toString(ustate.distractionFlags));
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
-                }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
-                }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (ustate.uninstallReason != PackageManager.UNINSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_UNINSTALL_REASON,
-                            Integer.toString(ustate.uninstallReason));
-                }
-                if (ustate.harmfulAppWarning != null) {
-                    serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
-                            ustate.harmfulAppWarning);
-                }
-                if (ustate.suspended) {
-                    for (int i = 0; i < ustate.suspendParams.size(); i++) {
-                        final String suspendingPackage = ustate.suspendParams.keyAt(i);
-                        serializer.startTag(null, TAG_SUSPEND_PARAMS);
-                        serializer.attribute(null, ATTR_SUSPENDING_PACKAGE, suspendingPackage);
-                        final PackageUserState.SuspendParams params =
-                                ustate.suspendParams.valueAt(i);
-                        if (params != null) {
-                            params.saveToXml(serializer);
-                        }
-                        serializer.endTag(null, TAG_SUSPEND_PARAMS);
-                    }
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
-                }
-
-                serializer.endTag(null, TAG_PACKAGE);
+                writePackageUserStateLPr(serializer, pkg, userId);
             }
 
             writePreferredActivitiesLPr(serializer, userId, true);
@@ -2185,6 +2247,10 @@ public final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
+            // Everything in the journal is now part of the snapshot.
+            getUserPackagesStateJournalFile(userId).delete();
+            mPackageRestrictionsJournalRecords.delete(userId);
+
             com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
                     "package-user-" + userId, SystemClock.uptimeMillis() - startTime);
 
@@ -2205,6 +2271,183 @@ public final class Settings {
         }
     }
 
+    private void writePackageUserStateLPr(XmlSerializer serializer, PackageSetting pkg,
+            int userId) throws IOException {
+        final PackageUserState ustate = pkg.readUserState(userId);
+        if (DEBUG_MU) {
+            Log.i(TAG, "  pkg=" + pkg.name + ", installed=" + ustate.installed
+                    + ", state=" + ustate.enabled);
+        }
+
+        serializer.startTag(null, TAG_PACKAGE);
+        serializer.attribute(null, ATTR_NAME, pkg.name);
+        if (ustate.ceDataInode != 0) {
+            XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+        }
+        if (!ustate.installed) {
+            serializer.attribute(null, ATTR_INSTALLED, "false");
+        }
+        if (ustate.stopped) {
+            serializer.attribute(null, ATTR_STOPPED, "true");
+        }
+        if (ustate.notLaunched) {
+            serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+        }
+        if (ustate.hidden) {
+            serializer.attribute(null, ATTR_HIDDEN, "true");
+        }
+        if (ustate.distractionFlags != 0) {
+            serializer.attribute(null, ATTR_DISTRACTION_FLAGS,
+                    Integer.toString(ustate.distractionFlags));
+        }
+        if (ustate.suspended) {
+            serializer.attribute(null, ATTR_SUSPENDED, "true");
+        }
+        if (ustate.instantApp) {
+            serializer.attribute(null, ATTR_INSTANT_APP, "true");
+        }
+        if (ustate.virtualPreload) {
+            serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+        }
+        if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+            serializer.attribute(null, ATTR_ENABLED,
+                    Integer.toString(ustate.enabled));
+            if (ustate.lastDisableAppCaller != null) {
+                serializer.attribute(null, ATTR_ENABLED_CALLER,
+                        ustate.lastDisableAppCaller);
+            }
+        }
+        if (ustate.domainVerificationStatus !=
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                    ustate.domainVerificationStatus);
+        }
+        if (ustate.appLinkGeneration != 0) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                    ustate.appLinkGeneration);
+        }
+        if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+            serializer.attribute(null, ATTR_INSTALL_REASON,
+                    Integer.toString(ustate.installReason));
+        }
+        if (ustate.uninstallReason != PackageManager.UNINSTALL_REASON_UNKNOWN) {
+            serializer.attribute(null, ATTR_UNINSTALL_REASON,
+                    Integer.toString(ustate.uninstallReason));
+        }
+        if (ustate.harmfulAppWarning != null) {
+            serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
+                    ustate.harmfulAppWarning);
+        }
+        if (ustate.suspended) {
+            for (int i = 0; i < ustate.suspendParams.size(); i++) {
+                final String suspendingPackage = ustate.suspendParams.keyAt(i);
+                serializer.startTag(null, TAG_SUSPEND_PARAMS);
+                serializer.attribute(null, ATTR_SUSPENDING_PACKAGE, suspendingPackage);
+                final PackageUserState.SuspendParams params =
+                        ustate.suspendParams.valueAt(i);
+                if (params != null) {
+                    params.saveToXml(serializer);
+                }
+                serializer.endTag(null, TAG_SUSPEND_PARAMS);
+            }
+        }
+        if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+            serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+            for (final String name : ustate.enabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+        }
+        if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+            serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+            for (final String name : ustate.disabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+        }
+
+        serializer.endTag(null, TAG_PACKAGE);
+    }
+
+    /**
+     * Persists the restrictions of the given packages for a user by appending them to the
+     * journal next to package-restrictions.xml, rather than rewriting the whole file.  The
+     * journal is compacted into a full {@link #writePackageRestrictionsLPr snapshot} once it
+     * grows past {@link #MAX_JOURNAL_RECORDS} records.
+     */
+    void writePackageRestrictionsDeltaLPr(int userId, Collection<String> packageNames) {
+        final File userPackagesStateFile = getUserPackagesStateFile(userId);
+        if (!userPackagesStateFile.exists() || getUserPackagesStateBackupFile(userId).exists()
+                || mPackageRestrictionsJournalRecords.get(userId) + packageNames.size()
+                        > MAX_JOURNAL_RECORDS) {
+            writePackageRestrictionsLPr(userId);
+            return;
+        }
+
+        invalidatePackageCache();
+
+        if (DEBUG_MU) {
+            Log.i(TAG, "Journaling package restrictions for user=" + userId + ": "
+                    + packageNames);
+        }
+        final long startTime = SystemClock.uptimeMillis();
+
+        final File journalFile = getUserPackagesStateJournalFile(userId);
+        final long journalLength = journalFile.length();
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final BinaryXmlSerializer serializer = new BinaryXmlSerializer();
+        try (FileOutputStream fstr = new FileOutputStream(journalFile, true)) {
+            final DataOutputStream str = new DataOutputStream(new BufferedOutputStream(fstr));
+            final CRC32 crc = new CRC32();
+            int seq = mPackageRestrictionsJournalSeq.get(userId);
+            int records = mPackageRestrictionsJournalRecords.get(userId);
+            for (String packageName : packageNames) {
+                final PackageSetting pkg = mPackages.get(packageName);
+                if (pkg == null) {
+                    continue;
+                }
+                record.reset();
+                serializer.setOutput(record, StandardCharsets.UTF_8.name());
+                serializer.startDocument(null, true);
+                writePackageUserStateLPr(serializer, pkg, userId);
+                serializer.endDocument();
+
+                final byte[] payload = record.toByteArray();
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                str.writeInt(++seq);
+                str.writeInt(payload.length);
+                str.writeInt((int) crc.getValue());
+                str.write(payload);
+                records++;
+            }
+            str.flush();
+            FileUtils.sync(fstr);
+
+            mPackageRestrictionsJournalSeq.put(userId, seq);
+            mPackageRestrictionsJournalRecords.put(userId, records);
+
+            com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
+                    "package-user-journal-" + userId, SystemClock.uptimeMillis() - startTime);
+            return;
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Unable to append to package restrictions journal"
+                    + " for user " + userId + "; writing full snapshot", e);
+        }
+
+        // Drop any partially written records and fall back to a full write.
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(journalLength);
+        } catch (IOException e) {
+            journalFile.delete();
+        }
+        writePackageRestrictionsLPr(userId);
+    }
+
     void readInstallPermissionsLPr(XmlPullParser parser,
             PermissionsState permissionsState) throws IOException, XmlPullParserException {
         int outerDepth = parser.getDepth();
@@ -2470,7 +2713,8 @@ public final class Settings {
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
             //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
+            XmlSerializer serializer = WRITE_BINARY_SETTINGS
+                    ? new BinaryXmlSerializer() : new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -3018,8 +3262,8 @@ public final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            final long startTime = SystemClock.uptimeMillis();
+            XmlPullParser parser = BinaryXmlPullParser.newPullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -3129,6 +3373,8 @@ public final class Settings {
             }
 
             str.close();
+            Slog.i(TAG, "Read package settings in " + (SystemClock.uptimeMillis() - startTime)
+                    + "ms");
 
         } catch (XmlPullParserException e) {
             mReadMessages.append("Error reading: " + e.toString());
@@ -4253,6 +4499,10 @@ public final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        file = getUserPackagesStateJournalFile(userId);
+        file.delete();
+        mPackageRestrictionsJournalSeq.delete(userId);
+        mPackageRestrictionsJournalRecords.delete(userId);
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
@@ -20,6 +20,7 @@ import android.annotation.NonNull;
 import android.content.pm.PackageParserCacheHelper;
 import android.os.FileUtils;
 import android.os.Parcel;
+import android.os.SystemProperties;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
@@ -27,6 +28,7 @@ import android.system.StructStat;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.HexDump;
 import com.android.server.pm.parsing.pkg.PackageImpl;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
@@ -35,12 +37,53 @@ import libcore.io.IoUtils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PackageCacher {
 
     private static final String TAG = "PackageCacher";
 
+    /**
+     * Version of the parser output stored in the cache. This must be bumped whenever the
+     * parcelled form of {@link PackageImpl} or the parsing behavior changes incompatibly, since
+     * content addressed entries outlive the build that wrote them.
+     */
+    @VisibleForTesting
+    public static final int PARSER_VERSION = 1;
+
+    /**
+     * Whether cache entries are keyed by the contents of the package rather than by its name and
+     * mtime. Content addressed entries stay valid across OTAs for packages that didn't change.
+     */
+    public static final boolean CONTENT_ADDRESSED_CACHE_ENABLED =
+            SystemProperties.getBoolean("pm.package_cache.content_addressed", false);
+
+    /**
+     * Upper bound on the size of a content addressed cache; the least recently used entries are
+     * evicted by {@link #pruneCache(long)} beyond it.
+     */
+    public static final long MAX_CACHE_SIZE_BYTES =
+            SystemProperties.getLong("pm.package_cache.max_bytes", 128 * 1024 * 1024);
+
+    private static final int ZIP_EOCD_REC_MIN_SIZE = 22;
+    private static final int ZIP_EOCD_REC_SIG = 0x06054b50;
+    private static final int ZIP_EOCD_CENTRAL_DIR_SIZE_FIELD_OFFSET = 12;
+    private static final int ZIP_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET = 16;
+    private static final int ZIP_EOCD_MAX_SIZE = ZIP_EOCD_REC_MIN_SIZE + 0xffff;
+
+    private static final byte[] APK_SIG_BLOCK_MAGIC =
+            "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+    private static final int APK_SIG_BLOCK_FOOTER_SIZE = 8 + APK_SIG_BLOCK_MAGIC.length;
+    private static final int APK_SIG_BLOCK_MAX_SIZE = 16 * 1024 * 1024;
+
     /**
      * Total number of packages that were read from the cache.  We use it only for logging.
      */
@@ -49,21 +92,143 @@ public class PackageCacher {
     @NonNull
     private File mCacheDir;
 
+    private final boolean mContentAddressed;
+
     public PackageCacher(@NonNull File cacheDir) {
+        this(cacheDir, CONTENT_ADDRESSED_CACHE_ENABLED);
+    }
+
+    @VisibleForTesting
+    public PackageCacher(@NonNull File cacheDir, boolean contentAddressed) {
         this.mCacheDir = cacheDir;
+        this.mContentAddressed = contentAddressed;
     }
 
     /**
-     * Returns the cache key for a specified {@code packageFile} and {@code flags}.
+     * Returns the cache key for a specified {@code packageFile} and {@code flags}, or
+     * {@code null} if the package contents could not be read to compute one.
      */
     private String getCacheKey(File packageFile, int flags) {
         StringBuilder sb = new StringBuilder(packageFile.getName());
         sb.append('-');
         sb.append(flags);
 
+        if (mContentAddressed) {
+            final byte[] digest = computeContentDigest(packageFile);
+            if (digest == null) {
+                return null;
+            }
+            sb.append('-');
+            sb.append(HexDump.toHexString(digest, 0, 16, false /* upperCase */));
+            // Parsed packages hold their absolute code paths, so the same contents at another
+            // location need an entry of their own.
+            final byte[] pathDigest = computePathDigest(packageFile);
+            if (pathDigest == null) {
+                return null;
+            }
+            sb.append('-');
+            sb.append(HexDump.toHexString(pathDigest, 0, 8, false /* upperCase */));
+        }
+
         return sb.toString();
     }
 
+    /**
+     * Computes a digest identifying the contents of {@code packageFile}, or of the APKs within
+     * it for a cluster package, along with {@link #PARSER_VERSION}.
+     *
+     * <p>Rather than reading whole APKs, this hashes each zip central directory, which holds
+     * the CRC and size of every entry, along with the APK signing block if present, which holds
+     * the signatures and digests of the contents.
+     */
+    @VisibleForTesting
+    public static byte[] computeContentDigest(File packageFile) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte) PARSER_VERSION);
+            md.update((byte) (PARSER_VERSION >> 8));
+            if (packageFile.isDirectory()) {
+                final File[] apks = FileUtils.listFilesOrEmpty(packageFile,
+                        (dir, name) -> name.endsWith(".apk"));
+                Arrays.sort(apks, Comparator.comparing(File::getName));
+                for (File apk : apks) {
+                    md.update(apk.getName().getBytes(StandardCharsets.UTF_8));
+                    updateDigestWithApk(md, apk);
+                }
+            } else {
+                updateDigestWithApk(md, packageFile);
+            }
+            return md.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Slog.w(TAG, "Unable to compute cache key for " + packageFile, e);
+            return null;
+        }
+    }
+
+    private static byte[] computePathDigest(File packageFile) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(packageFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            Slog.w(TAG, "Unable to compute cache key for " + packageFile, e);
+            return null;
+        }
+    }
+
+    private static void updateDigestWithApk(MessageDigest md, File apk) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(apk, "r")) {
+            final long length = raf.length();
+            final int tailSize = (int) Math.min(length, ZIP_EOCD_MAX_SIZE);
+            final byte[] tail = new byte[tailSize];
+            raf.seek(length - tailSize);
+            raf.readFully(tail);
+            final ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+
+            int eocd = -1;
+            for (int i = tailSize - ZIP_EOCD_REC_MIN_SIZE; i >= 0; i--) {
+                if (buffer.getInt(i) == ZIP_EOCD_REC_SIG) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("No zip end of central directory in " + apk);
+            }
+            final long cdSize = buffer.getInt(eocd + ZIP_EOCD_CENTRAL_DIR_SIZE_FIELD_OFFSET)
+                    & 0xffffffffL;
+            final long cdOffset = buffer.getInt(eocd + ZIP_EOCD_CENTRAL_DIR_OFFSET_FIELD_OFFSET)
+                    & 0xffffffffL;
+            if (cdOffset + cdSize > length - tailSize + eocd || cdSize > Integer.MAX_VALUE) {
+                throw new IOException("Malformed zip central directory in " + apk);
+            }
+
+            final byte[] centralDirectory = new byte[(int) cdSize];
+            raf.seek(cdOffset);
+            raf.readFully(centralDirectory);
+            md.update(centralDirectory);
+            md.update(tail, eocd, tailSize - eocd);
+
+            if (cdOffset >= APK_SIG_BLOCK_FOOTER_SIZE) {
+                final byte[] footer = new byte[APK_SIG_BLOCK_FOOTER_SIZE];
+                raf.seek(cdOffset - APK_SIG_BLOCK_FOOTER_SIZE);
+                raf.readFully(footer);
+                if (hasApkSigBlockMagic(footer)) {
+                    // The size field excludes the leading 8 byte size field.
+                    final long blockSize = ByteBuffer.wrap(footer)
+                            .order(ByteOrder.LITTLE_ENDIAN).getLong(0) + 8;
+                    if (blockSize < APK_SIG_BLOCK_FOOTER_SIZE || blockSize > cdOffset
+                            || blockSize > APK_SIG_BLOCK_MAX_SIZE) {
+                        throw new IOException("Malformed APK signing block in " + apk);
+                    }
+                    final byte[] block = new byte[(int) blockSize];
+                    raf.seek(cdOffset - blockSize);
+                    raf.readFully(block);
+                    md.update(block);
+                }
+            }
+        }
+    }
+
     @VisibleForTesting
     protected ParsedPackage fromCacheEntry(byte[] bytes) {
         return fromCacheEntryStatic(bytes);
@@ -142,22 +307,44 @@ public class PackageCacher {
         }
     }
 
+    private static boolean hasApkSigBlockMagic(byte[] footer) {
+        for (int i = 0; i < APK_SIG_BLOCK_MAGIC.length; i++) {
+            if (footer[8 + i] != APK_SIG_BLOCK_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the cached parse result for {@code packageFile} for parse flags {@code flags},
      * or {@code null} if no cached result exists.
      */
     public ParsedPackage getCachedResult(File packageFile, int flags) {
         final String cacheKey = getCacheKey(packageFile, flags);
+        if (cacheKey == null) {
+            return null;
+        }
         final File cacheFile = new File(mCacheDir, cacheKey);
 
         try {
-            // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            if (mContentAddressed) {
+                // The key already identifies the contents; only check that the entry exists.
+                if (!cacheFile.exists()) {
+                    return null;
+                }
+            } else if (!isCacheUpToDate(packageFile, cacheFile)) {
+                // If the cache is not up to date, return null.
                 return null;
             }
 
             final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            return fromCacheEntry(bytes);
+            final ParsedPackage parsed = fromCacheEntry(bytes);
+            if (mContentAddressed) {
+                // Entries are evicted least recently used first, see pruneCache().
+                cacheFile.setLastModified(System.currentTimeMillis());
+            }
+            return parsed;
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
 
@@ -174,6 +361,9 @@ public class PackageCacher {
     public void cacheResult(File packageFile, int flags, ParsedPackage parsed) {
         try {
             final String cacheKey = getCacheKey(packageFile, flags);
+            if (cacheKey == null) {
+                return;
+            }
             final File cacheFile = new File(mCacheDir, cacheKey);
 
             if (cacheFile.exists()) {
@@ -212,4 +402,40 @@ public class PackageCacher {
             }
         }
     }
+
+    /**
+     * Deletes the least recently used cache entries until the cache takes at most
+     * {@code maxBytes}. Only content addressed caches need this, since their entries for old
+     * versions of a package are never overwritten.
+     *
+     * @return the number of entries deleted.
+     */
+    public int pruneCache(long maxBytes) {
+        final File[] files = FileUtils.listFilesOrEmpty(mCacheDir);
+        final long[] lengths = new long[files.length];
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        long totalBytes = 0;
+        for (int i = 0; i < files.length; i++) {
+            lengths[i] = files[i].length();
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+            totalBytes += lengths[i];
+        }
+        if (totalBytes <= maxBytes) {
+            return 0;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastModified[i]));
+        int deleted = 0;
+        for (int i = 0; i < order.length && totalBytes > maxBytes; i++) {
+            final File file = files[order[i]];
+            if (file.delete()) {
+                totalBytes -= lengths[order[i]];
+                deleted++;
+            } else {
+                Slog.e(TAG, "Unable to prune cache file: " + file);
+            }
+        }
+        return deleted;
+    }
 }
@@ -2250,6 +2250,9 @@ public class StatsPullAtomService extends SystemService {
                     .writeLong(entry.recordedDelayMessageCount)
                     .writeLong(entry.delayMillis)
                     .writeLong(entry.maxDelayMillis)
+                    .writeLong(entry.p50LatencyMicros)
+                    .writeLong(entry.p95LatencyMicros)
+                    .writeLong(entry.p99LatencyMicros)
                     .build();
             pulledData.add(e);
         }
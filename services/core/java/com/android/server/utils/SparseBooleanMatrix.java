@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import com.android.internal.util.GrowingArrayUtils;
+
+import java.util.Arrays;
+
+/**
+ * A square matrix of booleans indexed by sparse integer keys, such as uids, on both axes.
+ * Each cell is stored as two bits: whether it has been set, and its value.  Compared to a
+ * {@code SparseArray<SparseBooleanArray>} this uses a small fraction of the memory when most
+ * cells are populated, and a lookup is a single binary search per key followed by a bit test.
+ *
+ * <p>Keys are kept sorted and mapped onto stable matrix indices, so adding or removing a key
+ * never moves the contents of the other rows.  Indices of removed keys are reused.
+ *
+ * <p>This class is not thread safe.
+ */
+public class SparseBooleanMatrix {
+    /** The granularity in which the matrix grows, chosen to match the bit packing. */
+    private static final int STEP = Long.SIZE;
+
+    /** Sorted keys. */
+    private int[] mKeys;
+    /** For each entry of {@link #mKeys}, the row and column of the key in the matrix. */
+    private int[] mMap;
+    /** Which rows/columns of the matrix are assigned to a key. */
+    private boolean[] mInUse;
+    private int mSize;
+
+    /** Number of rows and columns of the matrix; always a multiple of {@link #STEP}. */
+    private int mOrder;
+    /** Number of longs per row. */
+    private int mStride;
+    private long[] mValues;
+    private long[] mPresent;
+
+    public SparseBooleanMatrix() {
+        this(STEP);
+    }
+
+    public SparseBooleanMatrix(int initialCapacity) {
+        mOrder = roundUp(Math.max(initialCapacity, 1));
+        mStride = mOrder / STEP;
+        mKeys = new int[mOrder];
+        mMap = new int[mOrder];
+        mInUse = new boolean[mOrder];
+        mValues = new long[mOrder * mStride];
+        mPresent = new long[mOrder * mStride];
+    }
+
+    /** Returns the number of keys. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the key at the given position, in ascending key order. */
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /** Returns the position of the given key, or a negative number if it is not present. */
+    public int indexOfKey(int key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    public boolean contains(int key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    /**
+     * Returns whether a value has been set for the cell at the given key positions, as
+     * returned by {@link #indexOfKey(int)}.
+     */
+    public boolean hasValueAt(int rowIndex, int colIndex) {
+        return testBit(mPresent, mMap[rowIndex], mMap[colIndex]);
+    }
+
+    /**
+     * Returns the value of the cell at the given key positions, or false if it has not been
+     * set.
+     */
+    public boolean valueAt(int rowIndex, int colIndex) {
+        return testBit(mValues, mMap[rowIndex], mMap[colIndex]);
+    }
+
+    /** Returns the value for the given keys, or {@code valueIfMissing} if it has not been set. */
+    public boolean get(int rowKey, int colKey, boolean valueIfMissing) {
+        final int rowIndex = indexOfKey(rowKey);
+        if (rowIndex < 0) {
+            return valueIfMissing;
+        }
+        final int colIndex = indexOfKey(colKey);
+        if (colIndex < 0 || !hasValueAt(rowIndex, colIndex)) {
+            return valueIfMissing;
+        }
+        return valueAt(rowIndex, colIndex);
+    }
+
+    /** Sets the value for the given keys, adding either key if it is not yet present. */
+    public void put(int rowKey, int colKey, boolean value) {
+        final int row = mMap[addKey(rowKey)];
+        final int col = mMap[addKey(colKey)];
+        setBit(mPresent, row, col, true);
+        setBit(mValues, row, col, value);
+    }
+
+    /**
+     * Adds the given key, with no values set in its row and column, if it is not yet present.
+     *
+     * @return the position of the key.
+     */
+    public int addKey(int key) {
+        int index = indexOfKey(key);
+        if (index >= 0) {
+            return index;
+        }
+        index = ~index;
+        if (mSize == mOrder) {
+            grow();
+        }
+        int slot = 0;
+        while (mInUse[slot]) {
+            slot++;
+        }
+        mInUse[slot] = true;
+        mKeys = GrowingArrayUtils.insert(mKeys, mSize, index, key);
+        mMap = GrowingArrayUtils.insert(mMap, mSize, index, slot);
+        mSize++;
+        return index;
+    }
+
+    /** Removes the given key along with its row and column. */
+    public void removeKey(int key) {
+        final int index = indexOfKey(key);
+        if (index >= 0) {
+            removeKeyAt(index);
+        }
+    }
+
+    /** Removes the key at the given position along with its row and column. */
+    public void removeKeyAt(int index) {
+        final int slot = mMap[index];
+        clearRowAndColumn(mValues, slot);
+        clearRowAndColumn(mPresent, slot);
+        mInUse[slot] = false;
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mMap, index + 1, mMap, index, mSize - index - 1);
+        mSize--;
+    }
+
+    /** Removes all keys and values. */
+    public void clear() {
+        mSize = 0;
+        Arrays.fill(mInUse, false);
+        Arrays.fill(mValues, 0);
+        Arrays.fill(mPresent, 0);
+    }
+
+    private void grow() {
+        final int order = roundUp(mOrder + (mOrder >> 1));
+        final int stride = order / STEP;
+        mValues = resize(mValues, stride);
+        mPresent = resize(mPresent, stride);
+        mInUse = Arrays.copyOf(mInUse, order);
+        if (mKeys.length < order) {
+            mKeys = Arrays.copyOf(mKeys, order);
+            mMap = Arrays.copyOf(mMap, order);
+        }
+        mOrder = order;
+        mStride = stride;
+    }
+
+    private long[] resize(long[] bits, int stride) {
+        final long[] result = new long[stride * stride * STEP];
+        for (int row = 0; row < mOrder; row++) {
+            System.arraycopy(bits, row * mStride, result, row * stride, mStride);
+        }
+        return result;
+    }
+
+    private void clearRowAndColumn(long[] bits, int slot) {
+        Arrays.fill(bits, slot * mStride, (slot + 1) * mStride, 0);
+        final int word = slot / STEP;
+        final long mask = ~(1L << (slot % STEP));
+        for (int row = 0; row < mOrder; row++) {
+            bits[row * mStride + word] &= mask;
+        }
+    }
+
+    private boolean testBit(long[] bits, int row, int col) {
+        return (bits[row * mStride + col / STEP] & (1L << (col % STEP))) != 0;
+    }
+
+    private void setBit(long[] bits, int row, int col, boolean value) {
+        final int word = row * mStride + col / STEP;
+        if (value) {
+            bits[word] |= 1L << (col % STEP);
+        } else {
+            bits[word] &= ~(1L << (col % STEP));
+        }
+    }
+
+    private static int roundUp(int value) {
+        return ((value + STEP - 1) / STEP) * STEP;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{");
+        for (int r = 0; r < mSize; r++) {
+            for (int c = 0; c < mSize; c++) {
+                if (!hasValueAt(r, c)) {
+                    continue;
+                }
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(mKeys[r]).append("->").append(mKeys[c]).append('=')
+                        .append(valueAt(r, c));
+            }
+        }
+        return sb.append("}").toString();
+    }
+}
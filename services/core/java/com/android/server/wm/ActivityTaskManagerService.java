@@ -424,6 +424,9 @@ public class ActivityTaskManagerService extends IActivityTaskManager.Stub {
     // How long to wait in getAutofillAssistStructure() for the activity to respond with the result.
     private static final int PENDING_AUTOFILL_ASSIST_STRUCTURE_TIMEOUT = 2000;
 
+    // How many of the most recent tasks to restore the snapshots of when recents is started.
+    private static final int PREFETCH_SNAPSHOT_COUNT = 6;
+
     // Permission tokens are used to temporarily granted a trusted app the ability to call
     // #startActivityAsCaller.  A client is expected to dump its token after this time has elapsed,
     // showing any appropriate error messages to the user.
@@ -1590,6 +1593,12 @@ public class ActivityTaskManagerService extends IActivityTaskManager.Stub {
                 } else {
                     anim.startRecentsActivity(recentsAnimationRunner);
                 }
+
+                // Recents is about to ask for the snapshots of the most recent tasks, warm the
+                // snapshot cache up with them.
+                final int userId = getCurrentUserId();
+                mWindowManager.mTaskSnapshotController.prefetchReducedSnapshots(
+                        mRecentTasks.getRecentTaskIds(userId, PREFETCH_SNAPSHOT_COUNT), userId);
             }
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -65,6 +65,7 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -1012,6 +1013,27 @@ class RecentTasks {
         return res;
     }
 
+    /**
+     * @return ids of the first {@param maxNum} tasks of {@param userId} that are presented in
+     *         Recents UI, most recent first.
+     */
+    IntArray getRecentTaskIds(int userId, int maxNum) {
+        final IntArray res = new IntArray();
+        final int size = mTasks.size();
+        int numVisibleTasks = 0;
+        for (int i = 0; i < size && res.size() < maxNum; i++) {
+            final Task task = mTasks.get(i);
+            if (isVisibleRecentTask(task)) {
+                numVisibleTasks++;
+                if (task.mUserId == userId && isInVisibleRange(task, i, numVisibleTasks,
+                        false /* skipExcludedCheck */)) {
+                    res.add(task.mTaskId);
+                }
+            }
+        }
+        return res;
+    }
+
     /**
      * @return the task in the task list with the given {@param id} if one exists.
      */
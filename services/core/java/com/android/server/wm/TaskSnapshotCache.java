@@ -16,41 +16,122 @@
 
 package com.android.server.wm;
 
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
+
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.graphics.PixelFormat;
+import android.os.SystemClock;
 import android.util.ArrayMap;
+import android.util.IntArray;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 
 import java.io.PrintWriter;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * The cache has two tiers with a byte budget each. The running tier holds the snapshots taken
+ * of running tasks, which are full resolution; when it goes over budget the least recently used
+ * ones are evicted. Only callers that may restore from disk get an evicted snapshot back, the
+ * ones holding the window manager lock (the snapshot starting window, the recents animation)
+ * just see a miss. So the most recently used snapshots, which those are after, are never
+ * evicted, and neither are the ones still waiting to be written to disk. The reduced tier holds
+ * the low resolution snapshots restored from disk, so that scrolling through recents doesn't
+ * decode them again each time.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotCache" : TAG_WM;
+
+    private static final long MAX_RUNNING_CACHE_BYTES = 64 * 1024 * 1024;
+    private static final long MAX_RUNNING_CACHE_BYTES_LOW_RAM = 16 * 1024 * 1024;
+    private static final long MAX_REDUCED_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final long MAX_REDUCED_CACHE_BYTES_LOW_RAM = 4 * 1024 * 1024;
+
+    /** The number of most recently used running snapshots that are kept over budget. */
+    private static final int MIN_RUNNING_CACHE_ENTRIES = 2;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
+    private final TaskSnapshotPersister mPersister;
     private final ArrayMap<ActivityRecord, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final ArrayMap<Integer, CacheEntry> mReducedCache = new ArrayMap<>();
+    private final PixelFormat mTmpPixelFormat = new PixelFormat();
+
+    private final long mMaxRunningCacheBytes;
+    private final long mMaxReducedCacheBytes;
+    private long mRunningCacheBytes;
+    private long mReducedCacheBytes;
+
+    /** Orders the entries by last use, for eviction. */
+    private long mLastUseSequence;
+
+    /**
+     * Bumped whenever a snapshot is replaced or removed, so that a snapshot restored from disk
+     * concurrently isn't cached when it may already be stale.
+     */
+    private int mGeneration;
+
+    private boolean mPrefetchPending;
 
-    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+    private int mRunningHitCount;
+    private int mReducedHitCount;
+    private int mMissCount;
+    private int mDiskLoadCount;
+    private long mDiskLoadTimeMs;
+    private int mEvictionCount;
+
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            TaskSnapshotPersister persister) {
+        this(service, loader, persister, ActivityManager.isLowRamDeviceStatic()
+                        ? MAX_RUNNING_CACHE_BYTES_LOW_RAM : MAX_RUNNING_CACHE_BYTES,
+                ActivityManager.isLowRamDeviceStatic()
+                        ? MAX_REDUCED_CACHE_BYTES_LOW_RAM : MAX_REDUCED_CACHE_BYTES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            TaskSnapshotPersister persister, long maxRunningCacheBytes,
+            long maxReducedCacheBytes) {
         mService = service;
         mLoader = loader;
+        mPersister = persister;
+        mMaxRunningCacheBytes = maxRunningCacheBytes;
+        mMaxReducedCacheBytes = maxReducedCacheBytes;
     }
 
     void clearRunningCache() {
         mRunningCache.clear();
+        mAppTaskMap.clear();
+        mRunningCacheBytes = 0;
+        mGeneration++;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
         final CacheEntry entry = mRunningCache.get(task.mTaskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
+            mRunningCacheBytes -= entry.sizeBytes;
         }
+        removeReducedEntry(task.mTaskId);
         final ActivityRecord top = task.getTopMostActivity();
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, top));
+        final CacheEntry newEntry = new CacheEntry(snapshot, top, getSnapshotBytes(snapshot));
+        newEntry.lastUse = ++mLastUseSequence;
+        mRunningCache.put(task.mTaskId, newEntry);
+        mRunningCacheBytes += newEntry.sizeBytes;
+        mGeneration++;
+        trimRunningCache();
     }
 
     /**
@@ -59,32 +140,86 @@ class TaskSnapshotCache {
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean isLowResolution) {
 
+        final int generation;
         synchronized (mService.mGlobalLock) {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                entry.lastUse = ++mLastUseSequence;
+                mRunningHitCount++;
                 return entry.snapshot;
             }
+
+            // The reduced snapshots stand in for a load from disk, only use them if asked to.
+            if (restoreFromDisk && isLowResolution) {
+                final CacheEntry reducedEntry = mReducedCache.get(taskId);
+                if (reducedEntry != null) {
+                    reducedEntry.lastUse = ++mLastUseSequence;
+                    mReducedHitCount++;
+                    return reducedEntry.snapshot;
+                }
+            }
+            mMissCount++;
+            generation = mGeneration;
         }
 
         // Try to restore from disk if asked.
         if (!restoreFromDisk) {
             return null;
         }
-        return tryRestoreFromDisk(taskId, userId, isLowResolution);
+        return tryRestoreFromDisk(taskId, userId, isLowResolution, generation);
     }
 
     /**
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
-    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean isLowResolution) {
+    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean isLowResolution,
+            int generation) {
+        final long startTime = SystemClock.uptimeMillis();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, isLowResolution);
-        if (snapshot == null) {
-            return null;
+        final long loadTime = SystemClock.uptimeMillis() - startTime;
+        synchronized (mService.mGlobalLock) {
+            mDiskLoadCount++;
+            mDiskLoadTimeMs += loadTime;
+            if (snapshot != null && snapshot.isLowResolution() && generation == mGeneration
+                    && !mRunningCache.containsKey(taskId)) {
+                putReducedEntry(taskId, snapshot);
+            }
         }
         return snapshot;
     }
 
+    /**
+     * Restores the low resolution snapshots of the given tasks from disk in the background, if
+     * they aren't cached yet. Used to warm the cache up before recents shows them.
+     */
+    void prefetchReducedSnapshots(IntArray taskIds, int userId) {
+        if (mPrefetchPending) {
+            return;
+        }
+        final IntArray toLoad = new IntArray(taskIds.size());
+        for (int i = 0; i < taskIds.size(); i++) {
+            final int taskId = taskIds.get(i);
+            if (!mRunningCache.containsKey(taskId) && !mReducedCache.containsKey(taskId)) {
+                toLoad.add(taskId);
+            }
+        }
+        if (toLoad.size() == 0) {
+            return;
+        }
+        mPrefetchPending = true;
+        final int generation = mGeneration;
+        BackgroundThread.getExecutor().execute(() -> {
+            for (int i = 0; i < toLoad.size(); i++) {
+                tryRestoreFromDisk(toLoad.get(i), userId, true /* isLowResolution */,
+                        generation);
+            }
+            synchronized (mService.mGlobalLock) {
+                mPrefetchPending = false;
+            }
+        });
+    }
+
     /**
      * Called when an app token has been removed
      */
@@ -107,6 +242,7 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        removeReducedEntry(taskId);
     }
 
     void removeRunningEntry(int taskId) {
@@ -114,19 +250,141 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
             mRunningCache.remove(taskId);
+            mRunningCacheBytes -= entry.sizeBytes;
+            mGeneration++;
         }
     }
 
+    private void removeReducedEntry(int taskId) {
+        final CacheEntry entry = mReducedCache.remove(taskId);
+        if (entry != null) {
+            mReducedCacheBytes -= entry.sizeBytes;
+        }
+    }
+
+    private void putReducedEntry(int taskId, TaskSnapshot snapshot) {
+        removeReducedEntry(taskId);
+        final CacheEntry entry = new CacheEntry(snapshot, null, getSnapshotBytes(snapshot));
+        entry.lastUse = ++mLastUseSequence;
+        mReducedCache.put(taskId, entry);
+        mReducedCacheBytes += entry.sizeBytes;
+        while (mReducedCacheBytes > mMaxReducedCacheBytes && mReducedCache.size() > 1) {
+            final int index = getLeastRecentlyUsedIndex(mReducedCache);
+            mReducedCacheBytes -= mReducedCache.valueAt(index).sizeBytes;
+            mReducedCache.removeAt(index);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Evicts the least recently used running snapshots until the tier is within budget. The
+     * {@link #MIN_RUNNING_CACHE_ENTRIES} most recently used snapshots, which include the one put
+     * last, and the snapshots that aren't on disk yet are always kept.
+     */
+    private void trimRunningCache() {
+        while (mRunningCacheBytes > mMaxRunningCacheBytes
+                && mRunningCache.size() > MIN_RUNNING_CACHE_ENTRIES) {
+            final int index = getEvictableRunningIndex();
+            if (index < 0) {
+                break;
+            }
+            final CacheEntry entry = mRunningCache.valueAt(index);
+            mAppTaskMap.remove(entry.topApp);
+            mRunningCache.removeAt(index);
+            mRunningCacheBytes -= entry.sizeBytes;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * @return the index of the least recently used running snapshot that may be evicted, or -1
+     *         if there is none
+     */
+    private int getEvictableRunningIndex() {
+        // Entries used at or after this are among the most recently used ones.
+        long minKeptUse = Long.MAX_VALUE;
+        for (int kept = 0; kept < MIN_RUNNING_CACHE_ENTRIES; kept++) {
+            long lastUse = Long.MIN_VALUE;
+            for (int i = mRunningCache.size() - 1; i >= 0; i--) {
+                final long use = mRunningCache.valueAt(i).lastUse;
+                if (use < minKeptUse && use > lastUse) {
+                    lastUse = use;
+                }
+            }
+            minKeptUse = lastUse;
+        }
+        int index = -1;
+        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
+            final CacheEntry entry = mRunningCache.valueAt(i);
+            if (entry.lastUse >= minKeptUse
+                    || mPersister.isStorePending(mRunningCache.keyAt(i))) {
+                continue;
+            }
+            if (index < 0 || entry.lastUse < mRunningCache.valueAt(index).lastUse) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    private static int getLeastRecentlyUsedIndex(ArrayMap<Integer, CacheEntry> cache) {
+        int index = 0;
+        for (int i = 1; i < cache.size(); i++) {
+            if (cache.valueAt(i).lastUse < cache.valueAt(index).lastUse) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    private long getSnapshotBytes(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        if (buffer == null) {
+            return 0;
+        }
+        int bytesPerPixel;
+        try {
+            PixelFormat.getPixelFormatInfo(buffer.getFormat(), mTmpPixelFormat);
+            bytesPerPixel = mTmpPixelFormat.bytesPerPixel;
+        } catch (IllegalArgumentException e) {
+            Slog.w(TAG, "Unknown snapshot format " + buffer.getFormat());
+            bytesPerPixel = 4;
+        }
+        return (long) buffer.getWidth() * buffer.getHeight() * bytesPerPixel;
+    }
+
+    @VisibleForTesting
+    long getRunningCacheBytes() {
+        return mRunningCacheBytes;
+    }
+
+    @VisibleForTesting
+    long getReducedCacheBytes() {
+        return mReducedCacheBytes;
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
+        pw.println(doublePrefix + "runningBytes=" + mRunningCacheBytes + "/"
+                + mMaxRunningCacheBytes + " reducedBytes=" + mReducedCacheBytes + "/"
+                + mMaxReducedCacheBytes);
+        pw.println(doublePrefix + "runningHits=" + mRunningHitCount + " reducedHits="
+                + mReducedHitCount + " misses=" + mMissCount + " evictions=" + mEvictionCount);
+        pw.println(doublePrefix + "diskLoads=" + mDiskLoadCount + " avgDiskLoadTimeMs="
+                + (mDiskLoadCount > 0 ? mDiskLoadTimeMs / mDiskLoadCount : 0));
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        for (int i = mReducedCache.size() - 1; i >= 0; i--) {
+            final CacheEntry entry = mReducedCache.valueAt(i);
+            pw.println(doublePrefix + "Reduced entry taskId=" + mReducedCache.keyAt(i));
+            pw.println(triplePrefix + "snapshot=" + entry.snapshot);
+        }
     }
 
     private static final class CacheEntry {
@@ -134,12 +392,22 @@ class TaskSnapshotCache {
         /** The snapshot. */
         final TaskSnapshot snapshot;
 
-        /** The app token that was on top of the task when the snapshot was taken */
+        /**
+         * The app token that was on top of the task when the snapshot was taken, {@code null}
+         * for snapshots restored from disk.
+         */
         final ActivityRecord topApp;
 
-        CacheEntry(TaskSnapshot snapshot, ActivityRecord topApp) {
+        /** The size of the snapshot buffer. */
+        final long sizeBytes;
+
+        /** When the entry was last used, for eviction. */
+        long lastUse;
+
+        CacheEntry(TaskSnapshot snapshot, ActivityRecord topApp, long sizeBytes) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            this.sizeBytes = sizeBytes;
         }
     }
 }
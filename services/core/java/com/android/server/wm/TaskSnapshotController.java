@@ -37,6 +37,7 @@ import android.graphics.RenderNode;
 import android.os.Environment;
 import android.os.Handler;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.Slog;
 import android.view.InsetsSource;
 import android.view.InsetsState;
@@ -124,7 +125,7 @@ class TaskSnapshotController {
         mService = service;
         mPersister = new TaskSnapshotPersister(mService, Environment::getDataSystemCeDirectory);
         mLoader = new TaskSnapshotLoader(mPersister);
-        mCache = new TaskSnapshotCache(mService, mLoader);
+        mCache = new TaskSnapshotCache(mService, mLoader, mPersister);
         mIsRunningOnTv = mService.mContext.getPackageManager().hasSystemFeature(
                 PackageManager.FEATURE_LEANBACK);
         mIsRunningOnIoT = mService.mContext.getPackageManager().hasSystemFeature(
@@ -228,6 +229,17 @@ class TaskSnapshotController {
                 && mPersister.enableLowResSnapshots());
     }
 
+    /**
+     * Restores the low resolution snapshots of the given tasks in the background, ahead of them
+     * being shown in recents.
+     */
+    void prefetchReducedSnapshots(IntArray taskIds, int userId) {
+        if (shouldDisableSnapshots() || !mPersister.enableLowResSnapshots()) {
+            return;
+        }
+        mCache.prefetchReducedSnapshots(taskIds, userId);
+    }
+
     /**
      * @see WindowManagerInternal#clearSnapshotCache
      */
@@ -621,5 +633,6 @@ class TaskSnapshotController {
     void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mHighResTaskSnapshotScale=" + mHighResTaskSnapshotScale);
         mCache.dump(pw, prefix);
+        mPersister.dump(pw, prefix);
     }
 }
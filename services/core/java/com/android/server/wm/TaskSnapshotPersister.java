@@ -16,8 +16,6 @@
 
 package com.android.server.wm;
 
-import static android.graphics.Bitmap.CompressFormat.JPEG;
-
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
@@ -25,9 +23,11 @@ import android.annotation.NonNull;
 import android.annotation.TestApi;
 import android.app.ActivityManager.TaskSnapshot;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserManagerInternal;
 import android.util.ArraySet;
 import android.util.AtomicFile;
@@ -41,7 +41,9 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -56,19 +58,37 @@ class TaskSnapshotPersister {
     private static final String LOW_RES_FILE_POSTFIX = "_reduced";
     private static final long DELAY_MS = 100;
     private static final int QUALITY = 95;
+    /** For lossless WebP the quality is the compression effort, favor encoding speed. */
+    private static final int LOSSLESS_QUALITY = 0;
     private static final String PROTO_EXTENSION = ".proto";
     private static final String BITMAP_EXTENSION = ".jpg";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
+    private static final int MAX_WORKER_COUNT = 4;
+
+    /** Number of threads writing snapshots, for devices that can afford encoding in parallel. */
+    private static final String WORKER_COUNT_PROPERTY = "ro.wm.task_snapshot_persister_threads";
+
+    /**
+     * Format of the persisted bitmaps: jpeg, webp or webp_lossless. The files keep their name
+     * whatever the format, {@link TaskSnapshotLoader} decodes them by their content.
+     */
+    private static final String FORMAT_PROPERTY = "ro.wm.task_snapshot_format";
 
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
     private final ArrayDeque<StoreWriteQueueItem> mStoreQueueItems = new ArrayDeque<>();
+    /** Items being written by the workers. */
     @GuardedBy("mLock")
-    private boolean mQueueIdling;
+    private final ArrayList<WriteQueueItem> mInFlightItems = new ArrayList<>();
+    /** Number of workers waiting for the queue to be filled. */
+    @GuardedBy("mLock")
+    private int mIdleWorkerCount;
     @GuardedBy("mLock")
     private boolean mPaused;
     private boolean mStarted;
+    private final PersisterThread[] mWorkers;
+    private final CompressFormat mCompressFormat;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
     private final float mLowResScaleFactor;
@@ -83,7 +103,23 @@ class TaskSnapshotPersister {
     @GuardedBy("mLock")
     private final ArraySet<Integer> mPersistedTaskIdsSinceLastRemoveObsolete = new ArraySet<>();
 
+    @GuardedBy("mLock")
+    private int mMaxQueueDepth;
+    @GuardedBy("mLock")
+    private int mPurgedCount;
+    @GuardedBy("mLock")
+    private int mStoreCount;
+    @GuardedBy("mLock")
+    private long mEncodeTimeMs;
+
     TaskSnapshotPersister(WindowManagerService service, DirectoryResolver resolver) {
+        this(service, resolver, SystemProperties.getInt(WORKER_COUNT_PROPERTY, 1),
+                getCompressFormat(SystemProperties.get(FORMAT_PROPERTY, "jpeg")));
+    }
+
+    @VisibleForTesting
+    TaskSnapshotPersister(WindowManagerService service, DirectoryResolver resolver,
+            int workerCount, CompressFormat compressFormat) {
         mDirectoryResolver = resolver;
         mUserManagerInternal = LocalServices.getService(UserManagerInternal.class);
 
@@ -112,6 +148,27 @@ class TaskSnapshotPersister {
 
         mUse16BitFormat = service.mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_use16BitTaskSnapshotPixelFormat);
+
+        mCompressFormat = compressFormat;
+        mWorkers = new PersisterThread[Math.max(1, Math.min(workerCount, MAX_WORKER_COUNT))];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new PersisterThread(i == 0
+                    ? "TaskSnapshotPersister" : "TaskSnapshotPersister-" + i);
+        }
+    }
+
+    private static CompressFormat getCompressFormat(String name) {
+        switch (name) {
+            case "jpeg":
+                return CompressFormat.JPEG;
+            case "webp":
+                return CompressFormat.WEBP_LOSSY;
+            case "webp_lossless":
+                return CompressFormat.WEBP_LOSSLESS;
+            default:
+                Slog.w(TAG, "Unknown task snapshot format " + name + ", using jpeg");
+                return CompressFormat.JPEG;
+        }
     }
 
     /**
@@ -120,7 +177,9 @@ class TaskSnapshotPersister {
     void start() {
         if (!mStarted) {
             mStarted = true;
-            mPersister.start();
+            for (PersisterThread worker : mWorkers) {
+                worker.start();
+            }
         }
     }
 
@@ -166,6 +225,27 @@ class TaskSnapshotPersister {
         }
     }
 
+    /**
+     * @return {@code true} if a snapshot of the task is waiting to be written, or being written.
+     */
+    boolean isStorePending(int taskId) {
+        synchronized (mLock) {
+            for (StoreWriteQueueItem item : mStoreQueueItems) {
+                if (item.mTaskId == taskId) {
+                    return true;
+                }
+            }
+            for (int i = mInFlightItems.size() - 1; i >= 0; i--) {
+                final WriteQueueItem item = mInFlightItems.get(i);
+                if (item instanceof StoreWriteQueueItem
+                        && ((StoreWriteQueueItem) item).mTaskId == taskId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     void setPaused(boolean paused) {
         synchronized (mLock) {
             mPaused = paused;
@@ -192,7 +272,7 @@ class TaskSnapshotPersister {
     void waitForQueueEmpty() {
         while (true) {
             synchronized (mLock) {
-                if (mWriteQueue.isEmpty() && mQueueIdling) {
+                if (mWriteQueue.isEmpty() && mInFlightItems.isEmpty() && mIdleWorkerCount > 0) {
                     return;
                 }
             }
@@ -205,6 +285,7 @@ class TaskSnapshotPersister {
         mWriteQueue.offer(item);
         item.onQueuedLocked();
         ensureStoreQueueDepthLocked();
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mWriteQueue.size());
         if (!mPaused) {
             mLock.notifyAll();
         }
@@ -215,10 +296,24 @@ class TaskSnapshotPersister {
         while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
             final StoreWriteQueueItem item = mStoreQueueItems.poll();
             mWriteQueue.remove(item);
+            mPurgedCount++;
             Slog.i(TAG, "Queue is too deep! Purged item with taskid=" + item.mTaskId);
         }
     }
 
+    /**
+     * @return {@code true} if {@param item} has to wait for the items being written to finish.
+     */
+    @GuardedBy("mLock")
+    private boolean isBlockedLocked(WriteQueueItem item) {
+        for (int i = mInFlightItems.size() - 1; i >= 0; i--) {
+            if (!item.canWriteAlongside(mInFlightItems.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private File getDirectory(int userId) {
         return new File(mDirectoryResolver.getSystemDirectoryForUser(userId), SNAPSHOTS_DIRNAME);
     }
@@ -258,7 +353,28 @@ class TaskSnapshotPersister {
         File getSystemDirectoryForUser(int userId);
     }
 
-    private Thread mPersister = new Thread("TaskSnapshotPersister") {
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "SnapshotPersister workers=" + mWorkers.length + " format="
+                    + mCompressFormat);
+            pw.println(prefix + "  queueDepth=" + mWriteQueue.size() + " maxQueueDepth="
+                    + mMaxQueueDepth + " inFlight=" + mInFlightItems.size() + " purged="
+                    + mPurgedCount);
+            pw.println(prefix + "  stored=" + mStoreCount + " avgEncodeTimeMs="
+                    + (mStoreCount > 0 ? mEncodeTimeMs / mStoreCount : 0));
+        }
+    }
+
+    /**
+     * Takes items off the queue and writes them. Items of different tasks can be written by
+     * several workers at once; other items wait until they can be written on their own.
+     */
+    private class PersisterThread extends Thread {
+        PersisterThread(String name) {
+            super(name);
+        }
+
+        @Override
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             while (true) {
@@ -268,11 +384,16 @@ class TaskSnapshotPersister {
                     if (mPaused) {
                         next = null;
                     } else {
-                        next = mWriteQueue.poll();
-                        if (next != null) {
+                        next = mWriteQueue.peek();
+                        if (next != null && isBlockedLocked(next)) {
+                            // Keep the queue order, wait for the write it depends on.
+                            next = null;
+                        } else if (next != null) {
+                            mWriteQueue.poll();
                             if (next.isReady()) {
                                 isReadyToWrite = true;
                                 next.onDequeuedLocked();
+                                mInFlightItems.add(next);
                             } else {
                                 mWriteQueue.addLast(next);
                             }
@@ -282,24 +403,33 @@ class TaskSnapshotPersister {
                 if (next != null) {
                     if (isReadyToWrite) {
                         next.write();
+                        synchronized (mLock) {
+                            mInFlightItems.remove(next);
+                            mLock.notifyAll();
+                        }
                     }
                     SystemClock.sleep(DELAY_MS);
                 }
                 synchronized (mLock) {
                     final boolean writeQueueEmpty = mWriteQueue.isEmpty();
-                    if (!writeQueueEmpty && !mPaused) {
+                    if (!writeQueueEmpty && !mPaused && !isBlockedLocked(mWriteQueue.peek())) {
                         continue;
                     }
+                    if (writeQueueEmpty) {
+                        mIdleWorkerCount++;
+                    }
                     try {
-                        mQueueIdling = writeQueueEmpty;
                         mLock.wait();
-                        mQueueIdling = false;
                     } catch (InterruptedException e) {
+                    } finally {
+                        if (writeQueueEmpty) {
+                            mIdleWorkerCount--;
+                        }
                     }
                 }
             }
         }
-    };
+    }
 
     private abstract class WriteQueueItem {
         /**
@@ -311,6 +441,13 @@ class TaskSnapshotPersister {
 
         abstract void write();
 
+        /**
+         * @return {@code true} if this item can be written while {@param other} is being written
+         */
+        boolean canWriteAlongside(WriteQueueItem other) {
+            return false;
+        }
+
         /**
          * Called when this queue item has been put into the queue.
          */
@@ -352,6 +489,12 @@ class TaskSnapshotPersister {
             return mUserManagerInternal.isUserUnlocked(mUserId);
         }
 
+        @Override
+        boolean canWriteAlongside(WriteQueueItem other) {
+            return other instanceof StoreWriteQueueItem
+                    && ((StoreWriteQueueItem) other).mTaskId != mTaskId;
+        }
+
         @Override
         void write() {
             if (!createDirectory(mUserId)) {
@@ -410,39 +553,46 @@ class TaskSnapshotPersister {
                 return false;
             }
 
+            final long startTime = SystemClock.uptimeMillis();
+            // The one software copy serves both resolutions, the low resolution bitmap is
+            // scaled down from it.
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
-
-            final File file = getHighResolutionBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
+            if (swBitmap == null) {
+                Slog.e(TAG, "Unable to copy task snapshot hw bitmap");
                 return false;
             }
 
-            if (!mEnableLowResSnapshots) {
-                swBitmap.recycle();
-                return true;
+            boolean success = writeBitmap(swBitmap, getHighResolutionBitmapFile(mTaskId, mUserId));
+            if (success && mEnableLowResSnapshots) {
+                final Bitmap lowResBitmap = Bitmap.createScaledBitmap(swBitmap,
+                        (int) (bitmap.getWidth() * mLowResScaleFactor),
+                        (int) (bitmap.getHeight() * mLowResScaleFactor), true /* filter */);
+                success = writeBitmap(lowResBitmap,
+                        getLowResolutionBitmapFile(mTaskId, mUserId));
+                lowResBitmap.recycle();
             }
-
-            final Bitmap lowResBitmap = Bitmap.createScaledBitmap(swBitmap,
-                    (int) (bitmap.getWidth() * mLowResScaleFactor),
-                    (int) (bitmap.getHeight() * mLowResScaleFactor), true /* filter */);
             swBitmap.recycle();
 
-            final File lowResFile = getLowResolutionBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream lowResFos = new FileOutputStream(lowResFile);
-                lowResBitmap.compress(JPEG, QUALITY, lowResFos);
-                lowResFos.close();
+            final long encodeTime = SystemClock.uptimeMillis() - startTime;
+            synchronized (mLock) {
+                mStoreCount++;
+                mEncodeTimeMs += encodeTime;
+            }
+            return success;
+        }
+
+        private boolean writeBitmap(Bitmap bitmap, File file) {
+            final int quality = mCompressFormat == CompressFormat.WEBP_LOSSLESS
+                    ? LOSSLESS_QUALITY : QUALITY;
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                if (!bitmap.compress(mCompressFormat, quality, fos)) {
+                    Slog.e(TAG, "Unable to compress " + file);
+                    return false;
+                }
             } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + lowResFile + " for persisting.", e);
+                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
                 return false;
             }
-            lowResBitmap.recycle();
-
             return true;
         }
     }
@@ -52,13 +52,17 @@ import static com.android.server.AlarmManagerService.WORKING_INDEX;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
 
 import android.app.ActivityManager;
 import android.app.AlarmManager;
@@ -1129,6 +1133,59 @@ public class AlarmManagerServiceTest {
         }
     }
 
+    @Test
+    public void removeRebatchesOnlyChangedBatches() throws Exception {
+        final int numAlarms = 100;
+        final IAlarmListener[] listeners = new IAlarmListener[numAlarms];
+        for (int i = 0; i < numAlarms; i++) {
+            listeners[i] = new IAlarmListener.Stub() {
+                @Override
+                public void doAlarm(IAlarmCompleteListener callback) throws RemoteException {
+                }
+            };
+            mService.setImpl(ELAPSED_REALTIME_WAKEUP, mNowElapsedTest + 1000 + i * 100, 1000, 0,
+                    null, listeners[i], "test", 0, null, null, TEST_CALLING_UID,
+                    TEST_CALLING_PACKAGE);
+        }
+        assertEquals(numAlarms, AlarmManagerService.getAlarmCount(mService.mAlarmBatches));
+
+        final IAlarmListener removed = listeners[numAlarms / 2];
+        final ArrayList<AlarmManagerService.Batch> untouched = new ArrayList<>();
+        for (AlarmManagerService.Batch batch : mService.mAlarmBatches) {
+            boolean holdsRemoved = false;
+            for (int i = 0; i < batch.size(); i++) {
+                holdsRemoved |= batch.get(i).listener == removed;
+            }
+            if (!holdsRemoved) {
+                untouched.add(batch);
+            }
+        }
+        assertEquals(mService.mAlarmBatches.size() - 1, untouched.size());
+
+        clearInvocations(mService);
+        mService.removeLocked(null, removed);
+
+        verify(mService, never()).rebatchAllAlarmsLocked(anyBoolean());
+        assertEquals(numAlarms - 1, AlarmManagerService.getAlarmCount(mService.mAlarmBatches));
+        // The batches without the removed alarm are kept as they are.
+        for (AlarmManagerService.Batch batch : untouched) {
+            boolean kept = false;
+            for (AlarmManagerService.Batch current : mService.mAlarmBatches) {
+                kept |= current == batch;
+            }
+            assertTrue(kept);
+        }
+        long lastStart = Long.MIN_VALUE;
+        for (AlarmManagerService.Batch batch : mService.mAlarmBatches) {
+            assertTrue(batch.start >= lastStart);
+            lastStart = batch.start;
+            for (int i = 0; i < batch.size(); i++) {
+                assertTrue(batch.canHold(batch.get(i).whenElapsed, batch.get(i).maxWhenElapsed));
+            }
+        }
+        assertEquals(mService.mAlarmBatches.get(0).start, mTestTimer.getElapsed());
+    }
+
     @After
     public void tearDown() {
         if (mMockingSession != null) {
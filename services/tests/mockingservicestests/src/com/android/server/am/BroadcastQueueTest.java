@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doAnswer;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mock;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.spy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class for the parallel broadcasts of {@link BroadcastQueue}.
+ *
+ * Build/Install/Run:
+ *  atest MockingServicesTests:BroadcastQueueTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class BroadcastQueueTest {
+    private static final String TEST_PACKAGE = "com.android.test";
+
+    private BroadcastQueue mQueue;
+    private List<BroadcastRecord> mDelivered;
+
+    @Before
+    public void setUp() {
+        mQueue = spy(new BroadcastQueue(mock(ActivityManagerService.class),
+                new Handler(Looper.getMainLooper()), "test", new BroadcastConstants("test"),
+                false /* allowDelayBehindServices */));
+        mDelivered = new ArrayList<>();
+        doAnswer(invocation -> {
+            mDelivered.add(invocation.getArgument(0));
+            return null;
+        }).when(mQueue).deliverParallelBroadcastLocked(any());
+    }
+
+    @Test
+    public void testProcessParallelBroadcasts_deliversInOrderInBatches() {
+        final BroadcastRecord a = createBroadcastRecord("a");
+        final BroadcastRecord b = createBroadcastRecord("b");
+        final BroadcastRecord c = createBroadcastRecord("c");
+        final BroadcastRecord enqueuedDuringDelivery = createBroadcastRecord("d");
+        mQueue.enqueueParallelBroadcastLocked(a);
+        mQueue.enqueueParallelBroadcastLocked(b);
+        mQueue.enqueueParallelBroadcastLocked(c);
+        doAnswer(invocation -> {
+            final BroadcastRecord r = invocation.getArgument(0);
+            mDelivered.add(r);
+            if (r == a) {
+                // The rest of the batch is already off the queue.
+                assertTrue(mQueue.mParallelBroadcasts.isEmpty());
+                mQueue.enqueueParallelBroadcastLocked(enqueuedDuringDelivery);
+            }
+            return null;
+        }).when(mQueue).deliverParallelBroadcastLocked(any());
+
+        mQueue.processParallelBroadcastsLocked();
+
+        assertEquals(Arrays.asList(a, b, c, enqueuedDuringDelivery), mDelivered);
+        assertTrue(mQueue.mParallelBroadcasts.isEmpty());
+    }
+
+    @Test
+    public void testProcessParallelBroadcasts_replaceAndCleanupDuringDelivery() {
+        final BroadcastRecord first = createBroadcastRecord("first");
+        final BroadcastRecord second = createBroadcastRecord("second");
+        final BroadcastRecord replacement = createBroadcastRecord("second");
+        final BroadcastRecord queued = createBroadcastRecord("queued");
+        mQueue.enqueueParallelBroadcastLocked(first);
+        mQueue.enqueueParallelBroadcastLocked(second);
+        final BroadcastRecord[] replaced = new BroadcastRecord[1];
+        final boolean[] cleanedUp = new boolean[1];
+        doAnswer(invocation -> {
+            final BroadcastRecord r = invocation.getArgument(0);
+            mDelivered.add(r);
+            if (r == first) {
+                // The second broadcast is in flight as part of this batch, so it can
+                // neither be replaced nor have its receivers cleaned up. Only the broadcast
+                // queued for the next batch is cleaned up.
+                replaced[0] = mQueue.replaceParallelBroadcastLocked(replacement);
+                mQueue.enqueueParallelBroadcastLocked(queued);
+                cleanedUp[0] = mQueue.cleanupDisabledPackageReceiversLocked(TEST_PACKAGE,
+                        null /* filterByClasses */, UserHandle.USER_ALL, true /* doit */);
+            }
+            return null;
+        }).when(mQueue).deliverParallelBroadcastLocked(any());
+
+        mQueue.processParallelBroadcastsLocked();
+
+        assertNull(replaced[0]);
+        assertTrue(cleanedUp[0]);
+        assertEquals(Arrays.asList(first, second, queued), mDelivered);
+        assertEquals(1, second.receivers.size());
+        assertTrue(queued.receivers.isEmpty());
+        assertTrue(mQueue.mParallelBroadcasts.isEmpty());
+    }
+
+    @Test
+    public void testReplaceParallelBroadcast_keepsQueueOrder() {
+        final BroadcastRecord a = createBroadcastRecord("a");
+        final BroadcastRecord b = createBroadcastRecord("b");
+        final BroadcastRecord c = createBroadcastRecord("c");
+        final BroadcastRecord replacement = createBroadcastRecord("b");
+        mQueue.enqueueParallelBroadcastLocked(a);
+        mQueue.enqueueParallelBroadcastLocked(b);
+        mQueue.enqueueParallelBroadcastLocked(c);
+
+        assertSame(b, mQueue.replaceParallelBroadcastLocked(replacement));
+        assertNull(mQueue.replaceParallelBroadcastLocked(createBroadcastRecord("other")));
+
+        mQueue.processParallelBroadcastsLocked();
+        assertEquals(Arrays.asList(a, replacement, c), mDelivered);
+    }
+
+    private BroadcastRecord createBroadcastRecord(String action) {
+        // Delivery is stubbed out, so the receivers only need to be visible to cleanup.
+        final ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = new ActivityInfo();
+        resolveInfo.activityInfo.applicationInfo = new ApplicationInfo();
+        resolveInfo.activityInfo.applicationInfo.packageName = TEST_PACKAGE;
+        resolveInfo.activityInfo.applicationInfo.uid = Process.FIRST_APPLICATION_UID;
+        final List<Object> receivers = new ArrayList<>();
+        receivers.add(resolveInfo);
+        return new BroadcastRecord(
+                mQueue,
+                new Intent(action),
+                null /* callerApp */,
+                null  /* callerPackage */,
+                null /* callerFeatureId */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                receivers,
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                false /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                UserHandle.USER_SYSTEM,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+    }
+}
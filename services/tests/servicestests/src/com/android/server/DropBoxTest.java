@@ -365,6 +365,80 @@ public class DropBoxTest extends AndroidTestCase {
         x2.close();
     }
 
+    public void testGetNextEntryTrimmedAfterLookup() throws Exception {
+        File dir = getEmptyDir("testGetNextEntryTrimmedAfterLookup");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper());
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        long before = System.currentTimeMillis();
+        dropbox.addText("DropBoxTest", "TEST0");
+        dropbox.addText("DropBoxTest", "TEST1");
+        dropbox.addText("DropBoxTest", "TEST2");
+
+        // Limit to 3 files and add one more entry after the reader has found TEST0, which
+        // trims TEST0 before the reader opens it.
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "3");
+        service.mEntryLookupTestHook = () -> {
+            service.mEntryLookupTestHook = null;
+            dropbox.addText("DropBoxTest", "TEST3");
+        };
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry(null, before);
+        assertTrue(null == service.mEntryLookupTestHook);
+        assertEquals("DropBoxTest", e0.getTag());
+        assertEquals("TEST1", e0.getText(80));
+
+        DropBoxManager.Entry e1 = dropbox.getNextEntry(null, e0.getTimeMillis());
+        DropBoxManager.Entry e2 = dropbox.getNextEntry(null, e1.getTimeMillis());
+        assertTrue(null == dropbox.getNextEntry(null, e2.getTimeMillis()));
+        assertEquals("TEST2", e1.getText(80));
+        assertEquals("TEST3", e2.getText(80));
+
+        e0.close();
+        e1.close();
+        e2.close();
+    }
+
+    public void testGetNextEntryTrimmedToTombstoneAfterLookup() throws Exception {
+        File dir = getEmptyDir("testGetNextEntryTrimmedToTombstoneAfterLookup");
+        int blockSize =  new StatFs(dir.getPath()).getBlockSize();
+
+        // Limit storage to 10 blocks
+        int kb = blockSize * 10 / 1024;
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_QUOTA_KB, Integer.toString(kb));
+
+        final int overhead = 64;
+        long before = System.currentTimeMillis();
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper());
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // One block followed by ten blocks: the next add trims the first entry to a tombstone.
+        addRandomEntry(dropbox, "DropBoxTest", blockSize - overhead);
+        addRandomEntry(dropbox, "DropBoxTest", blockSize * 10 - overhead);
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry(null, before);
+        assertEquals(blockSize - overhead, getEntrySize(e0));
+        e0.close();
+
+        // Add one more entry after the reader has found the first one again, which trims it
+        // before the reader opens it.
+        service.mEntryLookupTestHook = () -> {
+            service.mEntryLookupTestHook = null;
+            dropbox.addText("DropBoxTest", "TEST");
+        };
+
+        DropBoxManager.Entry t0 = dropbox.getNextEntry(null, before);
+        assertTrue(null == service.mEntryLookupTestHook);
+        assertEquals("DropBoxTest", t0.getTag());
+        assertEquals(e0.getTimeMillis(), t0.getTimeMillis());
+        assertEquals(-1, getEntrySize(t0));  // Tombstone
+        t0.close();
+    }
+
     public void testSizeLimits() throws Exception {
         File dir = getEmptyDir("testSizeLimits");
         int blockSize =  new StatFs(dir.getPath()).getBlockSize();
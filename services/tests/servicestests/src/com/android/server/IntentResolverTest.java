@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.util.ArraySet;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private TestResolver mResolver;
+    private List<IntentFilter> mFilters;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = new TestResolver();
+        mFilters = new ArrayList<>();
+
+        // Exact hosts, including mixed case and more than one host per filter.
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "www.example.com", null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"http", "https"}, "WWW.Example.com",
+                null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "a.example.com", null)
+                .addDataAuthority("other.org", null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "www.example.com", "8080");
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "www.example.com", null)
+                .addDataPath("/path", PatternMatcher.PATTERN_PREFIX);
+        addFilter(Intent.ACTION_EDIT, null, new String[] {"https"}, "www.example.com", null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "bücher.example", null);
+        // Filters that are not scoped to an exact host.
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "*.example.com", null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, "*", null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"https"}, null, null);
+        addFilter(Intent.ACTION_VIEW, null, new String[] {"mailto"}, null, null)
+                .addDataSchemeSpecificPart("someone@example.com", PatternMatcher.PATTERN_LITERAL);
+        addFilter(Intent.ACTION_VIEW, "image/*", new String[] {"content"}, null, null);
+        // Filters without a scheme.
+        addFilter(Intent.ACTION_VIEW, "image/*", null, null, null);
+        addFilter(Intent.ACTION_VIEW, null, null, null, null);
+
+        for (IntentFilter filter : mFilters) {
+            mResolver.addFilter(filter);
+        }
+    }
+
+    @Test
+    public void testQueryIntent_matchesFullScan() {
+        assertQueriesMatchFullScan();
+    }
+
+    @Test
+    public void testQueryIntent_matchesFullScanAfterRemove() {
+        for (int i = mFilters.size() - 1; i >= 0; i -= 2) {
+            mResolver.removeFilter(mFilters.remove(i));
+        }
+        assertQueriesMatchFullScan();
+
+        for (int i = mFilters.size() - 1; i >= 0; i--) {
+            mResolver.removeFilter(mFilters.remove(i));
+        }
+        assertQueriesMatchFullScan();
+    }
+
+    private void assertQueriesMatchFullScan() {
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://www.example.com/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://WWW.EXAMPLE.COM/path", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://www.example.com:8080/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_EDIT, "https://www.example.com/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "http://www.example.com/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://sub.example.com/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://example.com/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://other.org/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://unknown.net/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https://bücher.example/", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "https:path", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "mailto:someone@example.com", null);
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "content://media/external/images/1",
+                "image/png");
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, "file:///sdcard/a.png", "image/png");
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, null, "image/png");
+        assertQueryMatchesFullScan(Intent.ACTION_VIEW, null, null);
+    }
+
+    private void assertQueryMatchesFullScan(String action, String uri, String resolvedType) {
+        final Intent intent = new Intent(action);
+        if (uri != null) {
+            intent.setDataAndType(Uri.parse(uri), resolvedType);
+        } else {
+            intent.setType(resolvedType);
+        }
+
+        final ArraySet<IntentFilter> expected = new ArraySet<>();
+        for (IntentFilter filter : mFilters) {
+            if (filter.match(action, resolvedType, intent.getScheme(), intent.getData(),
+                    intent.getCategories(), "IntentResolverTest") >= 0) {
+                expected.add(filter);
+            }
+        }
+        final ArraySet<IntentFilter> actual = new ArraySet<>(
+                mResolver.queryIntent(intent, resolvedType, false, 0));
+        assertWithMessage("Filters resolved for " + intent).that(actual)
+                .containsExactlyElementsIn(expected);
+    }
+
+    private IntentFilter addFilter(String action, String type, String[] schemes, String host,
+            String port) throws IntentFilter.MalformedMimeTypeException {
+        final IntentFilter filter = new IntentFilter(action);
+        if (type != null) {
+            filter.addDataType(type);
+        }
+        if (schemes != null) {
+            for (String scheme : schemes) {
+                filter.addDataScheme(scheme);
+            }
+        }
+        if (host != null) {
+            filter.addDataAuthority(host, port);
+        }
+        mFilters.add(filter);
+        return filter;
+    }
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+
+        @Override
+        protected IntentFilter getIntentFilter(IntentFilter input) {
+            return input;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import static android.app.AppOpsManager.FILTER_BY_ATTRIBUTION_TAG;
+import static android.app.AppOpsManager.FILTER_BY_OP_NAMES;
+import static android.app.AppOpsManager.FILTER_BY_PACKAGE_NAME;
+import static android.app.AppOpsManager.FILTER_BY_UID;
+import static android.app.AppOpsManager.OP_CAMERA;
+import static android.app.AppOpsManager.OP_COARSE_LOCATION;
+import static android.app.AppOpsManager.OP_FLAGS_ALL;
+import static android.app.AppOpsManager.OP_FLAG_SELF;
+import static android.app.AppOpsManager.OP_FLAG_TRUSTED_PROXIED;
+import static android.app.AppOpsManager.OP_FINE_LOCATION;
+import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
+import static android.app.AppOpsManager.UID_STATE_TOP;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.AppOpsManager;
+import android.app.AppOpsManager.HistoricalOps;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link HistoricalOpsFile}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:HistoricalOpsFileTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HistoricalOpsFileTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("historical_ops", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        final List<HistoricalOps> allOps = new ArrayList<>();
+        allOps.add(createOps(0, 1000, 3));
+        allOps.add(createOps(1000, 3000, 5));
+        writeFile(allOps, 42);
+
+        final long[] overflowMillis = new long[] {8};
+        final List<HistoricalOps> readOps = HistoricalOpsFile.read(mFile, 0, null, null, null, 0,
+                0, Long.MAX_VALUE, OP_FLAGS_ALL, overflowMillis);
+        assertThat(readOps).isEqualTo(allOps);
+        assertThat(overflowMillis[0]).isEqualTo(50);
+    }
+
+    @Test
+    public void testReadEmpty() throws IOException {
+        writeFile(null, 0);
+        assertThat(HistoricalOpsFile.read(mFile, 0, null, null, null, 0, 0, Long.MAX_VALUE,
+                OP_FLAGS_ALL, null)).isNull();
+    }
+
+    @Test
+    public void testReadFiltered() throws IOException {
+        final List<HistoricalOps> allOps = new ArrayList<>();
+        allOps.add(createOps(0, 1000, 3));
+        allOps.add(createOps(1000, 3000, 5));
+        writeFile(allOps, 0);
+
+        List<HistoricalOps> readOps = HistoricalOpsFile.read(mFile, 10001, null, null, null,
+                FILTER_BY_UID, 0, Long.MAX_VALUE, OP_FLAGS_ALL, null);
+        assertThat(readOps).hasSize(2);
+        assertThat(readOps.get(0).getUidCount()).isEqualTo(1);
+        assertThat(readOps.get(0).getUidOpsAt(0).getUid()).isEqualTo(10001);
+
+        readOps = HistoricalOpsFile.read(mFile, 10002, "package_2", "tag", new String[] {
+                AppOpsManager.opToPublicName(OP_CAMERA)}, FILTER_BY_UID | FILTER_BY_PACKAGE_NAME
+                | FILTER_BY_ATTRIBUTION_TAG | FILTER_BY_OP_NAMES, 0, Long.MAX_VALUE,
+                OP_FLAGS_ALL, null);
+        assertThat(readOps).hasSize(2);
+        final HistoricalOps ops = readOps.get(1);
+        assertThat(ops.getUidCount()).isEqualTo(1);
+        assertThat(ops.getUidOpsAt(0).getPackageCount()).isEqualTo(1);
+        assertThat(ops.getUidOpsAt(0).getPackageOpsAt(0).getAttributedOpsCount()).isEqualTo(1);
+        assertThat(ops.getUidOpsAt(0).getPackageOpsAt(0).getAttributedOpsAt(0).getOpCount())
+                .isEqualTo(1);
+
+        // Only the trusted proxied accesses are counted.
+        readOps = HistoricalOpsFile.read(mFile, 10002, null, null, null, FILTER_BY_UID, 0,
+                Long.MAX_VALUE, OP_FLAG_TRUSTED_PROXIED, null);
+        assertThat(readOps).hasSize(2);
+        assertThat(readOps.get(0).getUidOps(10002).getPackageOps("package_2")
+                .getOp(AppOpsManager.opToPublicName(OP_FINE_LOCATION))
+                .getAccessCount(UID_STATE_TOP, UID_STATE_BACKGROUND, OP_FLAGS_ALL)).isEqualTo(4);
+
+        // No uid has history.
+        assertThat(HistoricalOpsFile.read(mFile, 99999, null, null, null, FILTER_BY_UID, 0,
+                Long.MAX_VALUE, OP_FLAGS_ALL, null)).isNull();
+    }
+
+    @Test
+    public void testReadTimeFiltered() throws IOException {
+        final List<HistoricalOps> allOps = new ArrayList<>();
+        allOps.add(createOps(0, 1000, 3));
+        allOps.add(createOps(1000, 3000, 5));
+        writeFile(allOps, 0);
+
+        // Only half of the second snapshot matches, its counts are scaled accordingly.
+        final List<HistoricalOps> readOps = HistoricalOpsFile.read(mFile, 10001, null, null,
+                null, FILTER_BY_UID, 2000, Long.MAX_VALUE, OP_FLAGS_ALL, null);
+        assertThat(readOps).hasSize(1);
+        assertThat(readOps.get(0).getBeginTimeMillis()).isEqualTo(2000);
+        assertThat(readOps.get(0).getEndTimeMillis()).isEqualTo(3000);
+        assertThat(readOps.get(0).getUidOps(10001).getPackageOps("package_1")
+                .getOp(AppOpsManager.opToPublicName(OP_COARSE_LOCATION))
+                .getAccessCount(UID_STATE_TOP, UID_STATE_BACKGROUND, OP_FLAGS_ALL))
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        writeFile(List.of(createOps(0, 1000, 3)), 0);
+        final long length = mFile.length();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.getChannel().truncate(length / 2);
+        }
+        try {
+            HistoricalOpsFile.read(mFile, 0, null, null, null, 0, 0, Long.MAX_VALUE,
+                    OP_FLAGS_ALL, null);
+            throw new AssertionError("Reading a truncated file must fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testMigrateLegacyFile() throws Exception {
+        final File legacyFile = File.createTempFile("historical_ops", ".xml");
+        try {
+            final StringBuilder xml = new StringBuilder("<history ver=\"2\" ov=\"42\">");
+            appendLegacyOps(xml, 0, 1000, 3);
+            appendLegacyOps(xml, 1000, 3000, 5);
+            xml.append("</history>");
+            Files.write(legacyFile.toPath(), xml.toString().getBytes(StandardCharsets.UTF_8));
+
+            final HistoricalRegistry.Persistence persistence =
+                    new HistoricalRegistry.Persistence(1000, 10);
+            try (FileOutputStream out = new FileOutputStream(mFile)) {
+                persistence.migrateLegacyFileDLocked(legacyFile, out);
+            }
+        } finally {
+            legacyFile.delete();
+        }
+
+        final List<HistoricalOps> allOps = new ArrayList<>();
+        allOps.add(createOps(0, 1000, 3));
+        allOps.add(createOps(1000, 3000, 5));
+        final long[] overflowMillis = new long[] {8};
+        final List<HistoricalOps> readOps = HistoricalOpsFile.read(mFile, 0, null, null, null, 0,
+                0, Long.MAX_VALUE, OP_FLAGS_ALL, overflowMillis);
+        assertThat(readOps).isEqualTo(allOps);
+        assertThat(overflowMillis[0]).isEqualTo(50);
+    }
+
+    private void writeFile(List<HistoricalOps> allOps, long overflowMillis) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            HistoricalOpsFile.write(allOps, overflowMillis, out);
+        }
+    }
+
+    /**
+     * Appends the legacy XML form of {@link #createOps}.
+     */
+    private static void appendLegacyOps(StringBuilder xml, long beginTimeMillis,
+            long endTimeMillis, int uidCount) {
+        xml.append("<ops beg=\"").append(beginTimeMillis).append("\" end=\"")
+                .append(endTimeMillis).append("\">");
+        for (int i = 0; i < uidCount; i++) {
+            xml.append("<uid na=\"").append(10000 + i).append("\">");
+            xml.append("<pkg na=\"package_").append(i).append("\">");
+            xml.append("<ftr>");
+            appendLegacyOp(xml, OP_COARSE_LOCATION, UID_STATE_TOP, OP_FLAG_SELF,
+                    "ac=\"3\"");
+            appendLegacyOp(xml, OP_FINE_LOCATION, UID_STATE_BACKGROUND,
+                    OP_FLAG_TRUSTED_PROXIED, "ac=\"4\"");
+            xml.append("</ftr>");
+            xml.append("<ftr na=\"tag\">");
+            appendLegacyOp(xml, OP_CAMERA, UID_STATE_TOP, OP_FLAG_SELF,
+                    "rc=\"1\" du=\"500\"");
+            xml.append("</ftr>");
+            xml.append("</pkg>");
+            xml.append("</uid>");
+        }
+        xml.append("</ops>");
+    }
+
+    private static void appendLegacyOp(StringBuilder xml, int op, int uidState, int flags,
+            String values) {
+        xml.append("<op na=\"").append(op).append("\">");
+        xml.append("<st na=\"").append(AppOpsManager.makeKey(uidState, flags)).append("\" ")
+                .append(values).append("/>");
+        xml.append("</op>");
+    }
+
+    private static HistoricalOps createOps(long beginTimeMillis, long endTimeMillis,
+            int uidCount) {
+        final HistoricalOps ops = new HistoricalOps(beginTimeMillis, endTimeMillis);
+        for (int i = 0; i < uidCount; i++) {
+            final int uid = 10000 + i;
+            final String packageName = "package_" + i;
+            ops.increaseAccessCount(OP_COARSE_LOCATION, uid, packageName, null,
+                    UID_STATE_TOP, OP_FLAG_SELF, 3);
+            ops.increaseAccessCount(OP_FINE_LOCATION, uid, packageName, null,
+                    UID_STATE_BACKGROUND, OP_FLAG_TRUSTED_PROXIED, 4);
+            ops.increaseRejectCount(OP_CAMERA, uid, packageName, "tag", UID_STATE_TOP,
+                    OP_FLAG_SELF, 1);
+            ops.increaseAccessDuration(OP_CAMERA, uid, packageName, "tag", UID_STATE_TOP,
+                    OP_FLAG_SELF, 500);
+        }
+        return ops;
+    }
+}
@@ -40,6 +40,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.ZoneOffset;
 import java.util.Arrays;
@@ -455,6 +458,112 @@ public class JobStoreTest {
                 taskStatus.getJob().isRequireBatteryNotLow());
     }
 
+    @Test
+    public void testJournalReplayedOnRead() throws Exception {
+        final JobStatus js1 = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setRequiresCharging(true).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js2 = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setRequiresDeviceIdle(true).setPersisted(true).build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js1);
+        waitForPendingIo();
+        final long snapshotLength = getJobFile("jobs.bin").length();
+
+        mTaskStoreUnderTest.add(js2);
+        waitForPendingIo();
+        mTaskStoreUnderTest.remove(js1, true);
+        waitForPendingIo();
+
+        // Changes only go to the journal.
+        assertEquals("Snapshot rewritten.", snapshotLength, getJobFile("jobs.bin").length());
+        assertTrue("Changes not journaled.", getJobFile("jobs.journal").exists());
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(js2.getJob(), jobStatusSet.getAllJobs().get(0).getJob());
+    }
+
+    @Test
+    public void testJournalCompacted() throws Exception {
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(new Builder(0, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null));
+        waitForPendingIo();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null));
+        waitForPendingIo();
+        assertTrue("Changes not journaled.", getJobFile("jobs.journal").exists());
+
+        for (int i = 2; i <= JobStore.MAX_JOURNAL_RECORDS + 1; i++) {
+            mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(new Builder(i, mComponent)
+                    .setOverrideDeadline(10000).setPersisted(true).build(),
+                    SOME_UID, null, -1, null));
+        }
+        waitForPendingIo();
+
+        // Too many records, the journal is folded into a new snapshot.
+        assertTrue("Journal not compacted.", !getJobFile("jobs.journal").exists());
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", JobStore.MAX_JOURNAL_RECORDS + 2,
+                jobStatusSet.size());
+    }
+
+    @Test
+    public void testDamagedJournalIgnored() throws Exception {
+        final JobStatus js1 = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setRequiresCharging(true).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js2 = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setRequiresDeviceIdle(true).setPersisted(true).build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js1);
+        waitForPendingIo();
+        mTaskStoreUnderTest.add(js2);
+        waitForPendingIo();
+
+        // A torn append at the end of the journal.
+        try (FileOutputStream out = new FileOutputStream(getJobFile("jobs.journal"), true)) {
+            out.write(new byte[] {0, 0, 1, 0, 42, 42});
+        }
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 2, jobStatusSet.size());
+    }
+
+    @Test
+    public void testLegacyXmlImported() throws Exception {
+        getJobFile("jobs.bin").delete();
+        getJobFile("jobs.journal").delete();
+        try (FileOutputStream out = new FileOutputStream(getJobFile("jobs.xml"))) {
+            out.write(("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                    + "<job-info version=\"0\">\n"
+                    + "<job jobid=\"7\" package=\"" + mComponent.getPackageName()
+                    + "\" class=\"" + mComponent.getClassName() + "\" sourcePackageName=\""
+                    + mComponent.getPackageName() + "\" sourceUserId=\"0\" uid=\"" + SOME_UID
+                    + "\" priority=\"0\" flags=\"0\" lastSuccessfulRunTime=\"0\""
+                    + " lastFailedRunTime=\"0\">\n"
+                    + "<constraints charging=\"true\" />\n"
+                    + "<one-off />\n"
+                    + "<extras />\n"
+                    + "</job>\n"
+                    + "</job-info>\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(new Builder(7, mComponent).setRequiresCharging(true)
+                .setPersisted(true).build(), jobStatusSet.getAllJobs().get(0).getJob());
+
+        // Writing a snapshot retires the xml file.
+        mTaskStoreUnderTest.clear();
+        waitForPendingIo();
+        assertTrue("Legacy jobs file not deleted.", !getJobFile("jobs.xml").exists());
+    }
+
+    private File getJobFile(String name) {
+        return new File(new File(new File(mTestContext.getFilesDir(), "system"), "job"), name);
+    }
+
     /**
      * Helper function to kick a {@link JobInfo} through a persistence cycle and
      * assert that it's unchanged.
@@ -70,6 +70,7 @@ import org.mockito.MockitoAnnotations;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -321,6 +322,90 @@ public class PackageManagerSettingsTests {
         assertThat(readPus3.suspendParams, is(nullValue()));
     }
 
+    @Test
+    public void testReadWritePackageRestrictions_journal() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Settings settingsUnderTest = new Settings(context.getFilesDir(), null, new Object());
+        final PackageSetting ps1 = createPackageSetting(PACKAGE_NAME_1);
+        final PackageSetting ps2 = createPackageSetting(PACKAGE_NAME_2);
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, ps1);
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_2, ps2);
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+
+        // Journal a few changes on top of the snapshot.
+        ps1.setStopped(true, 0);
+        settingsUnderTest.writePackageRestrictionsDeltaLPr(0, Arrays.asList(PACKAGE_NAME_1));
+        ps2.setHidden(true, 0);
+        settingsUnderTest.writePackageRestrictionsDeltaLPr(0, Arrays.asList(PACKAGE_NAME_2));
+        ps1.setStopped(false, 0);
+        ps1.setNotLaunched(true, 0);
+        settingsUnderTest.writePackageRestrictionsDeltaLPr(0, Arrays.asList(PACKAGE_NAME_1));
+
+        settingsUnderTest.mPackages.clear();
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        // now read and verify
+        settingsUnderTest.readPackageRestrictionsLPr(0);
+        final PackageUserState readPus1 = settingsUnderTest.mPackages.get(PACKAGE_NAME_1)
+                .readUserState(0);
+        assertThat(readPus1.stopped, is(false));
+        assertThat(readPus1.notLaunched, is(true));
+        final PackageUserState readPus2 = settingsUnderTest.mPackages.get(PACKAGE_NAME_2)
+                .readUserState(0);
+        assertThat(readPus2.hidden, is(true));
+
+        // Compacting into a new snapshot must not replay older journal records over it.
+        settingsUnderTest.mPackages.get(PACKAGE_NAME_2).setHidden(false, 0);
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        settingsUnderTest.readPackageRestrictionsLPr(0);
+        assertThat(settingsUnderTest.mPackages.get(PACKAGE_NAME_2).readUserState(0).hidden,
+                is(false));
+    }
+
+    @Test
+    public void testReadWritePackageRestrictions_damagedJournalRecord() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Settings settingsUnderTest = new Settings(context.getFilesDir(), null, new Object());
+        final PackageSetting ps1 = createPackageSetting(PACKAGE_NAME_1);
+        final PackageSetting ps2 = createPackageSetting(PACKAGE_NAME_2);
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, ps1);
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_2, ps2);
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+
+        ps1.setStopped(true, 0);
+        settingsUnderTest.writePackageRestrictionsDeltaLPr(0, Arrays.asList(PACKAGE_NAME_1));
+        ps2.setHidden(true, 0);
+        settingsUnderTest.writePackageRestrictionsDeltaLPr(0, Arrays.asList(PACKAGE_NAME_2));
+
+        // Flip a payload byte of the first record, past its 12 byte header.
+        final File journal = new File(context.getFilesDir(),
+                "system/users/0/package-restrictions-journal");
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(14);
+            final int b = raf.read();
+            raf.seek(14);
+            raf.write(b ^ 0xff);
+        }
+
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        settingsUnderTest.readPackageRestrictionsLPr(0);
+        // The damaged record is skipped, the records after it are still applied.
+        assertThat(settingsUnderTest.mPackages.get(PACKAGE_NAME_1).readUserState(0).stopped,
+                is(false));
+        assertThat(settingsUnderTest.mPackages.get(PACKAGE_NAME_2).readUserState(0).hidden,
+                is(true));
+
+        // Changes made after reading the damaged journal are not lost.
+        settingsUnderTest.mPackages.get(PACKAGE_NAME_1).setNotLaunched(true, 0);
+        settingsUnderTest.writePackageRestrictionsDeltaLPr(0, Arrays.asList(PACKAGE_NAME_1));
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        settingsUnderTest.readPackageRestrictionsLPr(0);
+        assertThat(settingsUnderTest.mPackages.get(PACKAGE_NAME_1).readUserState(0).notLaunched,
+                is(true));
+    }
+
     @Test
     public void testPackageRestrictionsSuspendedDefault() {
         final PackageSetting defaultSetting = createPackageSetting(PACKAGE_NAME_1);
@@ -152,6 +152,64 @@ public class PackageParserTest {
         assertEquals("android", pkg.getPackageName());
     }
 
+    @Test
+    public void testParse_withContentAddressedCache() throws Exception {
+        CachePackageNameParser pp = new CachePackageNameParser(null);
+        pp.setCacheDir(mTmpDir, true /* contentAddressed */);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+
+        final String[] entries = mTmpDir.list();
+        assertEquals(1, entries.length);
+        assertTrue(entries[0].startsWith(FRAMEWORK.getName() + "-0-"));
+
+        ParsedPackage pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+        assertEquals("cache_android", pkg.getPackageName());
+
+        // The key must not depend on anything but the package contents.
+        assertArrayEquals(PackageCacher.computeContentDigest(FRAMEWORK),
+                PackageCacher.computeContentDigest(FRAMEWORK));
+    }
+
+    @Test
+    public void testParse_withContentAddressedCache_keyedByPath() throws Exception {
+        final File cacheDir = new File(mTmpDir, "cache");
+        final File copyDir = new File(mTmpDir, "copy");
+        assertTrue(cacheDir.mkdir());
+        assertTrue(copyDir.mkdir());
+        final File copy = new File(copyDir, FRAMEWORK.getName());
+        Files.copy(FRAMEWORK.toPath(), copy.toPath());
+
+        CachePackageNameParser pp = new CachePackageNameParser(null);
+        pp.setCacheDir(cacheDir, true /* contentAddressed */);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        pp.parsePackage(copy, 0 /* parseFlags */, true /* useCaches */);
+
+        // Same contents, but the parsed package records where it was found.
+        assertArrayEquals(PackageCacher.computeContentDigest(FRAMEWORK),
+                PackageCacher.computeContentDigest(copy));
+        assertEquals(2, cacheDir.list().length);
+    }
+
+    @Test
+    public void testPruneCache() throws Exception {
+        final PackageCacher cacher = new PackageCacher(mTmpDir, true /* contentAddressed */);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            final File entry = new File(mTmpDir, "entry" + i);
+            Files.write(entry.toPath(), new byte[100]);
+            entry.setLastModified(now - (4 - i) * 60_000L);
+        }
+
+        assertEquals(0, cacher.pruneCache(400));
+        assertEquals(2, cacher.pruneCache(250));
+        // The least recently used entries go first.
+        assertFalse(new File(mTmpDir, "entry0").exists());
+        assertFalse(new File(mTmpDir, "entry1").exists());
+        assertTrue(new File(mTmpDir, "entry2").exists());
+        assertTrue(new File(mTmpDir, "entry3").exists());
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         try (PackageParser2 pp = PackageParser2.forParsingFileWithDefaults()) {
@@ -294,7 +352,11 @@ public class PackageParserTest {
         }
 
         void setCacheDir(@NonNull File cacheDir) {
-            this.mCacher = new PackageCacher(cacheDir) {
+            setCacheDir(cacheDir, false /* contentAddressed */);
+        }
+
+        void setCacheDir(@NonNull File cacheDir, boolean contentAddressed) {
+            this.mCacher = new PackageCacher(cacheDir, contentAddressed) {
                 @Override
                 public byte[] toCacheEntry(ParsedPackage pkg) {
                     return ("cache_" + pkg.getPackageName()).getBytes(StandardCharsets.UTF_8);
@@ -19,6 +19,7 @@ package com.android.server.pm;
 import android.platform.test.annotations.Presubmit;
 import android.util.Log;
 
+import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.server.pm.parsing.PackageParser2;
@@ -32,6 +33,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -74,6 +79,42 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test
+    public void testSortLargestFirst() throws IOException {
+        final File dir = InstrumentationRegistry.getContext().getCacheDir();
+        final File small = createFile(new File(dir, "small.apk"), 10);
+        final File large = createFile(new File(dir, "large.apk"), 1000);
+        final File cluster = new File(dir, "cluster");
+        cluster.mkdirs();
+        createFile(new File(cluster, "base.apk"), 300);
+        createFile(new File(cluster, "split.apk"), 300);
+        try {
+            final ArrayList<File> files = new ArrayList<>(Arrays.asList(small, cluster, large));
+            ParallelPackageParser.sortLargestFirst(files);
+            Assert.assertEquals(Arrays.asList(large, cluster, small), files);
+        } finally {
+            small.delete();
+            large.delete();
+            new File(cluster, "base.apk").delete();
+            new File(cluster, "split.apk").delete();
+            cluster.delete();
+        }
+    }
+
+    @Test
+    public void testThreadCount() {
+        final int threads = ParallelPackageParser.getThreadCount();
+        Assert.assertTrue(threads >= 2);
+        Assert.assertTrue(threads <= Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static File createFile(File file, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        return file;
+    }
+
     private class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser(PackageParser2 packageParser, ExecutorService executorService) {
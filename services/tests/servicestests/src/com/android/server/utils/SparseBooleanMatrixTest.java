@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link SparseBooleanMatrix}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:SparseBooleanMatrixTest
+ */
+@SmallTest
+@Presubmit
+public class SparseBooleanMatrixTest {
+
+    @Test
+    public void testPutAndGet() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix();
+        matrix.put(10010, 10020, true);
+        matrix.put(10020, 10010, false);
+
+        assertEquals(2, matrix.size());
+        assertTrue(matrix.get(10010, 10020, false));
+        assertFalse(matrix.get(10020, 10010, true));
+        // Cells that were never set report the default.
+        assertTrue(matrix.get(10010, 10010, true));
+        assertTrue(matrix.get(10030, 10010, true));
+
+        final int row = matrix.indexOfKey(10020);
+        final int col = matrix.indexOfKey(10010);
+        assertTrue(matrix.hasValueAt(row, col));
+        assertFalse(matrix.valueAt(row, col));
+        assertFalse(matrix.hasValueAt(col, col));
+    }
+
+    @Test
+    public void testKeysSorted() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix();
+        matrix.addKey(30);
+        matrix.addKey(10);
+        matrix.addKey(20);
+        assertEquals(10, matrix.keyAt(0));
+        assertEquals(20, matrix.keyAt(1));
+        assertEquals(30, matrix.keyAt(2));
+    }
+
+    @Test
+    public void testRemoveKeyClearsRowAndColumn() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix();
+        matrix.put(1, 2, true);
+        matrix.put(2, 1, true);
+        matrix.put(1, 3, true);
+        matrix.removeKey(2);
+
+        assertFalse(matrix.contains(2));
+        assertTrue(matrix.get(1, 3, false));
+
+        // The freed slot is reused by the next key and must start out empty.
+        matrix.addKey(4);
+        assertFalse(matrix.get(1, 4, false));
+        assertFalse(matrix.get(4, 1, false));
+        assertTrue(matrix.get(1, 4, true));
+    }
+
+    @Test
+    public void testGrowPreservesValues() {
+        final SparseBooleanMatrix matrix = new SparseBooleanMatrix(1);
+        final int count = 200;
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < i; j++) {
+                matrix.put(i, j, (i + j) % 3 == 0);
+            }
+        }
+        assertEquals(count, matrix.size());
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                if (j < i) {
+                    assertEquals((i + j) % 3 == 0, matrix.get(i, j, (i + j) % 3 != 0));
+                } else {
+                    final int row = matrix.indexOfKey(i);
+                    final int col = matrix.indexOfKey(j);
+                    assertFalse(matrix.hasValueAt(row, col));
+                }
+            }
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.app.NotificationHistory;
 import android.app.NotificationHistory.HistoricalNotification;
 import android.content.Context;
 import android.graphics.drawable.Icon;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.util.AtomicFile;
 
@@ -39,6 +40,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.server.UiServiceTestCase;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -56,8 +58,9 @@ import java.util.Map;
 
 @RunWith(AndroidJUnit4.class)
 public class NotificationHistoryDatabaseTest extends UiServiceTestCase {
-
     File mRootDir;
+    // Holds real segment files, unlike mRootDir
+    File mSegmentDir;
     @Mock
     Handler mFileWriteHandler;
     @Mock
@@ -95,6 +98,52 @@ public class NotificationHistoryDatabaseTest extends UiServiceTestCase {
                 .build();
     }
 
+    private HistoricalNotification getConversationNotification(String packageName,
+            String conversationId, int index) {
+        HistoricalNotification n = getHistoricalNotification(packageName, index);
+        return new HistoricalNotification.Builder()
+                .setPackage(n.getPackage())
+                .setChannelName(n.getChannelName())
+                .setChannelId(n.getChannelId())
+                .setUid(n.getUid())
+                .setUserId(n.getUserId())
+                .setPostedTimeMs(n.getPostedTimeMs())
+                .setTitle(n.getTitle())
+                .setText(n.getText())
+                .setIcon(n.getIcon())
+                .setConversationId(conversationId)
+                .build();
+    }
+
+    private NotificationHistoryDatabase createSegmentDatabase() {
+        mSegmentDir.mkdirs();
+        NotificationHistoryDatabase db =
+                new NotificationHistoryDatabase(mContext, mFileWriteHandler, mSegmentDir);
+        db.init();
+        return db;
+    }
+
+    private AtomicFile writeSegment(NotificationHistoryDatabase db, int index,
+            HistoricalNotification... notifications) {
+        // recent enough not to be pruned, and ordered by index
+        long time = System.currentTimeMillis() + index;
+        for (HistoricalNotification n : notifications) {
+            db.addNotification(n);
+        }
+        AtomicFile af = new AtomicFile(
+                new File(new File(mSegmentDir, "history"), String.valueOf(time)));
+        db.new WriteBufferRunnable().run(time, af);
+        return af;
+    }
+
+    private static List<String> getPackages(NotificationHistory nh) {
+        List<String> packages = new ArrayList<>();
+        for (HistoricalNotification n : nh.getNotificationsToWrite()) {
+            packages.add(n.getPackage());
+        }
+        return packages;
+    }
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
@@ -106,6 +155,14 @@ public class NotificationHistoryDatabaseTest extends UiServiceTestCase {
 
         mDataBase = new NotificationHistoryDatabase(mContext, mFileWriteHandler, mRootDir);
         mDataBase.init();
+
+        mSegmentDir = new File(getContext().getFilesDir(), "NotificationHistoryDatabaseTest");
+        FileUtils.deleteContentsAndDir(mSegmentDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mSegmentDir);
     }
 
     @Test
@@ -260,95 +317,94 @@ public class NotificationHistoryDatabaseTest extends UiServiceTestCase {
     }
 
     @Test
-    public void testRemoveNotificationRunnable() throws Exception {
-        NotificationHistory nh = mock(NotificationHistory.class);
-        NotificationHistoryDatabase.RemoveNotificationRunnable rnr =
-                mDataBase.new RemoveNotificationRunnable("pkg", 123);
-        rnr.setNotificationHistory(nh);
-
-        AtomicFile af = mock(AtomicFile.class);
-        when(af.getBaseFile()).thenReturn(new File(mRootDir, "af"));
-        mDataBase.mHistoryFiles.addLast(af);
-
-        when(nh.removeNotificationFromWrite("pkg", 123)).thenReturn(true);
+    public void testRemovePackage_tombstonesIndexedSegmentsOnly() throws Exception {
+        NotificationHistoryDatabase db = createSegmentDatabase();
+        AtomicFile segment = writeSegment(db, 1, getHistoricalNotification("pkgA", 1));
+        writeSegment(db, 2, getHistoricalNotification("pkgB", 2));
 
-        mDataBase.mBuffer = mock(NotificationHistory.class);
+        db.new RemovePackageRunnable("pkgA").run();
 
-        rnr.run();
-
-        verify(mDataBase.mBuffer).removeNotificationFromWrite("pkg", 123);
-        verify(af).openRead();
-        verify(nh).removeNotificationFromWrite("pkg", 123);
-        verify(af).startWrite();
+        assertThat(db.mTombstones.keySet()).containsExactly(segment);
+        assertThat(getPackages(db.readNotificationHistory())).containsExactly("pkgB");
     }
 
     @Test
-    public void testRemoveNotificationRunnable_noChanges() throws Exception {
-        NotificationHistory nh = mock(NotificationHistory.class);
-        NotificationHistoryDatabase.RemoveNotificationRunnable rnr =
-                mDataBase.new RemoveNotificationRunnable("pkg", 123);
-        rnr.setNotificationHistory(nh);
-
-        AtomicFile af = mock(AtomicFile.class);
-        when(af.getBaseFile()).thenReturn(new File(mRootDir, "af"));
-        mDataBase.mHistoryFiles.addLast(af);
-
-        when(nh.removeNotificationFromWrite("pkg", 123)).thenReturn(false);
-
-        mDataBase.mBuffer = mock(NotificationHistory.class);
-
-        rnr.run();
-
-        verify(mDataBase.mBuffer).removeNotificationFromWrite("pkg", 123);
-        verify(af).openRead();
-        verify(nh).removeNotificationFromWrite("pkg", 123);
-        verify(af, never()).startWrite();
+    public void testRemovePackage_unindexedSegmentsAfterRestart() throws Exception {
+        NotificationHistoryDatabase db = createSegmentDatabase();
+        writeSegment(db, 1, getHistoricalNotification("pkgA", 1));
+        writeSegment(db, 2, getHistoricalNotification("pkgB", 2));
+
+        // segments from before a restart may hold anything until they are compacted
+        db = createSegmentDatabase();
+        db.new RemovePackageRunnable("pkgA").run();
+        assertThat(db.mTombstones).hasSize(2);
+
+        db.new CompactRunnable().run();
+        db.new RemovePackageRunnable("pkgB").run();
+        assertThat(db.mTombstones).hasSize(1);
+        assertThat(getPackages(db.readNotificationHistory())).isEmpty();
     }
 
     @Test
-    public void testRemoveConversationRunnable() throws Exception {
-        NotificationHistory nh = mock(NotificationHistory.class);
-        NotificationHistoryDatabase.RemoveConversationRunnable rcr =
-                mDataBase.new RemoveConversationRunnable("pkg", "convo");
-        rcr.setNotificationHistory(nh);
-
-        AtomicFile af = mock(AtomicFile.class);
-        when(af.getBaseFile()).thenReturn(new File(mRootDir, "af"));
-        mDataBase.mHistoryFiles.addLast(af);
-
-        when(nh.removeConversationFromWrite("pkg", "convo")).thenReturn(true);
-
-        mDataBase.mBuffer = mock(NotificationHistory.class);
-
-        rcr.run();
-
-        verify(mDataBase.mBuffer).removeConversationFromWrite("pkg", "convo");
-        verify(af).openRead();
-        verify(nh).removeConversationFromWrite("pkg", "convo");
-        verify(af).startWrite();
+    public void testCompaction() throws Exception {
+        NotificationHistoryDatabase db = createSegmentDatabase();
+        AtomicFile onlyA = writeSegment(db, 1, getHistoricalNotification("pkgA", 1));
+        AtomicFile mixed = writeSegment(db, 2, getHistoricalNotification("pkgA", 2),
+                getHistoricalNotification("pkgB", 3));
+
+        db.new RemovePackageRunnable("pkgA").run();
+        db.new CompactRunnable().run();
+
+        assertThat(db.mTombstones).isEmpty();
+        assertThat(db.mHistoryFiles).containsExactly(mixed);
+        assertThat(onlyA.getBaseFile().exists()).isFalse();
+        assertThat(getPackages(createSegmentDatabase().readNotificationHistory()))
+                .containsExactly("pkgB");
     }
 
     @Test
-    public void testRemoveConversationRunnable_noChanges() throws Exception {
-        NotificationHistory nh = mock(NotificationHistory.class);
-        NotificationHistoryDatabase.RemoveConversationRunnable rcr =
-                mDataBase.new RemoveConversationRunnable("pkg", "convo");
-        rcr.setNotificationHistory(nh);
-
-        AtomicFile af = mock(AtomicFile.class);
-        when(af.getBaseFile()).thenReturn(new File(mRootDir, "af"));
-        mDataBase.mHistoryFiles.addLast(af);
+    public void testTombstones_survivesRestart() throws Exception {
+        NotificationHistoryDatabase db = createSegmentDatabase();
+        writeSegment(db, 1, getHistoricalNotification("pkgA", 1),
+                getHistoricalNotification("pkgB", 2));
 
-        when(nh.removeConversationFromWrite("pkg", "convo")).thenReturn(false);
+        db.new RemovePackageRunnable("pkgA").run();
 
-        mDataBase.mBuffer = mock(NotificationHistory.class);
+        db = createSegmentDatabase();
+        assertThat(db.mTombstones).hasSize(1);
+        assertThat(getPackages(db.readNotificationHistory())).containsExactly("pkgB");
+    }
 
-        rcr.run();
+    @Test
+    public void testRemoveNotification() throws Exception {
+        NotificationHistoryDatabase db = createSegmentDatabase();
+        HistoricalNotification n = getHistoricalNotification("pkgA", 1);
+        writeSegment(db, 1, n, getHistoricalNotification("pkgA", 2));
+        HistoricalNotification buffered = getHistoricalNotification("pkgA", 3);
+        db.addNotification(buffered);
+
+        db.new RemoveNotificationRunnable("pkgA", n.getPostedTimeMs()).run();
+        db.new RemoveNotificationRunnable("pkgA", buffered.getPostedTimeMs()).run();
+
+        assertThat(db.readNotificationHistory().getNotificationsToWrite()).hasSize(1);
+        db.new CompactRunnable().run();
+        assertThat(createSegmentDatabase().readNotificationHistory().getNotificationsToWrite())
+                .hasSize(1);
+    }
 
-        verify(mDataBase.mBuffer).removeConversationFromWrite("pkg", "convo");
-        verify(af).openRead();
-        verify(nh).removeConversationFromWrite("pkg", "convo");
-        verify(af, never()).startWrite();
+    @Test
+    public void testRemoveConversation() throws Exception {
+        NotificationHistoryDatabase db = createSegmentDatabase();
+        AtomicFile convo = writeSegment(db, 1, getConversationNotification("pkg", "convo", 1));
+        writeSegment(db, 2, getConversationNotification("pkg", "other", 2));
+
+        db.new RemoveConversationRunnable("pkg", "convo").run();
+
+        assertThat(db.mTombstones.keySet()).containsExactly(convo);
+        List<HistoricalNotification> notifications =
+                db.readNotificationHistory().getNotificationsToWrite();
+        assertThat(notifications).hasSize(1);
+        assertThat(notifications.get(0).getConversationId()).isEqualTo("other");
     }
 
     @Test
@@ -23,9 +23,11 @@ import static android.service.notification.NotificationListenerService.Ranking.U
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
@@ -196,6 +198,85 @@ public class NotificationListenerServiceTest extends UiServiceTestCase {
         assertNotEquals(nru, nru2);
     }
 
+    @Test
+    public void testRankingUpdate_delta() {
+        TestListenerService service = new TestListenerService();
+        Ranking[] rankings = getRankings(generateUpdate());
+        service.applyUpdateLocked(new NotificationRankingUpdate(rankings, 1));
+
+        // reverse the order, and change the importance of the first key
+        String[] reversedKeys = new String[mKeys.length];
+        for (int i = 0; i < mKeys.length; i++) {
+            reversedKeys[i] = mKeys[mKeys.length - 1 - i];
+        }
+        Ranking changed = withImportance(rankings[0], mKeys.length - 1, 42);
+        service.applyUpdateLocked(new NotificationRankingUpdate(reversedKeys,
+                new Ranking[] {changed}, 2, 1));
+
+        RankingMap rankingMap = service.getCurrentRanking();
+        assertArrayEquals(reversedKeys, rankingMap.getOrderedKeys());
+        for (int i = 0; i < reversedKeys.length; i++) {
+            Ranking ranking = new Ranking();
+            assertTrue(rankingMap.getRanking(reversedKeys[i], ranking));
+            assertEquals(i, ranking.getRank());
+        }
+        assertEquals(42, rankingMap.getRawRankingObject(mKeys[0]).getImportance());
+        assertEquals(getImportance(1), rankingMap.getRawRankingObject(mKeys[1]).getImportance());
+        // the rankings of the previous map are left as they were
+        assertEquals(1, rankings[1].getRank());
+    }
+
+    @Test
+    public void testRankingUpdate_deltaDropsRemovedKeys() {
+        TestListenerService service = new TestListenerService();
+        service.applyUpdateLocked(new NotificationRankingUpdate(getRankings(generateUpdate()), 1));
+
+        String[] keys = new String[] {mKeys[1], mKeys[2]};
+        service.applyUpdateLocked(new NotificationRankingUpdate(keys, new Ranking[0], 2, 1));
+
+        assertArrayEquals(keys, service.getCurrentRanking().getOrderedKeys());
+        assertFalse(service.getCurrentRanking().getRanking(mKeys[0], new Ranking()));
+    }
+
+    @Test
+    public void testRankingUpdate_staleUpdateIgnored() {
+        TestListenerService service = new TestListenerService();
+        Ranking[] rankings = getRankings(generateUpdate());
+        service.applyUpdateLocked(new NotificationRankingUpdate(
+                new Ranking[] {rankings[0], rankings[1]}, 2));
+        service.applyUpdateLocked(new NotificationRankingUpdate(rankings, 1));
+
+        assertArrayEquals(new String[] {mKeys[0], mKeys[1]},
+                service.getCurrentRanking().getOrderedKeys());
+    }
+
+    @Test
+    public void testRankingUpdate_deltaParcel() {
+        Ranking[] rankings = getRankings(generateUpdate());
+        NotificationRankingUpdate nru = new NotificationRankingUpdate(mKeys,
+                new Ranking[] {rankings[1], rankings[2]}, 7, 5);
+        Parcel parcel = Parcel.obtain();
+        nru.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        NotificationRankingUpdate nru1 = NotificationRankingUpdate.CREATOR.createFromParcel(parcel);
+        assertTrue(nru1.isDelta());
+        assertEquals(7, nru1.getVersion());
+        assertEquals(5, nru1.getBaseVersion());
+        assertEquals(nru, nru1);
+    }
+
+    @Test
+    public void testRanking_isUnchangedFrom() {
+        Ranking[] rankings = getRankings(generateUpdate());
+        Ranking copy = new Ranking();
+        copy.populate(rankings[1]);
+        assertTrue(copy.isUnchangedFrom(rankings[1]));
+
+        assertTrue(withImportance(rankings[1], 5, rankings[1].getImportance())
+                .isUnchangedFrom(rankings[1]));
+        assertFalse(withImportance(rankings[1], 1, 42).isUnchangedFrom(rankings[1]));
+    }
+
     @Test
     public void testLegacyIcons_preM() {
         TestListenerService service = new TestListenerService();
@@ -279,6 +360,46 @@ public class NotificationListenerServiceTest extends UiServiceTestCase {
         return update;
     }
 
+    private Ranking[] getRankings(NotificationRankingUpdate update) {
+        RankingMap rankingMap = update.getRankingMap();
+        String[] keys = rankingMap.getOrderedKeys();
+        Ranking[] rankings = new Ranking[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            rankings[i] = rankingMap.getRawRankingObject(keys[i]);
+        }
+        return rankings;
+    }
+
+    private Ranking withImportance(Ranking other, int rank, int importance) {
+        Ranking ranking = new Ranking();
+        ranking.populate(
+                other.getKey(),
+                rank,
+                other.matchesInterruptionFilter(),
+                other.getVisibilityOverride(),
+                other.getSuppressedVisualEffects(),
+                importance,
+                other.getImportanceExplanation(),
+                other.getOverrideGroupKey(),
+                other.getChannel(),
+                (ArrayList) other.getAdditionalPeople(),
+                (ArrayList) other.getSnoozeCriteria(),
+                other.canShowBadge(),
+                other.getUserSentiment(),
+                other.isSuspended(),
+                other.getLastAudiblyAlertedMillis(),
+                other.isNoisy(),
+                (ArrayList) other.getSmartActions(),
+                (ArrayList) other.getSmartReplies(),
+                other.canBubble(),
+                other.visuallyInterruptive(),
+                other.isConversation(),
+                other.getShortcutInfo(),
+                other.isBubble()
+        );
+        return ranking;
+    }
+
     private int getVisibilityOverride(int index) {
         return index * 9;
     }
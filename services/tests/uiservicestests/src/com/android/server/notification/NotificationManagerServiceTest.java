@@ -137,7 +137,9 @@ import android.provider.MediaStore;
 import android.provider.Settings;
 import android.service.notification.Adjustment;
 import android.service.notification.ConversationChannelWrapper;
+import android.service.notification.INotificationListener;
 import android.service.notification.NotificationListenerService;
+import android.service.notification.NotificationRankingUpdate;
 import android.service.notification.NotificationStats;
 import android.service.notification.StatusBarNotification;
 import android.service.notification.ZenPolicy;
@@ -7043,4 +7045,94 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         assertEquals(NotificationManagerService.MAX_PACKAGE_NOTIFICATIONS + 1,
                 mService.getNotificationRecordCount());
     }
+
+    private ManagedServices.ManagedServiceInfo createRankingListener() {
+        INotificationListener listener = mock(INotificationListener.class);
+        when(listener.asBinder()).thenReturn(new Binder());
+        return mListeners.new ManagedServiceInfo(listener, new ComponentName(PKG, "ranking"),
+                UserHandle.getUserId(mUid), true, null, 0);
+    }
+
+    private void addRankingRecords(int firstId, int count) {
+        for (int i = 0; i < count; i++) {
+            mService.addNotification(generateNotificationRecord(
+                    mTestNotificationChannel, firstId + i, null, false));
+        }
+    }
+
+    @Test
+    public void testMakeRankingUpdate_fullAfterConnectThenDelta() {
+        ManagedServices.ManagedServiceInfo info = createRankingListener();
+        addRankingRecords(1, 4);
+
+        synchronized (mService.mNotificationLock) {
+            // the connect update may arrive out of order, so the one after it is complete too
+            NotificationRankingUpdate connect = mService.makeRankingUpdateLocked(info, false);
+            assertFalse(connect.isDelta());
+            NotificationRankingUpdate first = mService.makeRankingUpdateLocked(info, true);
+            assertFalse(first.isDelta());
+
+            NotificationRankingUpdate second = mService.makeRankingUpdateLocked(info, true);
+            assertTrue(second.isDelta());
+            assertEquals(first.getVersion(), second.getBaseVersion());
+            assertTrue(second.getVersion() > first.getVersion());
+            assertEquals(first.getRankingMap(), second.applyTo(first.getRankingMap()));
+        }
+    }
+
+    @Test
+    public void testMakeRankingUpdate_fullWhenMostRankingsChanged() {
+        ManagedServices.ManagedServiceInfo info = createRankingListener();
+        addRankingRecords(1, 2);
+
+        synchronized (mService.mNotificationLock) {
+            mService.makeRankingUpdateLocked(info, true);
+
+            // one new ranking out of three
+            addRankingRecords(3, 1);
+            NotificationRankingUpdate delta = mService.makeRankingUpdateLocked(info, true);
+            assertTrue(delta.isDelta());
+
+            // four new rankings out of seven
+            addRankingRecords(4, 4);
+            NotificationRankingUpdate full = mService.makeRankingUpdateLocked(info, true);
+            assertFalse(full.isDelta());
+            assertEquals(7, full.getRankingMap().getOrderedKeys().length);
+        }
+    }
+
+    @Test
+    public void testMakeRankingUpdate_fullAfterFailedSend() {
+        ManagedServices.ManagedServiceInfo info = createRankingListener();
+        addRankingRecords(1, 4);
+
+        synchronized (mService.mNotificationLock) {
+            mService.makeRankingUpdateLocked(info, true);
+            assertTrue(mService.makeRankingUpdateLocked(info, true).isDelta());
+        }
+
+        mService.forgetSentRankings(info);
+
+        synchronized (mService.mNotificationLock) {
+            assertFalse(mService.makeRankingUpdateLocked(info, true).isDelta());
+            assertTrue(mService.makeRankingUpdateLocked(info, true).isDelta());
+        }
+    }
+
+    @Test
+    public void testGetRankingUpdateFromListener_nextUpdateIsFull() throws Exception {
+        ManagedServices.ManagedServiceInfo info = createRankingListener();
+        when(mListeners.checkServiceTokenLocked(any())).thenReturn(info);
+        addRankingRecords(1, 4);
+
+        synchronized (mService.mNotificationLock) {
+            mService.makeRankingUpdateLocked(info, true);
+        }
+        NotificationRankingUpdate pulled = mBinderService.getRankingUpdateFromListener(
+                (INotificationListener) info.service);
+        assertFalse(pulled.isDelta());
+        synchronized (mService.mNotificationLock) {
+            assertFalse(mService.makeRankingUpdateLocked(info, true).isDelta());
+        }
+    }
 }
@@ -241,6 +241,17 @@ public class RankingHelperTest extends UiServiceTestCase {
         return notificationRecord;
     }
 
+    private NotificationRecord generateRecord(String tag, String group,
+            NotificationChannel channel, long when) {
+        final Notification n = new Notification.Builder(mContext, TEST_CHANNEL_ID)
+                .setContentTitle(tag)
+                .setGroup(group)
+                .setWhen(when)
+                .build();
+        return new NotificationRecord(mContext, new StatusBarNotification(
+                PKG, PKG, 1, tag, 0, 0, n, USER, null, System.currentTimeMillis()), channel);
+    }
+
     @Test
     public void testFindAfterRankingWithASplitGroup() throws Exception {
         ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(4);
@@ -255,6 +266,46 @@ public class RankingHelperTest extends UiServiceTestCase {
         assertTrue(mHelper.indexOf(notificationList, mRecordNoGroupSortA) >= 0);
     }
 
+    @Test
+    public void testSortAfterChanges_sameAsFreshSort() throws Exception {
+        final ArrayList<NotificationRecord> notificationList = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            notificationList.add(generateRecord("tag" + i, i % 3 == 0 ? "group" + i % 4 : null,
+                    i % 2 == 0 ? getLowChannel() : getDefaultChannel(), 1000 + i));
+        }
+        mHelper.sort(notificationList);
+
+        // change the signals of a few records, replace one and add a new one
+        notificationList.get(10).setContactAffinity(1f);
+        notificationList.get(30).setCriticality(1);
+        notificationList.set(20, generateRecord("tag20", null, getDefaultChannel(), 2000));
+        notificationList.add(generateRecord("new", "group1", getDefaultChannel(), 3000));
+        notificationList.remove(5);
+        mHelper.sort(notificationList);
+
+        final RankingHelper freshHelper = new RankingHelper(getContext(), mHandler, mConfig,
+                mMockZenModeHelper, mUsageStats,
+                new String[] {ImportanceExtractor.class.getName()});
+        final ArrayList<NotificationRecord> freshList = new ArrayList<>(notificationList);
+        freshHelper.sort(freshList);
+
+        assertEquals(freshList, notificationList);
+    }
+
+    @Test
+    public void testGlobalSortKeyFormat() throws Exception {
+        final ArrayList<NotificationRecord> notificationList = new ArrayList<>();
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+
+        final NotificationRecord record = notificationList.get(
+                mHelper.indexOf(notificationList, mRecordGroupGSortA));
+        assertEquals(String.format("crtcl=0x%04x:intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
+                record.getCriticality(), '1', record.getAuthoritativeRank(), '1', "gsk=A",
+                record.getAuthoritativeRank()), record.getGlobalSortKey());
+    }
+
     @Test
     public void testSortShouldNotThrowWithPlainNotifications() throws Exception {
         ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(2);
@@ -21,7 +21,9 @@ import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
 import static junit.framework.Assert.assertEquals;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import android.app.ActivityManager.TaskSnapshot;
 import android.platform.test.annotations.Presubmit;
@@ -58,7 +60,7 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
     public void setUp() {
         super.setUp();
         MockitoAnnotations.initMocks(this);
-        mCache = new TaskSnapshotCache(mWm, mLoader);
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister);
     }
 
     @Test
@@ -124,6 +126,90 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
                 true /* restoreFromDisk */, false /* isLowResolution */));
     }
 
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        final TaskSnapshot snapshot = createSnapshot();
+        final long snapshotBytes = (long) snapshot.getSnapshot().getWidth()
+                * snapshot.getSnapshot().getHeight() * 4;
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister, 2 * snapshotBytes,
+                2 * snapshotBytes);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        mCache.putSnapshot(window1.getTask(), snapshot);
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+
+        // Using the first snapshot makes the second one the least recently used.
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        mCache.putSnapshot(window3.getTask(), createSnapshot());
+
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertNotNull(mCache.getSnapshot(window3.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertEquals(2 * snapshotBytes, mCache.getRunningCacheBytes());
+    }
+
+    @Test
+    public void testEvict_keepsPendingWrites() {
+        final TaskSnapshot snapshot = createSnapshot();
+        final long snapshotBytes = (long) snapshot.getSnapshot().getWidth()
+                * snapshot.getSnapshot().getHeight() * 4;
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister, 2 * snapshotBytes,
+                2 * snapshotBytes);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        final WindowState window4 = createWindow(null, FIRST_APPLICATION_WINDOW, "window4");
+        mPersister.setPaused(true);
+        try {
+            mCache.putSnapshot(window1.getTask(), snapshot);
+            mPersister.persistSnapshot(window1.getTask().mTaskId, mWm.mCurrentUserId, snapshot);
+            mCache.putSnapshot(window2.getTask(), createSnapshot());
+            mCache.putSnapshot(window3.getTask(), createSnapshot());
+            mCache.putSnapshot(window4.getTask(), createSnapshot());
+
+            // The first snapshot isn't on disk yet, so the second one goes instead.
+            assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                    false /* restoreFromDisk */, false /* isLowResolution */));
+            assertNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                    false /* restoreFromDisk */, false /* isLowResolution */));
+            assertNotNull(mCache.getSnapshot(window3.getTask().mTaskId, 0 /* userId */,
+                    false /* restoreFromDisk */, false /* isLowResolution */));
+            assertNotNull(mCache.getSnapshot(window4.getTask().mTaskId, 0 /* userId */,
+                    false /* restoreFromDisk */, false /* isLowResolution */));
+            assertEquals(3 * snapshotBytes, mCache.getRunningCacheBytes());
+        } finally {
+            mPersister.setPaused(false);
+        }
+    }
+
+    @Test
+    public void testReduced_restoredOnce() {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, mWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        final TaskSnapshot snapshot = mCache.getSnapshot(window.getTask().mTaskId,
+                mWm.mCurrentUserId, true /* restoreFromDisk */, true /* isLowResolution */);
+        assertNotNull(snapshot);
+
+        // The next request is served without loading it from disk again.
+        assertSame(snapshot, mCache.getSnapshot(window.getTask().mTaskId, mWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* isLowResolution */));
+
+        // Taking a new snapshot replaces it.
+        final TaskSnapshot newSnapshot = createSnapshot();
+        mCache.putSnapshot(window.getTask(), newSnapshot);
+        assertEquals(0, mCache.getReducedCacheBytes());
+        mCache.onTaskRemoved(window.getTask().mTaskId);
+        assertNotSame(snapshot, mCache.getSnapshot(window.getTask().mTaskId, mWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* isLowResolution */));
+    }
+
     @Test
     public void testClearCache() {
         final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
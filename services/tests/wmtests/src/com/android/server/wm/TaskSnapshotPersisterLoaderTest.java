@@ -31,6 +31,7 @@ import static org.mockito.Mockito.when;
 import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
 import android.content.res.Configuration;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Rect;
 import android.os.SystemClock;
 import android.platform.test.annotations.Presubmit;
@@ -94,6 +95,28 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertFalse(new File(FILES_DIR.getPath() + "/snapshots/1_reduced.jpg").exists());
     }
 
+    @Test
+    public void testPersistAndLoadSnapshot_workerPool() {
+        final TaskSnapshotPersister persister = new TaskSnapshotPersister(mWm,
+                userId -> FILES_DIR, 3 /* workerCount */, CompressFormat.WEBP_LOSSY);
+        final TaskSnapshotLoader loader = new TaskSnapshotLoader(persister);
+        persister.start();
+        for (int taskId = 1; taskId <= 3; taskId++) {
+            persister.persistSnapshot(taskId, mTestUserId, createSnapshot());
+        }
+        persister.onTaskRemovedFromRecents(2, mTestUserId);
+        persister.waitForQueueEmpty();
+
+        // The removal of task 2 is written after its snapshot, task 3 is stored last so it can't
+        // have been purged by the throttling.
+        assertFalse(new File(FILES_DIR.getPath() + "/snapshots/2.proto").exists());
+        final TaskSnapshot snapshot = loader.loadTask(3, mTestUserId,
+                true /* isLowResolution */);
+        assertNotNull(snapshot);
+        assertEquals(MOCK_SNAPSHOT_ID, snapshot.getId());
+        assertNotNull(loader.loadTask(3, mTestUserId, false /* isLowResolution */));
+    }
+
     /**
      * Tests that persisting a couple of snapshots is being throttled.
      */
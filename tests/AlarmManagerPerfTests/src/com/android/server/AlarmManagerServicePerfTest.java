@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
+import static android.app.usage.UsageStatsManager.STANDBY_BUCKET_ACTIVE;
+
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doCallRealMethod;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doNothing;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.spyOn;
+import static com.android.dx.mockito.inline.extended.ExtendedMockito.when;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.app.IAlarmCompleteListener;
+import android.app.IAlarmListener;
+import android.app.usage.UsageStatsManagerInternal;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Looper;
+import android.os.Message;
+import android.os.PowerManager;
+import android.os.RemoteException;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.provider.Settings;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.MockedVoidMethod;
+import com.android.server.usage.AppStandbyInternal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Performance tests for replacing alarms in {@link AlarmManagerService} with many alarms set.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerServicePerfTest {
+    private static final String TEST_CALLING_PACKAGE = "com.android.framework.test-package";
+    private static final int TEST_CALLING_UID = 67890;
+    // Alarms are spread over this many uids to stay below the per uid limit.
+    private static final int TEST_UID_COUNT = 100;
+    private static final long NOW_ELAPSED = 100_000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Mock
+    private ContentResolver mMockResolver;
+    @Mock
+    private Context mMockContext;
+    @Mock
+    private IActivityManager mIActivityManager;
+    @Mock
+    private UsageStatsManagerInternal mUsageStatsManagerInternal;
+    @Mock
+    private AppStandbyInternal mAppStandbyInternal;
+    @Mock
+    private AppStateTracker mAppStateTracker;
+    @Mock
+    private AlarmManagerService.ClockReceiver mClockReceiver;
+    @Mock
+    private PowerManager.WakeLock mWakeLock;
+
+    private MockitoSession mMockingSession;
+    private AlarmManagerService mService;
+
+    private class Injector extends AlarmManagerService.Injector {
+        private final CountDownLatch mNeverExpires = new CountDownLatch(1);
+
+        Injector(Context context) {
+            super(context);
+        }
+
+        @Override
+        void init() {
+        }
+
+        @Override
+        int waitForAlarm() {
+            try {
+                mNeverExpires.await();
+            } catch (InterruptedException e) {
+            }
+            return 0;
+        }
+
+        @Override
+        void setKernelTimezone(int minutesWest) {
+        }
+
+        @Override
+        void setAlarm(int type, long millis) {
+        }
+
+        @Override
+        void setKernelTime(long millis) {
+        }
+
+        @Override
+        boolean isAlarmDriverPresent() {
+            return true;
+        }
+
+        @Override
+        long getElapsedRealtime() {
+            return NOW_ELAPSED;
+        }
+
+        @Override
+        long getCurrentTimeMillis() {
+            return NOW_ELAPSED;
+        }
+
+        @Override
+        AlarmManagerService.ClockReceiver getClockReceiver(AlarmManagerService service) {
+            return mClockReceiver;
+        }
+
+        @Override
+        PowerManager.WakeLock getAlarmWakeLock() {
+            return mWakeLock;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mMockingSession = mockitoSession()
+                .initMocks(this)
+                .spyStatic(ActivityManager.class)
+                .mockStatic(LocalServices.class)
+                .spyStatic(Looper.class)
+                .spyStatic(Settings.Global.class)
+                .strictness(Strictness.LENIENT)
+                .startMocking();
+        doReturn(mIActivityManager).when(ActivityManager::getService);
+        doReturn(mAppStateTracker).when(() -> LocalServices.getService(AppStateTracker.class));
+        doReturn(mAppStandbyInternal).when(
+                () -> LocalServices.getService(AppStandbyInternal.class));
+        doReturn(mUsageStatsManagerInternal).when(
+                () -> LocalServices.getService(UsageStatsManagerInternal.class));
+        doCallRealMethod().when((MockedVoidMethod) () ->
+                LocalServices.addService(eq(AlarmManagerInternal.class), any()));
+        doCallRealMethod().when(() -> LocalServices.getService(AlarmManagerInternal.class));
+        when(mUsageStatsManagerInternal.getAppStandbyBucket(anyString(), anyInt(), anyLong()))
+                .thenReturn(STANDBY_BUCKET_ACTIVE);
+        doReturn(Looper.getMainLooper()).when(Looper::myLooper);
+
+        when(mMockContext.getContentResolver()).thenReturn(mMockResolver);
+        doReturn("min_futurity=0,min_interval=0").when(() ->
+                Settings.Global.getString(mMockResolver, Settings.Global.ALARM_MANAGER_CONSTANTS));
+
+        mService = new AlarmManagerService(mMockContext, new Injector(mMockContext));
+        spyOn(mService);
+        doNothing().when(mService).publishBinderService(any(), any());
+        mService.onStart();
+        spyOn(mService.mHandler);
+        // Messages would be handled on the main thread while the benchmark runs.
+        doReturn(true).when(mService.mHandler).sendMessageAtTime(any(Message.class), anyLong());
+        mService.onBootPhase(SystemService.PHASE_SYSTEM_SERVICES_READY);
+    }
+
+    @After
+    public void tearDown() {
+        if (mMockingSession != null) {
+            mMockingSession.finishMocking();
+        }
+        LocalServices.removeServiceForTest(AlarmManagerInternal.class);
+    }
+
+    @Test
+    public void timeReplaceAlarm_1000Alarms() {
+        runReplaceAlarmScenario(1_000);
+    }
+
+    @Test
+    public void timeReplaceAlarm_10000Alarms() {
+        runReplaceAlarmScenario(10_000);
+    }
+
+    // Every iteration removes one of the alarms and sets it again, the way setting an alarm
+    // with an existing listener or PendingIntent does.
+    private void runReplaceAlarmScenario(int numAlarms) {
+        final IAlarmListener[] listeners = new IAlarmListener[numAlarms];
+        for (int i = 0; i < numAlarms; i++) {
+            listeners[i] = new IAlarmListener.Stub() {
+                @Override
+                public void doAlarm(IAlarmCompleteListener callback) throws RemoteException {
+                }
+            };
+            setAlarm(listeners[i], i);
+        }
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            synchronized (mService.mLock) {
+                mService.removeLocked(null, listeners[i]);
+            }
+            setAlarm(listeners[i], i);
+            i = (i + 1) % numAlarms;
+        }
+    }
+
+    private void setAlarm(IAlarmListener listener, int index) {
+        mService.setImpl(ELAPSED_REALTIME_WAKEUP, NOW_ELAPSED + 1000 + index * 100, 1000, 0,
+                null, listener, "test", 0, null, null,
+                TEST_CALLING_UID + index % TEST_UID_COUNT, TEST_CALLING_PACKAGE);
+    }
+}
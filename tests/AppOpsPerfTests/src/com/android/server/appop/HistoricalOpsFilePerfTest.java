@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import static android.app.AppOpsManager.FILTER_BY_UID;
+import static android.app.AppOpsManager.OP_CAMERA;
+import static android.app.AppOpsManager.OP_COARSE_LOCATION;
+import static android.app.AppOpsManager.OP_FLAGS_ALL;
+import static android.app.AppOpsManager.OP_FLAG_SELF;
+import static android.app.AppOpsManager.OP_FLAG_TRUSTED_PROXIED;
+import static android.app.AppOpsManager.OP_FINE_LOCATION;
+import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
+import static android.app.AppOpsManager.UID_STATE_TOP;
+
+import android.app.AppOpsManager.HistoricalOps;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Performance tests for querying the history of one uid from a {@link HistoricalOpsFile}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class HistoricalOpsFilePerfTest {
+    private static final int UID_COUNT = 200;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("historical_ops", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void timeQueryUid_oneSnapshot() throws IOException {
+        runQueryUidScenario(1);
+    }
+
+    @Test
+    public void timeQueryUid_tenSnapshots() throws IOException {
+        runQueryUidScenario(10);
+    }
+
+    @Test
+    public void timeQueryUid_hundredSnapshots() throws IOException {
+        runQueryUidScenario(100);
+    }
+
+    private void runQueryUidScenario(int snapshotCount) throws IOException {
+        final List<HistoricalOps> allOps = new ArrayList<>(snapshotCount);
+        for (int i = 0; i < snapshotCount; i++) {
+            allOps.add(createOps(i * 1000, (i + 1) * 1000));
+        }
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            HistoricalOpsFile.write(allOps, 0, out);
+        }
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int query = 0;
+        while (state.keepRunning()) {
+            HistoricalOpsFile.read(mFile, 10000 + query++ % UID_COUNT, null, null, null,
+                    FILTER_BY_UID, 0, Long.MAX_VALUE, OP_FLAGS_ALL, null);
+        }
+    }
+
+    private static HistoricalOps createOps(long beginTimeMillis, long endTimeMillis) {
+        final HistoricalOps ops = new HistoricalOps(beginTimeMillis, endTimeMillis);
+        for (int i = 0; i < UID_COUNT; i++) {
+            final int uid = 10000 + i;
+            final String packageName = "package_" + i;
+            ops.increaseAccessCount(OP_COARSE_LOCATION, uid, packageName, null,
+                    UID_STATE_TOP, OP_FLAG_SELF, 3);
+            ops.increaseAccessCount(OP_FINE_LOCATION, uid, packageName, null,
+                    UID_STATE_BACKGROUND, OP_FLAG_TRUSTED_PROXIED, 4);
+            ops.increaseRejectCount(OP_CAMERA, uid, packageName, "tag", UID_STATE_TOP,
+                    OP_FLAG_SELF, 1);
+            ops.increaseAccessDuration(OP_CAMERA, uid, packageName, "tag", UID_STATE_TOP,
+                    OP_FLAG_SELF, 500);
+        }
+        return ops;
+    }
+}
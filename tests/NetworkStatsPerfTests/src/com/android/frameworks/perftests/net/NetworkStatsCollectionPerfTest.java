@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.os.Process.myUid;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.telephony.TelephonyManager;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.net.NetworkIdentitySet;
+import com.android.server.net.NetworkStatsAccess;
+import com.android.server.net.NetworkStatsCollection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Performance tests for querying a {@link NetworkStatsCollection} by uid and by network.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsCollectionPerfTest {
+    private static final String TEST_IMSI = "310260000000000";
+
+    // A year of daily buckets for a few hundred apps on two networks.
+    private static final int UID_COUNT = 300;
+    private static final int DAY_COUNT = 365;
+    private static final long END = DAY_COUNT * DAY_IN_MILLIS;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private NetworkStatsCollection mCollection;
+    private NetworkTemplate mTemplate;
+
+    @Before
+    public void setUp() {
+        // ignore any device overlay while testing
+        NetworkTemplate.forceAllNetworkTypes();
+
+        final NetworkIdentitySet mobile = new NetworkIdentitySet();
+        mobile.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        final NetworkIdentitySet wifi = new NetworkIdentitySet();
+        wifi.add(new NetworkIdentity(TYPE_WIFI, 0, null, "test-ssid", false, false, true));
+
+        mCollection = new NetworkStatsCollection(DAY_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry(1024, 8, 512, 4, 0);
+        for (int uid = 10000; uid < 10000 + UID_COUNT; uid++) {
+            for (int day = 0; day < DAY_COUNT; day++) {
+                final long start = day * DAY_IN_MILLIS;
+                mCollection.recordData(mobile, uid, SET_DEFAULT, TAG_NONE, start,
+                        start + HOUR_IN_MILLIS, entry);
+                mCollection.recordData(wifi, uid, SET_DEFAULT, TAG_NONE, start,
+                        start + HOUR_IN_MILLIS, entry);
+            }
+        }
+        mTemplate = buildTemplateMobileAll(TEST_IMSI);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkTemplate.resetForceAllNetworkTypes();
+    }
+
+    @Test
+    public void timeGetSummary_lastMonth() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mCollection.getSummary(mTemplate, END - 30 * DAY_IN_MILLIS, END,
+                    NetworkStatsAccess.Level.DEVICE, myUid());
+        }
+    }
+
+    @Test
+    public void timeGetHistory_oneUid() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mCollection.getHistory(mTemplate, null, 10000 + i++ % UID_COUNT, SET_ALL, TAG_NONE,
+                    FIELD_ALL, 0, END, NetworkStatsAccess.Level.DEVICE, myUid());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.perftests.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.DropBoxManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.FileRotator;
+import com.android.server.net.NetworkIdentitySet;
+import com.android.server.net.NetworkStatsRecorder;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Performance tests for {@link NetworkStatsRecorder} recording uid snapshots.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsRecorderPerfTest {
+    private static final String TEST_IFACE = "test0";
+    private static final String TEST_IMSI = "310260000000000";
+    private static final long TEST_START = 1194220800000L;
+
+    private static final int UID_COUNT = 500;
+    private static final int TAGS_PER_UID = 3;
+
+    private static final NetworkStats.NonMonotonicObserver<String> sObserver =
+            new NetworkStats.NonMonotonicObserver<String>() {
+                @Override
+                public void foundNonMonotonic(NetworkStats left, int leftIndex,
+                        NetworkStats right, int rightIndex, String cookie) {
+                }
+
+                @Override
+                public void foundNonMonotonic(NetworkStats stats, int statsIndex,
+                        String cookie) {
+                }
+            };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mStatsDir;
+    private NetworkStatsRecorder mUidRecorder;
+    private NetworkStatsRecorder mUidTagRecorder;
+    private ArrayMap<String, NetworkIdentitySet> mIfaces;
+
+    @Before
+    public void setUp() {
+        // ignore any device overlay while testing
+        NetworkTemplate.forceAllNetworkTypes();
+
+        mStatsDir = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "NetworkStatsRecorderPerfTest");
+        IoUtils.deleteContents(mStatsDir);
+        mStatsDir.mkdirs();
+
+        final DropBoxManager dropBox = InstrumentationRegistry.getContext()
+                .getSystemService(DropBoxManager.class);
+        mUidRecorder = new NetworkStatsRecorder(
+                new FileRotator(mStatsDir, "uid", HOUR_IN_MILLIS, HOUR_IN_MILLIS), sObserver,
+                dropBox, "uid", HOUR_IN_MILLIS, false);
+        mUidTagRecorder = new NetworkStatsRecorder(
+                new FileRotator(mStatsDir, "uid_tag", HOUR_IN_MILLIS, HOUR_IN_MILLIS),
+                sObserver, dropBox, "uid_tag", HOUR_IN_MILLIS, true);
+
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        mIfaces = new ArrayMap<>();
+        mIfaces.put(TEST_IFACE, ident);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkTemplate.resetForceAllNetworkTypes();
+        IoUtils.deleteContents(mStatsDir);
+        mStatsDir.delete();
+    }
+
+    @Test
+    public void timeRecordSnapshot_withSibling() {
+        mUidRecorder.recordSnapshotLocked(buildSnapshot(0), mIfaces, TEST_START,
+                mUidTagRecorder);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int poll = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final NetworkStats snapshot = buildSnapshot(++poll);
+            state.resumeTiming();
+            mUidRecorder.recordSnapshotLocked(snapshot, mIfaces,
+                    TEST_START + poll * MINUTE_IN_MILLIS, mUidTagRecorder);
+        }
+    }
+
+    @Test
+    public void timeRecordSnapshot_separately() {
+        final NetworkStats first = buildSnapshot(0);
+        mUidRecorder.recordSnapshotLocked(first, mIfaces, TEST_START);
+        mUidTagRecorder.recordSnapshotLocked(first, mIfaces, TEST_START);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int poll = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final NetworkStats snapshot = buildSnapshot(++poll);
+            state.resumeTiming();
+            final long currentTime = TEST_START + poll * MINUTE_IN_MILLIS;
+            mUidRecorder.recordSnapshotLocked(snapshot, mIfaces, currentTime);
+            mUidTagRecorder.recordSnapshotLocked(snapshot, mIfaces, currentTime);
+        }
+    }
+
+    private static NetworkStats buildSnapshot(int poll) {
+        final int size = UID_COUNT * (TAGS_PER_UID + 1);
+        final NetworkStats stats = new NetworkStats(poll * MINUTE_IN_MILLIS, size);
+        final long bytes = 1024L * poll;
+        for (int uid = 10000; uid < 10000 + UID_COUNT; uid++) {
+            stats.insertEntry(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, bytes, poll, bytes, poll,
+                    0L);
+            for (int tag = 1; tag <= TAGS_PER_UID; tag++) {
+                stats.insertEntry(TEST_IFACE, uid, SET_DEFAULT, tag, bytes, poll, bytes, poll,
+                        0L);
+            }
+        }
+        return stats;
+    }
+}
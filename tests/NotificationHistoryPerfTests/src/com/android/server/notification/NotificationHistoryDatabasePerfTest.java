@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.AlarmManager;
+import android.app.NotificationHistory.HistoricalNotification;
+import android.content.Context;
+import android.graphics.drawable.Icon;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.AtomicFile;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Performance tests for adding and removing history in {@link NotificationHistoryDatabase}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NotificationHistoryDatabasePerfTest {
+    private static final int PACKAGE_COUNT = 20;
+    private static final int SEGMENT_COUNT = 50;
+    private static final int NOTIFICATIONS_PER_SEGMENT = 40;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private Handler mFileWriteHandler;
+    private File mDir;
+    private int mSegmentCount;
+
+    @Before
+    public void setUp() {
+        // Alarms and compaction are scheduled through mocks, the benchmarks run them directly.
+        mContext = mock(Context.class);
+        mFileWriteHandler = mock(Handler.class);
+        final Context context = InstrumentationRegistry.getContext();
+        when(mContext.getSystemService(AlarmManager.class)).thenReturn(mock(AlarmManager.class));
+        when(mContext.getUser()).thenReturn(context.getUser());
+        when(mContext.getPackageName()).thenReturn(context.getPackageName());
+        mDir = new File(context.getFilesDir(), "NotificationHistoryDatabasePerfTest");
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeWriteSegment() {
+        final NotificationHistoryDatabase db = createDatabase();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writeSegment(db);
+        }
+    }
+
+    @Test
+    public void timeRemovePackage() {
+        final NotificationHistoryDatabase db = createDatabase();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            writeSegment(db);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            db.new RemovePackageRunnable("pkg" + i++ % PACKAGE_COUNT).run();
+            state.pauseTiming();
+            // Keep removing from the same history, rather than from a growing tombstone list.
+            db.mTombstones.clear();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void timeCompactRemovedPackage() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            FileUtils.deleteContentsAndDir(mDir);
+            final NotificationHistoryDatabase db = createDatabase();
+            for (int i = 0; i < SEGMENT_COUNT; i++) {
+                writeSegment(db);
+            }
+            db.new RemovePackageRunnable("pkg0").run();
+            state.resumeTiming();
+
+            db.new CompactRunnable().run();
+        }
+    }
+
+    private NotificationHistoryDatabase createDatabase() {
+        mDir.mkdirs();
+        final NotificationHistoryDatabase db =
+                new NotificationHistoryDatabase(mContext, mFileWriteHandler, mDir);
+        db.init();
+        return db;
+    }
+
+    private void writeSegment(NotificationHistoryDatabase db) {
+        final int segment = mSegmentCount++;
+        for (int i = 0; i < NOTIFICATIONS_PER_SEGMENT; i++) {
+            db.addNotification(getHistoricalNotification(
+                    segment * NOTIFICATIONS_PER_SEGMENT + i));
+        }
+        // recent enough not to be pruned, and ordered by segment
+        final long time = System.currentTimeMillis() + segment;
+        db.new WriteBufferRunnable().run(time,
+                new AtomicFile(new File(new File(mDir, "history"), String.valueOf(time))));
+    }
+
+    private HistoricalNotification getHistoricalNotification(int index) {
+        return new HistoricalNotification.Builder()
+                .setPackage("pkg" + index % PACKAGE_COUNT)
+                .setChannelName("channelName" + index)
+                .setChannelId("channelId" + index)
+                .setUid(1123456 + index)
+                .setUserId(0)
+                .setPostedTimeMs(987654321 + index)
+                .setTitle("title" + index)
+                .setText("text" + index)
+                .setIcon(Icon.createWithResource(mContext.getPackageName(), index))
+                .build();
+    }
+}
@@ -17,12 +17,15 @@
 package com.android.server.net;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
 import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -63,6 +66,7 @@ import org.junit.runner.RunWith;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -524,6 +528,107 @@ public class NetworkStatsCollectionTest {
                 multiplySafe(4_939_212_288L, 2_121_815_528L, 12_730_893_165L));
     }
 
+    @Test
+    public void testRemoveUids() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet mobile = buildMobileIdentSet();
+        final NetworkIdentitySet wifi = buildWifiIdentSet();
+        final NetworkStats.Entry entry = new NetworkStats.Entry(16, 1, 32, 2, 0);
+        for (int uid = 10000; uid < 10004; uid++) {
+            collection.recordData(mobile, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+            collection.recordData(mobile, uid, SET_DEFAULT, 0xF00D, 0, HOUR_IN_MILLIS, entry);
+            collection.recordData(wifi, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        }
+
+        collection.removeUids(new int[] { 10001, 10003 });
+
+        assertArrayEquals(new int[] { UID_REMOVED, 10000, 10002 },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        // Untagged usage of the removed uids is kept, their tagged usage is dropped.
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 16 * 4, 4, 32 * 4, 8,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, buildTemplateWifiWildcard(), 16 * 4, 4, 32 * 4, 8,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotalIncludingTags(collection, buildTemplateMobileAll(TEST_IMSI),
+                16 * 6, 6, 32 * 6, 12);
+        final NetworkStatsHistory removedHistory = collection.getHistory(
+                buildTemplateMobileAll(TEST_IMSI), null, UID_REMOVED, SET_ALL, TAG_NONE,
+                FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE,
+                myUid());
+        assertEquals(16 * 2 + 32 * 2, removedHistory.getTotalBytes());
+
+        // The indexes survive a round trip through the file format.
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(new DataOutputStream(bos));
+        final NetworkStatsCollection read = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        read.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertArrayEquals(new int[] { UID_REMOVED, 10000, 10002 },
+                read.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertSummaryTotalIncludingTags(read, buildTemplateMobileAll(TEST_IMSI),
+                16 * 6, 6, 32 * 6, 12);
+    }
+
+    @Test
+    public void testQueryIndexedKeys() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet mobile = buildMobileIdentSet();
+        final NetworkIdentitySet wifi = buildWifiIdentSet();
+        final NetworkStats.Entry wifiEntry = new NetworkStats.Entry(1, 1, 0, 0, 0);
+        for (int uid = 10000; uid < 10005; uid++) {
+            // each uid has its own amount of mobile usage
+            final long bytes = 100L * (uid - 9999);
+            final NetworkStats.Entry mobileEntry = new NetworkStats.Entry(bytes, 1, 0, 0, 0);
+            collection.recordData(mobile, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                    mobileEntry);
+            collection.recordData(mobile, uid, SET_DEFAULT, 0xF00D, 0, HOUR_IN_MILLIS,
+                    mobileEntry);
+            collection.recordData(wifi, uid, SET_DEFAULT, TAG_NONE, HOUR_IN_MILLIS,
+                    2 * HOUR_IN_MILLIS, wifiEntry);
+        }
+        final NetworkTemplate mobileTemplate = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkTemplate wifiTemplate = buildTemplateWifiWildcard();
+
+        // Lookups by uid only see the series of that uid, tag and network.
+        assertEquals(300, getHistoryTotalBytes(collection, mobileTemplate, 10002, TAG_NONE));
+        assertEquals(300, getHistoryTotalBytes(collection, mobileTemplate, 10002, 0xF00D));
+        assertEquals(1, getHistoryTotalBytes(collection, wifiTemplate, 10002, TAG_NONE));
+        assertEquals(0, getHistoryTotalBytes(collection, wifiTemplate, 10002, 0xF00D));
+        assertEquals(0, getHistoryTotalBytes(collection, mobileTemplate, 10005, TAG_NONE));
+
+        // Lookups by network only see the series of that network.
+        assertSummaryTotal(collection, mobileTemplate, 1500, 5, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, wifiTemplate, 5, 5, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        final NetworkStats mobileSummary = collection.getSummary(mobileTemplate, 0,
+                HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE, myUid());
+        // an untagged and a tagged entry per uid
+        assertEquals(10, mobileSummary.size());
+        final NetworkStats wifiSummary = collection.getSummary(wifiTemplate, 0,
+                HOUR_IN_MILLIS / 2, NetworkStatsAccess.Level.DEVICE, myUid());
+        assertEquals(0, wifiSummary.getTotal(null).rxBytes);
+    }
+
+    private static long getHistoryTotalBytes(NetworkStatsCollection collection,
+            NetworkTemplate template, int uid, int tag) {
+        return collection.getHistory(template, null, uid, SET_ALL, tag, FIELD_ALL,
+                Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid())
+                .getTotalBytes();
+    }
+
+    private static NetworkIdentitySet buildMobileIdentSet() {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        return identSet;
+    }
+
+    private static NetworkIdentitySet buildWifiIdentSet() {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_WIFI, 0, null, "test-ssid", false, false, true));
+        return identSet;
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
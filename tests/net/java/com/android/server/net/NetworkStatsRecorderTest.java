@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.DropBoxManager;
+import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.FileRotator;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+
+/**
+ * Tests for {@link NetworkStatsRecorder}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class NetworkStatsRecorderTest {
+    private static final String TEST_IFACE = "test0";
+    private static final String TEST_IMSI = "310260000000000";
+
+    private static final long TEST_START = 1194220800000L;
+
+    private static final int UID_COUNT = 500;
+    private static final int TAGS_PER_UID = 3;
+
+    @Mock private DropBoxManager mDropBox;
+    @Mock private NetworkStats.NonMonotonicObserver<String> mObserver;
+
+    private File mStatsDir;
+    private NetworkStatsRecorder mUidRecorder;
+    private NetworkStatsRecorder mUidTagRecorder;
+    private ArrayMap<String, NetworkIdentitySet> mIfaces;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        // ignore any device overlay while testing
+        NetworkTemplate.forceAllNetworkTypes();
+
+        mStatsDir = new File(InstrumentationRegistry.getContext().getFilesDir(), "netstats");
+        IoUtils.deleteContents(mStatsDir);
+        mStatsDir.mkdirs();
+
+        mUidRecorder = new NetworkStatsRecorder(
+                new FileRotator(mStatsDir, "uid", HOUR_IN_MILLIS, HOUR_IN_MILLIS), mObserver,
+                mDropBox, "uid", HOUR_IN_MILLIS, false);
+        mUidTagRecorder = new NetworkStatsRecorder(
+                new FileRotator(mStatsDir, "uid_tag", HOUR_IN_MILLIS, HOUR_IN_MILLIS), mObserver,
+                mDropBox, "uid_tag", HOUR_IN_MILLIS, true);
+
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        mIfaces = new ArrayMap<>();
+        mIfaces.put(TEST_IFACE, ident);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        NetworkTemplate.resetForceAllNetworkTypes();
+        IoUtils.deleteContents(mStatsDir);
+        mStatsDir.delete();
+    }
+
+    @Test
+    public void testRecordSnapshotWithSibling() throws Exception {
+        final int pollCount = 10;
+        for (int poll = 0; poll <= pollCount; poll++) {
+            mUidRecorder.recordSnapshotLocked(buildSnapshot(poll), mIfaces,
+                    TEST_START + poll * MINUTE_IN_MILLIS, mUidTagRecorder);
+        }
+
+        // the first poll is bootstrap, each later one adds 1024 bytes per uid and per tag
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        assertEquals(1024L * UID_COUNT * pollCount,
+                mUidRecorder.getTotalSinceBootLocked(template).rxBytes);
+        assertEquals(1024L * UID_COUNT * TAGS_PER_UID * pollCount,
+                mUidTagRecorder.getTotalSinceBootLocked(template).rxBytes);
+    }
+
+    @Test
+    public void testRecordSnapshotSiblingOutOfStep() throws Exception {
+        // the sibling already saw a snapshot of its own, so it must record its own delta
+        mUidTagRecorder.recordSnapshotLocked(buildSnapshot(0), mIfaces, TEST_START);
+        mUidRecorder.recordSnapshotLocked(buildSnapshot(1), mIfaces,
+                TEST_START + MINUTE_IN_MILLIS, mUidTagRecorder);
+        mUidRecorder.recordSnapshotLocked(buildSnapshot(2), mIfaces,
+                TEST_START + 2 * MINUTE_IN_MILLIS, mUidTagRecorder);
+
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        assertEquals(1024L * UID_COUNT,
+                mUidRecorder.getTotalSinceBootLocked(template).rxBytes);
+        assertEquals(1024L * UID_COUNT * TAGS_PER_UID * 2,
+                mUidTagRecorder.getTotalSinceBootLocked(template).rxBytes);
+    }
+
+    private static NetworkStats buildSnapshot(int poll) {
+        final int size = UID_COUNT * (TAGS_PER_UID + 1);
+        final NetworkStats stats = new NetworkStats(poll * MINUTE_IN_MILLIS, size);
+        final long bytes = 1024L * poll;
+        for (int uid = 10000; uid < 10000 + UID_COUNT; uid++) {
+            stats.insertEntry(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, bytes, poll, bytes, poll,
+                    0L);
+            for (int tag = 1; tag <= TAGS_PER_UID; tag++) {
+                stats.insertEntry(TEST_IFACE, uid, SET_DEFAULT, tag, bytes, poll, bytes, poll,
+                        0L);
+            }
+        }
+        return stats;
+    }
+}